@@ -26,10 +26,13 @@ import java.util.List;
 import javax.annotation.Nullable;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleStateHandler;
@@ -46,12 +49,14 @@ import org.apache.spark.network.protocol.SslMessageEncoder;
 import org.apache.spark.network.protocol.MessageDecoder;
 import org.apache.spark.network.protocol.MessageEncoder;
 import org.apache.spark.network.server.ChunkFetchRequestHandler;
+import org.apache.spark.network.server.DiskReadScheduler;
 import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.server.TransportChannelHandler;
 import org.apache.spark.network.server.TransportRequestHandler;
 import org.apache.spark.network.server.TransportServer;
 import org.apache.spark.network.server.TransportServerBootstrap;
 import org.apache.spark.network.ssl.SSLFactory;
+import org.apache.spark.network.util.FlushMetricsHandler;
 import org.apache.spark.network.util.IOMode;
 import org.apache.spark.network.util.NettyUtils;
 import org.apache.spark.network.util.NettyLogger;
@@ -83,6 +88,12 @@ public class TransportContext implements Closeable {
   @Nullable private final SSLFactory sslFactory;
   // Number of registered connections to the shuffle service
   private Counter registeredConnections = new Counter();
+  // The number of messages per flush of the client and the server channels, if flushes are
+  // consolidated.
+  private final Histogram clientMessagesPerFlush =
+    new Histogram(new ExponentiallyDecayingReservoir());
+  private final Histogram serverMessagesPerFlush =
+    new Histogram(new ExponentiallyDecayingReservoir());
 
   /**
    * Force to create MessageEncoder and MessageDecoder so that we can make sure they will be created
@@ -105,6 +116,9 @@ public class TransportContext implements Closeable {
   // of ChunkFetchRequest message back to the client via the underlying channel.
   private final EventLoopGroup chunkFetchWorkers;
 
+  // Schedules the reads of the shuffle file segments sent by the server, shared by its channels.
+  @Nullable private final DiskReadScheduler diskReadScheduler;
+
   public TransportContext(TransportConf conf, RpcHandler rpcHandler) {
     this(conf, rpcHandler, false, false);
   }
@@ -147,6 +161,15 @@ public class TransportContext implements Closeable {
     } else {
       chunkFetchWorkers = null;
     }
+
+    if (conf.getModuleName() != null &&
+        conf.getModuleName().equalsIgnoreCase("shuffle") &&
+        !isClientOnly && conf.diskReadSchedulerEnabled()) {
+      diskReadScheduler = new DiskReadScheduler(conf.diskReadSchedulerMaxConcurrentReads(),
+        conf.diskReadSchedulerBatchWindowMs(), conf.diskReadSchedulerMaxQueuedReads());
+    } else {
+      diskReadScheduler = null;
+    }
   }
 
   /**
@@ -190,6 +213,11 @@ public class TransportContext implements Closeable {
     return this.sslFactory != null;
   }
 
+  /** Whether the connections which have been idle for the connection timeout are closed. */
+  public boolean closeIdleConnections() {
+    return closeIdleConnections;
+  }
+
   /**
    * Initializes a client or server Netty Channel Pipeline which encodes/decodes messages and
    * has a {@link org.apache.spark.network.server.TransportChannelHandler} to handle request or
@@ -226,8 +254,17 @@ public class TransportContext implements Closeable {
         pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());
       }
 
+      pipeline.addLast("encoder", sslEncryptionEnabled()? SSL_ENCODER : ENCODER);
+      if (conf.consolidateFlushes()) {
+        // The messages written outside of the event loop are flushed once per event loop tick,
+        // and the responses written while reading are flushed once the read completes.
+        pipeline
+          .addLast(FlushMetricsHandler.HANDLER_NAME, new FlushMetricsHandler(
+            isClient ? clientMessagesPerFlush : serverMessagesPerFlush))
+          .addLast("flushConsolidation",
+            new FlushConsolidationHandler(conf.maxMessagesPerFlush(), true));
+      }
       pipeline
-        .addLast("encoder", sslEncryptionEnabled()? SSL_ENCODER : ENCODER)
         .addLast(TransportFrameDecoder.HANDLER_NAME, NettyUtils.createFrameDecoder())
         .addLast("decoder", getDecoder())
         .addLast("idleStateHandler",
@@ -239,7 +276,7 @@ public class TransportContext implements Closeable {
       if (chunkFetchWorkers != null) {
         ChunkFetchRequestHandler chunkFetchHandler = new ChunkFetchRequestHandler(
           channelHandler.getClient(), rpcHandler.getStreamManager(),
-          conf.maxChunksBeingTransferred(), true /* syncModeEnabled */);
+          conf.maxChunksBeingTransferred(), true /* syncModeEnabled */, diskReadScheduler);
         pipeline.addLast(chunkFetchWorkers, "chunkFetchHandler", chunkFetchHandler);
       }
       return channelHandler;
@@ -294,7 +331,7 @@ public class TransportContext implements Closeable {
     if (!separateChunkFetchRequest) {
       chunkFetchRequestHandler = new ChunkFetchRequestHandler(
         client, rpcHandler.getStreamManager(),
-        conf.maxChunksBeingTransferred(), false /* syncModeEnabled */);
+        conf.maxChunksBeingTransferred(), false /* syncModeEnabled */, diskReadScheduler);
     }
     TransportRequestHandler requestHandler = new TransportRequestHandler(channel, client,
       rpcHandler, conf.maxChunksBeingTransferred(), chunkFetchRequestHandler);
@@ -308,11 +345,30 @@ public class TransportContext implements Closeable {
     return registeredConnections;
   }
 
+  /** The number of messages per flush of the client channels, if flushes are consolidated. */
+  public Histogram getClientMessagesPerFlush() {
+    return clientMessagesPerFlush;
+  }
+
+  /** The number of messages per flush of the server channels, if flushes are consolidated. */
+  public Histogram getServerMessagesPerFlush() {
+    return serverMessagesPerFlush;
+  }
+
+  /** The scheduler of the reads of shuffle file segments, if it is enabled for this server. */
+  @Nullable
+  public DiskReadScheduler getDiskReadScheduler() {
+    return diskReadScheduler;
+  }
+
   @Override
   public void close() {
     if (chunkFetchWorkers != null) {
       chunkFetchWorkers.shutdownGracefully();
     }
+    if (diskReadScheduler != null) {
+      diskReadScheduler.close();
+    }
     if (sslFactory != null) {
       sslFactory.destroy();
     }
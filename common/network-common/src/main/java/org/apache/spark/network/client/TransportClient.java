@@ -21,12 +21,14 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.Channel;
@@ -76,6 +78,7 @@ public class TransportClient implements Closeable {
   private final Channel channel;
   private final TransportResponseHandler handler;
   @Nullable private String clientId;
+  @Nullable private volatile Timer requestLatency;
   private volatile boolean timedOut;
 
   public TransportClient(Channel channel, TransportResponseHandler handler) {
@@ -115,6 +118,14 @@ public class TransportClient implements Closeable {
     this.clientId = id;
   }
 
+  /**
+   * Sets the timer which records the time from sending every chunk fetch request and RPC of this
+   * client until its response or failure. This is meant to be used by the connection pool.
+   */
+  public void setRequestLatencyTimer(Timer requestLatency) {
+    this.requestLatency = requestLatency;
+  }
+
   /**
    * Requests a single chunk from the remote side, from the pre-negotiated streamId.
    *
@@ -134,21 +145,52 @@ public class TransportClient implements Closeable {
       long streamId,
       int chunkIndex,
       ChunkReceivedCallback callback) {
+    writeFetchRequest(streamId, chunkIndex, callback);
+    channel.flush();
+  }
+
+  /**
+   * Requests the given chunks from the remote side, from the pre-negotiated streamId. The
+   * requests are written to the channel together and flushed once, so that they are sent with as
+   * few writes to the socket as possible. The chunks are returned in the order of the indices.
+   *
+   * @param streamId Identifier that refers to a stream in the remote StreamManager. This should
+   *                 be agreed upon by client and server beforehand.
+   * @param chunkIndices 0-based indices of the chunks to fetch
+   * @param callback Callback invoked upon successful receipt of every chunk, or upon any failure.
+   */
+  public void fetchChunks(
+      long streamId,
+      int[] chunkIndices,
+      ChunkReceivedCallback callback) {
+    for (int chunkIndex : chunkIndices) {
+      writeFetchRequest(streamId, chunkIndex, callback);
+    }
+    channel.flush();
+  }
+
+  private void writeFetchRequest(
+      long streamId,
+      int chunkIndex,
+      ChunkReceivedCallback callback) {
     if (logger.isDebugEnabled()) {
       logger.debug("Sending fetch chunk request {} to {}", chunkIndex, getRemoteAddress(channel));
     }
 
+    Timer latency = requestLatency;
+    ChunkReceivedCallback timedCallback =
+      latency == null ? callback : new TimedChunkReceivedCallback(callback, latency);
     StreamChunkId streamChunkId = new StreamChunkId(streamId, chunkIndex);
     StdChannelListener listener = new StdChannelListener(streamChunkId) {
       @Override
       void handleFailure(String errorMsg, Throwable cause) {
         handler.removeFetchRequest(streamChunkId);
-        callback.onFailure(chunkIndex, new IOException(errorMsg, cause));
+        timedCallback.onFailure(chunkIndex, new IOException(errorMsg, cause));
       }
     };
-    handler.addFetchRequest(streamChunkId, callback);
+    handler.addFetchRequest(streamChunkId, timedCallback);
 
-    channel.writeAndFlush(new ChunkFetchRequest(streamChunkId)).addListener(listener);
+    channel.write(new ChunkFetchRequest(streamChunkId)).addListener(listener);
   }
 
   /**
@@ -186,15 +228,48 @@ public class TransportClient implements Closeable {
    * @return The RPC's id.
    */
   public long sendRpc(ByteBuffer message, RpcResponseCallback callback) {
+    long requestId = writeRpc(message, callback);
+    channel.flush();
+    return requestId;
+  }
+
+  /**
+   * Sends opaque messages to the RpcHandler on the server-side. The messages are written to the
+   * channel together and flushed once, so that they are sent with as few writes to the socket as
+   * possible. Every callback will be invoked with the server's response to its message or upon
+   * any failure.
+   *
+   * @param messages The messages to send.
+   * @param callbacks Callbacks to handle the RPCs' replies, one per message.
+   * @return The RPCs' ids, in the order of the messages.
+   */
+  public long[] sendRpcBatch(List<ByteBuffer> messages, List<RpcResponseCallback> callbacks) {
+    JavaUtils.checkArgument(messages.size() == callbacks.size(),
+      "Number of messages (%s) must match the number of callbacks (%s)",
+      messages.size(), callbacks.size());
+    long[] requestIds = new long[messages.size()];
+    for (int i = 0; i < requestIds.length; i++) {
+      requestIds[i] = writeRpc(messages.get(i), callbacks.get(i));
+    }
+    channel.flush();
+    return requestIds;
+  }
+
+  private long writeRpc(ByteBuffer message, RpcResponseCallback callback) {
     if (logger.isTraceEnabled()) {
       logger.trace("Sending RPC to {}", getRemoteAddress(channel));
     }
 
+    Timer latency = requestLatency;
+    if (latency != null) {
+      callback = new TimedRpcResponseCallback(callback, latency);
+    }
+
     long requestId = requestId();
     handler.addRpcRequest(requestId, callback);
 
     RpcChannelListener listener = new RpcChannelListener(requestId, callback);
-    channel.writeAndFlush(new RpcRequest(requestId, new NioManagedBuffer(message)))
+    channel.write(new RpcRequest(requestId, new NioManagedBuffer(message)))
       .addListener(listener);
 
     return requestId;
@@ -343,6 +418,52 @@ public class TransportClient implements Closeable {
     return Math.abs(UUID.randomUUID().getLeastSignificantBits());
   }
 
+  /** Records the time until the response to a chunk fetch request, or its failure. */
+  private static class TimedChunkReceivedCallback implements ChunkReceivedCallback {
+    private final ChunkReceivedCallback callback;
+    private final Timer.Context timerContext;
+
+    TimedChunkReceivedCallback(ChunkReceivedCallback callback, Timer latency) {
+      this.callback = callback;
+      this.timerContext = latency.time();
+    }
+
+    @Override
+    public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+      timerContext.stop();
+      callback.onSuccess(chunkIndex, buffer);
+    }
+
+    @Override
+    public void onFailure(int chunkIndex, Throwable e) {
+      timerContext.stop();
+      callback.onFailure(chunkIndex, e);
+    }
+  }
+
+  /** Records the time until the response to an RPC, or its failure. */
+  private static class TimedRpcResponseCallback implements RpcResponseCallback {
+    private final RpcResponseCallback callback;
+    private final Timer.Context timerContext;
+
+    TimedRpcResponseCallback(RpcResponseCallback callback, Timer latency) {
+      this.callback = callback;
+      this.timerContext = latency.time();
+    }
+
+    @Override
+    public void onSuccess(ByteBuffer response) {
+      timerContext.stop();
+      callback.onSuccess(response);
+    }
+
+    @Override
+    public void onFailure(Throwable e) {
+      timerContext.stop();
+      callback.onFailure(e);
+    }
+  }
+
   private class StdChannelListener
       implements GenericFutureListener<Future<? super Void>> {
     final long startTime;
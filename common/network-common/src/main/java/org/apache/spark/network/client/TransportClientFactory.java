@@ -22,13 +22,20 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
@@ -67,14 +74,17 @@ public class TransportClientFactory implements Closeable {
     TransportClient[] clients;
     Object[] locks;
     volatile long lastConnectionFailed;
+    // The latency of the requests to the peer, only tracked by adaptive pools.
+    @Nullable final Timer requestLatency;
 
-    ClientPool(int size) {
+    ClientPool(int size, boolean trackLatency) {
       clients = new TransportClient[size];
       locks = new Object[size];
       for (int i = 0; i < size; i++) {
         locks[i] = new Object();
       }
       lastConnectionFailed = 0;
+      requestLatency = trackLatency ? new TimerWithCustomTimeUnit(TimeUnit.MILLISECONDS) : null;
     }
   }
 
@@ -89,6 +99,9 @@ public class TransportClientFactory implements Closeable {
   /** Random number generator for picking connections between peers. */
   private final Random rand;
   private final int numConnectionsPerPeer;
+  private final boolean adaptiveConnectionPool;
+  private final int connectionBacklogThreshold;
+  private final long idleConnectionTimeoutNs;
 
   private final Class<? extends Channel> socketChannelClass;
   private EventLoopGroup workerGroup;
@@ -104,6 +117,11 @@ public class TransportClientFactory implements Closeable {
     this.clientBootstraps = new ArrayList<>(Objects.requireNonNull(clientBootstraps));
     this.connectionPool = new ConcurrentHashMap<>();
     this.numConnectionsPerPeer = conf.numConnectionsPerPeer();
+    this.adaptiveConnectionPool = conf.adaptiveConnectionPool();
+    this.connectionBacklogThreshold = conf.connectionBacklogThreshold();
+    // Like the channel handlers, the adaptive pool only closes idle clients if the context does.
+    this.idleConnectionTimeoutNs = context.closeIdleConnections() ?
+      TimeUnit.MILLISECONDS.toNanos(conf.connectionTimeoutMs()) : 0L;
     this.rand = new Random();
 
     IOMode ioMode = IOMode.valueOf(conf.ioMode());
@@ -125,7 +143,28 @@ public class TransportClientFactory implements Closeable {
   }
 
   public MetricSet getAllMetrics() {
-    return metrics;
+    if (!conf.consolidateFlushes() && !adaptiveConnectionPool) {
+      return metrics;
+    }
+    return () -> {
+      Map<String, Metric> allMetrics = new HashMap<>(metrics.getMetrics());
+      String prefix = conf.getModuleName() + "-client";
+      if (conf.consolidateFlushes()) {
+        allMetrics.put(
+          MetricRegistry.name(prefix, "messagesPerFlush"), context.getClientMessagesPerFlush());
+      }
+      // The latency of the requests to every peer the factory has connected to so far.
+      connectionPool.forEach((address, clientPool) -> {
+        if (clientPool.requestLatency != null) {
+          InetSocketAddress peer = (InetSocketAddress) address;
+          allMetrics.put(
+            MetricRegistry.name(prefix, "requestLatency", peer.getHostString() + ":" +
+              peer.getPort()),
+            clientPool.requestLatency);
+        }
+      });
+      return allMetrics;
+    };
   }
 
   /**
@@ -135,6 +174,11 @@ public class TransportClientFactory implements Closeable {
    * and randomly picks one to use. If no client was previously created in the randomly selected
    * spot, this function creates a new client and places it there.
    *
+   * If spark.shuffle.io.adaptiveConnectionPool is enabled, the active client with the fewest
+   * outstanding requests is picked instead, and a new client is only created once every active
+   * client has spark.shuffle.io.connectionBacklogThreshold outstanding requests. See
+   * {@link #selectClientIndex(ClientPool)}.
+   *
    * If the fastFail parameter is true, fail immediately when the last attempt to the same address
    * failed within the fast fail time window (95 percent of the io wait retry timeout). The
    * assumption is the caller will handle retrying.
@@ -161,8 +205,9 @@ public class TransportClientFactory implements Closeable {
 
     // Create the ClientPool if we don't have it yet.
     ClientPool clientPool = connectionPool.computeIfAbsent(unresolvedAddress,
-        key -> new ClientPool(numConnectionsPerPeer));
-    int clientIndex = rand.nextInt(numConnectionsPerPeer);
+        key -> new ClientPool(numConnectionsPerPeer, adaptiveConnectionPool));
+    int clientIndex = adaptiveConnectionPool ?
+      selectClientIndex(clientPool) : rand.nextInt(numConnectionsPerPeer);
     TransportClient cachedClient = clientPool.clients[clientIndex];
 
     if (cachedClient != null && cachedClient.isActive()) {
@@ -221,7 +266,13 @@ public class TransportClientFactory implements Closeable {
             resolvedAddress, fastFailTimeWindow));
       }
       try {
-        clientPool.clients[clientIndex] = createClient(resolvedAddress);
+        TransportClient client = createClient(resolvedAddress);
+        if (adaptiveConnectionPool) {
+          // Make sure that the new client is not closed as idle before it is used.
+          client.getHandler().updateTimeOfLastRequest();
+          client.setRequestLatencyTimer(clientPool.requestLatency);
+        }
+        clientPool.clients[clientIndex] = client;
         clientPool.lastConnectionFailed = 0;
       } catch (IOException e) {
         clientPool.lastConnectionFailed = System.currentTimeMillis();
@@ -236,6 +287,79 @@ public class TransportClientFactory implements Closeable {
     return createClient(remoteHost, remotePort, false);
   }
 
+  /**
+   * Picks the spot of the adaptive pool to take the client from. This is the active client with
+   * the fewest outstanding requests, unless every active client has reached the backlog
+   * threshold and there is a spot without an active client, in which case the pool grows by
+   * creating a new client there. While at it, if the context closes idle connections, the clients
+   * which have been idle for longer than the connection timeout are closed, except the first
+   * one, so that the pool shrinks back.
+   */
+  private int selectClientIndex(ClientPool clientPool) {
+    int bestIndex = -1;
+    int bestOutstanding = Integer.MAX_VALUE;
+    int freeIndex = -1;
+    long now = System.nanoTime();
+    for (int i = 0; i < clientPool.clients.length; i++) {
+      TransportClient client = clientPool.clients[i];
+      if (client == null || !client.isActive()) {
+        if (freeIndex < 0) {
+          freeIndex = i;
+        }
+        continue;
+      }
+      TransportResponseHandler handler = client.getHandler();
+      int outstanding = handler.numOutstandingRequests();
+      if (outstanding == 0 && bestOutstanding == 0 && idleConnectionTimeoutNs > 0 &&
+          now - handler.getTimeOfLastRequestNs() > idleConnectionTimeoutNs &&
+          closeIdleClient(clientPool, i, client)) {
+        if (freeIndex < 0) {
+          freeIndex = i;
+        }
+        continue;
+      }
+      if (outstanding < bestOutstanding) {
+        bestIndex = i;
+        bestOutstanding = outstanding;
+      }
+    }
+    if (bestIndex < 0) {
+      return freeIndex;
+    }
+    if (bestOutstanding >= connectionBacklogThreshold && freeIndex >= 0) {
+      logger.debug("All connections to the peer have at least {} outstanding requests, " +
+        "opening another one", bestOutstanding);
+      return freeIndex;
+    }
+    return bestIndex;
+  }
+
+  /** Removes an idle client from its spot of the pool and closes it. */
+  private boolean closeIdleClient(ClientPool clientPool, int clientIndex, TransportClient client) {
+    TransportChannelHandler handler = client.getChannel().pipeline()
+      .get(TransportChannelHandler.class);
+    if (handler == null) {
+      return false;
+    }
+    // Like the idle timeout of the handler, this synchronizes with createClient() updating the
+    // last use time of the client, so that a client which has just been handed out is not closed.
+    synchronized (clientPool.locks[clientIndex]) {
+      synchronized (handler) {
+        TransportResponseHandler responseHandler = handler.getResponseHandler();
+        if (clientPool.clients[clientIndex] != client ||
+            responseHandler.hasOutstandingRequests() ||
+            System.nanoTime() - responseHandler.getTimeOfLastRequestNs() <=
+              idleConnectionTimeoutNs) {
+          return false;
+        }
+        logger.debug("Closing idle connection to {}", client.getSocketAddress());
+        clientPool.clients[clientIndex] = null;
+        client.close();
+        return true;
+      }
+    }
+  }
+
   /**
    * Create a completely new {@link TransportClient} to the given remote host / port.
    * This connection is not pooled.
@@ -235,7 +235,7 @@ class AuthEngine implements Closeable {
           isClient ? clientIv : serverIv,  // If it's the client, use the client IV first
           isClient ? serverIv : clientIv);
     } else if (CIPHER_ALGORITHM.equalsIgnoreCase(conf.cipherTransformation())) {
-      return new GcmTransportCipher(sessionKey);
+      return new GcmTransportCipher(sessionKey, conf.encryptionBufferSize());
     } else {
       throw new IllegalArgumentException(
               String.format("Unsupported cipher mode: %s. %s and %s are supported.",
@@ -224,6 +224,8 @@ public class CtrTransportCipher implements TransportCipher {
     private final EncryptionHandler handler;
     private final long count;
     private long transferred;
+    // The number of plaintext bytes read from the region so far.
+    private long regionRead;
 
     // Due to streaming issue CRYPTO-125: https://issues.apache.org/jira/browse/CRYPTO-125, it has
     // to utilize two helper ByteArrayWritableChannel for streaming. One is used to receive raw data
@@ -350,7 +352,15 @@ public class CtrTransportCipher implements TransportCipher {
         int copied = byteRawChannel.write(buf.nioBuffer());
         buf.skipBytes(copied);
       } else {
-        region.transferTo(byteRawChannel, region.transferred());
+        // Fill the raw channel as far as the region allows, so that every round of encryption
+        // and socket write covers a full buffer rather than one short read of the region.
+        while (regionRead < count && byteRawChannel.length() < STREAM_BUFFER_SIZE) {
+          long read = region.transferTo(byteRawChannel, region.transferred());
+          if (read <= 0) {
+            break;
+          }
+          regionRead += read;
+        }
       }
 
       try {
@@ -21,6 +21,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.primitives.Longs;
 import com.google.crypto.tink.subtle.*;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.util.ReferenceCounted;
@@ -41,10 +42,18 @@ public class GcmTransportCipher implements TransportCipher {
     private static final int LENGTH_HEADER_BYTES = 8;
     @VisibleForTesting
     static final int CIPHERTEXT_BUFFER_SIZE = 32 * 1024; // 32KB
+    @VisibleForTesting
+    static final int DEFAULT_ENCRYPTION_BUFFER_SIZE = 256 * 1024; // 256KB
     private final SecretKeySpec aesKey;
+    private final int encryptionBufferSize;
 
     public GcmTransportCipher(SecretKeySpec aesKey)  {
+        this(aesKey, DEFAULT_ENCRYPTION_BUFFER_SIZE);
+    }
+
+    public GcmTransportCipher(SecretKeySpec aesKey, int encryptionBufferSize)  {
         this.aesKey = aesKey;
+        this.encryptionBufferSize = encryptionBufferSize;
     }
 
     AesGcmHkdfStreaming getAesGcmHkdfStreaming() throws InvalidAlgorithmParameterException {
@@ -66,7 +75,7 @@ public class GcmTransportCipher implements TransportCipher {
 
     @VisibleForTesting
     EncryptionHandler getEncryptionHandler() throws GeneralSecurityException {
-        return new EncryptionHandler();
+        return new EncryptionHandler(ByteBufAllocator.DEFAULT);
     }
 
     @VisibleForTesting
@@ -76,20 +85,21 @@ public class GcmTransportCipher implements TransportCipher {
 
     public void addToChannel(Channel ch) throws GeneralSecurityException {
         ch.pipeline()
-            .addFirst("GcmTransportEncryption", getEncryptionHandler())
+            .addFirst("GcmTransportEncryption", new EncryptionHandler(ch.alloc()))
             .addFirst("GcmTransportDecryption", getDecryptionHandler());
     }
 
     @VisibleForTesting
     class EncryptionHandler extends ChannelOutboundHandlerAdapter {
-        private final ByteBuffer plaintextBuffer;
-        private final ByteBuffer ciphertextBuffer;
+        private final ByteBufAllocator alloc;
         private final AesGcmHkdfStreaming aesGcmHkdfStreaming;
+        private final int segmentsPerChunk;
 
-        EncryptionHandler() throws InvalidAlgorithmParameterException {
+        EncryptionHandler(ByteBufAllocator alloc) throws InvalidAlgorithmParameterException {
+            this.alloc = alloc;
             aesGcmHkdfStreaming = getAesGcmHkdfStreaming();
-            plaintextBuffer = ByteBuffer.allocate(aesGcmHkdfStreaming.getPlaintextSegmentSize());
-            ciphertextBuffer = ByteBuffer.allocate(aesGcmHkdfStreaming.getCiphertextSegmentSize());
+            segmentsPerChunk = Math.max(1,
+                    encryptionBufferSize / aesGcmHkdfStreaming.getPlaintextSegmentSize());
         }
 
         @Override
@@ -98,16 +108,31 @@ public class GcmTransportCipher implements TransportCipher {
             GcmEncryptedMessage encryptedMessage = new GcmEncryptedMessage(
                     aesGcmHkdfStreaming,
                     msg,
-                    plaintextBuffer,
-                    ciphertextBuffer);
+                    alloc,
+                    segmentsPerChunk);
             ctx.write(encryptedMessage, promise);
         }
     }
 
+    /**
+     * Encrypts a message as it is transferred to the channel. The plaintext is read in chunks of
+     * several cipher segments into a pooled direct buffer, and each chunk is encrypted segment
+     * by segment into a second direct buffer, which is written to the channel in one go. The
+     * segment boundaries, and so the wire format, do not depend on the chunk size. The buffers
+     * are allocated on the first transfer and released once the message is fully encrypted.
+     */
     static class GcmEncryptedMessage extends AbstractFileRegion {
         private final Object plaintextMessage;
-        private final ByteBuffer plaintextBuffer;
-        private final ByteBuffer ciphertextBuffer;
+        private final ByteBufAllocator alloc;
+        private final int plaintextSegmentSize;
+        private final int segmentOverhead;
+        private final int plaintextChunkSize;
+        private ByteBuf plaintextNettyBuf;
+        private ByteBuf ciphertextNettyBuf;
+        private ByteBuffer plaintextBuffer;
+        // If the ciphertext buffer cannot be fully written to the target, transferTo may
+        // return with it containing some unwritten data. It starts out empty.
+        private ByteBuffer ciphertextBuffer = ByteBuffer.allocate(0);
         private final ByteBuffer headerByteBuffer;
         private final long bytesToRead;
         private long bytesRead = 0;
@@ -117,20 +142,21 @@ public class GcmTransportCipher implements TransportCipher {
 
         GcmEncryptedMessage(AesGcmHkdfStreaming aesGcmHkdfStreaming,
                             Object plaintextMessage,
-                            ByteBuffer plaintextBuffer,
-                            ByteBuffer ciphertextBuffer) throws GeneralSecurityException {
+                            ByteBufAllocator alloc,
+                            int segmentsPerChunk) throws GeneralSecurityException {
             JavaUtils.checkArgument(
                     plaintextMessage instanceof ByteBuf || plaintextMessage instanceof FileRegion,
                     "Unrecognized message type: %s", plaintextMessage.getClass().getName());
             this.plaintextMessage = plaintextMessage;
-            this.plaintextBuffer = plaintextBuffer;
-            this.ciphertextBuffer = ciphertextBuffer;
-            // If the ciphertext buffer cannot be fully written the target, transferTo may
-            // return with it containing some unwritten data. The initial call we'll explicitly
-            // set its limit to 0 to indicate the first call to transferTo.
-            this.ciphertextBuffer.limit(0);
+            this.alloc = alloc;
+            this.plaintextSegmentSize = aesGcmHkdfStreaming.getPlaintextSegmentSize();
+            this.segmentOverhead =
+                    aesGcmHkdfStreaming.getCiphertextSegmentSize() - plaintextSegmentSize;
 
             this.bytesToRead = getReadableBytes();
+            // Small messages only take the buffer space they need.
+            this.plaintextChunkSize =
+                    (int) Math.min((long) segmentsPerChunk * plaintextSegmentSize, bytesToRead);
             this.encryptedCount =
                     LENGTH_HEADER_BYTES + aesGcmHkdfStreaming.expectedCiphertextSize(bytesToRead);
             byte[] lengthAad = Longs.toByteArray(encryptedCount);
@@ -218,33 +244,40 @@ public class GcmTransportCipher implements TransportCipher {
                }
             }
             while (bytesRead < bytesToRead) {
-                long readableBytes = getReadableBytes();
-                int readLimit =
-                        (int) Math.min(readableBytes, plaintextBuffer.remaining());
+                allocateBuffers();
+                // Fill the plaintext buffer with whole segments, or the rest of the message.
+                plaintextBuffer.limit((int) Math.min(bytesToRead - bytesRead, plaintextChunkSize));
                 if (plaintextMessage instanceof ByteBuf byteBuf) {
-                    JavaUtils.checkState(0 == plaintextBuffer.position(),
-                      "plaintextBuffer.position is not 0");
-                    plaintextBuffer.limit(readLimit);
                     byteBuf.readBytes(plaintextBuffer);
-                    JavaUtils.checkState(readLimit == plaintextBuffer.position(),
-                      "plaintextBuffer.position should be equal to readLimit.");
+                    JavaUtils.checkState(!plaintextBuffer.hasRemaining(),
+                      "plaintextBuffer should be filled from the ByteBuf.");
                 } else if (plaintextMessage instanceof FileRegion fileRegion) {
                     ByteBufferWriteableChannel plaintextChannel =
                             new ByteBufferWriteableChannel(plaintextBuffer);
-                    long plaintextRead =
-                            fileRegion.transferTo(plaintextChannel, fileRegion.transferred());
-                    if (plaintextRead < readLimit) {
-                        // If we do not read a full plaintext buffer or all the available
-                        // readable bytes, return what was transferred this call.
-                        return transferredThisCall;
+                    while (plaintextBuffer.hasRemaining()) {
+                        long plaintextRead =
+                                fileRegion.transferTo(plaintextChannel, fileRegion.transferred());
+                        if (plaintextRead <= 0) {
+                            // The region cannot make progress right now, so keep the partial
+                            // chunk and return what was transferred this call.
+                            return transferredThisCall;
+                        }
                     }
                 }
-                boolean lastSegment = getReadableBytes() == 0;
                 plaintextBuffer.flip();
                 bytesRead += plaintextBuffer.remaining();
+                boolean lastChunk = bytesRead == bytesToRead;
                 ciphertextBuffer.clear();
                 try {
-                    encrypter.encryptSegment(plaintextBuffer, lastSegment, ciphertextBuffer);
+                    while (plaintextBuffer.hasRemaining()) {
+                        int segmentLength =
+                                Math.min(plaintextSegmentSize, plaintextBuffer.remaining());
+                        ByteBuffer segment =
+                                plaintextBuffer.slice(plaintextBuffer.position(), segmentLength);
+                        plaintextBuffer.position(plaintextBuffer.position() + segmentLength);
+                        boolean lastSegment = lastChunk && !plaintextBuffer.hasRemaining();
+                        encrypter.encryptSegment(segment, lastSegment, ciphertextBuffer);
+                    }
                 } catch (GeneralSecurityException e) {
                     throw new IllegalStateException("GeneralSecurityException from encrypter", e);
                 }
@@ -259,9 +292,31 @@ public class GcmTransportCipher implements TransportCipher {
                     return transferredThisCall;
                 }
             }
+            releaseBuffers();
             return transferredThisCall;
         }
 
+        private void allocateBuffers() {
+            if (plaintextNettyBuf == null) {
+                int numSegments = (plaintextChunkSize + plaintextSegmentSize - 1) /
+                        plaintextSegmentSize;
+                int ciphertextChunkSize = plaintextChunkSize + numSegments * segmentOverhead;
+                plaintextNettyBuf = alloc.directBuffer(plaintextChunkSize);
+                ciphertextNettyBuf = alloc.directBuffer(ciphertextChunkSize);
+                plaintextBuffer = plaintextNettyBuf.nioBuffer(0, plaintextChunkSize);
+                ciphertextBuffer = ciphertextNettyBuf.nioBuffer(0, ciphertextChunkSize);
+            }
+        }
+
+        private void releaseBuffers() {
+            if (plaintextNettyBuf != null) {
+                plaintextNettyBuf.release();
+                ciphertextNettyBuf.release();
+                plaintextNettyBuf = null;
+                ciphertextNettyBuf = null;
+            }
+        }
+
         private long getReadableBytes() {
             if (plaintextMessage instanceof ByteBuf byteBuf) {
                 return byteBuf.readableBytes();
@@ -278,8 +333,7 @@ public class GcmTransportCipher implements TransportCipher {
             if (plaintextMessage instanceof ReferenceCounted referenceCounted) {
                 referenceCounted.release();
             }
-            plaintextBuffer.clear();
-            ciphertextBuffer.clear();
+            releaseBuffers();
         }
     }
 
@@ -18,17 +18,26 @@
 package org.apache.spark.network.server;
 
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nullable;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
 
 import org.apache.spark.internal.LogKeys;
 import org.apache.spark.internal.SparkLogger;
 import org.apache.spark.internal.SparkLoggerFactory;
 import org.apache.spark.internal.MDC;
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.protocol.ChunkFetchFailure;
@@ -59,16 +68,34 @@ public class ChunkFetchRequestHandler extends SimpleChannelInboundHandler<ChunkF
   /** The max number of chunks being transferred and not finished yet. */
   private final long maxChunksBeingTransferred;
   private final boolean syncModeEnabled;
+  /** Schedules the reads of the chunks which are file segments, if set. */
+  @Nullable private final DiskReadScheduler diskReadScheduler;
+  /**
+   * The responses which wait for the earlier responses of their stream to be written, by stream,
+   * as the scheduler starts reads out of request order. A stream has an entry while one of its
+   * responses is being sent.
+   */
+  private final Map<Long, ArrayDeque<BooleanSupplier>> pendingResponses = new HashMap<>();
 
   public ChunkFetchRequestHandler(
       TransportClient client,
       StreamManager streamManager,
       Long maxChunksBeingTransferred,
       boolean syncModeEnabled) {
+    this(client, streamManager, maxChunksBeingTransferred, syncModeEnabled, null);
+  }
+
+  public ChunkFetchRequestHandler(
+      TransportClient client,
+      StreamManager streamManager,
+      Long maxChunksBeingTransferred,
+      boolean syncModeEnabled,
+      @Nullable DiskReadScheduler diskReadScheduler) {
     this.client = client;
     this.streamManager = streamManager;
     this.maxChunksBeingTransferred = maxChunksBeingTransferred;
     this.syncModeEnabled = syncModeEnabled;
+    this.diskReadScheduler = diskReadScheduler;
   }
 
   @Override
@@ -113,14 +140,15 @@ public class ChunkFetchRequestHandler extends SimpleChannelInboundHandler<ChunkF
       logger.error("Error opening block {} for request from {}", e,
         MDC.of(LogKeys.STREAM_CHUNK_ID, msg.streamChunkId),
         MDC.of(LogKeys.HOST_PORT, getRemoteAddress(channel)));
-      respond(channel, new ChunkFetchFailure(msg.streamChunkId,
-        JavaUtils.stackTraceToString(e)));
+      respond(channel, msg.streamChunkId.streamId(), new ChunkFetchFailure(msg.streamChunkId,
+        JavaUtils.stackTraceToString(e)), null);
       return;
     }
 
     streamManager.chunkBeingSent(msg.streamChunkId.streamId());
-    respond(channel, new ChunkFetchSuccess(msg.streamChunkId, buf)).addListener(
-      (ChannelFutureListener) future -> streamManager.chunkSent(msg.streamChunkId.streamId()));
+    respond(channel, msg.streamChunkId.streamId(), new ChunkFetchSuccess(msg.streamChunkId, buf),
+      buf instanceof FileSegmentManagedBuffer segment ? segment : null)
+      .addListener(future -> streamManager.chunkSent(msg.streamChunkId.streamId()));
   }
 
   /**
@@ -136,18 +164,109 @@ public class ChunkFetchRequestHandler extends SimpleChannelInboundHandler<ChunkF
    * the rate at which threads from ChunkFetchRequest dedicated EventLoopGroup submit channel I/O
    * requests to TransportServer's default EventLoopGroup, thus making sure that we can reserve
    * some threads in TransportServer's default EventLoopGroup for handling other RPC messages.
+   *
+   * With a disk read scheduler, the responses which send file segments are written when the
+   * scheduler starts their reads, and every response waits for the earlier ones of its stream,
+   * as clients expect the chunks of a stream in order.
    */
   private ChannelFuture respond(
       final Channel channel,
-      final Encodable result) throws InterruptedException {
-    final SocketAddress remoteAddress = channel.remoteAddress();
+      final long streamId,
+      final Encodable result,
+      @Nullable final FileSegmentManagedBuffer segment) throws InterruptedException {
     ChannelFuture channelFuture;
-    if (syncModeEnabled) {
-      channelFuture = channel.writeAndFlush(result).await();
+    if (diskReadScheduler != null) {
+      channelFuture = scheduleResponse(channel, streamId, result, segment);
     } else {
-      channelFuture = channel.writeAndFlush(result);
+      channelFuture = writeResponse(channel, result);
+    }
+    if (syncModeEnabled) {
+      channelFuture.await();
+    }
+    return channelFuture;
+  }
+
+  /**
+   * Sends the response in the order of its stream, and returns a future which completes once it
+   * is written. When the queue of the local directory of the segment is full, the channel stops
+   * reading requests until the read of the segment is started.
+   */
+  private ChannelFuture scheduleResponse(
+      final Channel channel,
+      final long streamId,
+      final Encodable result,
+      @Nullable final FileSegmentManagedBuffer segment) {
+    ChannelPromise written = channel.newPromise();
+    if (segment == null) {
+      sendInOrder(streamId, () -> {
+        writeResponse(channel, result).addListener(future -> written.trySuccess());
+        return true;
+      });
+      return written;
+    }
+    AtomicBoolean started = new AtomicBoolean(false);
+    AtomicBoolean throttled = new AtomicBoolean(false);
+    sendInOrder(streamId, () -> {
+      boolean queueFull = diskReadScheduler.schedule(segment.getFile(), segment.getOffset(), () -> {
+        started.set(true);
+        if (throttled.get()) {
+          channel.config().setAutoRead(true);
+        }
+        try {
+          return writeResponse(channel, result).addListener(future -> written.trySuccess());
+        } finally {
+          responseSent(streamId);
+        }
+      });
+      if (queueFull) {
+        // The read may be started concurrently, in which case either of the two turns the
+        // reading of the channel back on.
+        throttled.set(true);
+        channel.config().setAutoRead(false);
+        if (started.get()) {
+          channel.config().setAutoRead(true);
+        }
+      }
+      return false;
+    });
+    return written;
+  }
+
+  /**
+   * Sends the response once the earlier responses of its stream have been sent. The response
+   * returns whether it was sent; if not, it calls {@link #responseSent} once it is.
+   */
+  private void sendInOrder(long streamId, BooleanSupplier response) {
+    synchronized (pendingResponses) {
+      ArrayDeque<BooleanSupplier> queue = pendingResponses.get(streamId);
+      if (queue != null) {
+        queue.add(response);
+        return;
+      }
+      pendingResponses.put(streamId, new ArrayDeque<>());
+    }
+    if (response.getAsBoolean()) {
+      responseSent(streamId);
     }
-    return channelFuture.addListener((ChannelFutureListener) future -> {
+  }
+
+  /** Sends the responses of the stream which wait for the one which was just sent. */
+  private void responseSent(long streamId) {
+    BooleanSupplier next;
+    do {
+      synchronized (pendingResponses) {
+        next = pendingResponses.get(streamId).poll();
+        if (next == null) {
+          pendingResponses.remove(streamId);
+          return;
+        }
+      }
+    } while (next.getAsBoolean());
+  }
+
+  private ChannelFuture writeResponse(final Channel channel, final Encodable result) {
+    final SocketAddress remoteAddress = channel.remoteAddress();
+    return channel.writeAndFlush(result).addListener((ChannelFutureListener) future -> {
       if (future.isSuccess()) {
         logger.trace("Sent result {} to client {}", result, remoteAddress);
       } else {
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import io.netty.channel.ChannelFuture;
+
+import org.apache.spark.internal.LogKeys;
+import org.apache.spark.internal.MDC;
+import org.apache.spark.internal.SparkLogger;
+import org.apache.spark.internal.SparkLoggerFactory;
+import org.apache.spark.network.util.NettyUtils;
+
+/**
+ * Schedules the reads of file segments which are sent to clients, with a queue per local
+ * directory, so that many concurrent fetches of shuffle files on the same disk do not turn into
+ * random I/O.
+ * <p>
+ * The local directory of a file is the directory which holds the directory of its block manager,
+ * i.e. the directory configured by spark.local.dir, which is shared by all the executors and
+ * usually maps to one disk. At most maxConcurrentReadsPerDisk reads of a local directory are in
+ * flight at a time; a read is in flight from the moment it is started until the write of its
+ * segment to the channel completes, as the segment is only read from the disk while it is
+ * written. The reads which wait for a slot are started in the order of (file, offset), going
+ * round the files like an elevator from the position of the last started read. When a batch
+ * window is set, the reads of an idle directory are also held for that long, so that the reads
+ * which arrive together are ordered too.
+ * <p>
+ * The queue of a local directory is not bounded by the scheduler itself: {@link #schedule}
+ * reports when the queue holds maxQueuedReadsPerDisk reads or more, so that the caller stops
+ * taking in requests until one of its reads is started.
+ * <p>
+ * The metrics report for every local directory the number of queued and in-flight reads, the time
+ * reads spend in the queue and the time they take once started.
+ */
+public class DiskReadScheduler implements Closeable {
+  private static final SparkLogger logger = SparkLoggerFactory.getLogger(DiskReadScheduler.class);
+
+  private final int maxConcurrentReadsPerDisk;
+  private final long batchWindowMs;
+  private final int maxQueuedReadsPerDisk;
+  private final MetricRegistry metrics = new MetricRegistry();
+  private final ConcurrentHashMap<File, Disk> disks = new ConcurrentHashMap<>();
+  private final AtomicLong nextSeq = new AtomicLong();
+  private final ScheduledExecutorService batchTimer;
+
+  // The directory whose reads a thread is starting, so that reads which complete right away do
+  // not start the next ones recursively; the loop of the outer call starts them instead.
+  private static final ThreadLocal<Object> dispatching = new ThreadLocal<>();
+
+  public DiskReadScheduler(int maxConcurrentReadsPerDisk, long batchWindowMs) {
+    this(maxConcurrentReadsPerDisk, batchWindowMs, Integer.MAX_VALUE);
+  }
+
+  public DiskReadScheduler(
+      int maxConcurrentReadsPerDisk,
+      long batchWindowMs,
+      int maxQueuedReadsPerDisk) {
+    if (maxConcurrentReadsPerDisk <= 0) {
+      throw new IllegalArgumentException(
+        "The max number of concurrent reads per disk must be positive");
+    }
+    if (maxQueuedReadsPerDisk <= 0) {
+      throw new IllegalArgumentException(
+        "The max number of queued reads per disk must be positive");
+    }
+    this.maxConcurrentReadsPerDisk = maxConcurrentReadsPerDisk;
+    this.batchWindowMs = batchWindowMs;
+    this.maxQueuedReadsPerDisk = maxQueuedReadsPerDisk;
+    this.batchTimer = batchWindowMs > 0 ? Executors.newSingleThreadScheduledExecutor(
+      NettyUtils.createThreadFactory("shuffle-disk-read-scheduler")) : null;
+  }
+
+  /**
+   * Schedules the read of the segment of the given file at the given offset. The read is started
+   * by calling the given function, which writes the segment to a channel and returns the future
+   * of the write. It is called either by this thread or by the thread which completes an earlier
+   * read of the same local directory.
+   *
+   * @return whether the queue of the local directory is full, in which case the caller should
+   *         not schedule more reads until this one is started.
+   */
+  public boolean schedule(File file, long offset, Supplier<ChannelFuture> read) {
+    Disk disk = disks.computeIfAbsent(localDirOf(file), Disk::new);
+    boolean queueFull;
+    synchronized (disk) {
+      disk.queue.add(new PendingRead(file.getPath(), offset, nextSeq.getAndIncrement(), read));
+      queueFull = disk.queue.size() >= maxQueuedReadsPerDisk;
+      if (batchTimer != null && disk.running == 0 && !disk.batchPending) {
+        disk.batchPending = true;
+        batchTimer.schedule(() -> {
+          synchronized (disk) {
+            disk.batchPending = false;
+          }
+          dispatch(disk);
+        }, batchWindowMs, TimeUnit.MILLISECONDS);
+        return queueFull;
+      }
+    }
+    dispatch(disk);
+    return queueFull;
+  }
+
+  public MetricRegistry getMetrics() {
+    return metrics;
+  }
+
+  @VisibleForTesting
+  int getQueueDepth(File file) {
+    Disk disk = disks.get(localDirOf(file));
+    if (disk == null) {
+      return 0;
+    }
+    synchronized (disk) {
+      return disk.queue.size();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (batchTimer != null) {
+      batchTimer.shutdownNow();
+    }
+  }
+
+  /**
+   * The local directory of a block file, which is laid out as localDir/blockmgr-id/subDir/file.
+   * Files which are not laid out like this are scheduled with the other files of their directory.
+   */
+  @VisibleForTesting
+  static File localDirOf(File file) {
+    File dir = file.getAbsoluteFile().getParentFile();
+    for (int i = 0; i < 2 && dir != null && dir.getParentFile() != null; i++) {
+      dir = dir.getParentFile();
+    }
+    return dir != null ? dir : file.getAbsoluteFile();
+  }
+
+  private void dispatch(Disk disk) {
+    Object outer = dispatching.get();
+    if (outer == disk) {
+      return;
+    }
+    dispatching.set(disk);
+    try {
+      PendingRead read;
+      while ((read = disk.next()) != null) {
+        start(disk, read);
+      }
+    } finally {
+      dispatching.set(outer);
+    }
+  }
+
+  private void start(Disk disk, PendingRead read) {
+    long startTime = System.nanoTime();
+    disk.waitTime.update(startTime - read.enqueueTime, TimeUnit.NANOSECONDS);
+    ChannelFuture future;
+    try {
+      future = read.read.get();
+    } catch (RuntimeException e) {
+      logger.error("Error starting the read of {}", e, MDC.of(LogKeys.PATH, read.path));
+      disk.completed(startTime);
+      return;
+    }
+    future.addListener(f -> {
+      disk.completed(startTime);
+      dispatch(disk);
+    });
+  }
+
+  /** A read of a segment, ordered by file, offset and then arrival. */
+  private static final class PendingRead implements Comparable<PendingRead> {
+    final String path;
+    final long offset;
+    final long seq;
+    final long enqueueTime = System.nanoTime();
+    final Supplier<ChannelFuture> read;
+
+    PendingRead(String path, long offset, long seq, Supplier<ChannelFuture> read) {
+      this.path = path;
+      this.offset = offset;
+      this.seq = seq;
+      this.read = read;
+    }
+
+    @Override
+    public int compareTo(PendingRead o) {
+      int c = path.compareTo(o.path);
+      if (c == 0) {
+        c = Long.compare(offset, o.offset);
+      }
+      return c != 0 ? c : Long.compare(seq, o.seq);
+    }
+  }
+
+  /** The queue and the metrics of one local directory. */
+  private final class Disk {
+    final TreeSet<PendingRead> queue = new TreeSet<>();
+    final Timer waitTime;
+    final Timer readTime;
+    int running = 0;
+    boolean batchPending = false;
+    PendingRead lastStarted = null;
+
+    Disk(File localDir) {
+      String name = localDir.getPath().replaceAll("[^A-Za-z0-9_-]+", "_").replaceAll("^_", "");
+      if (name.isEmpty()) {
+        name = "root";
+      }
+      Gauge<Integer> queueDepth = () -> {
+        synchronized (this) {
+          return queue.size();
+        }
+      };
+      Gauge<Integer> inFlightReads = () -> {
+        synchronized (this) {
+          return running;
+        }
+      };
+      metrics.gauge(MetricRegistry.name(name, "queueDepth"), () -> queueDepth);
+      metrics.gauge(MetricRegistry.name(name, "inFlightReads"), () -> inFlightReads);
+      waitTime = metrics.timer(MetricRegistry.name(name, "queueWaitLatencyMillis"));
+      readTime = metrics.timer(MetricRegistry.name(name, "readLatencyMillis"));
+    }
+
+    /** Takes the next read to start, if there is one and a slot for it. */
+    synchronized PendingRead next() {
+      if (batchPending || running >= maxConcurrentReadsPerDisk || queue.isEmpty()) {
+        return null;
+      }
+      PendingRead read = lastStarted != null ? queue.ceiling(lastStarted) : null;
+      if (read == null) {
+        read = queue.first();
+      }
+      queue.remove(read);
+      lastStarted = read;
+      running++;
+      return read;
+    }
+
+    void completed(long startTime) {
+      readTime.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+      synchronized (this) {
+        running--;
+      }
+    }
+  }
+}
@@ -20,11 +20,15 @@ package org.apache.spark.network.server;
 import java.io.Closeable;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.MetricSet;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
@@ -156,7 +160,16 @@ public class TransportServer implements Closeable {
   }
 
   public MetricSet getAllMetrics() {
-    return metrics;
+    if (!conf.consolidateFlushes()) {
+      return metrics;
+    }
+    return () -> {
+      Map<String, Metric> allMetrics = new HashMap<>(metrics.getMetrics());
+      allMetrics.put(
+        MetricRegistry.name(conf.getModuleName() + "-server", "messagesPerFlush"),
+        context.getServerMessagesPerFlush());
+      return allMetrics;
+    };
   }
 
   @Override
@@ -21,30 +21,21 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
 
 /**
- * Reader → writer control message.
+ * Reader → writer control message that grants the writer credits to send DataMessages.
  *
- * Current function: serves as a connection-establishment and per-consumption "ready"
- * signal. The writer uses receipt of any CreditControlMessage as the trigger that the
- * reader is ready to receive, and does not act on the numeric value of {@link
- * #numMessages}. Backpressure today is handled at the TCP layer via channel autoRead,
- * not via this message.
- *
- * Future function: this message is reserved as the carrier for a future credit-based
- * flow-control extension. When that extension lands, {@link #numMessages} will carry
- * the number of additional DataMessages the writer may send beyond any
- * previously-granted credit (i.e., a credit-grant delta).
+ * The first CreditControlMessage a reader sends on a connection also tells the writer which
+ * reader is on the other end, and that it is ready to receive. Every DataMessage the writer
+ * sends to a reader takes one credit; a writer without credits left waits for the reader to
+ * consume some of the messages it has received and grant more. Control messages do not take
+ * credits.
  */
 public final class CreditControlMessage extends StreamingShuffleMessage {
   public final int shuffleWriterId;
   public final int shuffleReaderId;
 
   /**
-   * In the current protocol revision the writer ignores this value and treats any
-   * CreditControlMessage as a "reader is ready" signal; senders should pass 1.
-   *
-   * Reserved for the future credit-based flow-control extension, in which this field
-   * will carry the number of additional DataMessages the writer may send beyond any
-   * previously-granted credit.
+   * The number of additional DataMessages the writer may send beyond any previously-granted
+   * credit (i.e., a credit-grant delta).
    */
   public final int numMessages;
 
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.util;
+
+import com.codahale.metrics.Histogram;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Records how many messages go out with every flush of a channel. It is placed between the
+ * {@link io.netty.handler.flush.FlushConsolidationHandler} and the message encoder, so it sees
+ * the flushes which actually reach the socket.
+ */
+public class FlushMetricsHandler extends ChannelOutboundHandlerAdapter {
+  public static final String HANDLER_NAME = "flushMetrics";
+
+  private final Histogram messagesPerFlush;
+  // Only used by the event loop of the channel.
+  private int pendingMessages = 0;
+
+  public FlushMetricsHandler(Histogram messagesPerFlush) {
+    this.messagesPerFlush = messagesPerFlush;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    pendingMessages++;
+    super.write(ctx, msg, promise);
+  }
+
+  @Override
+  public void flush(ChannelHandlerContext ctx) throws Exception {
+    if (pendingMessages > 0) {
+      messagesPerFlush.update(pendingMessages);
+      pendingMessages = 0;
+    }
+    super.flush(ctx);
+  }
+}
@@ -33,6 +33,11 @@ public enum IOMode {
    * Native KQUEUE via JNI, MacOS/BSD only
    */
   KQUEUE,
+  /**
+   * Native io_uring via JNI, Linux and Java 21+ only, if Netty's io_uring transport is on the
+   * classpath. Falls back to EPOLL, then NIO, if io_uring cannot be used.
+   */
+  IO_URING,
   /**
    * Prefer to use native EPOLL on Linux (or KQUEUE on MacOS) if available. Then, fallback to NIO.
    */
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import io.netty.channel.Channel;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.ServerChannel;
+
+/**
+ * Loads Netty's io_uring transport reflectively. Its classes are compiled for Java 21 and are not
+ * shipped with Spark, so they are only loaded on a Java 21+ runtime, from
+ * netty-transport-classes-io_uring and netty-transport-native-io_uring on the classpath. Any
+ * failure to load them, including a LinkageError, makes io_uring unavailable instead of failing
+ * the caller, which then falls back to another IO mode.
+ */
+final class IoUringSupport {
+
+  private static final String PACKAGE = "io.netty.channel.uring.";
+  private static final int MIN_JAVA_VERSION = 21;
+
+  private static final Method NEW_HANDLER_FACTORY;
+  private static final Class<? extends Channel> SOCKET_CHANNEL_CLASS;
+  private static final Class<? extends ServerChannel> SERVER_SOCKET_CHANNEL_CLASS;
+  private static final Throwable UNAVAILABILITY_CAUSE;
+
+  static {
+    Method newHandlerFactory = null;
+    Class<? extends Channel> socketChannelClass = null;
+    Class<? extends ServerChannel> serverSocketChannelClass = null;
+    Throwable cause = null;
+    int javaVersion = Runtime.version().feature();
+    if (!JavaUtils.isLinux) {
+      cause = new UnsupportedOperationException("io_uring is only supported on Linux");
+    } else if (javaVersion < MIN_JAVA_VERSION) {
+      cause = new UnsupportedOperationException("Netty's io_uring transport requires Java " +
+        MIN_JAVA_VERSION + " or later, but the runtime is Java " + javaVersion);
+    } else {
+      try {
+        ClassLoader loader = IoUringSupport.class.getClassLoader();
+        Class<?> ioUring = Class.forName(PACKAGE + "IoUring", true, loader);
+        if ((Boolean) ioUring.getMethod("isAvailable").invoke(null)) {
+          newHandlerFactory =
+            Class.forName(PACKAGE + "IoUringIoHandler", true, loader).getMethod("newFactory");
+          socketChannelClass = Class.forName(PACKAGE + "IoUringSocketChannel", true, loader)
+            .asSubclass(Channel.class);
+          serverSocketChannelClass =
+            Class.forName(PACKAGE + "IoUringServerSocketChannel", true, loader)
+              .asSubclass(ServerChannel.class);
+        } else {
+          cause = (Throwable) ioUring.getMethod("unavailabilityCause").invoke(null);
+        }
+      } catch (InvocationTargetException e) {
+        cause = e.getCause();
+      } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+        cause = e;
+      }
+    }
+    if (cause != null) {
+      newHandlerFactory = null;
+      socketChannelClass = null;
+      serverSocketChannelClass = null;
+    }
+    NEW_HANDLER_FACTORY = newHandlerFactory;
+    SOCKET_CHANNEL_CLASS = socketChannelClass;
+    SERVER_SOCKET_CHANNEL_CLASS = serverSocketChannelClass;
+    UNAVAILABILITY_CAUSE = cause;
+  }
+
+  private IoUringSupport() {}
+
+  /** Whether the io_uring transport is loaded and the kernel supports io_uring. */
+  static boolean isAvailable() {
+    return UNAVAILABILITY_CAUSE == null;
+  }
+
+  /** Why the io_uring transport is not available, or null if it is. */
+  static Throwable unavailabilityCause() {
+    return UNAVAILABILITY_CAUSE;
+  }
+
+  static IoHandlerFactory newHandlerFactory() {
+    try {
+      return (IoHandlerFactory) NEW_HANDLER_FACTORY.invoke(null);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException("Failed to create an io_uring IoHandlerFactory",
+        e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Failed to create an io_uring IoHandlerFactory", e);
+    }
+  }
+
+  static Class<? extends Channel> socketChannelClass() {
+    return SOCKET_CHANNEL_CLASS;
+  }
+
+  static Class<? extends ServerChannel> serverSocketChannelClass() {
+    return SERVER_SOCKET_CHANNEL_CLASS;
+  }
+}
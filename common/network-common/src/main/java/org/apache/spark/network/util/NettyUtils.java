@@ -35,11 +35,15 @@ import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.internal.PlatformDependent;
 
+import org.apache.spark.internal.SparkLogger;
+import org.apache.spark.internal.SparkLoggerFactory;
+
 /**
  * Utilities for creating various Netty constructs based on whether we're using NIO, EPOLL,
- * , KQUEUE, or AUTO.
+ * KQUEUE, IO_URING, or AUTO.
  */
 public class NettyUtils {
+  private static final SparkLogger logger = SparkLoggerFactory.getLogger(NettyUtils.class);
 
   /**
    * Specifies an upper bound on the number of Netty threads that Spark requires by default.
@@ -73,6 +77,18 @@ public class NettyUtils {
       case NIO -> NioIoHandler.newFactory();
       case EPOLL -> EpollIoHandler.newFactory();
       case KQUEUE -> KQueueIoHandler.newFactory();
+      case IO_URING -> {
+        if (isIoUringAvailable()) {
+          yield IoUringSupport.newHandlerFactory();
+        }
+        logger.warn("io_uring is not available, falling back to the next best IO mode",
+          IoUringSupport.unavailabilityCause());
+        if (JavaUtils.isLinux && Epoll.isAvailable()) {
+          yield EpollIoHandler.newFactory();
+        } else {
+          yield NioIoHandler.newFactory();
+        }
+      }
       case AUTO -> {
         if (JavaUtils.isLinux && Epoll.isAvailable()) {
           yield EpollIoHandler.newFactory();
@@ -92,6 +108,15 @@ public class NettyUtils {
       case NIO -> NioSocketChannel.class;
       case EPOLL -> EpollSocketChannel.class;
       case KQUEUE -> KQueueSocketChannel.class;
+      case IO_URING -> {
+        if (isIoUringAvailable()) {
+          yield IoUringSupport.socketChannelClass();
+        } else if (JavaUtils.isLinux && Epoll.isAvailable()) {
+          yield EpollSocketChannel.class;
+        } else {
+          yield NioSocketChannel.class;
+        }
+      }
       case AUTO -> {
         if (JavaUtils.isLinux && Epoll.isAvailable()) {
           yield EpollSocketChannel.class;
@@ -110,6 +135,15 @@ public class NettyUtils {
       case NIO -> NioServerSocketChannel.class;
       case EPOLL -> EpollServerSocketChannel.class;
       case KQUEUE -> KQueueServerSocketChannel.class;
+      case IO_URING -> {
+        if (isIoUringAvailable()) {
+          yield IoUringSupport.serverSocketChannelClass();
+        } else if (JavaUtils.isLinux && Epoll.isAvailable()) {
+          yield EpollServerSocketChannel.class;
+        } else {
+          yield NioServerSocketChannel.class;
+        }
+      }
       case AUTO -> {
         if (JavaUtils.isLinux && Epoll.isAvailable()) {
           yield EpollServerSocketChannel.class;
@@ -122,6 +156,16 @@ public class NettyUtils {
     };
   }
 
+  /**
+   * Returns whether the io_uring transport can be used, i.e. whether the runtime is Java 21 or
+   * later, Netty's io_uring transport is on the classpath, its native library is loaded and the
+   * kernel supports io_uring. Event loops and channels created with IO_URING fall back to EPOLL,
+   * then NIO, when it cannot.
+   */
+  public static boolean isIoUringAvailable() {
+    return IoUringSupport.isAvailable();
+  }
+
   /**
    * Creates a LengthFieldBasedFrameDecoder where the first 8 bytes are the length of the frame.
    * This is used before all decoders.
@@ -35,6 +35,8 @@ public class TransportConf {
   private final String SPARK_NETWORK_IO_CONNECTIONCREATIONTIMEOUT_KEY;
   private final String SPARK_NETWORK_IO_BACKLOG_KEY;
   private final String SPARK_NETWORK_IO_NUMCONNECTIONSPERPEER_KEY;
+  private final String SPARK_NETWORK_IO_ADAPTIVECONNECTIONPOOL_KEY;
+  private final String SPARK_NETWORK_IO_CONNECTIONBACKLOGTHRESHOLD_KEY;
   private final String SPARK_NETWORK_IO_SERVERTHREADS_KEY;
   private final String SPARK_NETWORK_IO_CLIENTTHREADS_KEY;
   private final String SPARK_NETWORK_IO_RECEIVEBUFFER_KEY;
@@ -45,6 +47,8 @@ public class TransportConf {
   private final String SPARK_NETWORK_IO_LAZYFD_KEY;
   private final String SPARK_NETWORK_VERBOSE_METRICS;
   private final String SPARK_NETWORK_IO_ENABLETCPKEEPALIVE_KEY;
+  private final String SPARK_NETWORK_IO_CONSOLIDATEFLUSHES_KEY;
+  private final String SPARK_NETWORK_IO_MAXMESSAGESPERFLUSH_KEY;
 
   private final ConfigProvider conf;
 
@@ -59,6 +63,8 @@ public class TransportConf {
     SPARK_NETWORK_IO_CONNECTIONCREATIONTIMEOUT_KEY = getConfKey("io.connectionCreationTimeout");
     SPARK_NETWORK_IO_BACKLOG_KEY = getConfKey("io.backLog");
     SPARK_NETWORK_IO_NUMCONNECTIONSPERPEER_KEY =  getConfKey("io.numConnectionsPerPeer");
+    SPARK_NETWORK_IO_ADAPTIVECONNECTIONPOOL_KEY = getConfKey("io.adaptiveConnectionPool");
+    SPARK_NETWORK_IO_CONNECTIONBACKLOGTHRESHOLD_KEY = getConfKey("io.connectionBacklogThreshold");
     SPARK_NETWORK_IO_SERVERTHREADS_KEY = getConfKey("io.serverThreads");
     SPARK_NETWORK_IO_CLIENTTHREADS_KEY = getConfKey("io.clientThreads");
     SPARK_NETWORK_IO_RECEIVEBUFFER_KEY = getConfKey("io.receiveBuffer");
@@ -69,6 +75,8 @@ public class TransportConf {
     SPARK_NETWORK_IO_LAZYFD_KEY = getConfKey("io.lazyFD");
     SPARK_NETWORK_VERBOSE_METRICS = getConfKey("io.enableVerboseMetrics");
     SPARK_NETWORK_IO_ENABLETCPKEEPALIVE_KEY = getConfKey("io.enableTcpKeepAlive");
+    SPARK_NETWORK_IO_CONSOLIDATEFLUSHES_KEY = getConfKey("io.consolidateFlushes");
+    SPARK_NETWORK_IO_MAXMESSAGESPERFLUSH_KEY = getConfKey("io.maxMessagesPerFlush");
   }
 
   public int getInt(String name, int defaultValue) {
@@ -87,7 +95,7 @@ public class TransportConf {
     return module;
   }
 
-  /** IO mode: NIO, EPOLL, KQUEUE, or AUTO */
+  /** IO mode: NIO, EPOLL, KQUEUE, IO_URING, or AUTO */
   public String ioMode() {
     String defaultIOMode = conf.get(SPARK_NETWORK_DEFAULT_IO_MODE_KEY, "AUTO");
     return conf.get(SPARK_NETWORK_IO_MODE_KEY, defaultIOMode).toUpperCase(Locale.ROOT);
@@ -120,6 +128,24 @@ public class TransportConf {
     return conf.getInt(SPARK_NETWORK_IO_NUMCONNECTIONSPERPEER_KEY, 1);
   }
 
+  /**
+   * Whether the clients to a peer are picked by their number of outstanding requests instead of
+   * at random. If true, the pool starts with one connection and grows up to
+   * {@link #numConnectionsPerPeer()} connections as they get backlogged, idle connections are
+   * closed again, and the latency of the requests to every peer is tracked in the metrics.
+   */
+  public boolean adaptiveConnectionPool() {
+    return conf.getBoolean(SPARK_NETWORK_IO_ADAPTIVECONNECTIONPOOL_KEY, false);
+  }
+
+  /**
+   * With the adaptive connection pool, the number of outstanding requests every connection to a
+   * peer must have before another connection is opened.
+   */
+  public int connectionBacklogThreshold() {
+    return conf.getInt(SPARK_NETWORK_IO_CONNECTIONBACKLOGTHRESHOLD_KEY, 32);
+  }
+
   /**
    * Requested maximum length of the queue of incoming connections. If  &lt; 1,
    * the default Netty value of {@link io.netty.util.NetUtil#SOMAXCONN} will be used.
@@ -199,6 +225,24 @@ public class TransportConf {
     return conf.getBoolean(SPARK_NETWORK_IO_ENABLETCPKEEPALIVE_KEY, false);
   }
 
+  /**
+   * Whether to coalesce the flushes of the messages written to a channel. If true, the messages
+   * written by other threads in the same event loop tick, or while the channel is reading, go
+   * out with one flush, and the number of messages per flush is tracked in the client and server
+   * metrics.
+   */
+  public boolean consolidateFlushes() {
+    return conf.getBoolean(SPARK_NETWORK_IO_CONSOLIDATEFLUSHES_KEY, false);
+  }
+
+  /**
+   * When flushes are consolidated, the max number of flushes which are held back before the
+   * channel is flushed anyway.
+   */
+  public int maxMessagesPerFlush() {
+    return conf.getInt(SPARK_NETWORK_IO_MAXMESSAGESPERFLUSH_KEY, 256);
+  }
+
   /**
    * Maximum number of retries when binding to a port before giving up.
    */
@@ -229,6 +273,17 @@ public class TransportConf {
     return conf.get("spark.network.crypto.cipher", "AES/CTR/NoPadding");
   }
 
+  /**
+   * The size of the chunks in which AES/GCM encryption reads, encrypts and writes out a message,
+   * rounded down to a whole number of cipher segments. The buffers are allocated off heap from
+   * the pooled allocator of the channel for every message, so large messages such as shuffle
+   * blocks go through fewer and larger reads and socket writes.
+   */
+  public int encryptionBufferSize() {
+    return JavaUtils.checkedCast(JavaUtils.byteStringAsBytes(
+      conf.get("spark.network.crypto.encryptionBufferSize", "256k")));
+  }
+
   /**
    * Whether to fall back to SASL if the new auth protocol fails. Enabled by default for
    * backwards compatibility.
@@ -494,6 +549,37 @@ public class TransportConf {
     return conf.getInt("spark.shuffle.server.chunkFetchHandlerThreadsPercent", 0) > 0;
   }
 
+  /**
+   * Whether the shuffle server schedules the reads of the file segments it sends with a queue per
+   * local directory, which orders the reads and caps their concurrency. See
+   * {@link org.apache.spark.network.server.DiskReadScheduler}.
+   */
+  public boolean diskReadSchedulerEnabled() {
+    return conf.getBoolean("spark.shuffle.server.diskReadScheduler.enabled", false);
+  }
+
+  /** The max number of reads of a local directory which the shuffle server has in flight. */
+  public int diskReadSchedulerMaxConcurrentReads() {
+    return conf.getInt("spark.shuffle.server.diskReadScheduler.maxConcurrentReadsPerDisk", 4);
+  }
+
+  /**
+   * How long the shuffle server holds the reads of an idle local directory, so that the reads
+   * which arrive together are ordered by file and offset. 0 to start them right away.
+   */
+  public long diskReadSchedulerBatchWindowMs() {
+    return JavaUtils.timeStringAsMs(
+      conf.get("spark.shuffle.server.diskReadScheduler.batchWindow", "0ms"));
+  }
+
+  /**
+   * The number of queued reads of a local directory at which the shuffle server stops reading
+   * the requests of a connection, until one of the reads it queued is started.
+   */
+  public int diskReadSchedulerMaxQueuedReads() {
+    return conf.getInt("spark.shuffle.server.diskReadScheduler.maxQueuedReadsPerDisk", 1024);
+  }
+
   /**
    * Percentage of io.serverThreads used by netty to process FinalizeShuffleMerge. When the config
    * `spark.shuffle.server.finalizeShuffleMergeThreadsPercent` is set, shuffle server will use a
@@ -534,6 +620,14 @@ public class TransportConf {
     return conf.getBoolean("spark.shuffle.useOldFetchProtocol", false);
   }
 
+  /**
+   * Whether to ask the external shuffle service to serve the shuffle blocks which are close to
+   * each other in the same data file in one chunk, rather than every block in its own chunk.
+   */
+  public boolean coalesceShuffleFetches() {
+    return conf.getBoolean("spark.shuffle.fetch.coalesceBlocks.enabled", false);
+  }
+
   /** Whether to enable sasl retries or not. The number of retries is dictated by the config
    * `spark.shuffle.io.maxRetries`.
    */
@@ -595,6 +689,39 @@ public class TransportConf {
     return conf.getInt("spark.shuffle.push.server.ioExceptionsThresholdDuringMerge", 4);
   }
 
+  /**
+   * Whether the pushed blocks of a shuffle partition are accumulated in an off-heap buffer and
+   * appended to the merged shuffle file with one write per buffer, instead of one or more writes
+   * per block.
+   */
+  public boolean mergedShuffleWriteCombiningEnabled() {
+    return conf.getBoolean("spark.shuffle.push.server.writeCombining.enabled", false);
+  }
+
+  /** The size of the write combining buffer of a merged shuffle partition. */
+  public int mergedShuffleWriteCombiningBufferSize() {
+    return JavaUtils.checkedCast(JavaUtils.byteStringAsBytes(
+      conf.get("spark.shuffle.push.server.writeCombining.bufferSize", "1m")));
+  }
+
+  /**
+   * The max memory of all the write combining buffers. The partitions which cannot get a buffer
+   * write their blocks to the merged shuffle files directly.
+   */
+  public long mergedShuffleWriteCombiningMaxMemory() {
+    return JavaUtils.byteStringAsBytes(
+      conf.get("spark.shuffle.push.server.writeCombining.maxMemory", "256m"));
+  }
+
+  /**
+   * The number of bytes written to a merged shuffle data file after which it is synced to disk,
+   * along with its index and meta files when the partition is finalized. 0 to never sync.
+   */
+  public long mergedShuffleFsyncBatchSize() {
+    return JavaUtils.byteStringAsBytes(
+      conf.get("spark.shuffle.push.server.fsyncBatchSize", "0"));
+  }
+
   /**
    * The RemoteBlockPushResolver#mergedShuffleCleanermergedShuffleCleaner
    * shutdown timeout, in seconds.
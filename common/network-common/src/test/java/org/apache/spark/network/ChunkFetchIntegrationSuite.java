@@ -148,6 +148,10 @@ public class ChunkFetchIntegrationSuite {
   }
 
   private FetchResult fetchChunks(List<Integer> chunkIndices) throws Exception {
+    return fetchChunks(chunkIndices, false);
+  }
+
+  private FetchResult fetchChunks(List<Integer> chunkIndices, boolean batch) throws Exception {
     final FetchResult res = new FetchResult();
 
     try (TransportClient client =
@@ -174,8 +178,13 @@ public class ChunkFetchIntegrationSuite {
         }
       };
 
-      for (int chunkIndex : chunkIndices) {
-        client.fetchChunk(STREAM_ID, chunkIndex, callback);
+      if (batch) {
+        client.fetchChunks(
+          STREAM_ID, chunkIndices.stream().mapToInt(Integer::intValue).toArray(), callback);
+      } else {
+        for (int chunkIndex : chunkIndices) {
+          client.fetchChunk(STREAM_ID, chunkIndex, callback);
+        }
       }
       if (!sem.tryAcquire(chunkIndices.size(), 60, TimeUnit.SECONDS)) {
         fail("Timeout getting response from the server");
@@ -219,6 +228,15 @@ public class ChunkFetchIntegrationSuite {
     res.releaseBuffers();
   }
 
+  @Test
+  public void fetchChunksInBatch() throws Exception {
+    FetchResult res = fetchChunks(Arrays.asList(BUFFER_CHUNK_INDEX, FILE_CHUNK_INDEX, 12345), true);
+    assertEquals(Set.of(BUFFER_CHUNK_INDEX, FILE_CHUNK_INDEX), res.successChunks);
+    assertEquals(Set.of(12345), res.failedChunks);
+    assertBufferListsEqual(Arrays.asList(bufferChunk, fileChunk), res.buffers);
+    res.releaseBuffers();
+  }
+
   @Test
   public void fetchChunkAndNonExistent() throws Exception {
     FetchResult res = fetchChunks(Arrays.asList(BUFFER_CHUNK_INDEX, 12345));
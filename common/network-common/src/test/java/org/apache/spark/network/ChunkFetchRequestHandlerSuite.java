@@ -18,22 +18,31 @@
 package org.apache.spark.network;
 
 import io.netty.channel.ChannelHandlerContext;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.DefaultChannelPromise;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import static org.mockito.Mockito.*;
 
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.protocol.*;
 import org.apache.spark.network.server.ChunkFetchRequestHandler;
+import org.apache.spark.network.server.DiskReadScheduler;
 import org.apache.spark.network.server.NoOpRpcHandler;
 import org.apache.spark.network.server.OneForOneStreamManager;
 import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.TransportConf;
 import org.apache.spark.util.Pair;
 
 public class ChunkFetchRequestHandlerSuite {
@@ -107,4 +116,125 @@ public class ChunkFetchRequestHandlerSuite {
     verify(channel, times(1)).close();
     Assertions.assertEquals(4, responseAndPromisePairs.size());
   }
+
+  @Test
+  public void scheduleFileSegmentReads() throws Exception {
+    RpcHandler rpcHandler = new NoOpRpcHandler();
+    OneForOneStreamManager streamManager = (OneForOneStreamManager) (rpcHandler.getStreamManager());
+    Channel channel = mockChannel();
+    ChannelHandlerContext context = mock(ChannelHandlerContext.class);
+    when(context.channel())
+      .thenAnswer(invocationOnMock0 -> channel);
+    List<Pair<Object, ExtendedChannelPromise>> responseAndPromisePairs = recordResponses(channel);
+
+    TransportConf conf = new TransportConf("shuffle", MapConfigProvider.EMPTY);
+    File file = new File("/disk1/blockmgr-1/0c/shuffle_0_0_0.data");
+    List<ManagedBuffer> managedBuffers = new ArrayList<>();
+    managedBuffers.add(new FileSegmentManagedBuffer(conf, file, 100, 10));
+    managedBuffers.add(new FileSegmentManagedBuffer(conf, file, 0, 10));
+    managedBuffers.add(new TestManagedBuffer(10));
+    List<ManagedBuffer> otherManagedBuffers = new ArrayList<>();
+    otherManagedBuffers.add(new FileSegmentManagedBuffer(conf, file, 150, 10));
+    long streamId = streamManager.registerStream("test-app", managedBuffers.iterator(), channel);
+    long otherStreamId =
+      streamManager.registerStream("test-app", otherManagedBuffers.iterator(), channel);
+    TransportClient reverseClient = mock(TransportClient.class);
+    DiskReadScheduler scheduler = new DiskReadScheduler(1, 0, 2);
+    ChunkFetchRequestHandler requestHandler = new ChunkFetchRequestHandler(reverseClient,
+      rpcHandler.getStreamManager(), Long.MAX_VALUE, false, scheduler);
+
+    for (int i = 0; i < 3; i++) {
+      requestHandler.channelRead(context, new ChunkFetchRequest(new StreamChunkId(streamId, i)));
+    }
+    requestHandler.channelRead(context, new ChunkFetchRequest(new StreamChunkId(otherStreamId, 0)));
+    // Only one file segment is read at a time, and the channel stops reading requests once the
+    // queue of the disk is full.
+    Assertions.assertEquals(1, responseAndPromisePairs.size());
+    Assertions.assertEquals(managedBuffers.get(0),
+      ((ChunkFetchSuccess) (responseAndPromisePairs.get(0).getLeft())).body());
+    verify(channel.config(), times(1)).setAutoRead(false);
+
+    // The queued segments are read in the order of their offsets after the last read one, while
+    // the chunks of a stream are sent in order.
+    responseAndPromisePairs.get(0).getRight().finish(true);
+    Assertions.assertEquals(2, responseAndPromisePairs.size());
+    Assertions.assertEquals(otherManagedBuffers.get(0),
+      ((ChunkFetchSuccess) (responseAndPromisePairs.get(1).getLeft())).body());
+    verify(channel.config(), times(1)).setAutoRead(true);
+    responseAndPromisePairs.get(1).getRight().finish(true);
+    Assertions.assertEquals(4, responseAndPromisePairs.size());
+    Assertions.assertEquals(managedBuffers.get(1),
+      ((ChunkFetchSuccess) (responseAndPromisePairs.get(2).getLeft())).body());
+    Assertions.assertEquals(managedBuffers.get(2),
+      ((ChunkFetchSuccess) (responseAndPromisePairs.get(3).getLeft())).body());
+    scheduler.close();
+  }
+
+  @Test
+  public void awaitScheduledResponsesInSyncMode() throws Exception {
+    RpcHandler rpcHandler = new NoOpRpcHandler();
+    OneForOneStreamManager streamManager = (OneForOneStreamManager) (rpcHandler.getStreamManager());
+    Channel channel = mockChannel();
+    ChannelHandlerContext context = mock(ChannelHandlerContext.class);
+    when(context.channel())
+      .thenAnswer(invocationOnMock0 -> channel);
+    List<Pair<Object, ExtendedChannelPromise>> responseAndPromisePairs = recordResponses(channel);
+
+    TransportConf conf = new TransportConf("shuffle", MapConfigProvider.EMPTY);
+    File file = new File("/disk1/blockmgr-1/0c/shuffle_0_0_0.data");
+    List<ManagedBuffer> managedBuffers = new ArrayList<>();
+    managedBuffers.add(new FileSegmentManagedBuffer(conf, file, 0, 10));
+    managedBuffers.add(new FileSegmentManagedBuffer(conf, file, 100, 10));
+    long streamId = streamManager.registerStream("test-app", managedBuffers.iterator(), channel);
+    TransportClient reverseClient = mock(TransportClient.class);
+    DiskReadScheduler scheduler = new DiskReadScheduler(1, 0);
+    ChunkFetchRequestHandler requestHandler = new ChunkFetchRequestHandler(reverseClient,
+      rpcHandler.getStreamManager(), Long.MAX_VALUE, true, scheduler);
+
+    Thread requests = new Thread(() -> {
+      try {
+        for (int i = 0; i < 2; i++) {
+          requestHandler.channelRead(context,
+            new ChunkFetchRequest(new StreamChunkId(streamId, i)));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    requests.start();
+    // The handler waits for the first response to be written before reading the next request.
+    requests.join(100);
+    Assertions.assertTrue(requests.isAlive());
+    Assertions.assertEquals(1, responseAndPromisePairs.size());
+    responseAndPromisePairs.get(0).getRight().finish(true);
+    while (responseAndPromisePairs.size() < 2) {
+      Thread.sleep(10);
+    }
+    responseAndPromisePairs.get(1).getRight().finish(true);
+    requests.join(10000);
+    Assertions.assertFalse(requests.isAlive());
+    scheduler.close();
+  }
+
+  private static Channel mockChannel() {
+    Channel channel = mock(Channel.class);
+    when(channel.newPromise()).thenAnswer(
+      invocationOnMock0 -> new DefaultChannelPromise(channel, GlobalEventExecutor.INSTANCE));
+    ChannelConfig config = mock(ChannelConfig.class);
+    when(channel.config()).thenReturn(config);
+    return channel;
+  }
+
+  private static List<Pair<Object, ExtendedChannelPromise>> recordResponses(Channel channel) {
+    List<Pair<Object, ExtendedChannelPromise>> responseAndPromisePairs =
+      Collections.synchronizedList(new ArrayList<>());
+    when(channel.writeAndFlush(any()))
+      .thenAnswer(invocationOnMock0 -> {
+        Object response = invocationOnMock0.getArguments()[0];
+        ExtendedChannelPromise channelFuture = new ExtendedChannelPromise(channel);
+        responseAndPromisePairs.add(Pair.of(response, channelFuture));
+        return channelFuture;
+      });
+    return responseAndPromisePairs;
+  }
 }
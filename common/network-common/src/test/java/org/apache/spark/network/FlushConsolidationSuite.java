@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.client.ChunkReceivedCallback;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.client.TransportClientFactory;
+import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.server.TransportServer;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+public class FlushConsolidationSuite {
+
+  private static final int NUM_CHUNKS = 100;
+
+  private static final RpcHandler CHUNK_HANDLER = new RpcHandler() {
+    @Override
+    public void receive(TransportClient client, ByteBuffer message, RpcResponseCallback callback) {
+      callback.onSuccess(message);
+    }
+
+    @Override
+    public StreamManager getStreamManager() {
+      return new StreamManager() {
+        @Override
+        public ManagedBuffer getChunk(long streamId, int chunkIndex) {
+          return new NioManagedBuffer(JavaUtils.stringToBytes("chunk " + chunkIndex));
+        }
+      };
+    }
+  };
+
+  private static TransportConf createConf(boolean consolidateFlushes) {
+    return new TransportConf("shuffle", new MapConfigProvider(
+      Map.of("spark.shuffle.io.consolidateFlushes", String.valueOf(consolidateFlushes))));
+  }
+
+  private static void fetchChunks(TransportClient client, boolean batch) throws Exception {
+    Semaphore sem = new Semaphore(0);
+    AtomicInteger failures = new AtomicInteger();
+    ChunkReceivedCallback callback = new ChunkReceivedCallback() {
+      @Override
+      public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+        sem.release();
+      }
+
+      @Override
+      public void onFailure(int chunkIndex, Throwable e) {
+        failures.incrementAndGet();
+        sem.release();
+      }
+    };
+    int[] chunkIndices = new int[NUM_CHUNKS];
+    for (int i = 0; i < NUM_CHUNKS; i++) {
+      chunkIndices[i] = i;
+    }
+    if (batch) {
+      client.fetchChunks(0, chunkIndices, callback);
+    } else {
+      for (int chunkIndex : chunkIndices) {
+        client.fetchChunk(0, chunkIndex, callback);
+      }
+    }
+    assertTrue(sem.tryAcquire(NUM_CHUNKS, 10, TimeUnit.SECONDS));
+    assertEquals(0, failures.get());
+  }
+
+  @Test
+  public void consolidatedFlushes() throws Exception {
+    try (TransportContext context = new TransportContext(createConf(true), CHUNK_HANDLER);
+        TransportServer server = context.createServer();
+        TransportClientFactory clientFactory = context.createClientFactory()) {
+      TransportClient client = clientFactory.createClient("localhost", server.getPort());
+      fetchChunks(client, false);
+      fetchChunks(client, true);
+
+      Histogram clientFlushes = context.getClientMessagesPerFlush();
+      Histogram serverFlushes = context.getServerMessagesPerFlush();
+      // The requests of the batch are flushed together.
+      assertTrue(clientFlushes.getCount() > 0);
+      assertTrue(clientFlushes.getSnapshot().getMax() > 1);
+      assertTrue(clientFlushes.getCount() < 2 * NUM_CHUNKS);
+      assertTrue(serverFlushes.getCount() > 0);
+
+      Map<String, Metric> clientMetrics = clientFactory.getAllMetrics().getMetrics();
+      assertSame(clientFlushes, clientMetrics.get("shuffle-client.messagesPerFlush"));
+      assertTrue(clientMetrics.containsKey("shuffle-client.usedDirectMemory"));
+      Map<String, Metric> serverMetrics = server.getAllMetrics().getMetrics();
+      assertSame(serverFlushes, serverMetrics.get("shuffle-server.messagesPerFlush"));
+    }
+  }
+
+  @Test
+  public void flushesNotConsolidatedByDefault() throws Exception {
+    try (TransportContext context = new TransportContext(createConf(false), CHUNK_HANDLER);
+        TransportServer server = context.createServer();
+        TransportClientFactory clientFactory = context.createClientFactory()) {
+      TransportClient client = clientFactory.createClient("localhost", server.getPort());
+      fetchChunks(client, true);
+
+      assertEquals(0, context.getClientMessagesPerFlush().getCount());
+      assertFalse(clientFactory.getAllMetrics().getMetrics()
+        .containsKey("shuffle-client.messagesPerFlush"));
+      assertFalse(server.getAllMetrics().getMetrics()
+        .containsKey("shuffle-server.messagesPerFlush"));
+    }
+  }
+}
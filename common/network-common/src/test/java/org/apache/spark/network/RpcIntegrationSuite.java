@@ -165,6 +165,10 @@ public class RpcIntegrationSuite {
   }
 
   private RpcResult sendRPC(String ... commands) throws Exception {
+    return sendRPC(false, commands);
+  }
+
+  private RpcResult sendRPC(boolean batch, String ... commands) throws Exception {
     TransportClient client = clientFactory.createClient(TestUtils.getLocalHost(), server.getPort());
     final Semaphore sem = new Semaphore(0);
 
@@ -187,8 +191,18 @@ public class RpcIntegrationSuite {
       }
     };
 
-    for (String command : commands) {
-      client.sendRpc(JavaUtils.stringToBytes(command), callback);
+    if (batch) {
+      List<ByteBuffer> messages = new ArrayList<>();
+      for (String command : commands) {
+        messages.add(JavaUtils.stringToBytes(command));
+      }
+      long[] requestIds =
+        client.sendRpcBatch(messages, Collections.nCopies(commands.length, callback));
+      assertEquals(commands.length, requestIds.length);
+    } else {
+      for (String command : commands) {
+        client.sendRpc(JavaUtils.stringToBytes(command), callback);
+      }
     }
 
     if (!sem.tryAcquire(commands.length, 5, TimeUnit.SECONDS)) {
@@ -284,6 +298,14 @@ public class RpcIntegrationSuite {
     assertErrorsContain(res.errorMessages, Set.of("Thrown: the", "Returned: !"));
   }
 
+  @Test
+  public void sendRpcBatch() throws Exception {
+    RpcResult res =
+      sendRPC(true, "hello/Bob", "throw error/the", "hello/Builder", "return error/!");
+    assertEquals(Set.of("Hello, Bob!", "Hello, Builder!"), res.successMessages);
+    assertErrorsContain(res.errorMessages, Set.of("Thrown: the", "Returned: !"));
+  }
+
   @Test
   public void sendOneWayMessage() throws Exception {
     final String message = "no reply";
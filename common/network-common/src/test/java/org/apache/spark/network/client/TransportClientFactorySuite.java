@@ -26,6 +26,8 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -265,4 +267,113 @@ public class TransportClientFactorySuite {
       assertNotEquals(exception.getCause(), null);
     }
   }
+
+  private TransportConf adaptivePoolConf(String connectionTimeout) {
+    Map<String, String> configMap = new HashMap<>();
+    configMap.put("spark.shuffle.io.numConnectionsPerPeer", "3");
+    configMap.put("spark.shuffle.io.adaptiveConnectionPool", "true");
+    configMap.put("spark.shuffle.io.connectionBacklogThreshold", "2");
+    configMap.put("spark.shuffle.io.connectionTimeout", connectionTimeout);
+    return new TransportConf("shuffle", new MapConfigProvider(configMap));
+  }
+
+  private static void addOutstandingRpcs(TransportClient client, long... requestIds) {
+    for (long requestId : requestIds) {
+      client.getHandler().addRpcRequest(requestId, e -> { });
+    }
+  }
+
+  @Test
+  public void adaptivePoolPicksLeastOutstandingClient() throws Exception {
+    TransportConf conf = adaptivePoolConf("120s");
+    try (TransportContext ctx = new TransportContext(conf, new NoOpRpcHandler());
+        TransportClientFactory factory = ctx.createClientFactory()) {
+      String host = TestUtils.getLocalHost();
+      // Without backlog, the same connection is used.
+      TransportClient c1 = factory.createClient(host, server1.getPort());
+      assertSame(c1, factory.createClient(host, server1.getPort()));
+      addOutstandingRpcs(c1, 1);
+      assertSame(c1, factory.createClient(host, server1.getPort()));
+
+      // The pool grows once every connection reaches the backlog threshold.
+      addOutstandingRpcs(c1, 2);
+      TransportClient c2 = factory.createClient(host, server1.getPort());
+      assertNotSame(c1, c2);
+      addOutstandingRpcs(c2, 3);
+      assertSame(c2, factory.createClient(host, server1.getPort()));
+      addOutstandingRpcs(c2, 4);
+      TransportClient c3 = factory.createClient(host, server1.getPort());
+      assertNotSame(c1, c3);
+      assertNotSame(c2, c3);
+
+      // But not beyond numConnectionsPerPeer connections.
+      addOutstandingRpcs(c3, 5, 6, 7);
+      assertSame(c1, factory.createClient(host, server1.getPort()));
+
+      // The client with the fewest outstanding requests is picked.
+      c2.getHandler().removeRpcRequest(3);
+      assertSame(c2, factory.createClient(host, server1.getPort()));
+    }
+  }
+
+  private static TransportClient[] createIdleClients(
+      TransportClientFactory factory,
+      int port) throws Exception {
+    String host = TestUtils.getLocalHost();
+    TransportClient c1 = factory.createClient(host, port);
+    addOutstandingRpcs(c1, 1, 2);
+    TransportClient c2 = factory.createClient(host, port);
+    assertNotSame(c1, c2);
+    c1.getHandler().removeRpcRequest(1);
+    c1.getHandler().removeRpcRequest(2);
+    // Let both connections be idle for longer than the connection timeout.
+    Thread.sleep(1500);
+    return new TransportClient[] { c1, c2 };
+  }
+
+  @Test
+  public void adaptivePoolClosesIdleClients() throws Exception {
+    TransportConf conf = adaptivePoolConf("1s");
+    try (TransportContext ctx = new TransportContext(conf, new NoOpRpcHandler(), true);
+        TransportClientFactory factory = ctx.createClientFactory()) {
+      TransportClient[] clients = createIdleClients(factory, server1.getPort());
+      TransportClient client = factory.createClient(TestUtils.getLocalHost(), server1.getPort());
+      assertTrue(client.isActive());
+      // The idle connections are closed, by the pool or by their channel handler.
+      assertFalse(clients[0].isActive() && clients[1].isActive());
+    }
+  }
+
+  @Test
+  public void adaptivePoolKeepsIdleClientsIfContextDoes() throws Exception {
+    TransportConf conf = adaptivePoolConf("1s");
+    try (TransportContext ctx = new TransportContext(conf, new NoOpRpcHandler(), false);
+        TransportClientFactory factory = ctx.createClientFactory()) {
+      TransportClient[] clients = createIdleClients(factory, server1.getPort());
+      TransportClient client = factory.createClient(TestUtils.getLocalHost(), server1.getPort());
+      assertTrue(clients[0].isActive());
+      assertTrue(clients[1].isActive());
+      assertSame(clients[0], client);
+    }
+  }
+
+  @Test
+  public void adaptivePoolTracksRequestLatency() throws Exception {
+    TransportConf conf = adaptivePoolConf("120s");
+    try (TransportContext ctx = new TransportContext(conf, new NoOpRpcHandler());
+        TransportClientFactory factory = ctx.createClientFactory()) {
+      String host = TestUtils.getLocalHost();
+      TransportClient client = factory.createClient(host, server1.getPort());
+      // The no-op handler fails the RPC, which is timed as well.
+      assertThrows(RuntimeException.class,
+        () -> client.sendRpcSync(JavaUtils.stringToBytes("hello"), 10000));
+
+      Map<String, Metric> metrics = factory.getAllMetrics().getMetrics();
+      Metric latency = metrics.get(
+        "shuffle-client.requestLatency." + host + ":" + server1.getPort());
+      assertInstanceOf(Timer.class, latency);
+      assertEquals(1, ((Timer) latency).getCount());
+      assertTrue(metrics.containsKey("shuffle-client.usedDirectMemory"));
+    }
+  }
 }
@@ -19,6 +19,7 @@ package org.apache.spark.network.crypto;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import org.apache.spark.network.util.*;
@@ -27,10 +28,12 @@ import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
 import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -336,4 +339,54 @@ public class GcmAuthEngineSuite extends AuthEngineSuite {
       assertThrows(AEADBadTagException.class, () -> decryptionHandler.channelRead(ctx, ciphertext));
     }
   }
+
+  @Test
+  public void testGcmEncryptedMessageInMultiSegmentChunks() throws Exception {
+    int plaintextSegmentSize = GcmTransportCipher.CIPHERTEXT_BUFFER_SIZE - 16;
+    // Encrypt 10.5 segments in chunks of 4 segments, from a region which returns fragments.
+    GcmTransportCipher cipher = new GcmTransportCipher(
+      new SecretKeySpec(new byte[16], "AES"), 4 * plaintextSegmentSize);
+    UnpooledByteBufAllocator alloc = new UnpooledByteBufAllocator(true);
+    GcmTransportCipher.EncryptionHandler encryptionHandler = cipher.new EncryptionHandler(alloc);
+    GcmTransportCipher.DecryptionHandler decryptionHandler = cipher.getDecryptionHandler();
+    int totalSize = 10 * plaintextSegmentSize + plaintextSegmentSize / 2;
+    ByteBuffer[] fragments = new ByteBuffer[21];
+    for (int i = 0; i < fragments.length; i++) {
+      fragments[i] = getTestByteBuf(plaintextSegmentSize / 2, (byte) i);
+    }
+    FakeRegion fakeRegion = new FakeRegion(fragments);
+    assertEquals(totalSize, fakeRegion.count());
+
+    ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    ChannelPromise promise = mock(ChannelPromise.class);
+    ArgumentCaptor<GcmTransportCipher.GcmEncryptedMessage> captorWrappedEncrypted =
+      ArgumentCaptor.forClass(GcmTransportCipher.GcmEncryptedMessage.class);
+    encryptionHandler.write(ctx, fakeRegion, promise);
+    verify(ctx).write(captorWrappedEncrypted.capture(), eq(promise));
+
+    GcmTransportCipher.GcmEncryptedMessage encrypted = captorWrappedEncrypted.getValue();
+    ByteBuffer ciphertextBuffer = ByteBuffer.allocate((int) encrypted.count());
+    ByteBufferWriteableChannel channel = new ByteBufferWriteableChannel(ciphertextBuffer);
+    while (encrypted.transferred() < encrypted.count()) {
+      encrypted.transferTo(channel, encrypted.transferred());
+    }
+    // The chunk buffers are given back as soon as the message is encrypted.
+    assertEquals(0, alloc.metric().usedDirectMemory());
+    ciphertextBuffer.flip();
+
+    // The segments are the same as with single segment chunks.
+    ArgumentCaptor<ByteBuf> captorPlaintext = ArgumentCaptor.forClass(ByteBuf.class);
+    decryptionHandler.channelRead(ctx, Unpooled.wrappedBuffer(ciphertextBuffer));
+    verify(ctx, times(11)).fireChannelRead(captorPlaintext.capture());
+    List<ByteBuf> segments = captorPlaintext.getAllValues();
+    int offset = 0;
+    for (ByteBuf segment : segments) {
+      for (int i = 0; i < segment.readableBytes(); i++) {
+        assertEquals((byte) ((offset + i) / (plaintextSegmentSize / 2)), segment.getByte(i));
+      }
+      offset += segment.readableBytes();
+    }
+    assertEquals(totalSize, offset);
+    assertEquals(plaintextSegmentSize / 2, segments.get(10).readableBytes());
+  }
 }
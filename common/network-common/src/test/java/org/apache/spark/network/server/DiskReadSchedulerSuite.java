@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelPromise;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class DiskReadSchedulerSuite {
+
+  private final Channel channel = mock(Channel.class);
+  private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+  private final List<ChannelPromise> writes = Collections.synchronizedList(new ArrayList<>());
+
+  private static File blockFile(String localDir, String name) {
+    return new File(localDir + "/blockmgr-1/0c/" + name);
+  }
+
+  private boolean schedule(DiskReadScheduler scheduler, File file, long offset) {
+    return scheduler.schedule(file, offset, () -> {
+      started.add(file.getName() + "@" + offset);
+      ChannelPromise write = new DefaultChannelPromise(channel, ImmediateEventExecutor.INSTANCE);
+      writes.add(write);
+      return write;
+    });
+  }
+
+  @Test
+  public void localDirOfBlockFiles() {
+    assertEquals(new File("/data1/spark"),
+      DiskReadScheduler.localDirOf(new File("/data1/spark/blockmgr-1/0c/shuffle_0_1_0.data")));
+    assertEquals(new File("/data1/spark"),
+      DiskReadScheduler.localDirOf(new File("/data1/spark/blockmgr-2/3f/shuffle_0_2_0.data")));
+    assertEquals(new File("/"), DiskReadScheduler.localDirOf(new File("/shuffle_0_1_0.data")));
+  }
+
+  @Test
+  public void queuedReadsStartInFileAndOffsetOrder() {
+    DiskReadScheduler scheduler = new DiskReadScheduler(1, 0);
+    schedule(scheduler, blockFile("/disk1", "f2"), 100);
+    assertEquals(Arrays.asList("f2@100"), started);
+
+    schedule(scheduler, blockFile("/disk1", "f2"), 0);
+    schedule(scheduler, blockFile("/disk1", "f3"), 0);
+    schedule(scheduler, blockFile("/disk1", "f1"), 50);
+    schedule(scheduler, blockFile("/disk1", "f1"), 0);
+    schedule(scheduler, blockFile("/disk1", "f2"), 200);
+    assertEquals(1, started.size());
+    assertEquals(5, scheduler.getQueueDepth(blockFile("/disk1", "f1")));
+
+    // The reads continue from the last started one and wrap around to the first file.
+    for (int i = 0; i < 5; i++) {
+      writes.get(i).setSuccess();
+    }
+    assertEquals(Arrays.asList("f2@100", "f2@200", "f3@0", "f1@0", "f1@50", "f2@0"), started);
+    assertEquals(0, scheduler.getQueueDepth(blockFile("/disk1", "f1")));
+    assertEquals(6, scheduler.getMetrics().timer("disk1.queueWaitLatencyMillis").getCount());
+    assertEquals(5, scheduler.getMetrics().timer("disk1.readLatencyMillis").getCount());
+    scheduler.close();
+  }
+
+  @Test
+  public void concurrentReadsAreCappedPerDisk() {
+    DiskReadScheduler scheduler = new DiskReadScheduler(2, 0);
+    schedule(scheduler, blockFile("/disk1", "a"), 0);
+    schedule(scheduler, blockFile("/disk1", "b"), 0);
+    schedule(scheduler, blockFile("/disk1", "c"), 0);
+    schedule(scheduler, blockFile("/disk2", "d"), 0);
+    assertEquals(Arrays.asList("a@0", "b@0", "d@0"), started);
+
+    Gauge<?> queueDepth = scheduler.getMetrics().getGauges().get("disk1.queueDepth");
+    Gauge<?> inFlightReads = scheduler.getMetrics().getGauges().get("disk1.inFlightReads");
+    assertEquals(1, queueDepth.getValue());
+    assertEquals(2, inFlightReads.getValue());
+    assertEquals(0, scheduler.getMetrics().getGauges().get("disk2.queueDepth").getValue());
+
+    // A failed write frees its slot too.
+    writes.get(1).setFailure(new RuntimeException("Connection reset"));
+    assertEquals(Arrays.asList("a@0", "b@0", "d@0", "c@0"), started);
+    assertEquals(0, queueDepth.getValue());
+    assertEquals(2, inFlightReads.getValue());
+    scheduler.close();
+  }
+
+  @Test
+  public void fullQueuesAreReported() {
+    DiskReadScheduler scheduler = new DiskReadScheduler(1, 0, 2);
+    assertFalse(schedule(scheduler, blockFile("/disk1", "a"), 0));
+    assertFalse(schedule(scheduler, blockFile("/disk1", "b"), 0));
+    assertTrue(schedule(scheduler, blockFile("/disk1", "c"), 0));
+    assertFalse(schedule(scheduler, blockFile("/disk2", "d"), 0));
+
+    // The reads of b and then c are started once the reads before them complete.
+    writes.get(0).setSuccess();
+    writes.get(2).setSuccess();
+    assertEquals(Arrays.asList("a@0", "d@0", "b@0", "c@0"), started);
+    assertFalse(schedule(scheduler, blockFile("/disk1", "e"), 0));
+    scheduler.close();
+  }
+
+  @Test
+  public void readsOfAnIdleDiskAreBatched() throws Exception {
+    DiskReadScheduler scheduler = new DiskReadScheduler(4, 100);
+    CountDownLatch allStarted = new CountDownLatch(3);
+    for (long offset : new long[] { 300, 100, 200 }) {
+      scheduler.schedule(blockFile("/disk1", "a"), offset, () -> {
+        started.add("a@" + offset);
+        allStarted.countDown();
+        return new DefaultChannelPromise(channel, ImmediateEventExecutor.INSTANCE);
+      });
+    }
+    assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a@100", "a@200", "a@300"), started);
+    scheduler.close();
+  }
+}
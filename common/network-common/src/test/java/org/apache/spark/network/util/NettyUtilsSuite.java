@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.util;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.spark.network.TransportContext;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.client.TransportClientFactory;
+import org.apache.spark.network.server.OneForOneStreamManager;
+import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.server.TransportServer;
+
+public class NettyUtilsSuite {
+
+  @Test
+  public void testIoUringChannelClasses() {
+    if (NettyUtils.isIoUringAvailable()) {
+      // The io_uring classes are only referenced by name, as they are compiled for Java 21.
+      assertEquals("io.netty.channel.uring.IoUringSocketChannel",
+        NettyUtils.getClientChannelClass(IOMode.IO_URING).getName());
+      assertEquals("io.netty.channel.uring.IoUringServerSocketChannel",
+        NettyUtils.getServerChannelClass(IOMode.IO_URING).getName());
+    } else if (JavaUtils.isLinux && Epoll.isAvailable()) {
+      assertEquals(EpollSocketChannel.class, NettyUtils.getClientChannelClass(IOMode.IO_URING));
+      assertEquals(EpollServerSocketChannel.class,
+        NettyUtils.getServerChannelClass(IOMode.IO_URING));
+    } else {
+      assertEquals(NioSocketChannel.class, NettyUtils.getClientChannelClass(IOMode.IO_URING));
+      assertEquals(NioServerSocketChannel.class,
+        NettyUtils.getServerChannelClass(IOMode.IO_URING));
+    }
+  }
+
+  @Test
+  public void testIoUringRequiresJava21() {
+    if (JavaUtils.isLinux && Runtime.version().feature() < 21) {
+      assertFalse(NettyUtils.isIoUringAvailable());
+      assertTrue(IoUringSupport.unavailabilityCause().getMessage().contains("Java 21"));
+    }
+    if (!NettyUtils.isIoUringAvailable()) {
+      assertNotNull(IoUringSupport.unavailabilityCause());
+    }
+  }
+
+  @Test
+  public void testIoUringTransport() throws Exception {
+    TransportConf conf = new TransportConf("shuffle",
+      new MapConfigProvider(Map.of("spark.shuffle.io.mode", "io_uring")));
+    assertEquals(IOMode.IO_URING, IOMode.valueOf(conf.ioMode()));
+    RpcHandler handler = new RpcHandler() {
+      @Override
+      public void receive(
+          TransportClient client,
+          ByteBuffer message,
+          RpcResponseCallback callback) {
+        callback.onSuccess(message);
+      }
+
+      @Override
+      public StreamManager getStreamManager() {
+        return new OneForOneStreamManager();
+      }
+    };
+    try (TransportContext context = new TransportContext(conf, handler);
+        TransportServer server = context.createServer();
+        TransportClientFactory clientFactory = context.createClientFactory()) {
+      TransportClient client = clientFactory.createClient("localhost", server.getPort());
+      ByteBuffer response = client.sendRpcSync(JavaUtils.stringToBytes("ping"), 10000);
+      assertEquals("ping", JavaUtils.bytesToString(response));
+    }
+  }
+}
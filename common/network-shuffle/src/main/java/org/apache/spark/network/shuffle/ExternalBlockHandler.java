@@ -20,6 +20,7 @@ package org.apache.spark.network.shuffle;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -63,7 +64,8 @@ import org.apache.spark.network.util.TransportConf;
  *
  * Handles registering executors and opening shuffle or disk persisted RDD blocks from them.
  * Blocks are registered with the "one-for-one" strategy, meaning each Transport-layer Chunk
- * is equivalent to one block.
+ * is equivalent to one block, unless a {@link FetchShuffleBlocks} request asks for coalescing, in
+ * which case a chunk may hold several shuffle blocks of the same data file.
  */
 public class ExternalBlockHandler extends RpcHandler
     implements RpcHandler.MergedBlockMetaReqHandler {
@@ -148,11 +150,24 @@ public class ExternalBlockHandler extends RpcHandler
       try {
         int numBlockIds;
         long streamId;
+        ExternalShuffleBlockResolver.CoalescedBlocks coalescedBlocks = null;
         if (msgObj instanceof AbstractFetchShuffleBlocks msg) {
           checkAuth(client, msg.appId);
           numBlockIds = msg.getNumBlocks();
           Iterator<ManagedBuffer> iterator;
-          if (msgObj instanceof FetchShuffleBlocks blocks) {
+          if (msgObj instanceof FetchShuffleBlocks blocks && blocks.coalesceEnabled) {
+            try {
+              coalescedBlocks = blockManager.getCoalescedShuffleBlocksData(blocks.appId,
+                blocks.execId, blocks.shuffleId, blocks.mapIds, blocks.reduceIds,
+                blocks.batchFetchEnabled);
+              iterator = new CoalescedShuffleManagedBufferIterator(blocks, coalescedBlocks);
+            } catch (RuntimeException e) {
+              // Coalescing needs all the blocks up front. Serve them one at a time instead, so
+              // that only the chunks of the blocks which cannot be resolved fail.
+              logger.debug("Failed to coalesce the shuffle blocks, serving them uncoalesced", e);
+              iterator = new ShuffleManagedBufferIterator(blocks);
+            }
+          } else if (msgObj instanceof FetchShuffleBlocks blocks) {
             iterator = new ShuffleManagedBufferIterator(blocks);
           } else {
             iterator = new ShuffleChunkManagedBufferIterator((FetchShuffleBlockChunks) msgObj);
@@ -175,7 +190,12 @@ public class ExternalBlockHandler extends RpcHandler
             client.getClientId(),
             getRemoteAddress(client.getChannel()));
         }
-        callback.onSuccess(new StreamHandle(streamId, numBlockIds).toByteBuffer());
+        if (coalescedBlocks != null) {
+          callback.onSuccess(new CoalescedStreamHandle(streamId, coalescedBlocks.blocksPerChunk,
+            coalescedBlocks.blockOffsets, coalescedBlocks.blockLengths).toByteBuffer());
+        } else {
+          callback.onSuccess(new StreamHandle(streamId, numBlockIds).toByteBuffer());
+        }
       } finally {
         responseDelayContext.stop();
       }
@@ -365,6 +385,19 @@ public class ExternalBlockHandler extends RpcHandler
                      (Gauge<Integer>) () -> blockManager.getRegisteredExecutorsSize());
       allMetrics.put("numActiveConnections", activeConnections);
       allMetrics.put("numCaughtExceptions", caughtExceptions);
+      allMetrics.put("shuffleIndexCacheHitCount",
+                     (Gauge<Long>) () -> blockManager.getIndexCacheHitCount());
+      allMetrics.put("shuffleIndexCacheMissCount",
+                     (Gauge<Long>) () -> blockManager.getIndexCacheMissCount());
+      allMetrics.put("shuffleIndexCacheHitRate", new RatioGauge() {
+        @Override
+        protected Ratio getRatio() {
+          long hits = blockManager.getIndexCacheHitCount();
+          return Ratio.of(hits, hits + blockManager.getIndexCacheMissCount());
+        }
+      });
+      allMetrics.put("shuffleIndexCacheSizeBytes",
+                     (Gauge<Long>) () -> blockManager.getIndexCacheSizeInBytes());
     }
 
     @Override
@@ -508,6 +541,11 @@ public class ExternalBlockHandler extends RpcHandler
     private final long[] mapIds;
     private final int[][] reduceIds;
     private final boolean batchFetchEnabled;
+    // The blocks of a map output are resolved together when the first one is served, so that
+    // the index file is looked up once for all of them, and a map output whose blocks cannot be
+    // resolved only fails its own chunks.
+    private int resolvedMapIdx = -1;
+    private ManagedBuffer[] mapBlocks;
 
     ShuffleManagedBufferIterator(FetchShuffleBlocks msg) {
       appId = msg.appId;
@@ -520,34 +558,37 @@ public class ExternalBlockHandler extends RpcHandler
       // must have non-empty mapIds and reduceIds, see the checking logic in
       // OneForOneBlockFetcher.
       assert(mapIds.length != 0 && mapIds.length == reduceIds.length);
+      assert(!batchFetchEnabled || Arrays.stream(reduceIds).allMatch(ids -> ids.length == 2));
     }
 
     @Override
     public boolean hasNext() {
-      return mapIdx < mapIds.length && reduceIdx < reduceIds[mapIdx].length;
+      return mapIdx < mapIds.length;
     }
 
     @Override
     public ManagedBuffer next() {
-      ManagedBuffer block;
+      int blockMapIdx = mapIdx;
+      int blockReduceIdx = reduceIdx;
+      // Move on first, so that the next chunk is the next block even if this one fails.
+      if (!batchFetchEnabled && reduceIdx < reduceIds[mapIdx].length - 1) {
+        reduceIdx += 1;
+      } else {
+        reduceIdx = 0;
+        mapIdx += 1;
+      }
+      if (resolvedMapIdx != blockMapIdx) {
+        mapBlocks = blockManager.getShuffleBlocksData(appId, execId, shuffleId,
+          new long[] { mapIds[blockMapIdx] }, new int[][] { reduceIds[blockMapIdx] },
+          batchFetchEnabled);
+        resolvedMapIdx = blockMapIdx;
+      }
+      ManagedBuffer block = mapBlocks[blockReduceIdx];
       if (!batchFetchEnabled) {
-        block = blockManager.getBlockData(
-          appId, execId, shuffleId, mapIds[mapIdx], reduceIds[mapIdx][reduceIdx]);
-        if (reduceIdx < reduceIds[mapIdx].length - 1) {
-          reduceIdx += 1;
-        } else {
-          reduceIdx = 0;
-          mapIdx += 1;
-        }
         metrics.blockTransferRate.mark();
       } else {
-        assert(reduceIds[mapIdx].length == 2);
-        int startReduceId = reduceIds[mapIdx][0];
-        int endReduceId = reduceIds[mapIdx][1];
-        block = blockManager.getContinuousBlocksData(appId, execId, shuffleId, mapIds[mapIdx],
-          startReduceId, endReduceId);
-        mapIdx += 1;
-        metrics.blockTransferRate.mark(endReduceId - startReduceId);
+        metrics.blockTransferRate.mark(
+          reduceIds[blockMapIdx][1] - reduceIds[blockMapIdx][0]);
       }
       metrics.blockTransferMessageRate.mark();
       metrics.blockTransferRateBytes.mark(block != null ? block.size() : 0);
@@ -555,6 +596,54 @@ public class ExternalBlockHandler extends RpcHandler
     }
   }
 
+  private class CoalescedShuffleManagedBufferIterator implements Iterator<ManagedBuffer> {
+
+    private int chunkIdx = 0;
+    private int mapIdx = 0;
+    private int reduceIdx = 0;
+
+    private final int[][] reduceIds;
+    private final boolean batchFetchEnabled;
+    private final ExternalShuffleBlockResolver.CoalescedBlocks coalescedBlocks;
+
+    CoalescedShuffleManagedBufferIterator(
+        FetchShuffleBlocks msg,
+        ExternalShuffleBlockResolver.CoalescedBlocks coalescedBlocks) {
+      this.reduceIds = msg.reduceIds;
+      this.batchFetchEnabled = msg.batchFetchEnabled;
+      this.coalescedBlocks = coalescedBlocks;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return chunkIdx < coalescedBlocks.chunks.length;
+    }
+
+    @Override
+    public ManagedBuffer next() {
+      ManagedBuffer chunk = coalescedBlocks.chunks[chunkIdx];
+      // Count the blocks of the chunk as they were requested, walking the request in step.
+      for (int i = 0; i < coalescedBlocks.blocksPerChunk[chunkIdx]; i++) {
+        if (batchFetchEnabled) {
+          metrics.blockTransferRate.mark(reduceIds[mapIdx][1] - reduceIds[mapIdx][0]);
+          mapIdx += 1;
+        } else {
+          metrics.blockTransferRate.mark();
+          if (reduceIdx < reduceIds[mapIdx].length - 1) {
+            reduceIdx += 1;
+          } else {
+            reduceIdx = 0;
+            mapIdx += 1;
+          }
+        }
+      }
+      chunkIdx += 1;
+      metrics.blockTransferMessageRate.mark();
+      metrics.blockTransferRateBytes.mark(chunk.size());
+      return chunk;
+    }
+  }
+
   private class ShuffleChunkManagedBufferIterator implements Iterator<ManagedBuffer> {
 
     private int reduceIdx = 0;
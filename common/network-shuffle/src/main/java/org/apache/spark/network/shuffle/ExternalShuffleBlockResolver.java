@@ -31,10 +31,6 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.Weigher;
 
 import org.apache.spark.internal.SparkLogger;
 import org.apache.spark.internal.SparkLoggerFactory;
@@ -82,7 +78,7 @@ public class ExternalShuffleBlockResolver {
    *  Caches index file information so that we can avoid open/close the index files
    *  for each block fetch.
    */
-  private final LoadingCache<String, ShuffleIndexInformation> shuffleIndexCache;
+  private final ShuffleIndexCache shuffleIndexCache;
 
   // Single-threaded Java executor used to perform expensive recursive directory deletion.
   private final Executor directoryCleaner;
@@ -91,6 +87,11 @@ public class ExternalShuffleBlockResolver {
 
   private final boolean rddFetchEnabled;
 
+  // The largest chunk that blocks are coalesced into, and the largest gap between two blocks of
+  // a chunk, which is sent along with them.
+  private final long coalesceMaxChunkSize;
+  private final long coalesceMaxGapSize;
+
   @VisibleForTesting
   final File registeredExecutorFile;
   @VisibleForTesting
@@ -114,18 +115,14 @@ public class ExternalShuffleBlockResolver {
       Boolean.parseBoolean(conf.get(Constants.SHUFFLE_SERVICE_FETCH_RDD_ENABLED, "false"));
     this.registeredExecutorFile = registeredExecutorFile;
     String indexCacheSize = conf.get("spark.shuffle.service.index.cache.size", "100m");
-    CacheLoader<String, ShuffleIndexInformation> indexCacheLoader =
-        new CacheLoader<String, ShuffleIndexInformation>() {
-          @Override
-          public ShuffleIndexInformation load(String filePath) throws IOException {
-            return new ShuffleIndexInformation(filePath);
-          }
-        };
-    shuffleIndexCache = CacheBuilder.newBuilder()
-      .maximumWeight(JavaUtils.byteStringAsBytes(indexCacheSize))
-      .weigher((Weigher<String, ShuffleIndexInformation>)
-        (filePath, indexInfo) -> indexInfo.getRetainedMemorySize())
-      .build(indexCacheLoader);
+    boolean indexCacheOffHeap = Boolean.parseBoolean(
+      conf.get("spark.shuffle.service.index.cache.offHeap.enabled", "false"));
+    shuffleIndexCache = new ShuffleIndexCache(
+      JavaUtils.byteStringAsBytes(indexCacheSize), indexCacheOffHeap);
+    this.coalesceMaxChunkSize = JavaUtils.byteStringAsBytes(
+      conf.get("spark.shuffle.service.fetch.coalesce.maxChunkSize", "1m"));
+    this.coalesceMaxGapSize = JavaUtils.byteStringAsBytes(
+      conf.get("spark.shuffle.service.fetch.coalesce.maxGapSize", "4k"));
     String dbBackendName =
       conf.get(Constants.SHUFFLE_SERVICE_DB_BACKEND, DBBackend.ROCKSDB.name());
     DBBackend dbBackend = DBBackend.byName(dbBackendName);
@@ -197,6 +194,45 @@ public class ExternalShuffleBlockResolver {
     return getSortBasedShuffleBlockData(executor, shuffleId, mapId, startReduceId, endReduceId);
   }
 
+  /**
+   * Obtains the FileSegmentManagedBuffers of all the blocks of a shuffle fetch request at once,
+   * with a single executor lookup and a single index lookup per map output. The blocks are
+   * returned in the order of the request: for every map id in turn, either the continuous range
+   * [reduceIds[i][0], reduceIds[i][1]) when batch fetch is enabled, or every reduce id in
+   * reduceIds[i] otherwise.
+   */
+  public ManagedBuffer[] getShuffleBlocksData(
+      String appId,
+      String execId,
+      int shuffleId,
+      long[] mapIds,
+      int[][] reduceIds,
+      boolean batchFetchEnabled) {
+    ExecutorShuffleInfo executor = executors.get(new AppExecId(appId, execId));
+    if (executor == null) {
+      throw new RuntimeException(
+        String.format("Executor is not registered (appId=%s, execId=%s)", appId, execId));
+    }
+    List<ManagedBuffer> buffers = new ArrayList<>();
+    for (int i = 0; i < mapIds.length; i++) {
+      int[] startReduceIds;
+      int[] endReduceIds;
+      if (batchFetchEnabled) {
+        startReduceIds = new int[] { reduceIds[i][0] };
+        endReduceIds = new int[] { reduceIds[i][1] };
+      } else {
+        startReduceIds = reduceIds[i];
+        endReduceIds = new int[startReduceIds.length];
+        for (int j = 0; j < startReduceIds.length; j++) {
+          endReduceIds[j] = startReduceIds[j] + 1;
+        }
+      }
+      Collections.addAll(buffers, getSortBasedShuffleBlocksData(
+        executor, shuffleId, mapIds[i], startReduceIds, endReduceIds));
+    }
+    return buffers.toArray(new ManagedBuffer[0]);
+  }
+
   public ManagedBuffer getRddBlockData(
       String appId,
       String execId,
@@ -321,6 +357,16 @@ public class ExternalShuffleBlockResolver {
    */
   private ManagedBuffer getSortBasedShuffleBlockData(
     ExecutorShuffleInfo executor, int shuffleId, long mapId, int startReduceId, int endReduceId) {
+    return getSortBasedShuffleBlocksData(executor, shuffleId, mapId,
+      new int[] { startReduceId }, new int[] { endReduceId })[0];
+  }
+
+  private ManagedBuffer[] getSortBasedShuffleBlocksData(
+      ExecutorShuffleInfo executor,
+      int shuffleId,
+      long mapId,
+      int[] startReduceIds,
+      int[] endReduceIds) {
     String indexFilePath =
       ExecutorDiskUtils.getFilePath(
         executor.localDirs,
@@ -328,23 +374,91 @@ public class ExternalShuffleBlockResolver {
         "shuffle_" + shuffleId + "_" + mapId + "_0.index");
 
     try {
-      ShuffleIndexInformation shuffleIndexInformation = shuffleIndexCache.get(indexFilePath);
-      ShuffleIndexRecord shuffleIndexRecord = shuffleIndexInformation.getIndex(
-        startReduceId, endReduceId);
-      return new FileSegmentManagedBuffer(
-        conf,
-        new File(
-          ExecutorDiskUtils.getFilePath(
-            executor.localDirs,
-            executor.subDirsPerLocalDir,
-            "shuffle_" + shuffleId + "_" + mapId + "_0.data")),
-        shuffleIndexRecord.offset(),
-        shuffleIndexRecord.length());
+      ShuffleIndexRecord[] shuffleIndexRecords =
+        shuffleIndexCache.getIndexes(indexFilePath, startReduceIds, endReduceIds);
+      File dataFile = new File(
+        ExecutorDiskUtils.getFilePath(
+          executor.localDirs,
+          executor.subDirsPerLocalDir,
+          "shuffle_" + shuffleId + "_" + mapId + "_0.data"));
+      ManagedBuffer[] buffers = new ManagedBuffer[shuffleIndexRecords.length];
+      for (int i = 0; i < buffers.length; i++) {
+        buffers[i] = new FileSegmentManagedBuffer(
+          conf, dataFile, shuffleIndexRecords[i].offset(), shuffleIndexRecords[i].length());
+      }
+      return buffers;
     } catch (ExecutionException e) {
       throw new RuntimeException("Failed to open file: " + indexFilePath, e);
     }
   }
 
+  /**
+   * Like {@link #getShuffleBlocksData}, but serves the blocks which are close to each other in
+   * the same data file as one chunk, a single file segment which spans them all, so that small
+   * blocks are not fetched one round trip at a time. Blocks are coalesced as long as they follow
+   * each other in the data file, with gaps of at most
+   * `spark.shuffle.service.fetch.coalesce.maxGapSize` bytes between them, and as long as the
+   * chunk stays within `spark.shuffle.service.fetch.coalesce.maxChunkSize` bytes.
+   */
+  public CoalescedBlocks getCoalescedShuffleBlocksData(
+      String appId,
+      String execId,
+      int shuffleId,
+      long[] mapIds,
+      int[][] reduceIds,
+      boolean batchFetchEnabled) {
+    ManagedBuffer[] blocks =
+      getShuffleBlocksData(appId, execId, shuffleId, mapIds, reduceIds, batchFetchEnabled);
+    List<ManagedBuffer> chunks = new ArrayList<>();
+    List<Integer> blocksPerChunk = new ArrayList<>();
+    long[] blockOffsets = new long[blocks.length];
+    long[] blockLengths = new long[blocks.length];
+    File chunkFile = null;
+    long chunkStart = 0;
+    long chunkEnd = 0;
+    int chunkBlocks = 0;
+    for (int i = 0; i < blocks.length; i++) {
+      FileSegmentManagedBuffer block = (FileSegmentManagedBuffer) blocks[i];
+      long blockEnd = block.getOffset() + block.getLength();
+      boolean coalesce = chunkBlocks > 0 && block.getFile().equals(chunkFile) &&
+        block.getOffset() >= chunkEnd && block.getOffset() - chunkEnd <= coalesceMaxGapSize &&
+        blockEnd - chunkStart <= coalesceMaxChunkSize;
+      if (!coalesce) {
+        if (chunkBlocks > 0) {
+          chunks.add(new FileSegmentManagedBuffer(
+            conf, chunkFile, chunkStart, chunkEnd - chunkStart));
+          blocksPerChunk.add(chunkBlocks);
+        }
+        chunkFile = block.getFile();
+        chunkStart = block.getOffset();
+        chunkBlocks = 0;
+      }
+      blockOffsets[i] = block.getOffset() - chunkStart;
+      blockLengths[i] = block.getLength();
+      chunkEnd = blockEnd;
+      chunkBlocks++;
+    }
+    chunks.add(new FileSegmentManagedBuffer(conf, chunkFile, chunkStart, chunkEnd - chunkStart));
+    blocksPerChunk.add(chunkBlocks);
+    return new CoalescedBlocks(chunks.toArray(new ManagedBuffer[0]),
+      blocksPerChunk.stream().mapToInt(Integer::intValue).toArray(), blockOffsets, blockLengths);
+  }
+
+  /** The number of index file lookups which were served by the index cache. */
+  public long getIndexCacheHitCount() {
+    return shuffleIndexCache.hitCount();
+  }
+
+  /** The number of index file lookups which had to read the index file. */
+  public long getIndexCacheMissCount() {
+    return shuffleIndexCache.missCount();
+  }
+
+  /** The memory retained by the index cache, on heap or off heap. */
+  public long getIndexCacheSizeInBytes() {
+    return shuffleIndexCache.sizeInBytes();
+  }
+
   public ManagedBuffer getDiskPersistedRddBlockData(
       ExecutorShuffleInfo executor, int rddId, int splitIndex) {
     File file = new File(
@@ -359,6 +473,7 @@ public class ExternalShuffleBlockResolver {
   }
 
   void close() {
+    shuffleIndexCache.invalidateAll();
     if (db != null) {
       try {
         db.close();
@@ -422,6 +537,29 @@ public class ExternalShuffleBlockResolver {
       algorithm, checksumFile, reduceId, data, checksumByReader);
   }
 
+  /**
+   * The chunks which the blocks of a shuffle fetch request were coalesced into: chunk i holds the
+   * next blocksPerChunk[i] blocks of the request, and block j is the range
+   * [blockOffsets[j], blockOffsets[j] + blockLengths[j]) of its chunk.
+   */
+  public static class CoalescedBlocks {
+    public final ManagedBuffer[] chunks;
+    public final int[] blocksPerChunk;
+    public final long[] blockOffsets;
+    public final long[] blockLengths;
+
+    public CoalescedBlocks(
+        ManagedBuffer[] chunks,
+        int[] blocksPerChunk,
+        long[] blockOffsets,
+        long[] blockLengths) {
+      this.chunks = chunks;
+      this.blocksPerChunk = blocksPerChunk;
+      this.blockOffsets = blockOffsets;
+      this.blockLengths = blockLengths;
+    }
+  }
+
   /** Simply encodes an executor's full ID, which is appId + execId. */
   public static class AppExecId {
     public final String appId;
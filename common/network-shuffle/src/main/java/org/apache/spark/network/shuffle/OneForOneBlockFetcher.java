@@ -26,10 +26,12 @@ import java.util.Map;
 
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import io.netty.buffer.ByteBuf;
 
 import org.apache.spark.internal.SparkLogger;
 import org.apache.spark.internal.SparkLoggerFactory;
 import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.buffer.NettyManagedBuffer;
 import org.apache.spark.network.client.ChunkReceivedCallback;
 import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.StreamCallback;
@@ -37,6 +39,7 @@ import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.server.OneForOneStreamManager;
 import org.apache.spark.network.shuffle.protocol.AbstractFetchShuffleBlocks;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.CoalescedStreamHandle;
 import org.apache.spark.network.shuffle.protocol.FetchShuffleBlocks;
 import org.apache.spark.network.shuffle.protocol.FetchShuffleBlockChunks;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
@@ -186,8 +189,11 @@ public class OneForOneBlockFetcher {
 
     int[][] reduceIdsArray = getSecondaryIds(mapIdToBlocksInfo);
     long[] mapIds = Longs.toArray(mapIdToBlocksInfo.keySet());
+    // Coalesced chunks are split into blocks in memory, so blocks which are fetched to disk are
+    // served one per chunk.
+    boolean coalesceEnabled = transportConf.coalesceShuffleFetches() && downloadFileManager == null;
     return new FetchShuffleBlocks(
-      appId, execId, shuffleId, mapIds, reduceIdsArray, batchFetchEnabled);
+      appId, execId, shuffleId, mapIds, reduceIdsArray, batchFetchEnabled, coalesceEnabled);
   }
 
   private AbstractFetchShuffleBlocks createFetchShuffleChunksMsg(
@@ -279,20 +285,73 @@ public class OneForOneBlockFetcher {
     }
   }
 
-  /** Callback invoked on receipt of each chunk. We equate a single chunk to a single block. */
+  /**
+   * Callback invoked on receipt of each chunk. We equate a single chunk to a single block, unless
+   * the server coalesced the blocks, in which case a chunk is split into the blocks it holds.
+   */
   private class ChunkCallback implements ChunkReceivedCallback {
     @Override
     public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
-      // On receipt of a chunk, pass it upwards as a block.
-      listener.onBlockFetchSuccess(blockIds[chunkIndex], buffer);
+      if (streamHandle instanceof CoalescedStreamHandle coalesced) {
+        onCoalescedChunkSuccess(coalesced, chunkIndex, buffer);
+      } else {
+        // On receipt of a chunk, pass it upwards as a block.
+        listener.onBlockFetchSuccess(blockIds[chunkIndex], buffer);
+      }
     }
 
     @Override
     public void onFailure(int chunkIndex, Throwable e) {
       // On receipt of a failure, fail every block from chunkIndex onwards.
-      String[] remainingBlockIds = Arrays.copyOfRange(blockIds, chunkIndex, blockIds.length);
+      String[] remainingBlockIds =
+        Arrays.copyOfRange(blockIds, firstBlockOfChunk(chunkIndex), blockIds.length);
       failRemainingBlocks(remainingBlockIds, e);
     }
+
+    /**
+     * Passes every block of a coalesced chunk upwards as a slice of the chunk, which the listener
+     * may retain like any other fetched buffer.
+     */
+    private void onCoalescedChunkSuccess(
+        CoalescedStreamHandle coalesced,
+        int chunkIndex,
+        ManagedBuffer buffer) {
+      int firstBlock = firstBlockOfChunk(chunkIndex);
+      int numBlocks = coalesced.blocksPerChunk[chunkIndex];
+      ByteBuf chunk;
+      try {
+        chunk = (ByteBuf) buffer.convertToNetty();
+      } catch (Exception e) {
+        failRemainingBlocks(
+          Arrays.copyOfRange(blockIds, firstBlock, firstBlock + numBlocks), e);
+        return;
+      }
+      try {
+        for (int i = firstBlock; i < firstBlock + numBlocks; i++) {
+          ManagedBuffer block = new NettyManagedBuffer(chunk.retainedSlice(
+            (int) coalesced.blockOffsets[i], (int) coalesced.blockLengths[i]));
+          try {
+            listener.onBlockFetchSuccess(blockIds[i], block);
+          } finally {
+            block.release();
+          }
+        }
+      } finally {
+        chunk.release();
+      }
+    }
+  }
+
+  /** The index in blockIds of the first block of the given chunk. */
+  private int firstBlockOfChunk(int chunkIndex) {
+    if (streamHandle instanceof CoalescedStreamHandle coalesced) {
+      int firstBlock = 0;
+      for (int i = 0; i < chunkIndex; i++) {
+        firstBlock += coalesced.blocksPerChunk[i];
+      }
+      return firstBlock;
+    }
+    return chunkIndex;
   }
 
   /**
@@ -310,13 +369,18 @@ public class OneForOneBlockFetcher {
 
           // Immediately request all chunks -- we expect that the total size of the request is
           // reasonable due to higher level chunking in [[ShuffleBlockFetcherIterator]].
-          for (int i = 0; i < streamHandle.numChunks; i++) {
-            if (downloadFileManager != null) {
+          if (downloadFileManager != null) {
+            for (int i = 0; i < streamHandle.numChunks; i++) {
               client.stream(OneForOneStreamManager.genStreamChunkId(streamHandle.streamId, i),
                 new DownloadCallback(i));
-            } else {
-              client.fetchChunk(streamHandle.streamId, i, chunkCallback);
             }
+          } else {
+            // The requests are flushed together.
+            int[] chunkIndices = new int[streamHandle.numChunks];
+            for (int i = 0; i < chunkIndices.length; i++) {
+              chunkIndices[i] = i;
+            }
+            client.fetchChunks(streamHandle.streamId, chunkIndices, chunkCallback);
           }
         } catch (Exception e) {
           logger.error("Failed while starting block fetches after success", e);
@@ -41,6 +41,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 
@@ -61,6 +62,8 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.cache.Weigher;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 
 import org.roaringbitmap.RoaringBitmap;
 
@@ -154,6 +157,8 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
 
   private final PushMergeMetrics pushMergeMetrics;
 
+  private final MergedDataWriteContext mergedDataWriteContext;
+
   @VisibleForTesting
   final File recoveryFile;
 
@@ -194,6 +199,10 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
       reloadAndCleanUpAppShuffleInfo(db);
     }
     this.pushMergeMetrics = new PushMergeMetrics();
+    this.mergedDataWriteContext = new MergedDataWriteContext(
+      conf.mergedShuffleWriteCombiningEnabled() ? conf.mergedShuffleWriteCombiningBufferSize() : 0,
+      conf.mergedShuffleWriteCombiningMaxMemory(), conf.mergedShuffleFsyncBatchSize(),
+      pushMergeMetrics);
   }
 
   @VisibleForTesting
@@ -321,7 +330,8 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
       File metaFile) throws IOException {
     return new AppShufflePartitionInfo(new AppAttemptShuffleMergeId(
         appShuffleInfo.appId, appShuffleInfo.attemptId, shuffleId, shuffleMergeId),
-        reduceId, dataFile, new MergeShuffleFile(indexFile), new MergeShuffleFile(metaFile));
+        reduceId, dataFile, new MergeShuffleFile(indexFile), new MergeShuffleFile(metaFile),
+        mergedDataWriteContext);
   }
 
   @Override
@@ -1298,7 +1308,7 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
         long updatedPos = partitionInfo.getDataFilePos() + length;
         logger.debug("{} current pos {} updated pos {}", partitionInfo,
           partitionInfo.getDataFilePos(), updatedPos);
-        int bytesWritten = partitionInfo.dataChannel.write(buf, updatedPos);
+        int bytesWritten = partitionInfo.dataWriter.write(buf, updatedPos);
         length += bytesWritten;
         mergeManager.pushMergeMetrics.blockBytesWritten.mark(bytesWritten);
       }
@@ -1756,6 +1766,8 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
     private final File dataFile;
     // The merged shuffle data file channel
     public final FileChannel dataChannel;
+    // Writes the merged blocks to the data file, combining them in a buffer if enabled
+    private final MergedDataFileWriter dataWriter;
     // The index file for a particular merged shuffle contains the chunk offsets.
     private final MergeShuffleFile indexFile;
     // The meta file for a particular merged shuffle contains all the map indices that belong to
@@ -1782,6 +1794,17 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
         File dataFile,
         MergeShuffleFile indexFile,
         MergeShuffleFile metaFile) throws IOException {
+      this(appAttemptShuffleMergeId, reduceId, dataFile, indexFile, metaFile,
+        new MergedDataWriteContext(0, 0, 0, new PushMergeMetrics()));
+    }
+
+    AppShufflePartitionInfo(
+        AppAttemptShuffleMergeId appAttemptShuffleMergeId,
+        int reduceId,
+        File dataFile,
+        MergeShuffleFile indexFile,
+        MergeShuffleFile metaFile,
+        MergedDataWriteContext writeContext) throws IOException {
       this.appAttemptShuffleMergeId = appAttemptShuffleMergeId;
       this.reduceId = reduceId;
       // Create FileOutputStream with append mode set to false by default.
@@ -1789,6 +1812,7 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
       // service is restarted. This is required as non-finalized merged shuffle blocks will be
       // discarded during service restart.
       this.dataChannel = new FileOutputStream(dataFile).getChannel();
+      this.dataWriter = new MergedDataFileWriter(dataChannel, writeContext);
       this.dataFile = dataFile;
       this.indexFile = indexFile;
       this.metaFile = metaFile;
@@ -1798,8 +1822,8 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
       this.dataFilePos = 0;
       this.mapTracker = new RoaringBitmap();
       this.chunkTracker = new RoaringBitmap();
-      this.cleanable = CLEANER.register(this, new ResourceCleaner(dataChannel, indexFile,
-        metaFile, appAttemptShuffleMergeId, reduceId));
+      this.cleanable = CLEANER.register(this, new ResourceCleaner(dataChannel, dataWriter,
+        indexFile, metaFile, appAttemptShuffleMergeId, reduceId));
     }
 
     public long getDataFilePos() {
@@ -1890,6 +1914,9 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
     }
 
     private void finalizePartition() throws IOException {
+      // The merged blocks which are still buffered must be in the data file before the last
+      // chunk is recorded. If they cannot be written, the partition is not merged.
+      dataWriter.flush();
       if (dataFilePos != lastChunkOffset) {
         try {
           updateChunkInfo(dataFilePos, lastMergedMapIndex);
@@ -1907,6 +1934,11 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
       dataChannel.truncate(lastChunkOffset);
       indexFile.getChannel().truncate(indexFile.getPos());
       metaFile.getChannel().truncate(metaFile.getPos());
+      if (dataWriter.isSyncEnabled()) {
+        dataWriter.sync();
+        indexFile.getChannel().force(false);
+        metaFile.getChannel().force(false);
+      }
     }
 
     private void deleteAllFiles() {
@@ -1942,6 +1974,11 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
       return dataChannel;
     }
 
+    @VisibleForTesting
+    MergedDataFileWriter getDataWriter() {
+      return dataWriter;
+    }
+
     @VisibleForTesting
     public RoaringBitmap getMapTracker() {
       return mapTracker;
@@ -1959,6 +1996,7 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
 
     private record ResourceCleaner(
         FileChannel dataChannel,
+        MergedDataFileWriter dataWriter,
         MergeShuffleFile indexFile,
         MergeShuffleFile metaFile,
         AppAttemptShuffleMergeId appAttemptShuffleMergeId,
@@ -1966,6 +2004,7 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
 
       @Override
       public void run() {
+        dataWriter.release();
         closeAllFiles(dataChannel, indexFile, metaFile, appAttemptShuffleMergeId,
           reduceId);
       }
@@ -2204,6 +2243,170 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
     }
   }
 
+  /**
+   * The settings of the writers of the merged shuffle data files, and the off-heap memory of their
+   * write combining buffers, which is shared by all the shuffle partitions.
+   */
+  static class MergedDataWriteContext {
+    // The size of the write combining buffer of a partition, or 0 if write combining is disabled
+    private final int bufferSize;
+    private final long maxBufferMemory;
+    // The number of bytes written to a data file after which it is synced, or 0 to never sync
+    private final long fsyncBatchSize;
+    private final PushMergeMetrics metrics;
+    private final ByteBufAllocator allocator;
+    private final AtomicLong bufferMemory = new AtomicLong();
+
+    MergedDataWriteContext(
+        int bufferSize,
+        long maxBufferMemory,
+        long fsyncBatchSize,
+        PushMergeMetrics metrics) {
+      this.bufferSize = bufferSize;
+      this.maxBufferMemory = maxBufferMemory;
+      this.fsyncBatchSize = fsyncBatchSize;
+      this.metrics = metrics;
+      this.allocator = bufferSize > 0 ?
+        NettyUtils.createPooledByteBufAllocator(true, false, 0) : null;
+    }
+
+    /**
+     * Acquires a write combining buffer, or returns null if write combining is disabled or the
+     * buffers take up the max memory already.
+     */
+    private ByteBuf acquireBuffer() {
+      if (bufferSize == 0) {
+        return null;
+      }
+      while (true) {
+        long used = bufferMemory.get();
+        if (used + bufferSize > maxBufferMemory) {
+          return null;
+        }
+        if (bufferMemory.compareAndSet(used, used + bufferSize)) {
+          break;
+        }
+      }
+      metrics.writeCombiningBufferBytes.inc(bufferSize);
+      return allocator.directBuffer(bufferSize, bufferSize);
+    }
+
+    private void releaseBuffer(ByteBuf buffer) {
+      buffer.release();
+      bufferMemory.addAndGet(-bufferSize);
+      metrics.writeCombiningBufferBytes.dec(bufferSize);
+    }
+  }
+
+  /**
+   * Writes the blocks merged to a shuffle partition to its data file. With write combining, the
+   * blocks are accumulated in an off-heap buffer, which is appended to the file with a single
+   * positional write once full, or when the partition is finalized. The buffer holds the range of
+   * the file which starts at bufferStart, of which the bytes before its reader index are in the
+   * file already. A write at a position before the end of the buffer, which is how the next block
+   * overwrites the partial data of a failed one, drops the buffered bytes past that position.
+   * <p>
+   * With fsync batching, the file is synced whenever fsyncBatchSize bytes were written to it since
+   * the last sync, and when the partition is finalized.
+   */
+  static class MergedDataFileWriter {
+    private final FileChannel channel;
+    private final MergedDataWriteContext context;
+    private ByteBuf buffer;
+    private long bufferStart;
+    private long unsyncedBytes = 0;
+    private boolean released = false;
+
+    MergedDataFileWriter(FileChannel channel, MergedDataWriteContext context) {
+      this.channel = channel;
+      this.context = context;
+    }
+
+    /**
+     * Writes some of the remaining bytes of the given buffer at the given position of the file,
+     * and returns their number.
+     */
+    synchronized int write(ByteBuffer buf, long pos) throws IOException {
+      if (buffer == null && !released) {
+        buffer = context.acquireBuffer();
+        bufferStart = pos;
+      }
+      if (buffer == null) {
+        int bytesWritten = channel.write(buf, pos);
+        written(bytesWritten);
+        return bytesWritten;
+      }
+      if (pos < bufferStart + buffer.readerIndex()) {
+        buffer.clear();
+        bufferStart = pos;
+      } else if (pos > bufferStart + buffer.writerIndex()) {
+        flushBuffer();
+        bufferStart = pos;
+      } else {
+        buffer.writerIndex((int) (pos - bufferStart));
+      }
+      if (!buffer.isWritable()) {
+        flushBuffer();
+      }
+      int length = Math.min(buf.remaining(), buffer.writableBytes());
+      ByteBuffer part = buf.duplicate();
+      part.limit(part.position() + length);
+      buffer.writeBytes(part);
+      buf.position(buf.position() + length);
+      return length;
+    }
+
+    /** Writes the buffered bytes to the file, and releases the buffer. */
+    synchronized void flush() throws IOException {
+      if (buffer != null) {
+        flushBuffer();
+        context.releaseBuffer(buffer);
+        buffer = null;
+      }
+    }
+
+    boolean isSyncEnabled() {
+      return context.fsyncBatchSize > 0;
+    }
+
+    synchronized void sync() throws IOException {
+      channel.force(false);
+      unsyncedBytes = 0;
+      context.metrics.mergedDataFileSyncs.mark();
+    }
+
+    /** Drops the buffered bytes, and writes straight to the file from now on. */
+    synchronized void release() {
+      released = true;
+      if (buffer != null) {
+        context.releaseBuffer(buffer);
+        buffer = null;
+      }
+    }
+
+    @VisibleForTesting
+    synchronized int getBufferedBytes() {
+      return buffer == null ? 0 : buffer.readableBytes();
+    }
+
+    private void flushBuffer() throws IOException {
+      while (buffer.isReadable()) {
+        int bytesWritten = buffer.readBytes(
+          channel, bufferStart + buffer.readerIndex(), buffer.readableBytes());
+        written(bytesWritten);
+      }
+      bufferStart += buffer.writerIndex();
+      buffer.clear();
+    }
+
+    private void written(int bytesWritten) throws IOException {
+      unsyncedBytes += bytesWritten;
+      if (isSyncEnabled() && unsyncedBytes >= context.fsyncBatchSize) {
+        sync();
+      }
+    }
+  }
+
   /**
    * A class that wraps all the push-based shuffle service metrics.
    */
@@ -2226,6 +2429,11 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
     // considered as ignored for these cases: 1. received after the shuffle file is finalized;
     // 2. when a request is for a duplicate block; 3. the part that ESS failed to write.
     static final String IGNORED_BLOCK_BYTES_METRIC = "ignoredBlockBytes";
+    // writeCombiningBufferBytes tracks the off-heap memory of the buffers which combine the writes
+    // of the pushed blocks to the merged shuffle files
+    static final String WRITE_COMBINING_BUFFER_BYTES_METRIC = "writeCombiningBufferBytes";
+    // mergedDataFileSyncs tracks the number of fsyncs of merged shuffle data files
+    static final String MERGED_DATA_FILE_SYNCS_METRIC = "mergedDataFileSyncs";
 
     private final Map<String, Metric> allMetrics;
     private final Meter blockAppendCollisions;
@@ -2235,6 +2443,8 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
     private final Meter deferredBlocks;
     private final Meter staleBlockPushes;
     private final Meter ignoredBlockBytes;
+    private final Counter writeCombiningBufferBytes;
+    private final Meter mergedDataFileSyncs;
 
     private PushMergeMetrics() {
       allMetrics = new HashMap<>();
@@ -2252,6 +2462,10 @@ public class RemoteBlockPushResolver implements MergedShuffleFileManager {
       allMetrics.put(STALE_BLOCK_PUSHES_METRIC, staleBlockPushes);
       ignoredBlockBytes = new Meter();
       allMetrics.put(IGNORED_BLOCK_BYTES_METRIC, ignoredBlockBytes);
+      writeCombiningBufferBytes = new Counter();
+      allMetrics.put(WRITE_COMBINING_BUFFER_BYTES_METRIC, writeCombiningBufferBytes);
+      mergedDataFileSyncs = new Meter();
+      allMetrics.put(MERGED_DATA_FILE_SYNCS_METRIC, mergedDataFileSyncs);
     }
 
     @Override
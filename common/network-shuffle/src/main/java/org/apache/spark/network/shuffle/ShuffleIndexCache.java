@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.NettyUtils;
+
+/**
+ * Caches the offsets of shuffle index files, keyed by the path of the index file, which
+ * identifies the application, executor, shuffle and map output.
+ * <p>
+ * The offsets are stored in a compact encoding: as 4-byte unsigned ints when the data file is
+ * smaller than 4 GiB, which is the common case, and as 8-byte longs otherwise. When off-heap
+ * storage is enabled, they are kept in pooled direct buffers, so that a large cache does not add
+ * to the heap and to the work of the garbage collector. The buffers are reference counted, so
+ * that an entry which is evicted while a lookup reads it is only released after the lookup.
+ */
+final class ShuffleIndexCache {
+
+  // The estimate of the on-heap memory footprint of a cache entry, besides the offsets.
+  static final int ENTRY_MEMORY_FOOTPRINT = 96;
+
+  private static final long MAX_NARROW_OFFSET = 0xFFFFFFFFL;
+
+  private final LoadingCache<String, Entry> cache;
+  private final ByteBufAllocator allocator;
+  private final boolean offHeap;
+  private final AtomicLong sizeInBytes = new AtomicLong();
+
+  ShuffleIndexCache(long maxSizeInBytes, boolean offHeap) {
+    this.offHeap = offHeap;
+    this.allocator = offHeap ?
+      NettyUtils.createPooledByteBufAllocator(true, false, 0) : UnpooledByteBufAllocator.DEFAULT;
+    this.cache = CacheBuilder.newBuilder()
+      .maximumWeight(maxSizeInBytes)
+      .weigher((Weigher<String, Entry>) (filePath, entry) -> entry.getRetainedMemorySize())
+      .removalListener((RemovalListener<String, Entry>) notification -> {
+        Entry entry = notification.getValue();
+        sizeInBytes.addAndGet(-entry.getRetainedMemorySize());
+        entry.release();
+      })
+      .recordStats()
+      .build(new CacheLoader<String, Entry>() {
+        @Override
+        public Entry load(String filePath) throws IOException {
+          Entry entry = loadEntry(new File(filePath));
+          sizeInBytes.addAndGet(entry.getRetainedMemorySize());
+          return entry;
+        }
+      });
+  }
+
+  /**
+   * Get the index record of the reducer range [startReduceId, endReduceId) in the given index
+   * file.
+   */
+  ShuffleIndexRecord getIndex(String indexFilePath, int startReduceId, int endReduceId)
+      throws ExecutionException {
+    return getIndexes(indexFilePath, new int[] { startReduceId }, new int[] { endReduceId })[0];
+  }
+
+  /**
+   * Get the index records of the reducer ranges [startReduceIds[i], endReduceIds[i]) in the given
+   * index file, with a single cache lookup.
+   */
+  ShuffleIndexRecord[] getIndexes(String indexFilePath, int[] startReduceIds, int[] endReduceIds)
+      throws ExecutionException {
+    assert startReduceIds.length == endReduceIds.length;
+    while (true) {
+      Entry entry = cache.get(indexFilePath);
+      // The entry could have been evicted and released since it was looked up, in which case it
+      // is no longer in the cache and the next lookup loads it again.
+      if (entry.tryRetain()) {
+        try {
+          ShuffleIndexRecord[] records = new ShuffleIndexRecord[startReduceIds.length];
+          for (int i = 0; i < records.length; i++) {
+            records[i] = entry.getIndex(startReduceIds[i], endReduceIds[i]);
+          }
+          return records;
+        } finally {
+          entry.release();
+        }
+      }
+    }
+  }
+
+  long hitCount() {
+    return cache.stats().hitCount();
+  }
+
+  long missCount() {
+    return cache.stats().missCount();
+  }
+
+  /** The memory retained by the cached entries, on heap and off heap. */
+  long sizeInBytes() {
+    return sizeInBytes.get();
+  }
+
+  @VisibleForTesting
+  boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /** Releases all the cached entries. */
+  void invalidateAll() {
+    cache.invalidateAll();
+    cache.cleanUp();
+  }
+
+  private Entry loadEntry(File indexFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      if (fileSize < 8 || fileSize % 8 != 0) {
+        throw new IOException("Invalid shuffle index file " + indexFile + " of " + fileSize +
+          " bytes");
+      }
+      int numOffsets = JavaUtils.checkedCast(fileSize / 8);
+      // The offsets are increasing, so the last one tells whether they all fit in 4 bytes.
+      ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(fileSize, 8192));
+      chunk.limit(8);
+      readFully(channel, chunk, fileSize - 8);
+      boolean wide = chunk.getLong(0) > MAX_NARROW_OFFSET;
+
+      int capacity = numOffsets * (wide ? 8 : 4);
+      ByteBuf offsets = offHeap ?
+        allocator.directBuffer(capacity, capacity) : allocator.heapBuffer(capacity, capacity);
+      try {
+        long position = 0;
+        while (position < fileSize) {
+          chunk.clear();
+          chunk.limit((int) Math.min(chunk.capacity(), fileSize - position));
+          readFully(channel, chunk, position);
+          position += chunk.limit();
+          chunk.flip();
+          while (chunk.hasRemaining()) {
+            long offset = chunk.getLong();
+            if (wide) {
+              offsets.writeLong(offset);
+            } else {
+              offsets.writeInt((int) offset);
+            }
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        offsets.release();
+        throw e;
+      }
+      return new Entry(offsets, wide);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer dst, long position)
+      throws IOException {
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, position);
+      if (n < 0) {
+        throw new EOFException("Unexpected end of shuffle index file");
+      }
+      position += n;
+    }
+  }
+
+  /** The compactly encoded offsets of one index file. */
+  private static final class Entry {
+
+    private final ByteBuf offsets;
+    private final boolean wide;
+    // The cache holds one reference, and every lookup which reads the entry holds another.
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    Entry(ByteBuf offsets, boolean wide) {
+      this.offsets = offsets;
+      this.wide = wide;
+    }
+
+    int getRetainedMemorySize() {
+      return offsets.capacity() + ENTRY_MEMORY_FOOTPRINT;
+    }
+
+    private long getOffset(int i) {
+      return wide ? offsets.getLong(i * 8) : offsets.getInt(i * 4) & MAX_NARROW_OFFSET;
+    }
+
+    ShuffleIndexRecord getIndex(int startReduceId, int endReduceId) {
+      long offset = getOffset(startReduceId);
+      long nextOffset = getOffset(endReduceId);
+      return new ShuffleIndexRecord(offset, nextOffset - offset);
+    }
+
+    boolean tryRetain() {
+      while (true) {
+        int count = refCount.get();
+        if (count == 0) {
+          return false;
+        }
+        if (refCount.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      if (refCount.decrementAndGet() == 0) {
+        offsets.release();
+      }
+    }
+  }
+}
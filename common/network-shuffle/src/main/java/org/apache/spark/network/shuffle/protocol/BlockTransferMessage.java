@@ -36,7 +36,8 @@ import org.apache.spark.network.shuffle.ExternalBlockHandler;
  *   - UploadBlock is only handled by the NettyBlockTransferService.
  *   - RegisterExecutor is only handled by the external shuffle service.
  *   - RemoveBlocks is only handled by the external shuffle service.
- *   - FetchShuffleBlocks is handled by both services for shuffle files. It returns a StreamHandle.
+ *   - FetchShuffleBlocks is handled by both services for shuffle files. It returns a StreamHandle,
+ *     or a CoalescedStreamHandle from the external shuffle service if it asks for coalescing.
  */
 public abstract class BlockTransferMessage implements Encodable {
   protected abstract Type type();
@@ -48,7 +49,7 @@ public abstract class BlockTransferMessage implements Encodable {
     FETCH_SHUFFLE_BLOCKS(9), GET_LOCAL_DIRS_FOR_EXECUTORS(10), LOCAL_DIRS_FOR_EXECUTORS(11),
     PUSH_BLOCK_STREAM(12), FINALIZE_SHUFFLE_MERGE(13), MERGE_STATUSES(14),
     FETCH_SHUFFLE_BLOCK_CHUNKS(15), DIAGNOSE_CORRUPTION(16), CORRUPTION_CAUSE(17),
-    PUSH_BLOCK_RETURN_CODE(18), REMOVE_SHUFFLE_MERGE(19);
+    PUSH_BLOCK_RETURN_CODE(18), REMOVE_SHUFFLE_MERGE(19), COALESCED_STREAM_HANDLE(20);
 
     private final byte id;
 
@@ -85,6 +86,7 @@ public abstract class BlockTransferMessage implements Encodable {
         case 17 -> CorruptionCause.decode(buf);
         case 18 -> BlockPushReturnCode.decode(buf);
         case 19 -> RemoveShuffleMerge.decode(buf);
+        case 20 -> CoalescedStreamHandle.decode(buf);
         default -> throw new IllegalArgumentException("Unknown message type: " + type);
       };
     }
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle.protocol;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import io.netty.buffer.ByteBuf;
+
+import org.apache.spark.network.protocol.Encoders;
+
+// Needed by ScalaDoc. See SPARK-7726
+import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
+
+/**
+ * A {@link StreamHandle} for a {@link FetchShuffleBlocks} request which asked for coalescing,
+ * where each chunk of the stream may hold several of the requested blocks. The blocks are in
+ * the order of the request: chunk i holds the next blocksPerChunk[i] blocks, and block j is the
+ * range [blockOffsets[j], blockOffsets[j] + blockLengths[j]) of its chunk.
+ */
+public class CoalescedStreamHandle extends StreamHandle {
+  public final int[] blocksPerChunk;
+  public final long[] blockOffsets;
+  public final long[] blockLengths;
+
+  public CoalescedStreamHandle(
+      long streamId,
+      int[] blocksPerChunk,
+      long[] blockOffsets,
+      long[] blockLengths) {
+    super(streamId, blocksPerChunk.length);
+    this.blocksPerChunk = blocksPerChunk;
+    this.blockOffsets = blockOffsets;
+    this.blockLengths = blockLengths;
+    assert(blockOffsets.length == blockLengths.length);
+  }
+
+  @Override
+  protected Type type() { return Type.COALESCED_STREAM_HANDLE; }
+
+  @Override
+  public int hashCode() {
+    int result = Objects.hash(streamId, numChunks);
+    result = 31 * result + Arrays.hashCode(blocksPerChunk);
+    result = 31 * result + Arrays.hashCode(blockOffsets);
+    result = 31 * result + Arrays.hashCode(blockLengths);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "CoalescedStreamHandle[streamId=" + streamId + ",numChunks=" + numChunks +
+      ",blocksPerChunk=" + Arrays.toString(blocksPerChunk) +
+      ",blockOffsets=" + Arrays.toString(blockOffsets) +
+      ",blockLengths=" + Arrays.toString(blockLengths) + "]";
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof CoalescedStreamHandle o) {
+      return streamId == o.streamId
+        && Arrays.equals(blocksPerChunk, o.blocksPerChunk)
+        && Arrays.equals(blockOffsets, o.blockOffsets)
+        && Arrays.equals(blockLengths, o.blockLengths);
+    }
+    return false;
+  }
+
+  @Override
+  public int encodedLength() {
+    return 8
+      + Encoders.IntArrays.encodedLength(blocksPerChunk)
+      + Encoders.LongArrays.encodedLength(blockOffsets)
+      + Encoders.LongArrays.encodedLength(blockLengths);
+  }
+
+  @Override
+  public void encode(ByteBuf buf) {
+    buf.writeLong(streamId);
+    Encoders.IntArrays.encode(buf, blocksPerChunk);
+    Encoders.LongArrays.encode(buf, blockOffsets);
+    Encoders.LongArrays.encode(buf, blockLengths);
+  }
+
+  public static CoalescedStreamHandle decode(ByteBuf buf) {
+    long streamId = buf.readLong();
+    int[] blocksPerChunk = Encoders.IntArrays.decode(buf);
+    long[] blockOffsets = Encoders.LongArrays.decode(buf);
+    long[] blockLengths = Encoders.LongArrays.decode(buf);
+    return new CoalescedStreamHandle(streamId, blocksPerChunk, blockOffsets, blockLengths);
+  }
+}
@@ -26,7 +26,10 @@ import org.apache.spark.network.protocol.Encoders;
 // Needed by ScalaDoc. See SPARK-7726
 import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
 
-/** Request to read a set of blocks. Returns {@link StreamHandle}. */
+/**
+ * Request to read a set of blocks. Returns {@link StreamHandle}, or {@link CoalescedStreamHandle}
+ * when coalesceEnabled is set and the server supports it.
+ */
 public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
   // The length of mapIds must equal to reduceIds.size(), for the i-th mapId in mapIds,
   // it corresponds to the i-th int[] in reduceIds, which contains all reduce id for this map id.
@@ -37,6 +40,10 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
   // needs to fetch.
   public final int[][] reduceIds;
   public final boolean batchFetchEnabled;
+  // Whether the server may serve several blocks of the same data file in one chunk. It is only
+  // encoded when set, and last, so that requests which do not set it are encoded as before, and
+  // servers which do not know it ignore it and serve a chunk per block.
+  public final boolean coalesceEnabled;
 
   public FetchShuffleBlocks(
       String appId,
@@ -45,11 +52,23 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
       long[] mapIds,
       int[][] reduceIds,
       boolean batchFetchEnabled) {
+    this(appId, execId, shuffleId, mapIds, reduceIds, batchFetchEnabled, false);
+  }
+
+  public FetchShuffleBlocks(
+      String appId,
+      String execId,
+      int shuffleId,
+      long[] mapIds,
+      int[][] reduceIds,
+      boolean batchFetchEnabled,
+      boolean coalesceEnabled) {
     super(appId, execId, shuffleId);
     this.mapIds = mapIds;
     this.reduceIds = reduceIds;
     assert(mapIds.length == reduceIds.length);
     this.batchFetchEnabled = batchFetchEnabled;
+    this.coalesceEnabled = coalesceEnabled;
     if (batchFetchEnabled) {
       for (int[] ids: reduceIds) {
         assert(ids.length == 2);
@@ -64,7 +83,7 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
   public String toString() {
     return "FetchShuffleBlocks[appId=" + appId + ",execId=" + execId + ",shuffleId=" + shuffleId +
         ",mapIds=" + Arrays.toString(mapIds) + ",reduceIds=" + Arrays.deepToString(reduceIds) +
-        ",batchFetchEnabled=" + batchFetchEnabled + "]";
+        ",batchFetchEnabled=" + batchFetchEnabled + ",coalesceEnabled=" + coalesceEnabled + "]";
   }
 
   @Override
@@ -75,6 +94,7 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
     FetchShuffleBlocks that = (FetchShuffleBlocks) o;
     if (!super.equals(that)) return false;
     if (batchFetchEnabled != that.batchFetchEnabled) return false;
+    if (coalesceEnabled != that.coalesceEnabled) return false;
     if (!Arrays.equals(mapIds, that.mapIds)) return false;
     return Arrays.deepEquals(reduceIds, that.reduceIds);
   }
@@ -85,6 +105,7 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
     result = 31 * result + Arrays.hashCode(mapIds);
     result = 31 * result + Arrays.deepHashCode(reduceIds);
     result = 31 * result + (batchFetchEnabled ? 1 : 0);
+    result = 31 * result + (coalesceEnabled ? 1 : 0);
     return result;
   }
 
@@ -110,7 +131,8 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
       + Encoders.LongArrays.encodedLength(mapIds)
       + 4 /* encoded length of reduceIds.size() */
       + encodedLengthOfReduceIds
-      + 1; /* encoded length of batchFetchEnabled */
+      + 1 /* encoded length of batchFetchEnabled */
+      + (coalesceEnabled ? 1 : 0); /* encoded length of coalesceEnabled */
   }
 
   @Override
@@ -122,6 +144,9 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
       Encoders.IntArrays.encode(buf, ids);
     }
     buf.writeBoolean(batchFetchEnabled);
+    if (coalesceEnabled) {
+      buf.writeBoolean(true);
+    }
   }
 
   public static FetchShuffleBlocks decode(ByteBuf buf) {
@@ -135,6 +160,9 @@ public class FetchShuffleBlocks extends AbstractFetchShuffleBlocks {
       reduceIds[i] = Encoders.IntArrays.decode(buf);
     }
     boolean batchFetchEnabled = buf.readBoolean();
-    return new FetchShuffleBlocks(appId, execId, shuffleId, mapIds, reduceIds, batchFetchEnabled);
+    // coalesceEnabled is only sent when set, and never by older clients.
+    boolean coalesceEnabled = buf.isReadable() && buf.readBoolean();
+    return new FetchShuffleBlocks(
+      appId, execId, shuffleId, mapIds, reduceIds, batchFetchEnabled, coalesceEnabled);
   }
 }
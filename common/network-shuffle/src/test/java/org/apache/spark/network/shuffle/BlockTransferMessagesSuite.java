@@ -42,6 +42,11 @@ public class BlockTransferMessagesSuite {
     checkSerializeDeserialize(new UploadBlock("app-1", "exec-2", "block-3", new byte[] { 1, 2 },
       new byte[] { 4, 5, 6, 7} ));
     checkSerializeDeserialize(new StreamHandle(12345, 16));
+    checkSerializeDeserialize(new FetchShuffleBlocks(
+      "app-1", "exec-2", 0, new long[] {0, 1},
+      new int[][] {{ 0, 1 }, { 0, 1, 2 }}, false, true));
+    checkSerializeDeserialize(new CoalescedStreamHandle(
+      12345, new int[] { 2, 1 }, new long[] { 0, 10, 0 }, new long[] { 10, 5, 7 }));
   }
 
   @Test
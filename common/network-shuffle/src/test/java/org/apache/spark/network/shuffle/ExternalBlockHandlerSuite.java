@@ -19,6 +19,7 @@ package org.apache.spark.network.shuffle;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.zip.CheckedInputStream;
@@ -33,6 +34,7 @@ import org.mockito.ArgumentCaptor;
 import org.roaringbitmap.RoaringBitmap;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -47,6 +49,7 @@ import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.shuffle.checksum.Cause;
 import org.apache.spark.network.shuffle.checksum.ShuffleChecksumHelper;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.CoalescedStreamHandle;
 import org.apache.spark.network.shuffle.protocol.CorruptionCause;
 import org.apache.spark.network.shuffle.protocol.DiagnoseCorruption;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
@@ -225,15 +228,18 @@ public class ExternalBlockHandlerSuite {
 
   @Test
   public void testFetchShuffleBlocks() {
-    when(blockResolver.getBlockData("app0", "exec1", 0, 0, 0)).thenReturn(blockMarkers[0]);
-    when(blockResolver.getBlockData("app0", "exec1", 0, 0, 1)).thenReturn(blockMarkers[1]);
+    long[] mapIds = new long[] { 0 };
+    int[][] reduceIds = new int[][] {{ 0, 1 }};
+    when(blockResolver.getShuffleBlocksData(eq("app0"), eq("exec1"), eq(0), aryEq(mapIds),
+      argThat(ids -> Arrays.deepEquals(ids, reduceIds)), eq(false)))
+      .thenReturn(blockMarkers);
 
     FetchShuffleBlocks fetchShuffleBlocks = new FetchShuffleBlocks(
-      "app0", "exec1", 0, new long[] { 0 }, new int[][] {{ 0, 1 }}, false);
+      "app0", "exec1", 0, mapIds, reduceIds, false);
     checkOpenBlocksReceive(fetchShuffleBlocks, blockMarkers);
 
-    verify(blockResolver, times(1)).getBlockData("app0", "exec1", 0, 0, 0);
-    verify(blockResolver, times(1)).getBlockData("app0", "exec1", 0, 0, 1);
+    verify(blockResolver, times(1)).getShuffleBlocksData(eq("app0"), eq("exec1"), eq(0),
+      aryEq(mapIds), argThat(ids -> Arrays.deepEquals(ids, reduceIds)), eq(false));
     verifyOpenBlockLatencyMetrics(2, 2);
   }
 
@@ -242,17 +248,83 @@ public class ExternalBlockHandlerSuite {
     ManagedBuffer[] batchBlockMarkers = {
       new NioManagedBuffer(ByteBuffer.wrap(new byte[10]))
     };
-    when(blockResolver.getContinuousBlocksData(
-      "app0", "exec1", 0, 0, 0, 3)).thenReturn(batchBlockMarkers[0]);
+    long[] mapIds = new long[] { 0 };
+    int[][] reduceIds = new int[][] {{ 0, 3 }};
+    when(blockResolver.getShuffleBlocksData(eq("app0"), eq("exec1"), eq(0), aryEq(mapIds),
+      argThat(ids -> Arrays.deepEquals(ids, reduceIds)), eq(true)))
+      .thenReturn(batchBlockMarkers);
 
     FetchShuffleBlocks fetchShuffleBlocks = new FetchShuffleBlocks(
-      "app0", "exec1", 0, new long[] { 0 }, new int[][] {{ 0, 3 }}, true);
+      "app0", "exec1", 0, mapIds, reduceIds, true);
     checkOpenBlocksReceive(fetchShuffleBlocks, batchBlockMarkers);
 
-    verify(blockResolver, times(1)).getContinuousBlocksData("app0", "exec1", 0, 0, 0, 3);
+    verify(blockResolver, times(1)).getShuffleBlocksData(eq("app0"), eq("exec1"), eq(0),
+      aryEq(mapIds), argThat(ids -> Arrays.deepEquals(ids, reduceIds)), eq(true));
     verifyOpenBlockLatencyMetrics(3, 1);
   }
 
+  @Test
+  public void testFetchCoalescedShuffleBlocks() {
+    long[] mapIds = new long[] { 0, 1 };
+    int[][] reduceIds = new int[][] {{ 0, 1 }, { 0 }};
+    ManagedBuffer[] chunks = {
+      new NioManagedBuffer(ByteBuffer.wrap(new byte[7])),
+      new NioManagedBuffer(ByteBuffer.wrap(new byte[3]))
+    };
+    when(blockResolver.getCoalescedShuffleBlocksData(eq("app0"), eq("exec1"), eq(0),
+      aryEq(mapIds), argThat(ids -> Arrays.deepEquals(ids, reduceIds)), eq(false)))
+      .thenReturn(new ExternalShuffleBlockResolver.CoalescedBlocks(chunks, new int[] { 2, 1 },
+        new long[] { 0, 3, 0 }, new long[] { 3, 4, 3 }));
+
+    FetchShuffleBlocks fetchShuffleBlocks = new FetchShuffleBlocks(
+      "app0", "exec1", 0, mapIds, reduceIds, false, true);
+    StreamHandle handle = checkOpenBlocksReceive(fetchShuffleBlocks, chunks);
+
+    assertEquals(new CoalescedStreamHandle(handle.streamId, new int[] { 2, 1 },
+      new long[] { 0, 3, 0 }, new long[] { 3, 4, 3 }), handle);
+    verify(blockResolver, never()).getShuffleBlocksData(
+      any(), any(), anyInt(), any(), any(), anyBoolean());
+    verifyOpenBlockLatencyMetrics(3, 2);
+  }
+
+  @Test
+  public void testFetchShuffleBlocksWithCorruptMapOutput() {
+    long[] mapIds = new long[] { 0, 1 };
+    int[][] reduceIds = new int[][] {{ 0, 1 }, { 0 }};
+    when(blockResolver.getCoalescedShuffleBlocksData(eq("app0"), eq("exec1"), eq(0),
+      aryEq(mapIds), argThat(ids -> Arrays.deepEquals(ids, reduceIds)), eq(false)))
+      .thenThrow(new RuntimeException("corrupt index file"));
+    when(blockResolver.getShuffleBlocksData(eq("app0"), eq("exec1"), eq(0),
+      aryEq(new long[] { 0 }), any(), eq(false)))
+      .thenThrow(new RuntimeException("corrupt index file"));
+    when(blockResolver.getShuffleBlocksData(eq("app0"), eq("exec1"), eq(0),
+      aryEq(new long[] { 1 }), any(), eq(false)))
+      .thenReturn(new ManagedBuffer[] { blockMarkers[1] });
+    when(client.getClientId()).thenReturn("app0");
+
+    // The blocks are served uncoalesced, and only the chunks of the corrupt map output fail.
+    RpcResponseCallback callback = mock(RpcResponseCallback.class);
+    handler.receive(client, new FetchShuffleBlocks(
+      "app0", "exec1", 0, mapIds, reduceIds, false, true).toByteBuffer(), callback);
+    ArgumentCaptor<ByteBuffer> response = ArgumentCaptor.forClass(ByteBuffer.class);
+    verify(callback, times(1)).onSuccess(response.capture());
+    StreamHandle handle =
+      (StreamHandle) BlockTransferMessage.Decoder.fromByteBuffer(response.getValue());
+    assertFalse(handle instanceof CoalescedStreamHandle);
+    assertEquals(3, handle.numChunks);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Iterator<ManagedBuffer>> stream = (ArgumentCaptor<Iterator<ManagedBuffer>>)
+        (ArgumentCaptor<?>) ArgumentCaptor.forClass(Iterator.class);
+    verify(streamManager, times(1)).registerStream(anyString(), stream.capture(),
+      any(), anyBoolean());
+    Iterator<ManagedBuffer> buffers = stream.getValue();
+    assertThrows(RuntimeException.class, buffers::next);
+    assertThrows(RuntimeException.class, buffers::next);
+    assertEquals(blockMarkers[1], buffers.next());
+    assertFalse(buffers.hasNext());
+  }
+
   @Test
   public void testOpenDiskPersistedRDDBlocks() {
     when(blockResolver.getRddBlockData("app0", "exec1", 0, 0)).thenReturn(blockMarkers[0]);
@@ -286,7 +358,9 @@ public class ExternalBlockHandlerSuite {
     verify(blockResolver, times(1)).getRddBlockData("app0", "exec1", 0, 1);
   }
 
-  private void checkOpenBlocksReceive(BlockTransferMessage msg, ManagedBuffer[] blockMarkers) {
+  private StreamHandle checkOpenBlocksReceive(
+      BlockTransferMessage msg,
+      ManagedBuffer[] blockMarkers) {
     when(client.getClientId()).thenReturn("app0");
 
     RpcResponseCallback callback = mock(RpcResponseCallback.class);
@@ -310,6 +384,7 @@ public class ExternalBlockHandlerSuite {
       assertEquals(blockMarker, buffers.next());
     }
     assertFalse(buffers.hasNext());
+    return handle;
   }
 
   private void verifyOpenBlockLatencyMetrics(
@@ -20,8 +20,10 @@ package org.apache.spark.network.shuffle;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
 import org.apache.spark.network.util.JavaUtils;
 import org.apache.spark.network.util.MapConfigProvider;
@@ -96,6 +98,102 @@ public class ExternalShuffleBlockResolverSuite {
     }
   }
 
+  @Test
+  public void testShuffleBlocksInOneRequest() throws IOException {
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf, null);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo(SORT_MANAGER));
+
+    ManagedBuffer[] blocks = resolver.getShuffleBlocksData(
+      "app0", "exec0", 0, new long[] { 0 }, new int[][] {{ 1, 0 }}, false);
+    assertEquals(2, blocks.length);
+    try (InputStream block1Stream = blocks[0].createInputStream()) {
+      assertEquals(sortBlock1, JavaUtils.toString(block1Stream));
+    }
+    try (InputStream block0Stream = blocks[1].createInputStream()) {
+      assertEquals(sortBlock0, JavaUtils.toString(block0Stream));
+    }
+    // The index file was read once for both blocks.
+    assertEquals(1, resolver.getIndexCacheMissCount());
+    assertEquals(0, resolver.getIndexCacheHitCount());
+
+    blocks = resolver.getShuffleBlocksData(
+      "app0", "exec0", 0, new long[] { 0 }, new int[][] {{ 0, 2 }}, true);
+    assertEquals(1, blocks.length);
+    try (InputStream blocksStream = blocks[0].createInputStream()) {
+      assertEquals(sortBlock0 + sortBlock1, JavaUtils.toString(blocksStream));
+    }
+    assertEquals(1, resolver.getIndexCacheMissCount());
+    assertEquals(1, resolver.getIndexCacheHitCount());
+    // The 3 offsets of the index file are cached as 4-byte ints.
+    assertEquals(3 * 4 + ShuffleIndexCache.ENTRY_MEMORY_FOOTPRINT,
+      resolver.getIndexCacheSizeInBytes());
+
+    resolver.close();
+    assertEquals(0, resolver.getIndexCacheSizeInBytes());
+  }
+
+  @Test
+  public void testCoalescedShuffleBlocks() throws IOException {
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf, null);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo(SORT_MANAGER));
+
+    ExternalShuffleBlockResolver.CoalescedBlocks coalesced =
+      resolver.getCoalescedShuffleBlocksData(
+        "app0", "exec0", 0, new long[] { 0 }, new int[][] {{ 0, 1 }}, false);
+    assertEquals(1, coalesced.chunks.length);
+    assertArrayEquals(new int[] { 2 }, coalesced.blocksPerChunk);
+    assertArrayEquals(new long[] { 0, sortBlock0.length() }, coalesced.blockOffsets);
+    assertArrayEquals(new long[] { sortBlock0.length(), sortBlock1.length() },
+      coalesced.blockLengths);
+    try (InputStream chunkStream = coalesced.chunks[0].createInputStream()) {
+      assertEquals(sortBlock0 + sortBlock1, JavaUtils.toString(chunkStream));
+    }
+
+    // Blocks which are not in the order of the data file are served in chunks of their own.
+    coalesced = resolver.getCoalescedShuffleBlocksData(
+      "app0", "exec0", 0, new long[] { 0 }, new int[][] {{ 1, 0 }}, false);
+    assertArrayEquals(new int[] { 1, 1 }, coalesced.blocksPerChunk);
+    assertArrayEquals(new long[] { 0, 0 }, coalesced.blockOffsets);
+    try (InputStream chunkStream = coalesced.chunks[0].createInputStream()) {
+      assertEquals(sortBlock1, JavaUtils.toString(chunkStream));
+    }
+    resolver.close();
+
+    TransportConf smallChunkConf = new TransportConf("shuffle", new MapConfigProvider(
+      Map.of("spark.shuffle.service.fetch.coalesce.maxChunkSize", "8")));
+    resolver = new ExternalShuffleBlockResolver(smallChunkConf, null);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo(SORT_MANAGER));
+    coalesced = resolver.getCoalescedShuffleBlocksData(
+      "app0", "exec0", 0, new long[] { 0 }, new int[][] {{ 0, 1 }}, false);
+    assertArrayEquals(new int[] { 1, 1 }, coalesced.blocksPerChunk);
+    try (InputStream chunkStream = coalesced.chunks[1].createInputStream()) {
+      assertEquals(sortBlock1, JavaUtils.toString(chunkStream));
+    }
+    resolver.close();
+  }
+
+  @Test
+  public void testSortShuffleBlocksWithOffHeapIndexCache() throws IOException {
+    TransportConf offHeapConf = new TransportConf("shuffle", new MapConfigProvider(
+      Map.of("spark.shuffle.service.index.cache.offHeap.enabled", "true")));
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(offHeapConf, null);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo(SORT_MANAGER));
+
+    try (InputStream block1Stream = resolver.getBlockData(
+        "app0", "exec0", 0, 0, 1).createInputStream()) {
+      assertEquals(sortBlock1, JavaUtils.toString(block1Stream));
+    }
+    try (InputStream blocksStream = resolver.getContinuousBlocksData(
+        "app0", "exec0", 0, 0, 0, 2).createInputStream()) {
+      assertEquals(sortBlock0 + sortBlock1, JavaUtils.toString(blocksStream));
+    }
+    resolver.close();
+  }
+
   @Test
   public void jsonSerializationOfExecutorRegistration() throws IOException {
     ObjectMapper mapper = new ObjectMapper();
@@ -18,17 +18,18 @@
 package org.apache.spark.network.shuffle;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
@@ -43,10 +44,12 @@ import org.apache.spark.network.client.ChunkReceivedCallback;
 import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.CoalescedStreamHandle;
 import org.apache.spark.network.shuffle.protocol.FetchShuffleBlocks;
 import org.apache.spark.network.shuffle.protocol.FetchShuffleBlockChunks;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
 import org.apache.spark.network.shuffle.protocol.StreamHandle;
+import org.apache.spark.network.util.JavaUtils;
 import org.apache.spark.network.util.MapConfigProvider;
 import org.apache.spark.network.util.TransportConf;
 
@@ -109,6 +112,61 @@ public class OneForOneBlockFetcherSuite {
     }
   }
 
+  @Test
+  public void testFetchCoalescedShuffleBlocks() {
+    TransportConf coalescingConf = new TransportConf("shuffle", new MapConfigProvider(
+      new HashMap<String, String>() {{
+        put("spark.shuffle.fetch.coalesceBlocks.enabled", "true");
+      }}
+    ));
+    String[] blockIds = { "shuffle_0_0_0", "shuffle_0_0_2", "shuffle_0_1_0" };
+    TransportClient client = mock(TransportClient.class);
+    HashMap<String, String> fetched = new HashMap<>();
+    BlockFetchingListener listener = mock(BlockFetchingListener.class);
+    doAnswer(invocation -> {
+      ManagedBuffer block = (ManagedBuffer) invocation.getArguments()[1];
+      fetched.put((String) invocation.getArguments()[0],
+        JavaUtils.bytesToString(block.nioByteBuffer()));
+      return null;
+    }).when(listener).onBlockFetchSuccess(any(), any());
+
+    // The first two blocks come in one chunk, with a gap of a byte between them.
+    doAnswer(invocation -> {
+      BlockTransferMessage message = BlockTransferMessage.Decoder.fromByteBuffer(
+        (ByteBuffer) invocation.getArguments()[0]);
+      assertEquals(new FetchShuffleBlocks("app-id", "exec-id", 0, new long[] { 0, 1 },
+        new int[][] {{ 0, 2 }, { 0 }}, false, true), message);
+      RpcResponseCallback callback = (RpcResponseCallback) invocation.getArguments()[1];
+      callback.onSuccess(new CoalescedStreamHandle(123, new int[] { 2, 1 },
+        new long[] { 0, 4, 0 }, new long[] { 3, 2, 5 }).toByteBuffer());
+      return null;
+    }).when(client).sendRpc(any(ByteBuffer.class), any(RpcResponseCallback.class));
+
+    ByteBuf chunk = Unpooled.wrappedBuffer("abc-de".getBytes(StandardCharsets.UTF_8));
+    doAnswer(invocation -> {
+      int[] chunkIndices = (int[]) invocation.getArguments()[1];
+      ChunkReceivedCallback callback = (ChunkReceivedCallback) invocation.getArguments()[2];
+      for (int chunkIndex : chunkIndices) {
+        if (chunkIndex == 0) {
+          callback.onSuccess(chunkIndex, new NettyManagedBuffer(chunk));
+        } else {
+          callback.onFailure(chunkIndex, new RuntimeException("Failed " + chunkIndex));
+        }
+      }
+      return null;
+    }).when(client).fetchChunks(anyLong(), any(int[].class), any());
+
+    new OneForOneBlockFetcher(
+      client, "app-id", "exec-id", blockIds, listener, coalescingConf).start();
+
+    assertEquals("abc", fetched.get("shuffle_0_0_0"));
+    assertEquals("de", fetched.get("shuffle_0_0_2"));
+    verify(listener, times(1)).onBlockFetchFailure(eq("shuffle_0_1_0"), any());
+    verify(listener, times(2)).onBlockFetchSuccess(any(), any());
+    // The slices handed to the listener were all released.
+    assertEquals(1, chunk.refCnt());
+  }
+
   @Test
   public void testBatchFetchThreeShuffleBlocks() {
     LinkedHashMap<String, ManagedBuffer> blocks = new LinkedHashMap<>();
@@ -317,23 +375,26 @@ public class OneForOneBlockFetcherSuite {
     doAnswer(invocation -> {
       try {
         long streamId = (Long) invocation.getArguments()[0];
-        int myChunkIndex = (Integer) invocation.getArguments()[1];
+        int[] chunkIndices = (int[]) invocation.getArguments()[1];
         assertEquals(123, streamId);
-        assertEquals(expectedChunkIndex.getAndIncrement(), myChunkIndex);
+        assertEquals(blocks.size(), chunkIndices.length);
 
         ChunkReceivedCallback callback = (ChunkReceivedCallback) invocation.getArguments()[2];
-        ManagedBuffer result = blockIterator.next();
-        if (result != null) {
-          callback.onSuccess(myChunkIndex, result);
-        } else {
-          callback.onFailure(myChunkIndex, new RuntimeException("Failed " + myChunkIndex));
+        for (int myChunkIndex : chunkIndices) {
+          assertEquals(expectedChunkIndex.getAndIncrement(), myChunkIndex);
+          ManagedBuffer result = blockIterator.next();
+          if (result != null) {
+            callback.onSuccess(myChunkIndex, result);
+          } else {
+            callback.onFailure(myChunkIndex, new RuntimeException("Failed " + myChunkIndex));
+          }
         }
       } catch (Exception e) {
         e.printStackTrace();
         fail("Unexpected failure");
       }
       return null;
-    }).when(client).fetchChunk(anyLong(), anyInt(), any());
+    }).when(client).fetchChunks(anyLong(), any(int[].class), any());
 
     fetcher.start();
     return listener;
@@ -312,6 +312,84 @@ public class RemoteBlockPushResolverSuite {
     verifyMetrics(9, 0, 0, 0, 0, 0, 9);
   }
 
+  @Test
+  public void testWriteCombining() throws IOException {
+    useWriteCombining("16");
+    StreamCallbackWithID stream0 = pushResolver.receiveBlockDataAsStream(
+      new PushBlockStream(TEST_APP, NO_ATTEMPT_ID, 0, 0, 0, 0, 0));
+    stream0.onData(stream0.getID(), ByteBuffer.wrap(new byte[] {1, 1, 1}));
+    stream0.onComplete(stream0.getID());
+    // The partial data of a failed block is overwritten by the next block.
+    StreamCallbackWithID stream1 = pushResolver.receiveBlockDataAsStream(
+      new PushBlockStream(TEST_APP, NO_ATTEMPT_ID, 0, 0, 1, 0, 0));
+    stream1.onData(stream1.getID(), ByteBuffer.wrap(new byte[] {2, 2}));
+    stream1.onFailure(stream1.getID(), new RuntimeException("Forced Failure"));
+    RemoteBlockPushResolver.MergedDataFileWriter dataWriter =
+      ((RemoteBlockPushResolver.PushBlockStreamCallback) stream1).getPartitionInfo()
+        .getDataWriter();
+    assertEquals(5, dataWriter.getBufferedBytes());
+    // A block larger than the buffer is written through it.
+    StreamCallbackWithID stream2 = pushResolver.receiveBlockDataAsStream(
+      new PushBlockStream(TEST_APP, NO_ATTEMPT_ID, 0, 0, 2, 0, 0));
+    byte[] largeBlock = new byte[10];
+    Arrays.fill(largeBlock, (byte) 3);
+    stream2.onData(stream2.getID(), ByteBuffer.wrap(largeBlock));
+    stream2.onComplete(stream2.getID());
+    assertEquals(5, dataWriter.getBufferedBytes());
+    pushBlockHelper(TEST_APP, NO_ATTEMPT_ID, new PushBlock[] {
+      new PushBlock(0, 0, 3, 0, ByteBuffer.wrap(new byte[] {4, 4}))});
+
+    MergeStatuses statuses = pushResolver.finalizeShuffleMerge(
+      new FinalizeShuffleMerge(TEST_APP, NO_ATTEMPT_ID, 0, 0));
+    validateMergeStatuses(statuses, new int[] {0}, new long[] {15});
+    MergedBlockMeta blockMeta = pushResolver.getMergedBlockMeta(TEST_APP, 0, 0, 0);
+    validateChunks(TEST_APP, 0, 0, 0, blockMeta, new int[]{13, 2}, new int[][]{{0, 2}, {3}});
+    ByteBuffer chunk0 = pushResolver.getMergedBlockData(TEST_APP, 0, 0, 0, 0).nioByteBuffer();
+    byte[] expectedChunk0 = new byte[13];
+    Arrays.fill(expectedChunk0, 0, 3, (byte) 1);
+    Arrays.fill(expectedChunk0, 3, 13, (byte) 3);
+    assertEquals(ByteBuffer.wrap(expectedChunk0), chunk0);
+    ByteBuffer chunk1 = pushResolver.getMergedBlockData(TEST_APP, 0, 0, 0, 1).nioByteBuffer();
+    assertEquals(ByteBuffer.wrap(new byte[] {4, 4}), chunk1);
+
+    Map<String, Metric> metrics = pushResolver.getMetrics().getMetrics();
+    Counter bufferBytes =
+      (Counter) metrics.get(PushMergeMetrics.WRITE_COMBINING_BUFFER_BYTES_METRIC);
+    assertEquals(0, bufferBytes.getCount());
+    Meter syncs = (Meter) metrics.get(PushMergeMetrics.MERGED_DATA_FILE_SYNCS_METRIC);
+    assertEquals(3, syncs.getCount());
+  }
+
+  @Test
+  public void testWriteCombiningMemoryLimit() throws IOException {
+    useWriteCombining("8");
+    StreamCallbackWithID stream0 = pushResolver.receiveBlockDataAsStream(
+      new PushBlockStream(TEST_APP, NO_ATTEMPT_ID, 0, 0, 0, 0, 0));
+    stream0.onData(stream0.getID(), ByteBuffer.wrap(new byte[] {1, 1}));
+    stream0.onComplete(stream0.getID());
+    // The second partition cannot get a buffer, so it writes to its data file directly.
+    StreamCallbackWithID stream1 = pushResolver.receiveBlockDataAsStream(
+      new PushBlockStream(TEST_APP, NO_ATTEMPT_ID, 0, 0, 0, 1, 0));
+    stream1.onData(stream1.getID(), ByteBuffer.wrap(new byte[] {2, 2, 2}));
+    stream1.onComplete(stream1.getID());
+    RemoteBlockPushResolver.AppShufflePartitionInfo partition0 =
+      ((RemoteBlockPushResolver.PushBlockStreamCallback) stream0).getPartitionInfo();
+    RemoteBlockPushResolver.AppShufflePartitionInfo partition1 =
+      ((RemoteBlockPushResolver.PushBlockStreamCallback) stream1).getPartitionInfo();
+    assertEquals(2, partition0.getDataWriter().getBufferedBytes());
+    assertEquals(0, partition0.getDataChannel().size());
+    assertEquals(0, partition1.getDataWriter().getBufferedBytes());
+    assertEquals(3, partition1.getDataChannel().size());
+
+    MergeStatuses statuses = pushResolver.finalizeShuffleMerge(
+      new FinalizeShuffleMerge(TEST_APP, NO_ATTEMPT_ID, 0, 0));
+    validateMergeStatuses(statuses, new int[] {0, 1}, new long[] {2, 3});
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 1}),
+      pushResolver.getMergedBlockData(TEST_APP, 0, 0, 0, 0).nioByteBuffer());
+    assertEquals(ByteBuffer.wrap(new byte[] {2, 2, 2}),
+      pushResolver.getMergedBlockData(TEST_APP, 0, 0, 1, 0).nioByteBuffer());
+  }
+
   @Test
   public void testFailureAfterComplete() throws IOException {
     StreamCallbackWithID stream =
@@ -1513,6 +1591,17 @@ public class RemoteBlockPushResolverSuite {
     registerExecutor(TEST_APP, prepareLocalDirs(localDirs, MERGE_DIRECTORY), MERGE_DIRECTORY_META);
   }
 
+  private void useWriteCombining(String maxMemory) throws IOException {
+    MapConfigProvider provider = new MapConfigProvider(Map.of(
+      "spark.shuffle.push.server.minChunkSizeInMergedShuffleFile", "4",
+      "spark.shuffle.push.server.writeCombining.enabled", "true",
+      "spark.shuffle.push.server.writeCombining.bufferSize", "8",
+      "spark.shuffle.push.server.writeCombining.maxMemory", maxMemory,
+      "spark.shuffle.push.server.fsyncBatchSize", "4"));
+    pushResolver = new RemoteBlockPushResolver(new TransportConf("shuffle", provider), null);
+    registerExecutor(TEST_APP, prepareLocalDirs(localDirs, MERGE_DIRECTORY), MERGE_DIRECTORY_META);
+  }
+
   private Path[] createLocalDirs(int numLocalDirs) throws IOException {
     Path[] localDirs = new Path[numLocalDirs];
     for (int i = 0; i < localDirs.length; i++) {
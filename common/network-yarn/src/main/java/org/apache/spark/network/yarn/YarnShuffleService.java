@@ -326,6 +326,12 @@ public class YarnShuffleService extends AuxiliaryService {
       metricsSystem.register(
           "PushBasedShuffleMergeManager", "Metrics on the push-based shuffle merge manager",
           mergeManagerMetrics);
+      if (transportContext.getDiskReadScheduler() != null) {
+        metricsSystem.register(
+            "ShuffleServiceDiskReads", "Metrics on the disk reads of the Spark Shuffle Service",
+            new YarnShuffleServiceMetrics("diskReads",
+                transportContext.getDiskReadScheduler().getMetrics()));
+      }
       logger.info("Registered metrics with Hadoop's DefaultMetricsSystem using namespace '{}'",
         MDC.of(LogKeys.SHUFFLE_SERVICE_METRICS_NAMESPACE, metricsNamespace));
 
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MemoryAllocator} that recycles freed blocks through size-class pools instead of
+ * returning them to an underlying allocator right away. This is intended to be shared by all
+ * tasks of an executor so that short-lived tasks can reuse warm pages rather than paying for a
+ * native allocation and free on every page.
+ * <p>
+ * Requested sizes are rounded up to a size class (four classes per power of two, so at most 25%
+ * of a block is wasted) and blocks of the same class are interchangeable. Freed blocks are kept
+ * in a small number of lock-striped shards; a thread first looks in the shard picked by its id
+ * and then steals from the other shards. The total number of bytes retained by the pool is
+ * bounded, and blocks that stayed unused for longer than the idle timeout are released back to
+ * the underlying allocator.
+ */
+public class PooledMemoryAllocator implements MemoryAllocator {
+
+  /** Allocations smaller than this are passed straight through to the underlying allocator. */
+  public static final long MIN_POOLED_SIZE = 64 * 1024;
+
+  private final MemoryAllocator underlying;
+
+  private final long maxRetainedBytes;
+
+  private final long idleTimeoutNanos;
+
+  private final Shard[] shards;
+
+  private final AtomicLong retainedBytes = new AtomicLong(0L);
+
+  private final AtomicLong lastEvictionNanos;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictedBytes = new LongAdder();
+
+  public PooledMemoryAllocator(
+      MemoryAllocator underlying,
+      long maxRetainedBytes,
+      long idleTimeoutNanos,
+      int numShards) {
+    assert (underlying != null);
+    assert (maxRetainedBytes >= 0);
+    assert (numShards > 0);
+    this.underlying = underlying;
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.idleTimeoutNanos = idleTimeoutNanos;
+    this.shards = new Shard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards[i] = new Shard();
+    }
+    this.lastEvictionNanos = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Returns the size class of an allocation of `size` bytes, i.e. the capacity of the block which
+   * actually backs it. Sizes below {@link #MIN_POOLED_SIZE} are not pooled and map to themselves.
+   */
+  static long sizeClass(long size) {
+    if (size < MIN_POOLED_SIZE) {
+      return size;
+    }
+    long step = Long.highestOneBit(size - 1) >>> 2;
+    return (size + step - 1) & ~(step - 1);
+  }
+
+  /**
+   * Returns the number of bytes this pool actually reserves for an allocation of `size` bytes.
+   * Callers which account for the memory they allocate should account for this many bytes and may
+   * use all of them.
+   */
+  public long capacityFor(long size) {
+    long capacity = sizeClass(size);
+    return shouldPool(capacity) ? capacity : size;
+  }
+
+  /**
+   * Returns the largest allocation size not above `size` whose {@link #capacityFor capacity} is
+   * not above `size` either, i.e. the largest block which fits into `size` accounted bytes.
+   */
+  public long largestCapacityWithin(long size) {
+    if (capacityFor(size) == size) {
+      return size;
+    }
+    long step = Long.highestOneBit(size) >>> 2;
+    return size & ~(step - 1);
+  }
+
+  private boolean shouldPool(long capacity) {
+    return capacity >= MIN_POOLED_SIZE && capacity <= maxRetainedBytes;
+  }
+
+  @Override
+  public MemoryBlock allocate(long size) throws OutOfMemoryError {
+    final long capacity = sizeClass(size);
+    if (!shouldPool(capacity)) {
+      return underlying.allocate(size);
+    }
+    final int home = homeShard();
+    for (int i = 0; i < shards.length; i++) {
+      PooledBlock block = shards[(home + i) % shards.length].poll(capacity);
+      if (block != null) {
+        retainedBytes.addAndGet(-capacity);
+        hits.increment();
+        MemoryBlock memory = new MemoryBlock(block.obj, block.offset, size);
+        if (MemoryAllocator.MEMORY_DEBUG_FILL_ENABLED) {
+          memory.fill(MemoryAllocator.MEMORY_DEBUG_FILL_CLEAN_VALUE);
+        }
+        return memory;
+      }
+    }
+    misses.increment();
+    MemoryBlock block;
+    try {
+      block = underlying.allocate(capacity);
+    } catch (OutOfMemoryError e) {
+      // The pool may be holding on to memory the underlying allocator needs; give it back and
+      // try once more before failing.
+      if (releaseAll() == 0) {
+        throw e;
+      }
+      block = underlying.allocate(capacity);
+    }
+    MemoryBlock memory = new MemoryBlock(block.getBaseObject(), block.getBaseOffset(), size);
+    if (MemoryAllocator.MEMORY_DEBUG_FILL_ENABLED) {
+      memory.fill(MemoryAllocator.MEMORY_DEBUG_FILL_CLEAN_VALUE);
+    }
+    return memory;
+  }
+
+  @Override
+  public void free(MemoryBlock memory) {
+    assert (memory.pageNumber != MemoryBlock.FREED_IN_ALLOCATOR_PAGE_NUMBER) :
+      "page has already been freed";
+    assert ((memory.pageNumber == MemoryBlock.NO_PAGE_NUMBER)
+            || (memory.pageNumber == MemoryBlock.FREED_IN_TMM_PAGE_NUMBER)) :
+      "TMM-allocated pages must be freed via TMM.freePage(), not directly in allocator free()";
+
+    final long capacity = sizeClass(memory.size());
+    if (!shouldPool(capacity)) {
+      underlying.free(memory);
+      return;
+    }
+    if (MemoryAllocator.MEMORY_DEBUG_FILL_ENABLED) {
+      memory.fill(MemoryAllocator.MEMORY_DEBUG_FILL_FREED_VALUE);
+    }
+    final Object obj = memory.getBaseObject();
+    final long offset = memory.getBaseOffset();
+    // As in the underlying allocators, reset the block so that use-after-free bugs are easier to
+    // detect, and mark it as freed so that double-frees are caught.
+    memory.setObjAndOffset(null, 0);
+    memory.pageNumber = MemoryBlock.FREED_IN_ALLOCATOR_PAGE_NUMBER;
+
+    final long now = System.nanoTime();
+    if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+      retainedBytes.addAndGet(-capacity);
+      releaseToUnderlying(obj, offset, capacity);
+    } else {
+      shards[homeShard()].offer(new PooledBlock(obj, offset, capacity, now));
+    }
+    maybeEvictIdle(now);
+  }
+
+  /**
+   * Releases all blocks which have not been reused within the idle timeout back to the
+   * underlying allocator.
+   *
+   * @return the number of bytes released.
+   */
+  public long evictIdle() {
+    return evict(System.nanoTime() - idleTimeoutNanos, false);
+  }
+
+  /**
+   * Releases every pooled block back to the underlying allocator.
+   *
+   * @return the number of bytes released.
+   */
+  public long releaseAll() {
+    return evict(0L, true);
+  }
+
+  private void maybeEvictIdle(long now) {
+    long last = lastEvictionNanos.get();
+    if (now - last >= idleTimeoutNanos / 2 && lastEvictionNanos.compareAndSet(last, now)) {
+      evict(now - idleTimeoutNanos, false);
+    }
+  }
+
+  private long evict(long freedBeforeNanos, boolean all) {
+    long released = 0L;
+    for (Shard shard : shards) {
+      for (PooledBlock block : shard.remove(freedBeforeNanos, all)) {
+        retainedBytes.addAndGet(-block.capacity);
+        releaseToUnderlying(block.obj, block.offset, block.capacity);
+        released += block.capacity;
+      }
+    }
+    evictedBytes.add(released);
+    return released;
+  }
+
+  private void releaseToUnderlying(Object obj, long offset, long capacity) {
+    underlying.free(new MemoryBlock(obj, offset, capacity));
+  }
+
+  private int homeShard() {
+    return (int) (Thread.currentThread().getId() % shards.length);
+  }
+
+  /** Number of allocations served from the pool. */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** Number of pooled-size allocations which had to go to the underlying allocator. */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** Number of bytes currently held by the pool and not handed out to any caller. */
+  public long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /** Total number of bytes released back to the underlying allocator by idle eviction. */
+  public long getEvictedBytes() {
+    return evictedBytes.sum();
+  }
+
+  private static final class PooledBlock {
+    final Object obj;
+    final long offset;
+    final long capacity;
+    final long freedAtNanos;
+
+    PooledBlock(Object obj, long offset, long capacity, long freedAtNanos) {
+      this.obj = obj;
+      this.offset = offset;
+      this.capacity = capacity;
+      this.freedAtNanos = freedAtNanos;
+    }
+  }
+
+  private static final class Shard {
+
+    /**
+     * Pooled blocks by size class. Each deque is ordered by the time the blocks were freed, so
+     * that we hand out the most recently used (and most likely cache-warm) block first and evict
+     * from the other end.
+     */
+    @GuardedBy("this")
+    private final Map<Long, ArrayDeque<PooledBlock>> blocksBySizeClass = new HashMap<>();
+
+    synchronized PooledBlock poll(long capacity) {
+      ArrayDeque<PooledBlock> blocks = blocksBySizeClass.get(capacity);
+      return blocks == null ? null : blocks.pollLast();
+    }
+
+    synchronized void offer(PooledBlock block) {
+      blocksBySizeClass.computeIfAbsent(block.capacity, k -> new ArrayDeque<>()).addLast(block);
+    }
+
+    synchronized ArrayDeque<PooledBlock> remove(long freedBeforeNanos, boolean all) {
+      ArrayDeque<PooledBlock> removed = new ArrayDeque<>();
+      Iterator<ArrayDeque<PooledBlock>> it = blocksBySizeClass.values().iterator();
+      while (it.hasNext()) {
+        ArrayDeque<PooledBlock> blocks = it.next();
+        while (!blocks.isEmpty() &&
+            (all || blocks.peekFirst().freedAtNanos - freedBeforeNanos <= 0)) {
+          removed.add(blocks.pollFirst());
+        }
+        if (blocks.isEmpty()) {
+          it.remove();
+        }
+      }
+      return removed;
+    }
+  }
+}
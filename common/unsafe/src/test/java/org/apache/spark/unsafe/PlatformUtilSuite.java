@@ -20,6 +20,7 @@ package org.apache.spark.unsafe;
 import org.apache.spark.unsafe.memory.HeapMemoryAllocator;
 import org.apache.spark.unsafe.memory.MemoryAllocator;
 import org.apache.spark.unsafe.memory.MemoryBlock;
+import org.apache.spark.unsafe.memory.PooledMemoryAllocator;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -158,6 +159,78 @@ public class PlatformUtilSuite {
     Assertions.assertEquals(obj3, onheap4.getBaseObject());
   }
 
+  @Test
+  public void pooledMemoryAllocatorReusesFreedBlocksOfTheSameSizeClass() {
+    PooledMemoryAllocator pool =
+      new PooledMemoryAllocator(MemoryAllocator.UNSAFE, 16 * 1024 * 1024, Long.MAX_VALUE, 2);
+    MemoryBlock block1 = pool.allocate(1024 * 1024);
+    long address1 = block1.getBaseOffset();
+    pool.free(block1);
+    Assertions.assertEquals(0, block1.getBaseOffset());
+    Assertions.assertEquals(1024 * 1024, pool.getRetainedBytes());
+
+    // 1MB + 1 byte falls into the 1.25MB size class and can't reuse the 1MB block.
+    MemoryBlock block2 = pool.allocate(1024 * 1024 + 1);
+    Assertions.assertNotEquals(address1, block2.getBaseOffset());
+    MemoryBlock block3 = pool.allocate(1024 * 1024 - 7);
+    Assertions.assertEquals(address1, block3.getBaseOffset());
+    Assertions.assertEquals(1024 * 1024 - 7, block3.size());
+    Assertions.assertEquals(1, pool.getHits());
+    Assertions.assertEquals(2, pool.getMisses());
+    Assertions.assertEquals(0, pool.getRetainedBytes());
+
+    pool.free(block2);
+    pool.free(block3);
+    Assertions.assertEquals(1024 * 1024 + 1280 * 1024, pool.releaseAll());
+    Assertions.assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test
+  public void pooledMemoryAllocatorCapacities() {
+    PooledMemoryAllocator pool =
+      new PooledMemoryAllocator(MemoryAllocator.UNSAFE, 16 * 1024 * 1024, Long.MAX_VALUE, 1);
+    // Not pooled: too small, or larger than the pool.
+    Assertions.assertEquals(1000, pool.capacityFor(1000));
+    Assertions.assertEquals(1000, pool.largestCapacityWithin(1000));
+    Assertions.assertEquals(32 * 1024 * 1024 + 1, pool.capacityFor(32 * 1024 * 1024 + 1));
+    Assertions.assertEquals(1280 * 1024, pool.capacityFor(1024 * 1024 + 1));
+    Assertions.assertEquals(1024 * 1024, pool.capacityFor(1024 * 1024));
+    Assertions.assertEquals(1024 * 1024, pool.largestCapacityWithin(1280 * 1024 - 1));
+    Assertions.assertEquals(96 * 1024, pool.largestCapacityWithin(100000));
+  }
+
+  @Test
+  public void pooledMemoryAllocatorBoundsRetainedBytes() {
+    PooledMemoryAllocator pool =
+      new PooledMemoryAllocator(MemoryAllocator.UNSAFE, 1024 * 1024, Long.MAX_VALUE, 1);
+    MemoryBlock block1 = pool.allocate(1024 * 1024);
+    MemoryBlock block2 = pool.allocate(1024 * 1024);
+    pool.free(block1);
+    pool.free(block2);
+    Assertions.assertEquals(1024 * 1024, pool.getRetainedBytes());
+    pool.releaseAll();
+  }
+
+  @Test
+  public void pooledMemoryAllocatorEvictsIdleBlocks() {
+    PooledMemoryAllocator pool =
+      new PooledMemoryAllocator(MemoryAllocator.UNSAFE, 16 * 1024 * 1024, 0, 1);
+    pool.free(pool.allocate(1024 * 1024));
+    pool.evictIdle();
+    Assertions.assertEquals(0, pool.getRetainedBytes());
+    Assertions.assertEquals(1024 * 1024, pool.getEvictedBytes());
+  }
+
+  @Test
+  public void pooledMemoryAllocatorThrowsAssertionErrorOnDoubleFree() {
+    PooledMemoryAllocator pool =
+      new PooledMemoryAllocator(MemoryAllocator.UNSAFE, 16 * 1024 * 1024, Long.MAX_VALUE, 1);
+    MemoryBlock block = pool.allocate(1024 * 1024);
+    pool.free(block);
+    Assertions.assertThrows(AssertionError.class, () -> pool.free(block));
+    pool.releaseAll();
+  }
+
   @Test
   public void cleanerCreateMethodIsDefined() {
     // Regression test for SPARK-45508: we don't expect the "no cleaner" fallback
@@ -16,7 +16,7 @@
  */
 package org.apache.spark.util
 
-import java.io.{FileInputStream, FileOutputStream, InputStream, OutputStream}
+import java.io.{EOFException, FileInputStream, FileOutputStream, InputStream, OutputStream}
 import java.nio.channels.{FileChannel, WritableByteChannel}
 
 import org.apache.spark.network.util.JavaUtils
@@ -106,6 +106,29 @@ private[spark] trait SparkStreamUtils {
     }
   }
 
+  /**
+   * Copies `bytesToCopy` bytes of `input`, starting at `inputPosition`, into `output` at
+   * `outputPosition`. The position of `output` is neither used nor changed, so several ranges can
+   * be copied into the same output channel concurrently (each from its own input channel).
+   */
+  def copyFileRangeNIO(
+      input: FileChannel,
+      inputPosition: Long,
+      output: FileChannel,
+      outputPosition: Long,
+      bytesToCopy: Long): Unit = {
+    input.position(inputPosition)
+    var count = 0L
+    while (count < bytesToCopy) {
+      val copied = output.transferFrom(input, outputPosition + count, bytesToCopy - count)
+      if (copied <= 0) {
+        throw new EOFException(s"Request to copy $bytesToCopy bytes starting at $inputPosition, " +
+          s"but the input ended after $count bytes.")
+      }
+      count += copied
+    }
+  }
+
   def toString(in: InputStream): String = {
     JavaUtils.toString(in)
   }
@@ -60,6 +60,17 @@ public abstract class MemoryConsumer {
     return used.get();
   }
 
+  /**
+   * Returns the spill priority of this consumer. When a task runs out of memory, the
+   * TaskMemoryManager spills the consumers with the highest priority first, and only falls back to
+   * consumers with a lower priority once those cannot release enough memory. Consumers whose data
+   * is cheap to spill and read back should return a higher value, and consumers which are close to
+   * releasing their memory on their own a lower one.
+   */
+  public int getSpillPriority() {
+    return 0;
+  }
+
   /**
    * Force spill during building.
    */
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.memory;
+
+/**
+ * Receives the spills that a {@link TaskMemoryManager} asks its consumers for, e.g. to collect
+ * metrics about the memory pressure of a task.
+ *
+ * Listeners are called on the thread which triggered the spill, while the TaskMemoryManager is
+ * locked, so they must be cheap and must not acquire or release memory.
+ */
+public interface MemoryPressureListener {
+
+  /**
+   * Called after `consumer` was asked to spill.
+   *
+   * @param consumer the consumer which was asked to spill
+   * @param trigger the consumer whose memory request caused the spill
+   * @param requested the number of bytes the consumer was asked to release
+   * @param released the number of bytes the consumer actually released
+   * @param proactive whether the spill was made because the task crossed its spill high-water
+   *                  mark, rather than because a memory request could not be granted
+   */
+  void onSpill(
+      MemoryConsumer consumer,
+      MemoryConsumer trigger,
+      long requested,
+      long released,
+      boolean proactive);
+}
@@ -22,13 +22,16 @@ import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import org.apache.spark.SparkEnv;
 import org.apache.spark.internal.SparkLogger;
 import org.apache.spark.internal.SparkLoggerFactory;
 import org.apache.spark.internal.LogKeys;
 import org.apache.spark.internal.MDC;
+import org.apache.spark.internal.config.package$;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.util.Utils;
 
@@ -140,6 +143,22 @@ public class TaskMemoryManager {
    */
   private volatile long peakOnHeapMemory = 0L;
 
+  /**
+   * Amount of execution memory of one mode above which the other consumers are proactively asked
+   * to spill the excess whenever a consumer acquires memory, or 0 if disabled.
+   */
+  private long spillHighWaterMark = 0L;
+
+  /**
+   * Whether consumers are being proactively spilled, so that memory acquired by the spills
+   * themselves does not start another round of proactive spills.
+   */
+  @GuardedBy("this")
+  private boolean inProactiveSpill = false;
+
+  private final List<MemoryPressureListener> memoryPressureListeners =
+    new CopyOnWriteArrayList<>();
+
   /**
    * Construct a new TaskMemoryManager.
    */
@@ -148,6 +167,22 @@ public class TaskMemoryManager {
     this.memoryManager = memoryManager;
     this.taskAttemptId = taskAttemptId;
     this.consumers = new HashSet<>();
+    if (SparkEnv.get() != null) {
+      this.spillHighWaterMark = (long) SparkEnv.get().conf().get(
+        package$.MODULE$.MEMORY_TASK_SPILL_HIGH_WATER_MARK());
+    }
+  }
+
+  /**
+   * Registers a listener which is told about every spill of a consumer of this task.
+   */
+  public void addMemoryPressureListener(MemoryPressureListener listener) {
+    memoryPressureListeners.add(listener);
+  }
+
+  @VisibleForTesting
+  void setSpillHighWaterMark(long spillHighWaterMark) {
+    this.spillHighWaterMark = spillHighWaterMark;
   }
 
   /**
@@ -186,31 +221,21 @@ public class TaskMemoryManager {
         // fewer larger requests, but can result in many small spills if there are many smaller
         // requests.
 
-        // Build a map of consumer in order of memory usage to prioritize spilling. Assign current
-        // consumer (if present) a nominal memory usage of 0 so that it is always last in priority
-        // order. The map will include all consumers that have previously acquired memory.
-        TreeMap<Long, List<MemoryConsumer>> sortedConsumers = new TreeMap<>();
-        for (MemoryConsumer c: consumers) {
-          if (c.getUsed() > 0 && c.getMode() == mode) {
-            long key = c == requestingConsumer ? 0 : c.getUsed();
-            List<MemoryConsumer> list =
-                sortedConsumers.computeIfAbsent(key, k -> new ArrayList<>(1));
-            list.add(c);
-          }
-        }
+        // Consumers are considered in decreasing order of spill priority, and the heuristic above
+        // applies among the consumers of the same priority.
+        TreeMap<Integer, TreeMap<Long, List<MemoryConsumer>>> sortedConsumers =
+          sortConsumersToSpill(requestingConsumer, mode, true);
         // Iteratively spill consumers until we've freed enough memory or run out of consumers.
         while (got < required && !sortedConsumers.isEmpty()) {
-          // Get the consumer using the least memory more than the remaining required memory.
-          Map.Entry<Long, List<MemoryConsumer>> currentEntry =
-            sortedConsumers.ceilingEntry(required - got);
-          // No consumer has enough memory on its own, start with spilling the biggest consumer.
-          if (currentEntry == null) {
-            currentEntry = sortedConsumers.lastEntry();
-          }
-          List<MemoryConsumer> cList = currentEntry.getValue();
-          got += trySpillAndAcquire(requestingConsumer, required - got, cList, cList.size() - 1);
-          if (cList.isEmpty()) {
-            sortedConsumers.remove(currentEntry.getKey());
+          long released =
+            spillNextConsumer(sortedConsumers, requestingConsumer, required - got, false);
+          if (released > 0) {
+            // When our spill handler releases memory, `ExecutionMemoryPool#releaseMemory()` will
+            // immediately notify other tasks that memory has been freed, and they may acquire the
+            // newly-freed memory before we have a chance to do so (SPARK-35486). Therefore we may
+            // not be able to acquire all the memory that was just spilled. In that case, we will
+            // try again in the next loop iteration.
+            got += memoryManager.acquireExecutionMemory(required - got, taskAttemptId, mode);
           }
         }
       }
@@ -233,25 +258,125 @@ public class TaskMemoryManager {
         }
       }
 
+      if (spillHighWaterMark > 0 && !inProactiveSpill) {
+        spillAboveHighWaterMark(requestingConsumer);
+      }
+
       return got;
     }
   }
 
   /**
-   * Try to acquire as much memory as possible from `cList[idx]`, up to `requested` bytes by
-   * spilling and then acquiring the freed memory. If no more memory can be spilled from
-   * `cList[idx]`, remove it from the list.
+   * Builds a map of the consumers of the given mode which hold memory, in decreasing order of
+   * spill priority and then in order of memory usage. If `includeRequestingConsumer`, the
+   * requesting consumer is given the lowest priority and a nominal memory usage of 0 so that it
+   * is always spilled last; otherwise it is left out.
+   */
+  @GuardedBy("this")
+  private TreeMap<Integer, TreeMap<Long, List<MemoryConsumer>>> sortConsumersToSpill(
+      MemoryConsumer requestingConsumer,
+      MemoryMode mode,
+      boolean includeRequestingConsumer) {
+    TreeMap<Integer, TreeMap<Long, List<MemoryConsumer>>> sortedConsumers =
+      new TreeMap<>(Comparator.reverseOrder());
+    for (MemoryConsumer c: consumers) {
+      if (c.getUsed() > 0 && c.getMode() == mode) {
+        if (c == requestingConsumer && !includeRequestingConsumer) {
+          continue;
+        }
+        int priority = c == requestingConsumer ? Integer.MIN_VALUE : c.getSpillPriority();
+        long key = c == requestingConsumer ? 0 : c.getUsed();
+        List<MemoryConsumer> list = sortedConsumers
+          .computeIfAbsent(priority, p -> new TreeMap<>())
+          .computeIfAbsent(key, k -> new ArrayList<>(1));
+        list.add(c);
+      }
+    }
+    return sortedConsumers;
+  }
+
+  /**
+   * Spills the next consumer of the highest priority in `sortedConsumers`: the one using the least
+   * memory more than `requested` bytes, or the one using the most memory if there is none.
    *
-   * @return number of bytes acquired (<= requested)
+   * @return number of bytes released
+   */
+  @GuardedBy("this")
+  private long spillNextConsumer(
+      TreeMap<Integer, TreeMap<Long, List<MemoryConsumer>>> sortedConsumers,
+      MemoryConsumer requestingConsumer,
+      long requested,
+      boolean proactive) {
+    Map.Entry<Integer, TreeMap<Long, List<MemoryConsumer>>> priorityEntry =
+      sortedConsumers.firstEntry();
+    TreeMap<Long, List<MemoryConsumer>> consumersBySize = priorityEntry.getValue();
+    // Get the consumer using the least memory more than the remaining required memory.
+    Map.Entry<Long, List<MemoryConsumer>> currentEntry = consumersBySize.ceilingEntry(requested);
+    // No consumer has enough memory on its own, start with spilling the biggest consumer.
+    if (currentEntry == null) {
+      currentEntry = consumersBySize.lastEntry();
+    }
+    List<MemoryConsumer> cList = currentEntry.getValue();
+    long released = trySpill(requestingConsumer, requested, cList, cList.size() - 1, proactive);
+    if (cList.isEmpty()) {
+      consumersBySize.remove(currentEntry.getKey());
+      if (consumersBySize.isEmpty()) {
+        sortedConsumers.remove(priorityEntry.getKey());
+      }
+    }
+    return released;
+  }
+
+  /**
+   * Asks the consumers other than `requestingConsumer` to spill the memory of the task above the
+   * spill high-water mark, in the same order as when memory cannot be granted.
+   */
+  @GuardedBy("this")
+  private void spillAboveHighWaterMark(MemoryConsumer requestingConsumer) {
+    MemoryMode mode = requestingConsumer.getMode();
+    long excess = currentMemory(mode) - spillHighWaterMark;
+    if (excess <= 0) {
+      return;
+    }
+    inProactiveSpill = true;
+    try {
+      TreeMap<Integer, TreeMap<Long, List<MemoryConsumer>>> sortedConsumers =
+        sortConsumersToSpill(requestingConsumer, mode, false);
+      while (excess > 0 && !sortedConsumers.isEmpty()) {
+        spillNextConsumer(sortedConsumers, requestingConsumer, excess, true);
+        excess = currentMemory(mode) - spillHighWaterMark;
+      }
+    } finally {
+      inProactiveSpill = false;
+    }
+  }
+
+  private long currentMemory(MemoryMode mode) {
+    if (mode == MemoryMode.OFF_HEAP) {
+      synchronized (offHeapMemoryLock) {
+        return currentOffHeapMemory;
+      }
+    } else {
+      synchronized (onHeapMemoryLock) {
+        return currentOnHeapMemory;
+      }
+    }
+  }
+
+  /**
+   * Try to release up to `requested` bytes by spilling `cList[idx]`. If no more memory can be
+   * spilled from `cList[idx]`, remove it from the list.
+   *
+   * @return number of bytes released
    * @throws RuntimeException if task is interrupted
    * @throws SparkOutOfMemoryError if an IOException occurs during spilling
    */
-  private long trySpillAndAcquire(
+  private long trySpill(
       MemoryConsumer requestingConsumer,
       long requested,
       List<MemoryConsumer> cList,
-      int idx) {
-    MemoryMode mode = requestingConsumer.getMode();
+      int idx,
+      boolean proactive) {
     MemoryConsumer consumerToSpill = cList.get(idx);
     if (logger.isDebugEnabled()) {
       logger.debug("Task {} try to spill {} from {} for {}", taskAttemptId,
@@ -259,19 +384,16 @@ public class TaskMemoryManager {
     }
     try {
       long released = consumerToSpill.spill(requested, requestingConsumer);
+      for (MemoryPressureListener listener : memoryPressureListeners) {
+        listener.onSpill(consumerToSpill, requestingConsumer, requested, released, proactive);
+      }
       if (released > 0) {
         if (logger.isDebugEnabled()) {
           logger.debug("Task {} spilled {} of requested {} from {} for {}", taskAttemptId,
             Utils.bytesToString(released), Utils.bytesToString(requested), consumerToSpill,
             requestingConsumer);
         }
-
-        // When our spill handler releases memory, `ExecutionMemoryPool#releaseMemory()` will
-        // immediately notify other tasks that memory has been freed, and they may acquire the
-        // newly-freed memory before we have a chance to do so (SPARK-35486). Therefore we may
-        // not be able to acquire all the memory that was just spilled. In that case, we will
-        // try again in the next loop iteration.
-        return memoryManager.acquireExecutionMemory(requested, taskAttemptId, mode);
+        return released;
       } else {
         cList.remove(idx);
         return 0;
@@ -378,10 +500,18 @@ public class TaskMemoryManager {
       throw new TooLargePageException(size);
     }
 
-    long acquired = acquireExecutionMemory(size, consumer);
+    // Acquire what the allocator will actually reserve for this page, which can be more than
+    // `size` when pages are rounded up to the size classes of the page pool. If less than that
+    // was granted, shrink the page to what the granted memory can back and release the rest.
+    long acquired = acquireExecutionMemory(memoryManager.tungstenPageCapacity(size), consumer);
     if (acquired <= 0) {
       return null;
     }
+    long pageSize = memoryManager.tungstenPageSizeWithin(acquired);
+    if (pageSize < acquired) {
+      releaseExecutionMemory(acquired - pageSize, consumer);
+      acquired = pageSize;
+    }
 
     final int pageNumber;
     synchronized (this) {
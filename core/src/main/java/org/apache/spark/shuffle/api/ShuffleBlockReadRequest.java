@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.api;
+
+import org.apache.spark.annotation.Private;
+
+/**
+ * :: Private ::
+ * A request to read a contiguous range of reduce partitions of the output of one map task.
+ * <p>
+ * The host and executor id are where the map task ran and registered its output. Plugins which
+ * keep map outputs where they were written can use them as a locality hint, e.g. to read a
+ * node-local store directly instead of going over the network.
+ *
+ * @since 5.0.0
+ */
+@Private
+public final class ShuffleBlockReadRequest {
+
+  private final int shuffleId;
+  private final long mapId;
+  private final int mapIndex;
+  private final int startPartition;
+  private final int endPartition;
+  private final long length;
+  private final String host;
+  private final String executorId;
+
+  public ShuffleBlockReadRequest(
+      int shuffleId,
+      long mapId,
+      int mapIndex,
+      int startPartition,
+      int endPartition,
+      long length,
+      String host,
+      String executorId) {
+    this.shuffleId = shuffleId;
+    this.mapId = mapId;
+    this.mapIndex = mapIndex;
+    this.startPartition = startPartition;
+    this.endPartition = endPartition;
+    this.length = length;
+    this.host = host;
+    this.executorId = executorId;
+  }
+
+  public int getShuffleId() {
+    return shuffleId;
+  }
+
+  /**
+   * Returns the ID of the map task, as given to
+   * {@link ShuffleExecutorComponents#createMapOutputWriter(int, long, int)}.
+   */
+  public long getMapId() {
+    return mapId;
+  }
+
+  /**
+   * Returns the index of the map partition which the map task computed.
+   */
+  public int getMapIndex() {
+    return mapIndex;
+  }
+
+  /**
+   * Returns the first reduce partition to read.
+   */
+  public int getStartPartition() {
+    return startPartition;
+  }
+
+  /**
+   * Returns the reduce partition after the last one to read (exclusive).
+   */
+  public int getEndPartition() {
+    return endPartition;
+  }
+
+  /**
+   * Returns the total number of bytes of the requested partitions, as reported by the map task.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Returns the host of the executor which wrote the map output.
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * Returns the id of the executor which wrote the map output.
+   */
+  public String getExecutorId() {
+    return executorId;
+  }
+
+  @Override
+  public String toString() {
+    return "ShuffleBlockReadRequest[shuffleId=" + shuffleId + ", mapId=" + mapId +
+      ", partitions=[" + startPartition + ", " + endPartition + "), length=" + length +
+      ", executorId=" + executorId + "]";
+  }
+}
@@ -73,4 +73,17 @@ public interface ShuffleExecutorComponents {
       long mapId) throws IOException {
     return Optional.empty();
   }
+
+  /**
+   * An optional extension for serving the reads of reduce tasks from the backing store.
+   * <p>
+   * Implementations which store map outputs on the local disks of the executors, where the block
+   * manager and the external shuffle service can serve them, should return the default
+   * {@link Optional#empty()}.
+   *
+   * @since 5.0.0
+   */
+  default Optional<ShuffleReadSupport> readSupport() {
+    return Optional.empty();
+  }
 }
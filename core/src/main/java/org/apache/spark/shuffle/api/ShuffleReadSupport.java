@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.spark.annotation.Private;
+
+/**
+ * :: Private ::
+ * An optional extension of {@link ShuffleExecutorComponents} which serves the reads of reduce
+ * tasks, for plugins which store map outputs somewhere the block manager cannot fetch them from.
+ * <p>
+ * Reduce tasks hand the plugin batches of {@link ShuffleBlockReadRequest}s, bounded by the
+ * maximum size of the shuffle data in flight, and consume the results in order while later
+ * requests are still being served.
+ *
+ * @since 5.0.0
+ */
+@Private
+public interface ShuffleReadSupport {
+
+  /**
+   * Returns whether the reads of the given shuffle should be served by this plugin. Shuffles for
+   * which this returns false are fetched through the block manager as usual.
+   */
+  default boolean canReadShuffle(int shuffleId) {
+    return true;
+  }
+
+  /**
+   * Starts reading a batch of partition ranges, and returns one future per request, in the same
+   * order. Each future completes with a stream of the bytes which the map output writer wrote for
+   * the requested partitions, one after another, or completes exceptionally if they cannot be
+   * read; the reduce task then fails with a fetch failure for that map output.
+   * <p>
+   * Requests only span several partitions if the shuffle serializer and compression codec allow
+   * reading consecutive partitions as a single stream.
+   * <p>
+   * The reduce task closes every stream it receives. If the task ends before a future completes,
+   * the future is cancelled, and the plugin is responsible for releasing whatever it would have
+   * completed the future with.
+   */
+  List<CompletableFuture<InputStream>> readPartitions(
+      List<ShuffleBlockReadRequest> requests) throws IOException;
+}
@@ -21,8 +21,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.Checksum;
 import javax.annotation.Nullable;
 
@@ -31,9 +42,12 @@ import scala.Option;
 import scala.Product2;
 import scala.Tuple2;
 import scala.collection.Iterator;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.spark.internal.SparkLogger;
 import org.apache.spark.internal.SparkLoggerFactory;
@@ -43,21 +57,29 @@ import org.apache.spark.Partitioner;
 import org.apache.spark.ShuffleDependency;
 import org.apache.spark.SparkConf;
 import org.apache.spark.SparkException;
+import org.apache.spark.TaskContext;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.memory.MemoryConsumer;
+import org.apache.spark.memory.MemoryMode;
+import org.apache.spark.memory.TaskMemoryManager;
 import org.apache.spark.network.shuffle.checksum.ShuffleChecksumHelper;
 import org.apache.spark.shuffle.api.ShuffleExecutorComponents;
 import org.apache.spark.shuffle.api.ShuffleMapOutputWriter;
 import org.apache.spark.shuffle.api.ShufflePartitionWriter;
+import org.apache.spark.shuffle.api.SingleSpillShuffleMapOutputWriter;
 import org.apache.spark.shuffle.api.WritableByteChannelWrapper;
 import org.apache.spark.shuffle.checksum.ShuffleChecksumSupport;
 import org.apache.spark.internal.config.package$;
 import org.apache.spark.scheduler.MapStatus;
 import org.apache.spark.scheduler.MapStatus$;
+import org.apache.spark.serializer.SerializationStream;
 import org.apache.spark.serializer.Serializer;
 import org.apache.spark.serializer.SerializerInstance;
 import org.apache.spark.shuffle.checksum.RowBasedChecksum;
 import org.apache.spark.shuffle.ShuffleWriteMetricsReporter;
 import org.apache.spark.shuffle.ShuffleWriter;
 import org.apache.spark.storage.*;
+import org.apache.spark.util.ExposedBufferByteArrayOutputStream;
 import org.apache.spark.util.Utils;
 
 /**
@@ -80,6 +102,16 @@ import org.apache.spark.util.Utils;
  * refactored into its own class in order to reduce code complexity; see SPARK-7855 for details.
  * <p>
  * There have been proposals to completely remove this code path; see SPARK-6026 for details.
+ * <p>
+ * If <code>spark.shuffle.sort.bypassMergeSort.writerThreads</code> is set and the serializer
+ * supports relocation of serialized objects, the partitions are sharded across that many shards.
+ * The records are serialized on the task thread into batches, which are handed over to the writer
+ * pool of the {@link SortShuffleManager}, shared by all the map tasks of the executor. The pool
+ * writes them into their partition files, one batch of a shard at a time, so the compression and
+ * the file writes run in parallel. A failed or killed task only skips its own batches. The batches
+ * are accounted with the task's memory manager, and a batch is handed over early when it cannot
+ * get more memory. The partition files are then copied into the output file in parallel, each one
+ * at its final offset.
  */
 final class BypassMergeSortShuffleWriter<K, V>
   extends ShuffleWriter<K, V>
@@ -88,6 +120,16 @@ final class BypassMergeSortShuffleWriter<K, V>
   private static final SparkLogger logger =
     SparkLoggerFactory.getLogger(BypassMergeSortShuffleWriter.class);
 
+  /**
+   * The maximum number of batches of a shard which are handed over to the writer pool but not
+   * written yet. The task thread waits for the oldest one before handing over more.
+   */
+  private static final int MAX_IN_FLIGHT_BATCHES_PER_SHARD = 2;
+
+  private static final int INITIAL_BATCH_BUFFER_SIZE = 64 * 1024;
+
+  private static final ClassTag<Object> OBJECT_CLASS_TAG = ClassTag$.MODULE$.Object();
+
   private final int fileBufferSize;
   private final boolean transferToEnabled;
   private final int numPartitions;
@@ -98,6 +140,11 @@ final class BypassMergeSortShuffleWriter<K, V>
   private final long mapId;
   private final Serializer serializer;
   private final ShuffleExecutorComponents shuffleExecutorComponents;
+  /** The number of shards the partitions are written by, or 0 to write on the task thread. */
+  private final int numWriterShards;
+  /** The pool writing the shards, shared with the other writers of the executor. */
+  @Nullable private final ExecutorService writerPool;
+  private final int writerBatchSize;
 
   /** Array of file writers, one for each partition */
   private DiskBlockObjectWriter[] partitionWriters;
@@ -128,6 +175,22 @@ final class BypassMergeSortShuffleWriter<K, V>
       SparkConf conf,
       ShuffleWriteMetricsReporter writeMetrics,
       ShuffleExecutorComponents shuffleExecutorComponents) throws SparkException {
+    this(blockManager, handle, mapId, conf, writeMetrics, shuffleExecutorComponents, null);
+  }
+
+  /**
+   * @param writerPool the pool writing the shards if
+   *                   <code>spark.shuffle.sort.bypassMergeSort.writerThreads</code> is set, or
+   *                   null to write everything on the task thread.
+   */
+  BypassMergeSortShuffleWriter(
+      BlockManager blockManager,
+      BypassMergeSortShuffleHandle<K, V> handle,
+      long mapId,
+      SparkConf conf,
+      ShuffleWriteMetricsReporter writeMetrics,
+      ShuffleExecutorComponents shuffleExecutorComponents,
+      @Nullable ExecutorService writerPool) throws SparkException {
     // Use getSizeAsKb (not bytes) to maintain backwards compatibility if no units are provided
     this.fileBufferSize = (int) (long) conf.get(package$.MODULE$.SHUFFLE_FILE_BUFFER_SIZE()) * 1024;
     this.transferToEnabled = (boolean) conf.get(package$.MODULE$.SHUFFLE_MERGE_PREFER_NIO());
@@ -142,6 +205,15 @@ final class BypassMergeSortShuffleWriter<K, V>
     this.shuffleExecutorComponents = shuffleExecutorComponents;
     this.partitionChecksums = createPartitionChecksums(numPartitions, conf);
     this.rowBasedChecksums = dep.rowBasedChecksums();
+    // The records are serialized one by one before they are buffered, and the serialized records
+    // are written separately, which only serializers supporting relocation allow.
+    this.writerPool = writerPool;
+    final boolean parallel =
+      writerPool != null && serializer.supportsRelocationOfSerializedObjects();
+    this.numWriterShards = parallel ? Math.min(
+      numPartitions, (int) conf.get(package$.MODULE$.SHUFFLE_BYPASS_MERGE_WRITER_THREADS())) : 0;
+    this.writerBatchSize =
+      (int) conf.get(package$.MODULE$.SHUFFLE_BYPASS_MERGE_WRITER_BATCH_SIZE());
   }
 
   @Override
@@ -157,7 +229,15 @@ final class BypassMergeSortShuffleWriter<K, V>
           blockManager.shuffleServerId(), partitionLengths, mapId, getAggregatedChecksumValue());
         return;
       }
-      final SerializerInstance serInstance = serializer.newInstance();
+      // Every shard serializes its partitions with its own serializer instance, and reports its
+      // metrics separately, since neither is thread-safe.
+      final int numShards = Math.max(1, numWriterShards);
+      final SerializerInstance[] serInstances = new SerializerInstance[numShards];
+      final ShuffleWriteMetricsReporter[] shardMetrics = new ShuffleWriteMetricsReporter[numShards];
+      for (int s = 0; s < numShards; s++) {
+        serInstances[s] = serializer.newInstance();
+        shardMetrics[s] = numWriterShards > 0 ? new ShuffleWriteMetrics() : writeMetrics;
+      }
       final long openStartTime = System.nanoTime();
       partitionWriters = new DiskBlockObjectWriter[numPartitions];
       partitionWriterSegments = new FileSegment[numPartitions];
@@ -166,8 +246,9 @@ final class BypassMergeSortShuffleWriter<K, V>
             blockManager.diskBlockManager().createTempShuffleBlock();
         final File file = tempShuffleBlockIdPlusFile._2();
         final BlockId blockId = tempShuffleBlockIdPlusFile._1();
-        DiskBlockObjectWriter writer =
-          blockManager.getDiskWriter(blockId, file, serInstance, fileBufferSize, writeMetrics);
+        final int shard = i % numShards;
+        DiskBlockObjectWriter writer = blockManager.getDiskWriter(
+          blockId, file, serInstances[shard], fileBufferSize, shardMetrics[shard]);
         if (partitionChecksums.length > 0) {
           writer.setChecksum(partitionChecksums[i]);
         }
@@ -178,23 +259,41 @@ final class BypassMergeSortShuffleWriter<K, V>
       // included in the shuffle write time.
       writeMetrics.incWriteTime(System.nanoTime() - openStartTime);
 
-      while (records.hasNext()) {
-        final Product2<K, V> record = records.next();
-        final K key = record._1();
-        final int partitionId = partitioner.getPartition(key);
-        partitionWriters[partitionId].write(key, record._2());
-        if (rowBasedChecksums.length > 0) {
-          rowBasedChecksums[partitionId].update(key, record._2());
+      if (numWriterShards > 0) {
+        writeRecordsInParallel(records, writerPool);
+        for (ShuffleWriteMetricsReporter metrics : shardMetrics) {
+          ShuffleWriteMetrics shard = (ShuffleWriteMetrics) metrics;
+          writeMetrics.incBytesWritten(shard.bytesWritten());
+          writeMetrics.incRecordsWritten(shard.recordsWritten());
+          writeMetrics.incWriteTime(shard.writeTime());
+        }
+        Optional<SingleSpillShuffleMapOutputWriter> maybeSingleFileWriter =
+          shuffleExecutorComponents.createSingleFileMapOutputWriter(shuffleId, mapId);
+        if (maybeSingleFileWriter.isPresent()) {
+          partitionLengths = writePartitionedDataInParallel(
+            maybeSingleFileWriter.get(), writerPool);
+        } else {
+          partitionLengths = writePartitionedData(mapOutputWriter);
+        }
+      } else {
+        while (records.hasNext()) {
+          final Product2<K, V> record = records.next();
+          final K key = record._1();
+          final int partitionId = partitioner.getPartition(key);
+          partitionWriters[partitionId].write(key, record._2());
+          if (rowBasedChecksums.length > 0) {
+            rowBasedChecksums[partitionId].update(key, record._2());
+          }
         }
-      }
 
-      for (int i = 0; i < numPartitions; i++) {
-        try (DiskBlockObjectWriter writer = partitionWriters[i]) {
-          partitionWriterSegments[i] = writer.commitAndGet();
+        for (int i = 0; i < numPartitions; i++) {
+          try (DiskBlockObjectWriter writer = partitionWriters[i]) {
+            partitionWriterSegments[i] = writer.commitAndGet();
+          }
         }
-      }
 
-      partitionLengths = writePartitionedData(mapOutputWriter);
+        partitionLengths = writePartitionedData(mapOutputWriter);
+      }
       mapStatus = MapStatus$.MODULE$.apply(
         blockManager.shuffleServerId(), partitionLengths, mapId, getAggregatedChecksumValue());
     } catch (Exception e) {
@@ -224,6 +323,300 @@ final class BypassMergeSortShuffleWriter<K, V>
     return RowBasedChecksum.getAggregatedChecksumValue(rowBasedChecksums);
   }
 
+  /** A batch of serialized records handed over to the writer pool, with their partition ids. */
+  private static final class RecordBatch {
+    final int[] partitionIds;
+    /** The offset in {@link #data} at which every record ends. */
+    final int[] ends;
+    byte[] data = new byte[INITIAL_BATCH_BUFFER_SIZE];
+    int size = 0;
+
+    RecordBatch(int capacity) {
+      this.partitionIds = new int[capacity];
+      this.ends = new int[capacity];
+    }
+
+    long memory() {
+      return data.length + 8L * partitionIds.length;
+    }
+
+    /**
+     * Adds the given serialized record, growing the data buffer with memory acquired from the
+     * given consumer if needed. Returns false if the consumer could not get all the memory.
+     */
+    boolean add(
+        int partitionId,
+        byte[] record,
+        int length,
+        @Nullable BatchMemoryConsumer memoryConsumer) {
+      final int start = size == 0 ? 0 : ends[size - 1];
+      boolean granted = true;
+      if (data.length - start < length) {
+        final int newLength = (int) Math.min(Integer.MAX_VALUE - 15,
+          Math.max((long) start + length, 2L * data.length));
+        if (memoryConsumer != null) {
+          granted = memoryConsumer.acquire(newLength - data.length);
+        }
+        data = Arrays.copyOf(data, newLength);
+      }
+      System.arraycopy(record, 0, data, start, length);
+      partitionIds[size] = partitionId;
+      ends[size] = start + length;
+      size++;
+      return granted;
+    }
+  }
+
+  /**
+   * Accounts the record batches of a task with its memory manager. The batches are needed until
+   * they are written, so they are never spilled on request.
+   */
+  private static final class BatchMemoryConsumer extends MemoryConsumer {
+    BatchMemoryConsumer(TaskMemoryManager taskMemoryManager) {
+      super(taskMemoryManager, MemoryMode.ON_HEAP);
+    }
+
+    @Override
+    public long spill(long size, MemoryConsumer trigger) {
+      return 0L;
+    }
+
+    /** Acquires the given number of bytes, and returns whether all of them were granted. */
+    boolean acquire(long size) {
+      return acquireMemory(size) == size;
+    }
+  }
+
+  /**
+   * Serializes the records into batches, writes the batches into their partition files on the
+   * writer pool, and commits the partition files. Partition i belongs to shard (i % numShards),
+   * and the batches of a shard are chained, so every partition writer is only used by one thread
+   * at a time and sees its records in order.
+   */
+  private void writeRecordsInParallel(
+      Iterator<Product2<K, V>> records,
+      ExecutorService executor) throws IOException {
+    final TaskContext taskContext = TaskContext.get();
+    final BatchMemoryConsumer memoryConsumer =
+      taskContext != null ? new BatchMemoryConsumer(taskContext.taskMemoryManager()) : null;
+    final AtomicBoolean aborted = new AtomicBoolean(false);
+    final RecordBatch[] batches = new RecordBatch[numWriterShards];
+    final List<ArrayDeque<CompletableFuture<RecordBatch>>> inFlight =
+      new ArrayList<>(numWriterShards);
+    for (int s = 0; s < numWriterShards; s++) {
+      inFlight.add(new ArrayDeque<>());
+    }
+    final ExposedBufferByteArrayOutputStream serBuffer =
+      new ExposedBufferByteArrayOutputStream(INITIAL_BATCH_BUFFER_SIZE);
+    final SerializationStream serOutputStream = serializer.newInstance().serializeStream(serBuffer);
+    Throwable error = null;
+    try {
+      for (int s = 0; s < numWriterShards; s++) {
+        batches[s] = newBatch(memoryConsumer);
+      }
+      while (records.hasNext()) {
+        final Product2<K, V> record = records.next();
+        final K key = record._1();
+        final int partitionId = partitioner.getPartition(key);
+        final int shard = partitionId % numWriterShards;
+        serBuffer.reset();
+        serOutputStream.writeKey(key, OBJECT_CLASS_TAG);
+        serOutputStream.writeValue(record._2(), OBJECT_CLASS_TAG);
+        serOutputStream.flush();
+        if (rowBasedChecksums.length > 0) {
+          rowBasedChecksums[partitionId].update(key, record._2());
+        }
+        final RecordBatch batch = batches[shard];
+        final boolean granted =
+          batch.add(partitionId, serBuffer.getBuf(), serBuffer.size(), memoryConsumer);
+        if (batch.size == writerBatchSize || !granted) {
+          final RecordBatch written = submitToShard(
+            inFlight.get(shard), executor, aborted, batch, () -> writeBatch(batch));
+          batches[shard] = written != null ? written : newBatch(memoryConsumer);
+          batches[shard].size = 0;
+        }
+      }
+      for (int s = 0; s < numWriterShards; s++) {
+        final RecordBatch batch = batches[s];
+        final int shard = s;
+        submitToShard(inFlight.get(s), executor, aborted, batch, () -> {
+          writeBatch(batch);
+          for (int i = shard; i < numPartitions; i += numWriterShards) {
+            try (DiskBlockObjectWriter writer = partitionWriters[i]) {
+              partitionWriterSegments[i] = writer.commitAndGet();
+            }
+          }
+        });
+      }
+    } catch (IOException | RuntimeException e) {
+      error = e;
+      aborted.set(true);
+    }
+    // Wait for every batch, including after a failure, so that no partition writer is still
+    // being written to when the writer is stopped and deletes the partition files.
+    for (ArrayDeque<CompletableFuture<RecordBatch>> shardInFlight : inFlight) {
+      for (Future<RecordBatch> future : shardInFlight) {
+        try {
+          Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+          aborted.set(true);
+          if (error == null) {
+            error = e.getCause();
+          }
+        }
+      }
+    }
+    if (memoryConsumer != null) {
+      memoryConsumer.freeMemory(memoryConsumer.getUsed());
+    }
+    if (taskContext != null) {
+      taskContext.killTaskIfInterrupted();
+    }
+    rethrow(error, "Failed to write shuffle partition files");
+  }
+
+  private RecordBatch newBatch(@Nullable BatchMemoryConsumer memoryConsumer) {
+    final RecordBatch batch = new RecordBatch(writerBatchSize);
+    if (memoryConsumer != null) {
+      // The batch is needed whether or not the memory is granted, so it is only accounted.
+      memoryConsumer.acquire(batch.memory());
+    }
+    return batch;
+  }
+
+  /**
+   * Chains the writing of the given batch after the work already handed over to the shard, first
+   * waiting for the oldest batch of the shard if it has too many batches in flight. Returns that
+   * batch, which can be reused, if it waited for one.
+   */
+  @Nullable
+  private static RecordBatch submitToShard(
+      ArrayDeque<CompletableFuture<RecordBatch>> shardInFlight,
+      ExecutorService executor,
+      AtomicBoolean aborted,
+      RecordBatch batch,
+      Runnable work) throws IOException {
+    RecordBatch written = null;
+    if (shardInFlight.size() >= MAX_IN_FLIGHT_BATCHES_PER_SHARD) {
+      try {
+        written = Uninterruptibles.getUninterruptibly(shardInFlight.removeFirst());
+      } catch (ExecutionException e) {
+        rethrow(e.getCause(), "Failed to write shuffle partition files");
+      }
+    }
+    CompletableFuture<RecordBatch> tail = shardInFlight.isEmpty() ?
+      CompletableFuture.completedFuture(null) : shardInFlight.getLast();
+    shardInFlight.addLast(tail.thenApplyAsync(previous -> {
+      if (!aborted.get()) {
+        work.run();
+      }
+      return batch;
+    }, executor));
+    return written;
+  }
+
+  private void writeBatch(RecordBatch batch) {
+    for (int i = 0; i < batch.size; i++) {
+      final int start = i == 0 ? 0 : batch.ends[i - 1];
+      final DiskBlockObjectWriter writer = partitionWriters[batch.partitionIds[i]];
+      writer.write(batch.data, start, batch.ends[i] - start);
+      writer.recordWritten();
+    }
+  }
+
+  private static void rethrow(Throwable error, String message) throws IOException {
+    if (error instanceof IOException ioe) {
+      throw ioe;
+    } else if (error instanceof RuntimeException re) {
+      throw re;
+    } else if (error instanceof Error err) {
+      throw err;
+    } else if (error != null) {
+      throw new IOException(message, error);
+    }
+  }
+
+  /**
+   * Copies all of the per-partition files into a single file, each one in parallel at its final
+   * offset, and hands the file over to the given writer.
+   *
+   * @return array of lengths, in bytes, of each partition of the file (used by map output tracker).
+   */
+  private long[] writePartitionedDataInParallel(
+      SingleSpillShuffleMapOutputWriter mapOutputWriter,
+      ExecutorService executor) throws IOException {
+    final long writeStartTime = System.nanoTime();
+    final long[] lengths = new long[numPartitions];
+    final long[] offsets = new long[numPartitions];
+    long totalLength = 0;
+    for (int i = 0; i < numPartitions; i++) {
+      offsets[i] = totalLength;
+      lengths[i] = partitionWriterSegments[i].length();
+      totalLength += lengths[i];
+    }
+    final File outputFile = blockManager.diskBlockManager().createTempShuffleBlock()._2();
+    final AtomicBoolean aborted = new AtomicBoolean(false);
+    Throwable error = null;
+    try {
+      try (RandomAccessFile output = new RandomAccessFile(outputFile, "rw")) {
+        output.setLength(totalLength);
+        final FileChannel outputChannel = output.getChannel();
+        final List<Future<?>> futures = new ArrayList<>(numWriterShards);
+        for (int s = 0; s < numWriterShards; s++) {
+          final int shard = s;
+          futures.add(executor.submit(() -> {
+            for (int i = shard; i < numPartitions && !aborted.get(); i += numWriterShards) {
+              if (lengths[i] > 0) {
+                transferSegment(partitionWriterSegments[i], outputChannel, offsets[i]);
+              }
+            }
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          try {
+            Uninterruptibles.getUninterruptibly(future);
+          } catch (ExecutionException e) {
+            aborted.set(true);
+            if (error == null) {
+              error = e.getCause();
+            }
+          }
+        }
+      }
+      rethrow(error, "Failed to concatenate shuffle partition files");
+      for (int i = 0; i < numPartitions; i++) {
+        final File file = partitionWriterSegments[i].file();
+        if (file.exists() && !file.delete()) {
+          logger.error("Unable to delete file for partition {}",
+            MDC.of(LogKeys.PARTITION_ID, i));
+        }
+      }
+      partitionWriters = null;
+      mapOutputWriter.transferMapSpillFile(
+        outputFile, lengths, getChecksumValues(partitionChecksums));
+    } catch (IOException | RuntimeException e) {
+      if (outputFile.exists() && !outputFile.delete()) {
+        logger.warn("Unable to delete partially written file {}",
+          MDC.of(LogKeys.PATH, outputFile.getAbsolutePath()));
+      }
+      throw e;
+    } finally {
+      writeMetrics.incWriteTime(System.nanoTime() - writeStartTime);
+    }
+    return lengths;
+  }
+
+  private static void transferSegment(
+      FileSegment segment,
+      FileChannel output,
+      long position) throws IOException {
+    try (FileChannel input =
+        FileChannel.open(segment.file().toPath(), StandardOpenOption.READ)) {
+      Utils.copyFileRangeNIO(input, segment.offset(), output, position, segment.length());
+    }
+  }
+
   /**
    * Concatenate all of the per-partition files into a single combined file.
    *
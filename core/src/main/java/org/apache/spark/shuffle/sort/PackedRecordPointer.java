@@ -32,6 +32,15 @@ package org.apache.spark.shuffle.sort;
  * Assuming word-alignment would allow for a 1 gigabyte maximum page size, but we leave this
  * optimization to future work as it will require more careful design to ensure that addresses are
  * properly aligned (e.g. by padding records).
+ * <p>
+ * Shuffles which exceed these limits use the wide layout instead, which takes two words per record:
+ * <pre>
+ *   [64 bit record pointer][64 bit partition number]
+ * </pre>
+ * The record pointer is kept as encoded by the TaskMemoryManager, so pages of any size can be
+ * addressed, and any non-negative int can be a partition number. This is the layout of the key
+ * prefix arrays of {@link org.apache.spark.util.collection.unsafe.sort.UnsafeInMemorySorter}, with
+ * the partition number as the key prefix, so the same sorts can be used for it.
  */
 final class PackedRecordPointer {
 
@@ -52,6 +61,18 @@ final class PackedRecordPointer {
    */
   static final int PARTITION_ID_END_BYTE_INDEX = 7;
 
+  /**
+   * The index of the first byte of the partition id in the second word of the wide layout,
+   * counting from the least significant byte.
+   */
+  static final int WIDE_PARTITION_ID_START_BYTE_INDEX = 0;
+
+  /**
+   * The index of the last byte of the partition id in the second word of the wide layout,
+   * counting from the least significant byte.
+   */
+  static final int WIDE_PARTITION_ID_END_BYTE_INDEX = 3;
+
   /** Bit mask for the lower 40 bits of a long. */
   private static final long MASK_LONG_LOWER_40_BITS = (1L << 40) - 1;
 
@@ -85,15 +106,41 @@ final class PackedRecordPointer {
 
   private long packedRecordPointer;
 
+  /** Whether the pointer was set from the two words of the wide layout. */
+  private boolean isWide = false;
+
+  private long wideRecordPointer;
+
+  private int widePartitionId;
+
   public void set(long packedRecordPointer) {
     this.packedRecordPointer = packedRecordPointer;
+    this.isWide = false;
+  }
+
+  /**
+   * Sets the pointer from the two words of the wide layout.
+   *
+   * @param recordPointer a record pointer encoded by TaskMemoryManager.
+   * @param partitionId a shuffle partition id.
+   */
+  public void setWide(long recordPointer, int partitionId) {
+    this.wideRecordPointer = recordPointer;
+    this.widePartitionId = partitionId;
+    this.isWide = true;
   }
 
   public int getPartitionId() {
+    if (isWide) {
+      return widePartitionId;
+    }
     return (int) ((packedRecordPointer & MASK_LONG_UPPER_24_BITS) >>> 40);
   }
 
   public long getRecordPointer() {
+    if (isWide) {
+      return wideRecordPointer;
+    }
     final long pageNumber = (packedRecordPointer << 24) & MASK_LONG_UPPER_13_BITS;
     final long offsetInPage = packedRecordPointer & MASK_LONG_LOWER_27_BITS;
     return pageNumber | offsetInPage;
@@ -130,8 +130,22 @@ final class ShuffleExternalSorter extends MemoryConsumer implements ShuffleCheck
       int numPartitions,
       SparkConf conf,
       ShuffleWriteMetricsReporter writeMetrics) throws SparkException {
+    this(memoryManager, blockManager, taskContext, initialSize, numPartitions, conf, writeMetrics,
+      useWidePointers(memoryManager, numPartitions, conf));
+  }
+
+  private ShuffleExternalSorter(
+      TaskMemoryManager memoryManager,
+      BlockManager blockManager,
+      TaskContext taskContext,
+      int initialSize,
+      int numPartitions,
+      SparkConf conf,
+      ShuffleWriteMetricsReporter writeMetrics,
+      boolean useWidePointers) throws SparkException {
     super(memoryManager,
-      (int) Math.min(PackedRecordPointer.MAXIMUM_PAGE_SIZE_BYTES, memoryManager.pageSizeBytes()),
+      useWidePointers ? memoryManager.pageSizeBytes() :
+        Math.min(PackedRecordPointer.MAXIMUM_PAGE_SIZE_BYTES, memoryManager.pageSizeBytes()),
       memoryManager.getTungstenMemoryMode());
     this.taskMemoryManager = memoryManager;
     this.blockManager = blockManager;
@@ -146,13 +160,28 @@ final class ShuffleExternalSorter extends MemoryConsumer implements ShuffleCheck
         (long) conf.get(package$.MODULE$.SHUFFLE_SPILL_MAX_SIZE_FORCE_SPILL_THRESHOLD());
     this.writeMetrics = writeMetrics;
     this.inMemSorter = new ShuffleInMemorySorter(
-      this, initialSize, (boolean) conf.get(package$.MODULE$.SHUFFLE_SORT_USE_RADIXSORT()));
+      this, initialSize, (boolean) conf.get(package$.MODULE$.SHUFFLE_SORT_USE_RADIXSORT()),
+      useWidePointers);
     this.peakMemoryUsedBytes = getMemoryUsage();
     this.diskWriteBufferSize =
         (int) (long) conf.get(package$.MODULE$.SHUFFLE_DISK_WRITE_BUFFER_SIZE());
     this.partitionChecksums = createPartitionChecksums(numPartitions, conf);
   }
 
+  /**
+   * Returns whether the records of a shuffle with `numPartitions` partitions should be sorted in
+   * the wide layout of {@link PackedRecordPointer}, i.e. whether the shuffle has more partitions
+   * or the task uses larger pages than the compact layout can address.
+   */
+  static boolean useWidePointers(
+      TaskMemoryManager memoryManager,
+      int numPartitions,
+      SparkConf conf) {
+    return (boolean) conf.get(package$.MODULE$.SHUFFLE_SORT_WIDE_POINTERS_ENABLED()) &&
+      (numPartitions > PackedRecordPointer.MAXIMUM_PARTITION_ID + 1 ||
+        memoryManager.pageSizeBytes() > PackedRecordPointer.MAXIMUM_PAGE_SIZE_BYTES);
+  }
+
   public long[] getChecksums() {
     return getChecksumValues(partitionChecksums);
   }
@@ -25,6 +25,8 @@ import org.apache.spark.unsafe.array.LongArray;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.util.collection.Sorter;
 import org.apache.spark.util.collection.unsafe.sort.RadixSort;
+import org.apache.spark.util.collection.unsafe.sort.RecordPointerAndKeyPrefix;
+import org.apache.spark.util.collection.unsafe.sort.UnsafeSortDataFormat;
 
 final class ShuffleInMemorySorter {
 
@@ -36,6 +38,14 @@ final class ShuffleInMemorySorter {
   }
   private static final SortComparator SORT_COMPARATOR = new SortComparator();
 
+  private static final class WideSortComparator implements Comparator<RecordPointerAndKeyPrefix> {
+    @Override
+    public int compare(RecordPointerAndKeyPrefix left, RecordPointerAndKeyPrefix right) {
+      return Long.compare(left.keyPrefix, right.keyPrefix);
+    }
+  }
+  private static final WideSortComparator WIDE_SORT_COMPARATOR = new WideSortComparator();
+
   private final MemoryConsumer consumer;
 
   /**
@@ -48,6 +58,12 @@ final class ShuffleInMemorySorter {
    */
   private LongArray array;
 
+  /**
+   * Whether the records are stored in the wide layout of {@link PackedRecordPointer}, which takes
+   * two words per record, rather than packed into one word.
+   */
+  private final boolean useWidePointers;
+
   /**
    * Whether to use radix sort for sorting in-memory partition ids. Radix sort is much faster
    * but requires additional memory to be reserved memory as pointers are added.
@@ -67,18 +83,32 @@ final class ShuffleInMemorySorter {
   private final int initialSize;
 
   ShuffleInMemorySorter(MemoryConsumer consumer, int initialSize, boolean useRadixSort) {
+    this(consumer, initialSize, useRadixSort, false);
+  }
+
+  ShuffleInMemorySorter(
+      MemoryConsumer consumer,
+      int initialSize,
+      boolean useRadixSort,
+      boolean useWidePointers) {
     this.consumer = consumer;
     assert (initialSize > 0);
-    this.initialSize = initialSize;
+    this.useWidePointers = useWidePointers;
+    // Start with room for the same number of records in either layout.
+    this.initialSize = initialSize * wordsPerRecord();
     this.useRadixSort = useRadixSort;
-    this.array = consumer.allocateArray(initialSize);
+    this.array = consumer.allocateArray(this.initialSize);
     this.usableCapacity = getUsableCapacity();
   }
 
+  private int wordsPerRecord() {
+    return useWidePointers ? 2 : 1;
+  }
+
   private int getUsableCapacity() {
     // Radix sort requires same amount of used memory as buffer, Tim sort requires
     // half of the used memory as buffer.
-    return (int) (array.size() / (useRadixSort ? 2 : 1.5));
+    return (int) (array.size() / wordsPerRecord() / (useRadixSort ? 2 : 1.5));
   }
 
   public void free() {
@@ -116,7 +146,7 @@ final class ShuffleInMemorySorter {
       array.getBaseOffset(),
       newArray.getBaseObject(),
       newArray.getBaseOffset(),
-      pos * 8L
+      pos * 8L * wordsPerRecord()
     );
     consumer.freeArray(array);
     array = newArray;
@@ -140,15 +170,22 @@ final class ShuffleInMemorySorter {
    * @param recordPointer a pointer to the record, encoded by the task memory manager. Due to
    *                      certain pointer compression techniques used by the sorter, the sort can
    *                      only operate on pointers that point to locations in the first
-   *                      {@link PackedRecordPointer#MAXIMUM_PAGE_SIZE_BYTES} bytes of a data page.
+   *                      {@link PackedRecordPointer#MAXIMUM_PAGE_SIZE_BYTES} bytes of a data page,
+   *                      unless the sorter uses wide pointers.
    * @param partitionId the partition id, which must be less than or equal to
-   *                    {@link PackedRecordPointer#MAXIMUM_PARTITION_ID}.
+   *                    {@link PackedRecordPointer#MAXIMUM_PARTITION_ID}, unless the sorter uses
+   *                    wide pointers.
    */
   public void insertRecord(long recordPointer, int partitionId) {
     if (!hasSpaceForAnotherRecord()) {
       throw new IllegalStateException("There is no space for new record");
     }
-    array.set(pos, PackedRecordPointer.packPointer(recordPointer, partitionId));
+    if (useWidePointers) {
+      array.set(pos * 2, recordPointer);
+      array.set(pos * 2 + 1, partitionId);
+    } else {
+      array.set(pos, PackedRecordPointer.packPointer(recordPointer, partitionId));
+    }
     pos++;
   }
 
@@ -158,14 +195,28 @@ final class ShuffleInMemorySorter {
   public static final class ShuffleSorterIterator {
 
     private final LongArray pointerArray;
+    private final boolean useWidePointers;
     private final int limit;
     final PackedRecordPointer packedRecordPointer = new PackedRecordPointer();
     private int position = 0;
 
     ShuffleSorterIterator(int numRecords, LongArray pointerArray, int startingPosition) {
+      this(numRecords, pointerArray, startingPosition, false);
+    }
+
+    /**
+     * @param startingPosition the index of the first record in the array, counted in records
+     *                         rather than in words.
+     */
+    ShuffleSorterIterator(
+        int numRecords,
+        LongArray pointerArray,
+        int startingPosition,
+        boolean useWidePointers) {
       this.limit = numRecords + startingPosition;
       this.pointerArray = pointerArray;
       this.position = startingPosition;
+      this.useWidePointers = useWidePointers;
     }
 
     public boolean hasNext() {
@@ -173,7 +224,12 @@ final class ShuffleInMemorySorter {
     }
 
     public void loadNext() {
-      packedRecordPointer.set(pointerArray.get(position));
+      if (useWidePointers) {
+        packedRecordPointer.setWide(
+          pointerArray.get(position * 2), (int) pointerArray.get(position * 2 + 1));
+      } else {
+        packedRecordPointer.set(pointerArray.get(position));
+      }
       position++;
     }
   }
@@ -182,6 +238,9 @@ final class ShuffleInMemorySorter {
    * Return an iterator over record pointers in sorted order.
    */
   public ShuffleSorterIterator getSortedIterator() {
+    if (useWidePointers) {
+      return getWideSortedIterator();
+    }
     int offset = 0;
     if (useRadixSort) {
       offset = RadixSort.sort(
@@ -201,4 +260,27 @@ final class ShuffleInMemorySorter {
     }
     return new ShuffleSorterIterator(pos, array, offset);
   }
+
+  private ShuffleSorterIterator getWideSortedIterator() {
+    int offset = 0;
+    if (useRadixSort) {
+      // The records are laid out as (record pointer, key prefix) pairs with the partition id as
+      // the key prefix, so they can be sorted like the records of a key prefix array.
+      offset = RadixSort.sortKeyPrefixArray(
+        array, 0, pos,
+        PackedRecordPointer.WIDE_PARTITION_ID_START_BYTE_INDEX,
+        PackedRecordPointer.WIDE_PARTITION_ID_END_BYTE_INDEX, false, false) / 2;
+    } else {
+      MemoryBlock unused = new MemoryBlock(
+        array.getBaseObject(),
+        array.getBaseOffset() + pos * 16L,
+        (array.size() - pos * 2L) * 8L);
+      LongArray buffer = new LongArray(unused);
+      Sorter<RecordPointerAndKeyPrefix, LongArray> sorter =
+        new Sorter<>(new UnsafeSortDataFormat(buffer));
+
+      sorter.sort(array, 0, pos, WIDE_SORT_COMPARATOR);
+    }
+    return new ShuffleSorterIterator(pos, array, offset, true);
+  }
 }
@@ -24,7 +24,14 @@ import javax.annotation.Nullable;
 import java.io.*;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import scala.Option;
 import scala.Product2;
@@ -34,6 +41,7 @@ import scala.reflect.ClassTag$;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.spark.*;
 import org.apache.spark.annotation.Private;
@@ -64,6 +72,7 @@ import org.apache.spark.storage.BlockManager;
 import org.apache.spark.storage.TimeTrackingOutputStream;
 import org.apache.spark.unsafe.Platform;
 import org.apache.spark.util.ExposedBufferByteArrayOutputStream;
+import org.apache.spark.util.ThreadUtils;
 import org.apache.spark.util.Utils;
 
 @Private
@@ -76,6 +85,16 @@ public class UnsafeShuffleWriter<K, V> extends ShuffleWriter<K, V> {
   @VisibleForTesting
   static final int DEFAULT_INITIAL_SER_BUFFER_SIZE = 1024 * 1024;
 
+  private static ExecutorService parallelMergePool = null;
+
+  private static synchronized ExecutorService getParallelMergePool(int numThreads) {
+    if (parallelMergePool == null) {
+      parallelMergePool =
+        ThreadUtils.newDaemonCachedThreadPool("shuffle-spill-parallel-merge", numThreads, 60);
+    }
+    return parallelMergePool;
+  }
+
   private final BlockManager blockManager;
   private final TaskMemoryManager memoryManager;
   private final SerializerInstance serializer;
@@ -89,6 +108,8 @@ public class UnsafeShuffleWriter<K, V> extends ShuffleWriter<K, V> {
   private final boolean transferToEnabled;
   private final int initialSortBufferSize;
   private final int mergeBufferSizeInBytes;
+  /** The number of spills copied into the output file concurrently, or 0 to merge serially. */
+  private final int parallelMergeThreads;
 
   @Nullable private MapStatus mapStatus;
   @Nullable private ShuffleExternalSorter sorter;
@@ -122,7 +143,8 @@ public class UnsafeShuffleWriter<K, V> extends ShuffleWriter<K, V> {
       ShuffleWriteMetricsReporter writeMetrics,
       ShuffleExecutorComponents shuffleExecutorComponents) throws SparkException {
     final int numPartitions = handle.dependency().partitioner().numPartitions();
-    if (numPartitions > SortShuffleManager.MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE()) {
+    if (numPartitions > SortShuffleManager.MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE() &&
+        !(boolean) sparkConf.get(package$.MODULE$.SHUFFLE_SORT_WIDE_POINTERS_ENABLED())) {
       throw new IllegalArgumentException(
         "UnsafeShuffleWriter can only be used for shuffles with at most " +
         SortShuffleManager.MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE() +
@@ -145,6 +167,8 @@ public class UnsafeShuffleWriter<K, V> extends ShuffleWriter<K, V> {
     this.mergeBufferSizeInBytes =
       (int) (long) sparkConf.get(package$.MODULE$.SHUFFLE_FILE_MERGE_BUFFER_SIZE()) * 1024;
     this.rowBasedChecksums = dep.rowBasedChecksums();
+    this.parallelMergeThreads =
+      (int) sparkConf.get(package$.MODULE$.SHUFFLE_UNSAFE_PARALLEL_MERGE_THREADS());
     open();
   }
 
@@ -305,19 +329,39 @@ public class UnsafeShuffleWriter<K, V> extends ShuffleWriter<K, V> {
         partitionLengths = mergeSpillsUsingStandardWriter(spills);
       }
     } else {
-      partitionLengths = mergeSpillsUsingStandardWriter(spills);
+      Optional<SingleSpillShuffleMapOutputWriter> maybeSingleFileWriter = Optional.empty();
+      if (parallelMergeThreads > 0 && transferToEnabled && canMergeByConcatenation() &&
+          !blockManager.serializerManager().encryptionEnabled()) {
+        maybeSingleFileWriter =
+          shuffleExecutorComponents.createSingleFileMapOutputWriter(shuffleId, mapId);
+      }
+      if (maybeSingleFileWriter.isPresent()) {
+        partitionLengths = mergeSpillsWithPositionalWrites(spills, maybeSingleFileWriter.get());
+      } else {
+        partitionLengths = mergeSpillsUsingStandardWriter(spills);
+      }
     }
     return partitionLengths;
   }
 
-  private long[] mergeSpillsUsingStandardWriter(SpillInfo[] spills) throws IOException {
-    long[] partitionLengths;
+  /**
+   * Returns whether the spills can be merged by concatenating their partitions' bytes, i.e.
+   * compression is disabled or the IO compression codec supports decompression of concatenated
+   * compressed streams.
+   */
+  private boolean canMergeByConcatenation() {
     final boolean compressionEnabled = (boolean) sparkConf.get(package$.MODULE$.SHUFFLE_COMPRESS());
-    final CompressionCodec compressionCodec = CompressionCodec$.MODULE$.createCodec(sparkConf);
     final boolean fastMergeEnabled =
         (boolean) sparkConf.get(package$.MODULE$.SHUFFLE_UNSAFE_FAST_MERGE_ENABLE());
-    final boolean fastMergeIsSupported = !compressionEnabled ||
-        CompressionCodec$.MODULE$.supportsConcatenationOfSerializedStreams(compressionCodec);
+    return fastMergeEnabled && (!compressionEnabled ||
+      CompressionCodec$.MODULE$.supportsConcatenationOfSerializedStreams(
+        CompressionCodec$.MODULE$.createCodec(sparkConf)));
+  }
+
+  private long[] mergeSpillsUsingStandardWriter(SpillInfo[] spills) throws IOException {
+    long[] partitionLengths;
+    final CompressionCodec compressionCodec =
+      blockManager.serializerManager().shuffleCompressionCodec();
     final boolean encryptionEnabled = blockManager.serializerManager().encryptionEnabled();
     final ShuffleMapOutputWriter mapWriter = shuffleExecutorComponents
         .createMapOutputWriter(shuffleId, mapId, partitioner.numPartitions());
@@ -332,7 +376,7 @@ public class UnsafeShuffleWriter<K, V> extends ShuffleWriter<K, V> {
       // strategies use different IO techniques.  We count IO during merge towards the shuffle
       // write time, which appears to be consistent with the "not bypassing merge-sort" branch in
       // ExternalSorter.
-      if (fastMergeEnabled && fastMergeIsSupported) {
+      if (canMergeByConcatenation()) {
         // Compression is disabled or we are using an IO compression codec that supports
         // decompression of concatenated compressed streams, so we can perform a fast spill merge
         // that doesn't need to interpret the spilled bytes.
@@ -508,6 +552,116 @@ public class UnsafeShuffleWriter<K, V> extends ShuffleWriter<K, V> {
     }
   }
 
+  /**
+   * Merges spill files by copying every spill's partitions straight into their final offsets in
+   * a preallocated output file, with positional NIO transfers. The spills are copied concurrently
+   * by the parallel merge pool, and the output file is then handed over to the given writer as a
+   * whole. This is only safe when the spills can be merged by concatenation and encryption is
+   * disabled.
+   *
+   * @param spills the spills to merge.
+   * @param mapWriter the writer which commits the merged file.
+   * @return the partition lengths in the merged file.
+   */
+  private long[] mergeSpillsWithPositionalWrites(
+      SpillInfo[] spills,
+      SingleSpillShuffleMapOutputWriter mapWriter) throws IOException {
+    logger.debug("Merge shuffle spills with positional writes for mapId {}", mapId);
+    final int numPartitions = partitioner.numPartitions();
+    final long[] partitionLengths = new long[numPartitions];
+    for (SpillInfo spill : spills) {
+      for (int partition = 0; partition < numPartitions; partition++) {
+        partitionLengths[partition] += spill.partitionLengths[partition];
+      }
+    }
+    // The offset in the output file that the next spill copies each partition to.
+    final long[] outputPositions = new long[numPartitions];
+    long totalLength = 0;
+    for (int partition = 0; partition < numPartitions; partition++) {
+      outputPositions[partition] = totalLength;
+      totalLength += partitionLengths[partition];
+    }
+    final long[][] spillOutputPositions = new long[spills.length][];
+    for (int i = 0; i < spills.length; i++) {
+      spillOutputPositions[i] = outputPositions.clone();
+      for (int partition = 0; partition < numPartitions; partition++) {
+        outputPositions[partition] += spills[i].partitionLengths[partition];
+      }
+    }
+
+    final long writeStartTime = System.nanoTime();
+    // The merged file is created next to the first spill, which is on one of the local disks.
+    final File outputFile = Utils.tempFileWith(spills[0].file);
+    final ExecutorService executor = getParallelMergePool(parallelMergeThreads);
+    final AtomicBoolean aborted = new AtomicBoolean(false);
+    Throwable error = null;
+    try {
+      try (RandomAccessFile output = new RandomAccessFile(outputFile, "rw")) {
+        output.setLength(totalLength);
+        final FileChannel outputChannel = output.getChannel();
+        final List<Future<?>> futures = new ArrayList<>(spills.length);
+        for (int i = 0; i < spills.length; i++) {
+          final SpillInfo spill = spills[i];
+          final long[] positions = spillOutputPositions[i];
+          futures.add(executor.submit(() -> {
+            copySpillToPositions(spill, outputChannel, positions, aborted);
+            return null;
+          }));
+        }
+        // Wait for every copy, including after a failure, so that the output file is no longer
+        // written to when it is deleted.
+        for (Future<?> future : futures) {
+          try {
+            Uninterruptibles.getUninterruptibly(future);
+          } catch (ExecutionException e) {
+            aborted.set(true);
+            if (error == null) {
+              error = e.getCause();
+            }
+          }
+        }
+      }
+      if (error instanceof IOException ioe) {
+        throw ioe;
+      } else if (error instanceof RuntimeException re) {
+        throw re;
+      } else if (error instanceof Error err) {
+        throw err;
+      } else if (error != null) {
+        throw new IOException("Failed to merge shuffle spills", error);
+      }
+      taskContext.killTaskIfInterrupted();
+      writeMetrics.incWriteTime(System.nanoTime() - writeStartTime);
+      // None of the spill files' lengths were counted towards the shuffle write count.
+      writeMetrics.incBytesWritten(totalLength);
+      mapWriter.transferMapSpillFile(outputFile, partitionLengths, sorter.getChecksums());
+    } finally {
+      if (outputFile.exists() && !outputFile.delete()) {
+        logger.error("Error while deleting merged spill file {}",
+          MDC.of(LogKeys.PATH, outputFile.getPath()));
+      }
+    }
+    return partitionLengths;
+  }
+
+  private static void copySpillToPositions(
+      SpillInfo spill,
+      FileChannel output,
+      long[] outputPositions,
+      AtomicBoolean aborted) throws IOException {
+    try (FileChannel input = FileChannel.open(spill.file.toPath(), StandardOpenOption.READ)) {
+      long inputPosition = 0;
+      for (int partition = 0; partition < outputPositions.length && !aborted.get(); partition++) {
+        final long length = spill.partitionLengths[partition];
+        if (length > 0) {
+          Utils.copyFileRangeNIO(
+            input, inputPosition, output, outputPositions[partition], length);
+          inputPosition += length;
+        }
+      }
+    }
+  }
+
   @Override
   public Option<MapStatus> stop(boolean success) {
     try {
@@ -17,34 +17,17 @@
 
 package org.apache.spark.unsafe.map;
 
-import javax.annotation.Nullable;
-import java.io.File;
-import java.io.IOException;
 import java.util.Iterator;
-import java.util.LinkedList;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.io.Closeables;
 
 import org.apache.spark.SparkEnv;
-import org.apache.spark.executor.ShuffleWriteMetrics;
-import org.apache.spark.internal.LogKeys;
-import org.apache.spark.internal.SparkLogger;
-import org.apache.spark.internal.SparkLoggerFactory;
-import org.apache.spark.internal.MDC;
-import org.apache.spark.memory.MemoryConsumer;
-import org.apache.spark.memory.SparkOutOfMemoryError;
 import org.apache.spark.memory.TaskMemoryManager;
 import org.apache.spark.serializer.SerializerManager;
 import org.apache.spark.storage.BlockManager;
-import org.apache.spark.unsafe.Platform;
-import org.apache.spark.unsafe.UnsafeAlignedOffset;
 import org.apache.spark.unsafe.array.ByteArrayMethods;
 import org.apache.spark.unsafe.array.LongArray;
 import org.apache.spark.unsafe.hash.Murmur3_x86_32;
-import org.apache.spark.unsafe.memory.MemoryBlock;
-import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillReader;
-import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillWriter;
 
 /**
  * An append-only hash map where keys and values are contiguous regions of bytes.
@@ -66,50 +49,19 @@ import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillWriter;
  * is compatible with {@link org.apache.spark.util.collection.unsafe.sort.UnsafeExternalSorter},
  * so we can pass records from this map directly into the sorter to sort records in place.
  */
-public final class BytesToBytesMap extends MemoryConsumer {
-
-  private static final SparkLogger logger = SparkLoggerFactory.getLogger(BytesToBytesMap.class);
-
-  private static final HashMapGrowthStrategy growthStrategy = HashMapGrowthStrategy.DOUBLING;
-
-  private final TaskMemoryManager taskMemoryManager;
-
-  /**
-   * A linked list for tracking all allocated data pages so that we can free all of our memory.
-   */
-  private final LinkedList<MemoryBlock> dataPages = new LinkedList<>();
-
-  /**
-   * The data page that will be used to store keys and values for new hashtable entries. When this
-   * page becomes full, a new page will be allocated and this pointer will change to point to that
-   * new page.
-   */
-  private MemoryBlock currentPage = null;
+public final class BytesToBytesMap extends AbstractBytesMap {
 
   /**
-   * Offset into `currentPage` that points to the location where new data can be inserted into
-   * the page. This does not incorporate the page's base offset.
+   * The maximum number of keys that BytesToBytesMap supports, see
+   * {@link AbstractBytesMap#MAX_CAPACITY}.
    */
-  private long pageCursor = 0;
-
-  /**
-   * The maximum number of keys that BytesToBytesMap supports. The hash table has to be
-   * power-of-2-sized and its backing Java array can contain at most (1 &lt;&lt; 30) elements,
-   * since that's the largest power-of-2 that's less than Integer.MAX_VALUE. We need two long array
-   * entries per key, giving us a maximum capacity of (1 &lt;&lt; 29).
-   */
-  public static final int MAX_CAPACITY = (1 << 29);
+  public static final int MAX_CAPACITY = AbstractBytesMap.MAX_CAPACITY;
 
   // This choice of page table size and page size means that we can address up to 500 gigabytes
   // of memory.
 
-  /**
-   * A single array to store the key and value.
-   *
-   * Position {@code 2 * i} in the array is used to track a pointer to the key at index {@code i},
-   * while position {@code 2 * i + 1} in the array holds key's full 32-bit hashcode.
-   */
-  @Nullable private LongArray longArray;
+  // In the hash table, position 2 * i is used to track a pointer to the key at index i, while
+  // position 2 * i + 1 holds key's full 32-bit hashcode.
   // TODO: we're wasting 32 bits of space here; we can probably store fewer bits of the hashcode
   // and exploit word-alignment to use fewer bits to hold the address.  This might let us store
   // only one long per map entry, increasing the chance that this array will fit in cache at the
@@ -121,85 +73,43 @@ public final class BytesToBytesMap extends MemoryConsumer {
   // absolute memory addresses.
 
   /**
-   * Whether or not the longArray can grow. We will not insert more elements if it's false.
-   */
-  private boolean canGrowArray = true;
-
-  private final double loadFactor;
-
-  /**
-   * The size of the data pages that hold key and value data. Map entries cannot span multiple
-   * pages, so this limits the maximum entry size.
-   */
-  private final long pageSizeBytes;
-
-  /**
-   * Number of keys defined in the map.
-   */
-  private int numKeys;
-
-  /**
-   * Number of values defined in the map. A key could have multiple values.
+   * Return value of {@link BytesToBytesMap#lookup(Object, long, int)}.
    */
-  private int numValues;
+  private final Location loc;
 
   /**
-   * The map will be expanded once the number of keys exceeds this threshold.
+   * Scratch space of {@link #lookupBatch(Object[], long[], int[], int[], int, Location[])}, holding
+   * the slot contents read in its first stage.
    */
-  private int growthThreshold;
+  private long[] batchSlotWords;
 
-  /**
-   * Mask for truncating hashcodes so that they do not exceed the long array's size.
-   * This is a strength reduction optimization; we're essentially performing a modulus operation,
-   * but doing so with a bitmask because this is a power-of-2-sized hash map.
-   */
-  private int mask;
+  public BytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes) {
+    this(taskMemoryManager, blockManager, serializerManager, initialCapacity, loadFactor,
+      pageSizeBytes, pageSizeBytes);
+  }
 
   /**
-   * Return value of {@link BytesToBytesMap#lookup(Object, long, int)}.
+   * Creates a map whose first data page is `initialPageSizeBytes` large. Every following page
+   * doubles in size, up to `pageSizeBytes`, so that a map which only receives a small share of the
+   * data does not hold on to a full page.
    */
-  private final Location loc;
-
-  private long numProbes = 0L;
-
-  private long numKeyLookups = 0L;
-
-  private long peakMemoryUsedBytes = 0L;
-
-  private final int initialCapacity;
-
-  private final BlockManager blockManager;
-  private final SerializerManager serializerManager;
-  private volatile MapIterator destructiveIterator = null;
-  private LinkedList<UnsafeSorterSpillWriter> spillWriters = new LinkedList<>();
-
   public BytesToBytesMap(
       TaskMemoryManager taskMemoryManager,
       BlockManager blockManager,
       SerializerManager serializerManager,
       int initialCapacity,
       double loadFactor,
-      long pageSizeBytes) {
-    super(taskMemoryManager, pageSizeBytes, taskMemoryManager.getTungstenMemoryMode());
-    this.taskMemoryManager = taskMemoryManager;
-    this.blockManager = blockManager;
-    this.serializerManager = serializerManager;
-    this.loadFactor = loadFactor;
+      long pageSizeBytes,
+      long initialPageSizeBytes) {
+    super(taskMemoryManager, blockManager, serializerManager, initialCapacity, 0, loadFactor,
+      pageSizeBytes, initialPageSizeBytes);
     this.loc = new Location();
-    this.pageSizeBytes = pageSizeBytes;
-    if (initialCapacity <= 0) {
-      throw new IllegalArgumentException("Initial capacity must be greater than 0");
-    }
-    if (initialCapacity > MAX_CAPACITY) {
-      throw new IllegalArgumentException(
-        "Initial capacity " + initialCapacity + " exceeds maximum capacity of " + MAX_CAPACITY);
-    }
-    if (pageSizeBytes > TaskMemoryManager.MAXIMUM_PAGE_SIZE_BYTES) {
-      throw new IllegalArgumentException("Page size " + pageSizeBytes + " cannot exceed " +
-        TaskMemoryManager.MAXIMUM_PAGE_SIZE_BYTES);
-    }
-    this.initialCapacity = initialCapacity;
-    allocate(initialCapacity);
   }
 
   public BytesToBytesMap(
@@ -216,188 +126,19 @@ public final class BytesToBytesMap extends MemoryConsumer {
       pageSizeBytes);
   }
 
-  /**
-   * Returns the number of keys defined in the map.
-   */
-  public int numKeys() { return numKeys; }
-
-  /**
-   * Returns the number of values defined in the map. A key could have multiple values.
-   */
-  public int numValues() { return numValues; }
-
-  public final class MapIterator implements Iterator<Location> {
-
-    private int numRecords;
-    private final Location loc;
-
-    private MemoryBlock currentPage = null;
-    private int recordsInPage = 0;
-    private Object pageBaseObject;
-    private long offsetInPage;
+  @Override
+  int pointerIndex(int pos) {
+    return pos * 2;
+  }
 
-    // If this iterator destructive or not. When it is true, it frees each page as it moves onto
-    // next one.
-    private boolean destructive = false;
-    private UnsafeSorterSpillReader reader = null;
+  @Override
+  int keyWordIndex(int pos) {
+    return pos * 2 + 1;
+  }
 
+  public final class MapIterator extends AbstractMapIterator<Location> {
     private MapIterator(int numRecords, Location loc, boolean destructive) {
-      this.numRecords = numRecords;
-      this.loc = loc;
-      this.destructive = destructive;
-      if (destructive) {
-        destructiveIterator = this;
-        // longArray will not be used anymore if destructive is true, release it now.
-        if (longArray != null) {
-          freeArray(longArray);
-          longArray = null;
-        }
-      }
-    }
-
-    private void advanceToNextPage() {
-      // SPARK-26265: We will first lock this `MapIterator` and then `TaskMemoryManager` when going
-      // to free a memory page by calling `freePage`. At the same time, it is possibly that another
-      // memory consumer first locks `TaskMemoryManager` and then this `MapIterator` when it
-      // acquires memory and causes spilling on this `MapIterator`. To avoid deadlock here, we keep
-      // reference to the page to free and free it after releasing the lock of `MapIterator`.
-      MemoryBlock pageToFree = null;
-
-      try {
-        synchronized (this) {
-          int nextIdx = dataPages.indexOf(currentPage) + 1;
-          if (destructive && currentPage != null) {
-            dataPages.remove(currentPage);
-            pageToFree = currentPage;
-            nextIdx--;
-          }
-          if (dataPages.size() > nextIdx) {
-            currentPage = dataPages.get(nextIdx);
-            pageBaseObject = currentPage.getBaseObject();
-            offsetInPage = currentPage.getBaseOffset();
-            recordsInPage = UnsafeAlignedOffset.getSize(pageBaseObject, offsetInPage);
-            offsetInPage += UnsafeAlignedOffset.getUaoSize();
-          } else {
-            currentPage = null;
-            if (reader != null) {
-              handleFailedDelete();
-            }
-            try {
-              Closeables.close(reader, /* swallowIOException = */ false);
-              reader = spillWriters.getFirst().getReader(serializerManager);
-              recordsInPage = -1;
-            } catch (IOException e) {
-              // Scala iterator does not handle exception
-              Platform.throwException(e);
-            }
-          }
-        }
-      } finally {
-        if (pageToFree != null) {
-          freePage(pageToFree);
-        }
-      }
-    }
-
-    @Override
-    public boolean hasNext() {
-      if (numRecords == 0) {
-        if (reader != null) {
-          handleFailedDelete();
-        }
-      }
-      return numRecords > 0;
-    }
-
-    @Override
-    public Location next() {
-      if (recordsInPage == 0) {
-        advanceToNextPage();
-      }
-      numRecords--;
-      if (currentPage != null) {
-        int totalLength = UnsafeAlignedOffset.getSize(pageBaseObject, offsetInPage);
-        loc.with(currentPage, offsetInPage);
-        // [total size] [key size] [key] [value] [pointer to next]
-        offsetInPage += UnsafeAlignedOffset.getUaoSize() + totalLength + 8;
-        recordsInPage --;
-        return loc;
-      } else {
-        assert(reader != null);
-        if (!reader.hasNext()) {
-          advanceToNextPage();
-        }
-        try {
-          reader.loadNext();
-        } catch (IOException e) {
-          try {
-            reader.close();
-          } catch(IOException e2) {
-            logger.error("Error while closing spill reader", e2);
-          }
-          // Scala iterator does not handle exception
-          Platform.throwException(e);
-        }
-        loc.with(reader.getBaseObject(), reader.getBaseOffset(), reader.getRecordLength());
-        return loc;
-      }
-    }
-
-    public synchronized long spill(long numBytes) throws IOException {
-      if (!destructive || dataPages.size() == 1) {
-        return 0L;
-      }
-
-      updatePeakMemoryUsed();
-
-      // TODO: use existing ShuffleWriteMetrics
-      ShuffleWriteMetrics writeMetrics = new ShuffleWriteMetrics();
-
-      long released = 0L;
-      while (dataPages.size() > 0) {
-        MemoryBlock block = dataPages.getLast();
-        // The currentPage is used, cannot be released
-        if (block == currentPage) {
-          break;
-        }
-
-        Object base = block.getBaseObject();
-        long offset = block.getBaseOffset();
-        int numRecords = UnsafeAlignedOffset.getSize(base, offset);
-        int uaoSize = UnsafeAlignedOffset.getUaoSize();
-        offset += uaoSize;
-        final UnsafeSorterSpillWriter writer =
-                new UnsafeSorterSpillWriter(blockManager, 32 * 1024, writeMetrics, numRecords);
-        while (numRecords > 0) {
-          int length = UnsafeAlignedOffset.getSize(base, offset);
-          writer.write(base, offset + uaoSize, length, 0);
-          offset += uaoSize + length + 8;
-          numRecords--;
-        }
-        writer.close();
-        spillWriters.add(writer);
-
-        dataPages.removeLast();
-        released += block.size();
-        freePage(block);
-
-        if (released >= numBytes) {
-          break;
-        }
-      }
-
-      return released;
-    }
-
-    private void handleFailedDelete() {
-      if (spillWriters.size() > 0) {
-        // remove the spill file from disk
-        File file = spillWriters.removeFirst().getFile();
-        if (file != null && file.exists() && !file.delete()) {
-          logger.error("Was unable to delete spill file {}",
-            MDC.of(LogKeys.PATH, file.getAbsolutePath()));
-        }
-      }
+      super(numRecords, loc, destructive);
     }
   }
 
@@ -409,8 +150,9 @@ public final class BytesToBytesMap extends MemoryConsumer {
    * The returned iterator is thread-safe. However if the map is modified while iterating over it,
    * the behavior of the returned iterator is undefined.
    */
+  @Override
   public MapIterator iterator() {
-    return new MapIterator(numValues, new Location(), false);
+    return new MapIterator(numValues(), new Location(), false);
   }
 
   /**
@@ -423,9 +165,10 @@ public final class BytesToBytesMap extends MemoryConsumer {
    * The returned iterator is thread-safe. However if the map is modified while iterating over it,
    * the behavior of the returned iterator is undefined.
    */
+  @Override
   public MapIterator destructiveIterator() {
     updatePeakMemoryUsed();
-    return new MapIterator(numValues, new Location(), true);
+    return new MapIterator(numValues(), new Location(), true);
   }
 
   /**
@@ -445,7 +188,7 @@ public final class BytesToBytesMap extends MemoryConsumer {
     private final Location loc;
 
     private MapIteratorWithKeyIndex() {
-      this.numRecords = numValues;
+      this.numRecords = numValues();
       this.loc = new Location();
     }
 
@@ -558,427 +301,120 @@ public final class BytesToBytesMap extends MemoryConsumer {
   }
 
   /**
-   * Handle returned by {@link BytesToBytesMap#lookup(Object, long, int)} function.
-   */
-  public final class Location {
-    /** An index into the hash map's Long array */
-    private int pos;
-    /** True if this location points to a position where a key is defined, false otherwise */
-    private boolean isDefined;
-    /**
-     * The hashcode of the most recent key passed to
-     * {@link BytesToBytesMap#lookup(Object, long, int, int)}. Caching this hashcode here allows us
-     * to avoid re-hashing the key when storing a value for that key.
-     */
-    private int keyHashcode;
-    private Object baseObject;  // the base object for key and value
-    private long keyOffset;
-    private int keyLength;
-    private long valueOffset;
-    private int valueLength;
-
-    /**
-     * Memory page containing the record. Only set if created by {@link BytesToBytesMap#iterator()}.
-     */
-    @Nullable private MemoryBlock memoryPage;
-
-    private void updateAddressesAndSizes(long fullKeyAddress) {
-      updateAddressesAndSizes(
-        taskMemoryManager.getPage(fullKeyAddress),
-        taskMemoryManager.getOffsetInPage(fullKeyAddress));
-    }
-
-    private void updateAddressesAndSizes(final Object base, long offset) {
-      baseObject = base;
-      final int totalLength = UnsafeAlignedOffset.getSize(base, offset);
-      int uaoSize = UnsafeAlignedOffset.getUaoSize();
-      offset += uaoSize;
-      keyLength = UnsafeAlignedOffset.getSize(base, offset);
-      offset += uaoSize;
-      keyOffset = offset;
-      valueOffset = offset + keyLength;
-      valueLength = totalLength - keyLength - uaoSize;
-    }
-
-    private Location with(int pos, int keyHashcode, boolean isDefined) {
-      assert(longArray != null);
-      this.pos = pos;
-      this.isDefined = isDefined;
-      this.keyHashcode = keyHashcode;
-      if (isDefined) {
-        final long fullKeyAddress = longArray.get(pos * 2);
-        updateAddressesAndSizes(fullKeyAddress);
-      }
-      return this;
-    }
-
-    private Location with(MemoryBlock page, long offsetInPage) {
-      this.isDefined = true;
-      this.memoryPage = page;
-      updateAddressesAndSizes(page.getBaseObject(), offsetInPage);
-      return this;
-    }
+   * Looks up a batch of keys, and saves the result for key `i` in `locs[i]`. The locations must
+   * have been created by this map (see {@link #newLocation()}) and must be distinct.
+   *
+   * This is equivalent to calling {@link #safeLookup(Object, long, int, Location, int)} for every
+   * key, but processes the batch in stages so that the memory accesses of different keys are
+   * independent and the CPU can overlap their cache misses: first the slots of all the keys are
+   * read from the hash table, then the record headers of the candidate matches are read from the
+   * data pages, and only then are the keys compared. Keys which do not resolve at their first slot
+   * fall back to the regular probing loop.
+   *
+   * The returned locations are only valid until the map is modified. In particular, if a new key
+   * is appended through one of them, the other locations of the batch must be looked up again
+   * before they are used to append, since the append may have taken their slot or grown the map.
+   */
+  public void lookupBatch(
+      Object[] keyBases,
+      long[] keyOffsets,
+      int[] keyLengths,
+      int[] hashes,
+      int numKeys,
+      Location[] locs) {
+    assert(longArray != null);
+    assert(locs.length >= numKeys);
 
-    /**
-     * This is only used for spilling
-     */
-    private Location with(Object base, long offset, int length) {
-      this.isDefined = true;
-      this.memoryPage = null;
-      baseObject = base;
-      int uaoSize = UnsafeAlignedOffset.getUaoSize();
-      keyOffset = offset + uaoSize;
-      keyLength = UnsafeAlignedOffset.getSize(base, offset);
-      valueOffset = offset + uaoSize + keyLength;
-      valueLength = length - uaoSize - keyLength;
-      return this;
+    // Stage 1: read the slot of every key. All reads hit the hash table only.
+    if (batchSlotWords == null || batchSlotWords.length < numKeys) {
+      batchSlotWords = new long[numKeys];
     }
-
-    /**
-     * Find the next pair that has the same key as current one.
-     */
-    public boolean nextValue() {
-      assert isDefined;
-      long nextAddr = Platform.getLong(baseObject, valueOffset + valueLength);
-      if (nextAddr == 0) {
-        return false;
+    final long[] slotWords = batchSlotWords;
+    for (int i = 0; i < numKeys; i++) {
+      final int pos = hashes[i] & mask;
+      if (longArray.get(pos * 2) == 0) {
+        slotWords[i] = 0;
       } else {
-        updateAddressesAndSizes(nextAddr);
-        return true;
+        // Only the hash code is needed to decide whether the record is a candidate match.
+        slotWords[i] = longArray.get(pos * 2 + 1) | (1L << 32);
       }
     }
 
-    /**
-     * Returns the memory page that contains the current record.
-     * This is only valid if this is returned by {@link BytesToBytesMap#iterator()}.
-     */
-    public MemoryBlock getMemoryPage() {
-      return this.memoryPage;
-    }
-
-    /**
-     * Returns true if the key is defined at this position, and false otherwise.
-     */
-    public boolean isDefined() {
-      return isDefined;
-    }
-
-    /**
-     * Returns index for key.
-     */
-    public int getKeyIndex() {
-      assert (isDefined);
-      return pos;
-    }
-
-    /**
-     * Returns the base object for key.
-     */
-    public Object getKeyBase() {
-      assert (isDefined);
-      return baseObject;
-    }
-
-    /**
-     * Returns the offset for key.
-     */
-    public long getKeyOffset() {
-      assert (isDefined);
-      return keyOffset;
-    }
-
-    /**
-     * Returns the base object for value.
-     */
-    public Object getValueBase() {
-      assert (isDefined);
-      return baseObject;
-    }
-
-    /**
-     * Returns the offset for value.
-     */
-    public long getValueOffset() {
-      assert (isDefined);
-      return valueOffset;
-    }
-
-    /**
-     * Returns the length of the key defined at this position.
-     * Unspecified behavior if the key is not defined.
-     */
-    public int getKeyLength() {
-      assert (isDefined);
-      return keyLength;
-    }
-
-    /**
-     * Returns the length of the value defined at this position.
-     * Unspecified behavior if the key is not defined.
-     */
-    public int getValueLength() {
-      assert (isDefined);
-      return valueLength;
-    }
-
-    /**
-     * Append a new value for the key. This method could be called multiple times for a given key.
-     * The return value indicates whether the put succeeded or whether it failed because additional
-     * memory could not be acquired.
-     * <p>
-     * It is only valid to call this method immediately after calling `lookup()` using the same key.
-     * </p>
-     * <p>
-     * The key and value must be word-aligned (that is, their sizes must be a multiple of 8).
-     * </p>
-     * <p>
-     * After calling this method, calls to `get[Key|Value]Address()` and `get[Key|Value]Length`
-     * will return information on the data stored by this `append` call.
-     * </p>
-     * <p>
-     * As an example usage, here's the proper way to store a new key:
-     * </p>
-     * <pre>
-     *   Location loc = map.lookup(keyBase, keyOffset, keyLength);
-     *   if (!loc.isDefined()) {
-     *     if (!loc.append(keyBase, keyOffset, keyLength, ...)) {
-     *       // handle failure to grow map (by spilling, for example)
-     *     }
-     *   }
-     * </pre>
-     * <p>
-     * Unspecified behavior if the key is not defined.
-     * </p>
-     *
-     * @return true if the put() was successful and false if the put() failed because memory could
-     *         not be acquired.
-     */
-    public boolean append(Object kbase, long koff, int klen, Object vbase, long voff, int vlen) {
-      assert (klen % 8 == 0);
-      assert (vlen % 8 == 0);
-      assert (longArray != null);
-
-      // We should not increase number of keys to be MAX_CAPACITY. The usage pattern of this map is
-      // lookup + append. If we append key until the number of keys to be MAX_CAPACITY, next time
-      // the call of lookup will hang forever because it cannot find an empty slot.
-      if (numKeys == MAX_CAPACITY - 1
-        // The map could be reused from last spill (because of no enough memory to grow),
-        // then we don't try to grow again if hit the `growthThreshold`.
-        || !canGrowArray && numKeys >= growthThreshold) {
-        return false;
+    // Stage 2: for every candidate match, read the record header from the data page.
+    for (int i = 0; i < numKeys; i++) {
+      final int pos = hashes[i] & mask;
+      final long word = slotWords[i];
+      if (word == 0) {
+        locs[i].with(pos, hashes[i], false);
+      } else if ((int) word == hashes[i]) {
+        locs[i].with(pos, hashes[i], true);
       }
+    }
 
-      // Here, we'll copy the data into our data pages. Because we only store a relative offset from
-      // the key address instead of storing the absolute address of the value, the key and value
-      // must be stored in the same memory page.
-      // (total length) (key length) (key) (value) (8 byte pointer to next value)
-      int uaoSize = UnsafeAlignedOffset.getUaoSize();
-      final long recordLength = (2L * uaoSize) + klen + vlen + 8;
-      if (currentPage == null || currentPage.size() - pageCursor < recordLength) {
-        if (!acquireNewPage(recordLength + uaoSize)) {
-          return false;
-        }
+    // Stage 3: compare the keys, and fall back to the probing loop for the others.
+    for (int i = 0; i < numKeys; i++) {
+      final long word = slotWords[i];
+      if (word == 0) {
+        numKeyLookups++;
+        numProbes++;
+        continue;
       }
-
-      // --- Append the key and value data to the current data page --------------------------------
-      final Object base = currentPage.getBaseObject();
-      long offset = currentPage.getBaseOffset() + pageCursor;
-      final long recordOffset = offset;
-      UnsafeAlignedOffset.putSize(base, offset, klen + vlen + uaoSize);
-      UnsafeAlignedOffset.putSize(base, offset + uaoSize, klen);
-      offset += (2L * uaoSize);
-      Platform.copyMemory(kbase, koff, base, offset, klen);
-      offset += klen;
-      Platform.copyMemory(vbase, voff, base, offset, vlen);
-      offset += vlen;
-      // put this value at the beginning of the list
-      Platform.putLong(base, offset, isDefined ? longArray.get(pos * 2) : 0);
-
-      // --- Update bookkeeping data structures ----------------------------------------------------
-      offset = currentPage.getBaseOffset();
-      UnsafeAlignedOffset.putSize(base, offset, UnsafeAlignedOffset.getSize(base, offset) + 1);
-      pageCursor += recordLength;
-      final long storedKeyAddress = taskMemoryManager.encodePageNumberAndOffset(
-        currentPage, recordOffset);
-      longArray.set(pos * 2, storedKeyAddress);
-      updateAddressesAndSizes(storedKeyAddress);
-      numValues++;
-      if (!isDefined) {
-        numKeys++;
-        longArray.set(pos * 2 + 1, keyHashcode);
-        isDefined = true;
-
-        // If the map has reached its growth threshold, try to grow it.
-        if (numKeys >= growthThreshold) {
-          // We use two array entries per key, so the array size is twice the capacity.
-          // We should compare the current capacity of the array, instead of its size.
-          if (longArray.size() / 2 < MAX_CAPACITY) {
-            try {
-              growAndRehash();
-            } catch (SparkOutOfMemoryError oom) {
-              canGrowArray = false;
-            }
-          } else {
-            // The map is already at MAX_CAPACITY and cannot grow. Instead, we prevent it from
-            // accepting any more new elements to make sure we don't exceed the load factor. If we
-            // need to spill later, this allows UnsafeKVExternalSorter to reuse the array for
-            // sorting.
-            canGrowArray = false;
-          }
-        }
+      final Location loc = locs[i];
+      if ((int) word == hashes[i] && loc.getKeyLength() == keyLengths[i] &&
+          ByteArrayMethods.arrayEquals(keyBases[i], keyOffsets[i],
+            loc.getKeyBase(), loc.getKeyOffset(), keyLengths[i])) {
+        numKeyLookups++;
+        numProbes++;
+        continue;
       }
-      return true;
+      safeLookup(keyBases[i], keyOffsets[i], keyLengths[i], loc, hashes[i]);
     }
   }
 
   /**
-   * Acquire a new page from the memory manager.
-   * @return whether there is enough space to allocate the new page.
+   * Creates a new {@link Location} for this map, to be used with
+   * {@link #safeLookup(Object, long, int, Location, int)} or
+   * {@link #lookupBatch(Object[], long[], int[], int[], int, Location[])}.
    */
-  private boolean acquireNewPage(long required) {
-    try {
-      currentPage = allocatePage(required);
-    } catch (SparkOutOfMemoryError e) {
-      return false;
-    }
-    dataPages.add(currentPage);
-    UnsafeAlignedOffset.putSize(currentPage.getBaseObject(), currentPage.getBaseOffset(), 0);
-    pageCursor = UnsafeAlignedOffset.getUaoSize();
-    return true;
-  }
-
-  @Override
-  public long spill(long size, MemoryConsumer trigger) throws IOException {
-    if (trigger != this && destructiveIterator != null) {
-      return destructiveIterator.spill(size);
-    }
-    return 0L;
+  public Location newLocation() {
+    return new Location();
   }
 
   /**
-   * Allocate new data structures for this map. When calling this outside of the constructor,
-   * make sure to keep references to the old data structures so that you can free them.
-   *
-   * @param capacity the new map capacity
-   */
-  private void allocate(int capacity) {
-    assert (capacity >= 0);
-    capacity = Math.max((int) Math.min(MAX_CAPACITY, ByteArrayMethods.nextPowerOf2(capacity)), 64);
-    assert (capacity <= MAX_CAPACITY);
-    longArray = allocateArray(capacity * 2L);
-    longArray.zeroOut();
-
-    this.growthThreshold = (int) (capacity * loadFactor);
-    this.mask = capacity - 1;
-  }
-
-  /**
-   * Free all allocated memory associated with this map, including the storage for keys and values
-   * as well as the hash map array itself.
-   *
-   * This method is idempotent and can be called multiple times.
+   * Handle returned by {@link BytesToBytesMap#lookup(Object, long, int)} function.
    */
-  public void free() {
-    updatePeakMemoryUsed();
-    if (longArray != null) {
-      freeArray(longArray);
-      longArray = null;
-    }
-    Iterator<MemoryBlock> dataPagesIterator = dataPages.iterator();
-    while (dataPagesIterator.hasNext()) {
-      MemoryBlock dataPage = dataPagesIterator.next();
-      dataPagesIterator.remove();
-      freePage(dataPage);
-    }
-    assert(dataPages.isEmpty());
-
-    while (!spillWriters.isEmpty()) {
-      File file = spillWriters.removeFirst().getFile();
-      if (file != null && file.exists()) {
-        if (!file.delete()) {
-          logger.error("Was unable to delete spill file {}",
-            MDC.of(LogKeys.PATH, file.getAbsolutePath()));
-        }
-      }
-    }
-  }
-
-  public TaskMemoryManager getTaskMemoryManager() {
-    return taskMemoryManager;
-  }
-
-  public long getPageSizeBytes() {
-    return pageSizeBytes;
-  }
+  public final class Location extends AbstractLocation {
+    /**
+     * The hashcode of the most recent key passed to
+     * {@link BytesToBytesMap#lookup(Object, long, int, int)}. Caching this hashcode here allows us
+     * to avoid re-hashing the key when storing a value for that key.
+     */
+    private int keyHashcode;
 
-  /**
-   * Returns the total amount of memory, in bytes, consumed by this map's managed structures.
-   */
-  public long getTotalMemoryConsumption() {
-    long totalDataPagesSize = 0L;
-    for (MemoryBlock dataPage : dataPages) {
-      totalDataPagesSize += dataPage.size();
+    private Location with(int pos, int keyHashcode, boolean isDefined) {
+      this.keyHashcode = keyHashcode;
+      withSlot(pos, isDefined);
+      return this;
     }
-    return totalDataPagesSize + ((longArray != null) ? longArray.memoryBlock().size() : 0L);
-  }
 
-  private void updatePeakMemoryUsed() {
-    long mem = getTotalMemoryConsumption();
-    if (mem > peakMemoryUsedBytes) {
-      peakMemoryUsedBytes = mem;
+    @Override
+    long keyWord() {
+      return keyHashcode;
     }
-  }
 
-  /**
-   * Return the peak memory used so far, in bytes.
-   */
-  public long getPeakMemoryUsedBytes() {
-    updatePeakMemoryUsed();
-    return peakMemoryUsedBytes;
-  }
-
-  /**
-   * Returns the average number of probes per key lookup.
-   */
-  public double getAvgHashProbesPerKey() {
-    return (1.0 * numProbes) / numKeyLookups;
-  }
-
-  @VisibleForTesting
-  public int getNumDataPages() {
-    return dataPages.size();
-  }
-
-  /**
-   * Returns the underline long[] of longArray.
-   */
-  public LongArray getArray() {
-    assert(longArray != null);
-    return longArray;
-  }
-
-  /**
-   * Reset this map to initialized state.
-   */
-  public void reset() {
-    updatePeakMemoryUsed();
-    numKeys = 0;
-    numValues = 0;
-    freeArray(longArray);
-    longArray = null;
-    while (dataPages.size() > 0) {
-      MemoryBlock dataPage = dataPages.removeLast();
-      freePage(dataPage);
+    /**
+     * Returns index for key.
+     */
+    public int getKeyIndex() {
+      assert (isDefined);
+      return pos;
     }
-    allocate(initialCapacity);
-    canGrowArray = true;
-    currentPage = null;
-    pageCursor = 0;
   }
 
   /**
    * Grows the size of the hash table and re-hash everything.
    */
+  @Override
   @VisibleForTesting
   void growAndRehash() {
     assert(longArray != null);
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.map;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.spark.SparkEnv;
+import org.apache.spark.memory.TaskMemoryManager;
+import org.apache.spark.serializer.SerializerManager;
+import org.apache.spark.storage.BlockManager;
+import org.apache.spark.unsafe.array.LongArray;
+import org.apache.spark.unsafe.hash.Murmur3_x86_32;
+
+/**
+ * An append-only hash map from 64-bit integral keys to contiguous regions of bytes. This is a
+ * specialization of {@link BytesToBytesMap} for the common case of a single integral key column.
+ *
+ * The key is inlined in the hash table, so probing compares a long in the slot array instead of
+ * following the record pointer into a data page and comparing bytes. The table is power-of-2-sized
+ * and uses linear probing, which keeps collision chains within neighbouring cache lines. One extra
+ * slot past the end of the table is reserved for the null key.
+ *
+ * The records are stored in data pages in exactly the same format as {@link BytesToBytesMap} (see
+ * {@link AbstractBytesMap}). Here the key data is the caller's serialized representation of the
+ * key (e.g. an UnsafeRow), so that the output of the iterators can be consumed exactly like that
+ * of {@link BytesToBytesMap}.
+ */
+public final class LongToBytesMap extends AbstractBytesMap {
+
+  /**
+   * The maximum number of keys that LongToBytesMap supports, see
+   * {@link AbstractBytesMap#MAX_CAPACITY}. The pair reserved for the null key is not counted.
+   */
+  public static final int MAX_CAPACITY = AbstractBytesMap.MAX_CAPACITY;
+
+  // In the hash table, position 2 * i holds the key stored at index i, while position 2 * i + 1
+  // holds the pointer to its most recently appended record, or 0 if the slot is empty. The pair at
+  // index `capacity` is reserved for the null key.
+
+  /**
+   * Return value of {@link LongToBytesMap#lookup(long)}.
+   */
+  private final Location loc;
+
+  public LongToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes) {
+    // One extra pair for the null key.
+    super(taskMemoryManager, blockManager, serializerManager, initialCapacity, 1, loadFactor,
+      pageSizeBytes, pageSizeBytes);
+    this.loc = new Location();
+  }
+
+  public LongToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      int initialCapacity,
+      long pageSizeBytes) {
+    this(
+      taskMemoryManager,
+      SparkEnv.get() != null ? SparkEnv.get().blockManager() :  null,
+      SparkEnv.get() != null ? SparkEnv.get().serializerManager() :  null,
+      initialCapacity,
+      // Linear probing degrades quickly with high load factors.
+      0.5,
+      pageSizeBytes);
+  }
+
+  @Override
+  int pointerIndex(int pos) {
+    return pos * 2 + 1;
+  }
+
+  @Override
+  int keyWordIndex(int pos) {
+    return pos * 2;
+  }
+
+  public final class MapIterator extends AbstractMapIterator<Location> {
+    private MapIterator(int numRecords, Location loc, boolean destructive) {
+      super(numRecords, loc, destructive);
+    }
+  }
+
+  /**
+   * Returns an iterator for iterating over the entries of this map.
+   *
+   * For efficiency, all calls to `next()` will return the same {@link Location} object.
+   */
+  @Override
+  public MapIterator iterator() {
+    return new MapIterator(numValues(), new Location(), false);
+  }
+
+  /**
+   * Returns a destructive iterator for iterating over the entries of this map. It frees each page
+   * as it moves onto next one. Notice: it is illegal to call any method other than `reset()` or
+   * `free()` on the map after `destructiveIterator()` has been called.
+   *
+   * For efficiency, all calls to `next()` will return the same {@link Location} object.
+   */
+  @Override
+  public MapIterator destructiveIterator() {
+    updatePeakMemoryUsed();
+    return new MapIterator(numValues(), new Location(), true);
+  }
+
+  /**
+   * Looks up a key, and return a {@link Location} handle that can be used to test existence
+   * and read/write values.
+   *
+   * This function always returns the same {@link Location} instance to avoid object allocation.
+   * This function is not thread-safe.
+   */
+  public Location lookup(long key) {
+    safeLookup(key, loc);
+    return loc;
+  }
+
+  /**
+   * Looks up the null key, and return a {@link Location} handle that can be used to test
+   * existence and read/write values.
+   *
+   * This function always returns the same {@link Location} instance to avoid object allocation.
+   * This function is not thread-safe.
+   */
+  public Location lookupNull() {
+    assert(longArray != null);
+    numKeyLookups++;
+    numProbes++;
+    int pos = mask + 1;
+    loc.with(pos, 0L, longArray.get(pos * 2 + 1) != 0);
+    return loc;
+  }
+
+  /**
+   * Looks up a key, and saves the result in provided `loc`.
+   *
+   * This is a thread-safe version of `lookup`, could be used by multiple threads.
+   */
+  public void safeLookup(long key, Location loc) {
+    assert(longArray != null);
+
+    numKeyLookups++;
+
+    int pos = Murmur3_x86_32.hashLong(key, 42) & mask;
+    while (true) {
+      numProbes++;
+      if (longArray.get(pos * 2 + 1) == 0) {
+        // This is a new key.
+        loc.with(pos, key, false);
+        return;
+      } else if (longArray.get(pos * 2) == key) {
+        loc.with(pos, key, true);
+        return;
+      }
+      pos = (pos + 1) & mask;
+    }
+  }
+
+  /**
+   * Handle returned by {@link LongToBytesMap#lookup(long)} function. It is only valid to call
+   * {@link #append(Object, long, int, Object, long, int)} immediately after calling `lookup()` or
+   * `lookupNull()` for the key that the serialized key bytes represent.
+   */
+  public final class Location extends AbstractLocation {
+    /** The key most recently passed to {@link LongToBytesMap#lookup(long)}. */
+    private long key;
+
+    private Location with(int pos, long key, boolean isDefined) {
+      this.key = key;
+      withSlot(pos, isDefined);
+      return this;
+    }
+
+    @Override
+    long keyWord() {
+      return key;
+    }
+  }
+
+  /**
+   * Grows the size of the hash table and re-hash everything.
+   */
+  @Override
+  @VisibleForTesting
+  void growAndRehash() {
+    assert(longArray != null);
+
+    // Store references to the old data structures to be used when we re-hash
+    final LongArray oldLongArray = longArray;
+    final int oldCapacity = mask + 1;
+
+    // Allocate the new data structures
+    allocate(Math.min(growthStrategy.nextCapacity(oldCapacity), MAX_CAPACITY));
+
+    for (int i = 0; i < oldCapacity; i++) {
+      final long keyPointer = oldLongArray.get(i * 2 + 1);
+      if (keyPointer == 0) {
+        continue;
+      }
+      final long key = oldLongArray.get(i * 2);
+      int newPos = Murmur3_x86_32.hashLong(key, 42) & mask;
+      while (longArray.get(newPos * 2 + 1) != 0) {
+        newPos = (newPos + 1) & mask;
+      }
+      longArray.set(newPos * 2, key);
+      longArray.set(newPos * 2 + 1, keyPointer);
+    }
+    // Carry over the null key.
+    longArray.set((mask + 1) * 2 + 1, oldLongArray.get(oldCapacity * 2 + 1));
+    freeArray(oldLongArray);
+  }
+}
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.map;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.spark.SparkEnv;
+import org.apache.spark.memory.TaskMemoryManager;
+import org.apache.spark.serializer.SerializerManager;
+import org.apache.spark.storage.BlockManager;
+import org.apache.spark.unsafe.hash.Murmur3_x86_32;
+
+/**
+ * A hash map of bytes to bytes which is radix-partitioned by the top bits of the key hash code
+ * into a power-of-2 number of independent {@link BytesToBytesMap}s.
+ *
+ * Once a single {@link BytesToBytesMap} outgrows the CPU caches, every probe is a random miss
+ * into both the pointer array and the data pages. Keeping each partition small enough to fit in
+ * cache, and processing input in batches that are first grouped by partition (see
+ * {@link #partitionBatch(int[], int, int[], int[])}), means that consecutive probes hit the same
+ * small sub-map.
+ *
+ * The partition is chosen by the most significant bits of the hash code while each sub-map
+ * indexes its slots with the least significant bits, so both stay independent as long as a
+ * sub-map has fewer than 2^(32 - numPartitionBits) slots.
+ *
+ * The first data page of a sub-map is only its share of a full page, and the following pages
+ * double in size, so that a sparsely used partition does not hold on to a full page.
+ *
+ * Every sub-map is its own {@link org.apache.spark.memory.MemoryConsumer}, so memory is acquired,
+ * reported and spilled per partition: while {@link #destructiveIterator()} is in use, each
+ * partition can be spilled independently through {@link BytesToBytesMap#spill(long,
+ * org.apache.spark.memory.MemoryConsumer)}.
+ */
+public final class PartitionedBytesToBytesMap {
+
+  /**
+   * The maximum number of partition bits. A radix of 8 bits is the same digit size used by
+   * {@link org.apache.spark.util.collection.unsafe.sort.RadixSort}.
+   */
+  public static final int MAX_PARTITION_BITS = 8;
+
+  /**
+   * The smallest first data page of a partition, see {@link #partitionPageSizeBytes(long, int)}.
+   */
+  static final long MIN_PARTITION_PAGE_SIZE = 64 * 1024;
+
+  private final TaskMemoryManager taskMemoryManager;
+
+  private final int numPartitionBits;
+
+  private final BytesToBytesMap[] partitions;
+
+  public PartitionedBytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      int numPartitionBits,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes) {
+    if (numPartitionBits < 0 || numPartitionBits > MAX_PARTITION_BITS) {
+      throw new IllegalArgumentException("Number of partition bits must be between 0 and " +
+        MAX_PARTITION_BITS + ", but got " + numPartitionBits);
+    }
+    if (initialCapacity <= 0) {
+      throw new IllegalArgumentException("Initial capacity must be greater than 0");
+    }
+    this.taskMemoryManager = taskMemoryManager;
+    this.numPartitionBits = numPartitionBits;
+    this.partitions = new BytesToBytesMap[1 << numPartitionBits];
+    final int partitionCapacity = Math.max(1, initialCapacity >>> numPartitionBits);
+    try {
+      for (int i = 0; i < partitions.length; i++) {
+        partitions[i] = new BytesToBytesMap(taskMemoryManager, blockManager, serializerManager,
+          partitionCapacity, loadFactor, pageSizeBytes,
+          partitionPageSizeBytes(pageSizeBytes, numPartitionBits));
+      }
+    } catch (RuntimeException | Error e) {
+      free();
+      throw e;
+    }
+  }
+
+  public PartitionedBytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      int numPartitionBits,
+      int initialCapacity,
+      long pageSizeBytes) {
+    this(
+      taskMemoryManager,
+      SparkEnv.get() != null ? SparkEnv.get().blockManager() :  null,
+      SparkEnv.get() != null ? SparkEnv.get().serializerManager() :  null,
+      numPartitionBits,
+      initialCapacity,
+      // In order to re-use the sub-maps' arrays for sorting, the load factor cannot be larger
+      // than 0.5.
+      0.5,
+      pageSizeBytes);
+  }
+
+  /**
+   * Returns the size of the first data page of every partition. Each partition starts with its
+   * share of a full page, so that the map does not allocate one full page per partition up front,
+   * and its pages then double up to `pageSizeBytes` as the partition fills up.
+   */
+  static long partitionPageSizeBytes(long pageSizeBytes, int numPartitionBits) {
+    return Math.min(pageSizeBytes,
+      Math.max(pageSizeBytes >>> numPartitionBits, MIN_PARTITION_PAGE_SIZE));
+  }
+
+  /**
+   * Returns the number of partition bits needed so that a map with `expectedNumKeys` keys keeps
+   * at most `keysPerPartition` keys in each partition, capped at {@link #MAX_PARTITION_BITS}.
+   */
+  public static int numPartitionBitsFor(long expectedNumKeys, long keysPerPartition) {
+    assert (keysPerPartition > 0);
+    int bits = 0;
+    while (bits < MAX_PARTITION_BITS && (keysPerPartition << bits) < expectedNumKeys) {
+      bits++;
+    }
+    return bits;
+  }
+
+  /**
+   * Returns the partition that keys with the given hash code belong to.
+   */
+  public int partitionOf(int hash) {
+    return numPartitionBits == 0 ? 0 : hash >>> (32 - numPartitionBits);
+  }
+
+  public int numPartitions() {
+    return partitions.length;
+  }
+
+  /**
+   * Returns the sub-map which holds the given partition.
+   */
+  public BytesToBytesMap getPartition(int partitionId) {
+    return partitions[partitionId];
+  }
+
+  /**
+   * Returns the number of keys defined in the map.
+   */
+  public int numKeys() {
+    int numKeys = 0;
+    for (BytesToBytesMap partition : partitions) {
+      numKeys += partition.numKeys();
+    }
+    return numKeys;
+  }
+
+  /**
+   * Returns the number of values defined in the map. A key could have multiple values.
+   */
+  public int numValues() {
+    int numValues = 0;
+    for (BytesToBytesMap partition : partitions) {
+      numValues += partition.numValues();
+    }
+    return numValues;
+  }
+
+  /**
+   * Looks up a key in the partition it belongs to, and returns that partition's
+   * {@link BytesToBytesMap.Location} handle.
+   *
+   * This function always returns the same {@link BytesToBytesMap.Location} instance per partition
+   * to avoid object allocation. This function is not thread-safe.
+   */
+  public BytesToBytesMap.Location lookup(Object keyBase, long keyOffset, int keyLength) {
+    return lookup(keyBase, keyOffset, keyLength,
+      Murmur3_x86_32.hashUnsafeWords(keyBase, keyOffset, keyLength, 42));
+  }
+
+  /**
+   * Looks up a key with a precomputed hash code, see
+   * {@link #lookup(Object, long, int)}.
+   */
+  public BytesToBytesMap.Location lookup(
+      Object keyBase, long keyOffset, int keyLength, int hash) {
+    return partitions[partitionOf(hash)].lookup(keyBase, keyOffset, keyLength, hash);
+  }
+
+  /**
+   * Groups a batch of rows by partition so that they can be probed one partition at a time.
+   *
+   * This is a single counting pass of a most-significant-digit radix sort on the partition id:
+   * it builds a histogram of the partition of every row, turns it into offsets with a prefix sum,
+   * and scatters the row indices. Rows of the same partition keep their relative order.
+   *
+   * @param hashes hash codes of the rows in the batch.
+   * @param numRows number of rows in the batch.
+   * @param rowOrder output, at least `numRows` long. Receives the row indices grouped by partition.
+   * @param partitionStarts output, at least `numPartitions() + 1` long. The rows of partition `p`
+   *                        are `rowOrder[partitionStarts[p]]` until (exclusive)
+   *                        `rowOrder[partitionStarts[p + 1]]`.
+   */
+  public void partitionBatch(int[] hashes, int numRows, int[] rowOrder, int[] partitionStarts) {
+    assert (hashes.length >= numRows);
+    assert (rowOrder.length >= numRows);
+    assert (partitionStarts.length > partitions.length);
+    Arrays.fill(partitionStarts, 0, partitions.length + 1, 0);
+    for (int i = 0; i < numRows; i++) {
+      partitionStarts[partitionOf(hashes[i]) + 1]++;
+    }
+    for (int p = 0; p < partitions.length; p++) {
+      partitionStarts[p + 1] += partitionStarts[p];
+    }
+    // Use the start offsets as write cursors, then shift them back afterwards.
+    for (int i = 0; i < numRows; i++) {
+      rowOrder[partitionStarts[partitionOf(hashes[i])]++] = i;
+    }
+    for (int p = partitions.length; p > 0; p--) {
+      partitionStarts[p] = partitionStarts[p - 1];
+    }
+    partitionStarts[0] = 0;
+  }
+
+  /**
+   * Returns an iterator over all the records of all partitions, one partition after another.
+   *
+   * For efficiency, all calls to `next()` will return the same {@link BytesToBytesMap.Location}
+   * object of the current partition.
+   */
+  public Iterator<BytesToBytesMap.Location> iterator() {
+    return new PartitionIterator(false);
+  }
+
+  /**
+   * Returns a destructive iterator over all the records of all partitions, one partition after
+   * another. Data pages of every partition are freed as soon as they are consumed, and the
+   * partitions which have not been fully consumed yet can be spilled independently.
+   */
+  public Iterator<BytesToBytesMap.Location> destructiveIterator() {
+    return new PartitionIterator(true);
+  }
+
+  private final class PartitionIterator implements Iterator<BytesToBytesMap.Location> {
+
+    private final BytesToBytesMap.MapIterator[] iterators;
+    private int current = 0;
+
+    private PartitionIterator(boolean destructive) {
+      // Create every iterator up front so that all the partitions can be spilled while the
+      // earlier ones are still being consumed.
+      iterators = new BytesToBytesMap.MapIterator[partitions.length];
+      for (int i = 0; i < partitions.length; i++) {
+        iterators[i] =
+          destructive ? partitions[i].destructiveIterator() : partitions[i].iterator();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (current < iterators.length && !iterators[current].hasNext()) {
+        current++;
+      }
+      return current < iterators.length;
+    }
+
+    @Override
+    public BytesToBytesMap.Location next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return iterators[current].next();
+    }
+  }
+
+  /**
+   * Free all allocated memory associated with every partition of this map.
+   *
+   * This method is idempotent and can be called multiple times.
+   */
+  public void free() {
+    for (BytesToBytesMap partition : partitions) {
+      if (partition != null) {
+        partition.free();
+      }
+    }
+  }
+
+  /**
+   * Reset every partition of this map to its initialized state.
+   */
+  public void reset() {
+    for (BytesToBytesMap partition : partitions) {
+      partition.reset();
+    }
+  }
+
+  public TaskMemoryManager getTaskMemoryManager() {
+    return taskMemoryManager;
+  }
+
+  /**
+   * Returns the total amount of memory, in bytes, consumed by all the partitions.
+   */
+  public long getTotalMemoryConsumption() {
+    long total = 0L;
+    for (BytesToBytesMap partition : partitions) {
+      total += partition.getTotalMemoryConsumption();
+    }
+    return total;
+  }
+
+  /**
+   * Return the sum of the peak memory used by every partition so far, in bytes.
+   */
+  public long getPeakMemoryUsedBytes() {
+    long peak = 0L;
+    for (BytesToBytesMap partition : partitions) {
+      peak += partition.getPeakMemoryUsedBytes();
+    }
+    return peak;
+  }
+
+  /**
+   * Returns the average number of probes per key lookup across all partitions.
+   */
+  public double getAvgHashProbesPerKey() {
+    long numProbes = 0L;
+    long numKeyLookups = 0L;
+    for (BytesToBytesMap partition : partitions) {
+      numProbes += partition.getNumProbes();
+      numKeyLookups += partition.getNumKeyLookups();
+    }
+    return (1.0 * numProbes) / numKeyLookups;
+  }
+
+  @VisibleForTesting
+  public int getNumDataPages() {
+    int numDataPages = 0;
+    for (BytesToBytesMap partition : partitions) {
+      numDataPages += partition.getNumDataPages();
+    }
+    return numDataPages;
+  }
+}
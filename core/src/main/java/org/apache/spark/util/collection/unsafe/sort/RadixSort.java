@@ -17,6 +17,10 @@
 
 package org.apache.spark.util.collection.unsafe.sort;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
 import org.apache.spark.unsafe.Platform;
 import org.apache.spark.unsafe.array.LongArray;
 import org.apache.spark.network.util.JavaUtils;
@@ -190,22 +194,191 @@ public class RadixSort {
     long inIndex = startIndex;
     long outIndex = startIndex + numRecords * 2L;
     if (numRecords > 0) {
-      long[][] counts = getKeyPrefixArrayCounts(
-        array, startIndex, numRecords, startByteIndex, endByteIndex);
-      for (int i = startByteIndex; i <= endByteIndex; i++) {
-        if (counts[i] != null) {
-          sortKeyPrefixArrayAtByte(
-            array, numRecords, counts[i], i, inIndex, outIndex,
-            desc, signed && i == endByteIndex);
-          long tmp = inIndex;
-          inIndex = outIndex;
-          outIndex = tmp;
-        }
-      }
+      inIndex = sortKeyPrefixArrayRange(
+        array, inIndex, outIndex, numRecords, startByteIndex, endByteIndex, desc, signed);
     }
     return JavaUtils.checkedCast(inIndex);
   }
 
+  /**
+   * Sorts the key-prefix records at `inIndex` with least-significant-digit radix sort, using the
+   * same number of records at `outIndex` as the temporary buffer.
+   *
+   * @return the index at which the sorted records are located, either `inIndex` or `outIndex`.
+   */
+  static long sortKeyPrefixArrayRange(
+      LongArray array, long inIndex, long outIndex, long numRecords,
+      int startByteIndex, int endByteIndex, boolean desc, boolean signed) {
+    long[][] counts = getKeyPrefixArrayCounts(
+      array, inIndex, numRecords, startByteIndex, endByteIndex);
+    for (int i = startByteIndex; i <= endByteIndex; i++) {
+      if (counts[i] != null) {
+        sortKeyPrefixArrayAtByte(
+          array, numRecords, counts[i], i, inIndex, outIndex,
+          desc, signed && i == endByteIndex);
+        long tmp = inIndex;
+        inIndex = outIndex;
+        outIndex = tmp;
+      }
+    }
+    return inIndex;
+  }
+
+  /**
+   * Parallel version of {@link #sortKeyPrefixArray}, with the same requirements on the array.
+   *
+   * The records are first split into `parallelism` chunks which are histogrammed and scattered in
+   * parallel on the most significant byte that differs between the prefixes (a single
+   * most-significant-digit pass). Every resulting bucket is then sorted on the remaining bytes by
+   * its own least-significant-digit radix sort, in parallel with the other buckets. All the
+   * passes only use the part of the array which is reserved for sorting, so no memory is needed
+   * beyond what {@link #sortKeyPrefixArray} uses, except for the per-chunk histograms.
+   *
+   * @param pool the pool to run the parallel passes in.
+   * @param parallelism the number of chunks to split the records into.
+   *
+   * @return The starting index of the sorted data within the given array.
+   */
+  public static int parallelSortKeyPrefixArray(
+      LongArray array,
+      long startIndex,
+      long numRecords,
+      int startByteIndex,
+      int endByteIndex,
+      boolean desc,
+      boolean signed,
+      ForkJoinPool pool,
+      int parallelism) {
+    assert startByteIndex >= 0 : "startByteIndex (" + startByteIndex + ") should >= 0";
+    assert endByteIndex <= 7 : "endByteIndex (" + endByteIndex + ") should <= 7";
+    assert endByteIndex > startByteIndex;
+    assert numRecords * 4 <= array.size();
+    assert parallelism > 0;
+    if (numRecords == 0) {
+      return JavaUtils.checkedCast(startIndex);
+    }
+    final long inIndex = startIndex;
+    final long outIndex = startIndex + numRecords * 2L;
+    final Object baseObject = array.getBaseObject();
+    final int numChunks = (int) Math.min(parallelism, numRecords);
+    final long chunkSize = (numRecords + numChunks - 1) / numChunks;
+
+    // Find the most significant byte that is not the same for all prefixes.
+    final long[] bitwiseMax = new long[numChunks];
+    final long[] bitwiseMin = new long[numChunks];
+    forEachInParallel(pool, numChunks, c -> {
+      long max = 0;
+      long min = -1L;
+      long offset = array.getBaseOffset() + (inIndex + c * chunkSize * 2L) * 8L;
+      long limit = offset + Math.min(chunkSize, numRecords - c * chunkSize) * 16L;
+      for (; offset < limit; offset += 16) {
+        long value = Platform.getLong(baseObject, offset + 8);
+        max |= value;
+        min &= value;
+      }
+      bitwiseMax[c] = max;
+      bitwiseMin[c] = min;
+    });
+    long max = 0;
+    long min = -1L;
+    for (int c = 0; c < numChunks; c++) {
+      max |= bitwiseMax[c];
+      min &= bitwiseMin[c];
+    }
+    final long bitsChanged = max ^ min;
+    int msdByte = endByteIndex;
+    while (msdByte >= startByteIndex && ((bitsChanged >>> (msdByte * 8)) & 0xff) == 0) {
+      msdByte--;
+    }
+    if (msdByte < startByteIndex) {
+      // All the prefixes are equal on the sorted bytes.
+      return JavaUtils.checkedCast(inIndex);
+    }
+    final int byteIdx = msdByte;
+
+    // Histogram every chunk on the most significant byte.
+    final long[][] counts = new long[numChunks][];
+    forEachInParallel(pool, numChunks, c -> {
+      long[] chunkCounts = new long[256];
+      long offset = array.getBaseOffset() + (inIndex + c * chunkSize * 2L) * 8L;
+      long limit = offset + Math.min(chunkSize, numRecords - c * chunkSize) * 16L;
+      for (; offset < limit; offset += 16) {
+        chunkCounts[(int)((Platform.getLong(baseObject, offset + 8) >>> (byteIdx * 8)) & 0xff)]++;
+      }
+      counts[c] = chunkCounts;
+    });
+
+    // Compute where every bucket starts, and where every chunk writes within each bucket so that
+    // the scatter is stable.
+    final long[] bucketSizes = new long[256];
+    for (int c = 0; c < numChunks; c++) {
+      for (int b = 0; b < 256; b++) {
+        bucketSizes[b] += counts[c][b];
+      }
+    }
+    final long[] bucketStarts = transformCountsToOffsets(
+      bucketSizes.clone(), numRecords, 0, 1, desc, signed && byteIdx == endByteIndex);
+    final long[][] chunkOffsets = new long[numChunks][256];
+    for (int b = 0; b < 256; b++) {
+      long start = bucketStarts[b];
+      for (int c = 0; c < numChunks; c++) {
+        chunkOffsets[c][b] = array.getBaseOffset() + (outIndex + start * 2L) * 8L;
+        start += counts[c][b];
+      }
+    }
+
+    // Scatter every chunk into the buckets.
+    forEachInParallel(pool, numChunks, c -> {
+      long[] offsets = chunkOffsets[c];
+      long offset = array.getBaseOffset() + (inIndex + c * chunkSize * 2L) * 8L;
+      long limit = offset + Math.min(chunkSize, numRecords - c * chunkSize) * 16L;
+      for (; offset < limit; offset += 16) {
+        long key = Platform.getLong(baseObject, offset);
+        long prefix = Platform.getLong(baseObject, offset + 8);
+        int bucket = (int)((prefix >>> (byteIdx * 8)) & 0xff);
+        long dest = offsets[bucket];
+        Platform.putLong(baseObject, dest, key);
+        Platform.putLong(baseObject, dest + 8, prefix);
+        offsets[bucket] += 16;
+      }
+    });
+
+    // Sort every bucket on the remaining bytes, using the same range of the input area as its
+    // temporary buffer. The sorted bucket is copied back if it ends up in the temporary buffer.
+    if (byteIdx > startByteIndex) {
+      forEachInParallel(pool, 256, b -> {
+        long size = bucketSizes[b];
+        if (size > 1) {
+          long bucketIndex = outIndex + bucketStarts[b] * 2L;
+          long bufferIndex = inIndex + bucketStarts[b] * 2L;
+          long sortedIndex = sortKeyPrefixArrayRange(
+            array, bucketIndex, bufferIndex, size, startByteIndex, byteIdx - 1, desc, false);
+          if (sortedIndex != bucketIndex) {
+            Platform.copyMemory(
+              baseObject, array.getBaseOffset() + sortedIndex * 8L,
+              baseObject, array.getBaseOffset() + bucketIndex * 8L,
+              size * 16L);
+          }
+        }
+      });
+    }
+    return JavaUtils.checkedCast(outIndex);
+  }
+
+  /**
+   * Runs `body` for every index in [0, n) in the given pool, and waits for all of them to finish.
+   */
+  private static void forEachInParallel(ForkJoinPool pool, int n, IntConsumer body) {
+    ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n];
+    for (int i = 0; i < n; i++) {
+      final int index = i;
+      tasks[i] = pool.submit(() -> body.accept(index));
+    }
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+  }
+
   /**
    * Specialization of getCounts() for key-prefix arrays. We could probably combine this with
    * getCounts with some added parameters but that seems to hurt in benchmarks.
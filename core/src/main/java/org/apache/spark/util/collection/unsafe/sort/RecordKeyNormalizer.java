@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort;
+
+/**
+ * Maps records to normalized keys: byte strings whose unsigned lexicographic order agrees with
+ * the order of the records. This lets records whose key prefixes are equal be radix sorted on the
+ * rest of their sorting key instead of being compared one pair at a time.
+ *
+ * A normalized key is only required to be consistent with the {@link RecordComparator} it is used
+ * with: if the normalized keys of two records differ, the record with the smaller key must not
+ * compare greater than the other record. Records whose normalized keys are equal (for example
+ * because the key was truncated) are still ordered by the {@link RecordComparator}.
+ */
+public abstract class RecordKeyNormalizer {
+
+  /**
+   * Returns the normalized key of the given record as 8-byte words: big-endian longs which are
+   * compared unsigned, most significant word first. The last word is padded with zeros, and
+   * missing words are considered to be 0.
+   */
+  public abstract long[] normalizeKey(Object baseObject, long baseOffset, int baseLength);
+}
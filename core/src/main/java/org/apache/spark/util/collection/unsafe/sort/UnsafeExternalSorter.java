@@ -24,16 +24,22 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import org.apache.spark.SparkEnv;
 import org.apache.spark.TaskContext;
 import org.apache.spark.executor.ShuffleWriteMetrics;
 import org.apache.spark.internal.LogKeys;
 import org.apache.spark.internal.MDC;
 import org.apache.spark.internal.SparkLogger;
 import org.apache.spark.internal.SparkLoggerFactory;
+import org.apache.spark.internal.config.package$;
 import org.apache.spark.memory.MemoryConsumer;
 import org.apache.spark.memory.SparkOutOfMemoryError;
 import org.apache.spark.memory.TaskMemoryManager;
@@ -44,6 +50,7 @@ import org.apache.spark.unsafe.Platform;
 import org.apache.spark.unsafe.UnsafeAlignedOffset;
 import org.apache.spark.unsafe.array.LongArray;
 import org.apache.spark.unsafe.memory.MemoryBlock;
+import org.apache.spark.util.ThreadUtils;
 import org.apache.spark.util.Utils;
 
 /**
@@ -71,6 +78,8 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
   private final SerializerManager serializerManager;
   private final TaskContext taskContext;
 
+  private final long pageSizeBytes;
+
   /** The buffer size to use when writing spills using DiskBlockObjectWriter */
   private final int fileBufferSizeBytes;
 
@@ -102,6 +111,8 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
   private long pageCursor = -1;
   private long peakMemoryUsedBytes = 0;
   private long totalSpillBytes = 0L;
+  private long spillEncodingBytesSaved = 0L;
+  private UnsafeSorterSpillEncoding spillEncoding = UnsafeSorterSpillEncoding.RAW;
   private long totalSortTimeNanos = 0L;
   private volatile SpillableIterator readingIterator = null;
 
@@ -110,6 +121,67 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
   @Nullable
   private volatile UnsafeSorterBoundedSpillMerger boundedMerger;
 
+  /**
+   * Executor-wide pool in which spills are sorted and written in the background, shared by all
+   * the sorters so that the number of spilling threads stays bounded.
+   */
+  @Nullable
+  private static ExecutorService asyncSpillPool = null;
+
+  private static synchronized ExecutorService getAsyncSpillPool(int numThreads) {
+    if (asyncSpillPool == null) {
+      asyncSpillPool =
+        ThreadUtils.newDaemonCachedThreadPool("unsafe-sorter-async-spill", numThreads, 60);
+    }
+    return asyncSpillPool;
+  }
+
+  /**
+   * Executor-wide pool in which the groups of an intermediate bounded merge round are merged,
+   * shared by all the sorters.
+   */
+  @Nullable
+  private static ExecutorService spillMergePool = null;
+
+  private static synchronized ExecutorService getSpillMergePool(int numThreads) {
+    if (spillMergePool == null) {
+      spillMergePool =
+        ThreadUtils.newDaemonCachedThreadPool("unsafe-sorter-spill-merge", numThreads, 60);
+    }
+    return spillMergePool;
+  }
+
+  @Nullable
+  private ExecutorService spillMergeExecutor = null;
+
+  /**
+   * If non-null, spills which do not need to release memory right away hand the in-memory
+   * records over to an {@link AsyncSpill} running in this executor.
+   */
+  @Nullable
+  private ExecutorService asyncSpillExecutor = null;
+
+  /**
+   * Memory usage of the in-memory records above which they are spilled in the background. This
+   * is half of the memory usage at the last spill caused by memory pressure, so that the records
+   * being written and the records being inserted fit in the memory the task could acquire. It is
+   * 0 until such a spill happens, or if that memory only holds a few pages.
+   */
+  private long asyncSpillThresholdBytes = 0L;
+
+  /** The spill being written in the background, if any. At most one is in flight. */
+  @Nullable private volatile AsyncSpill pendingSpill = null;
+
+  /**
+   * The failure of a spill written in the background. Once a spill failed, its records are lost,
+   * so every later operation on this sorter fails as well.
+   */
+  @Nullable private Throwable asyncSpillFailure = null;
+
+  private long asyncSpillSortTimeNanos = 0L;
+  private long spillOverlapTimeNanos = 0L;
+  private long spillWaitTimeNanos = 0L;
+
   public static UnsafeExternalSorter createWithExistingInMemorySorter(
       TaskMemoryManager taskMemoryManager,
       BlockManager blockManager,
@@ -127,7 +199,7 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     UnsafeExternalSorter sorter = new UnsafeExternalSorter(taskMemoryManager, blockManager,
       serializerManager, taskContext, recordComparatorSupplier, prefixComparator, initialSize,
         pageSizeBytes, numElementsForSpillThreshold, sizeInBytesForSpillThreshold,
-        spillMergeFactor, inMemorySorter, false /* ignored */);
+        spillMergeFactor, inMemorySorter, false /* ignored */, null);
     sorter.spill(Long.MAX_VALUE, sorter);
     taskContext.taskMetrics().incMemoryBytesSpilled(existingMemoryConsumption);
     sorter.totalSpillBytes += existingMemoryConsumption;
@@ -152,7 +224,61 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     return new UnsafeExternalSorter(taskMemoryManager, blockManager, serializerManager,
       taskContext, recordComparatorSupplier, prefixComparator, initialSize, pageSizeBytes,
       numElementsForSpillThreshold, sizeInBytesForSpillThreshold, spillMergeFactor,
-      null, canUseRadixSort);
+      null, canUseRadixSort, null);
+  }
+
+  /**
+   * Creates a sorter which, when radix sort is used, also radix sorts the records with equal key
+   * prefixes on the normalized keys computed by the supplied {@link RecordKeyNormalizer}.
+   */
+  public static UnsafeExternalSorter create(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      TaskContext taskContext,
+      Supplier<RecordComparator> recordComparatorSupplier,
+      PrefixComparator prefixComparator,
+      int initialSize,
+      long pageSizeBytes,
+      int numElementsForSpillThreshold,
+      long sizeInBytesForSpillThreshold,
+      int spillMergeFactor,
+      boolean canUseRadixSort,
+      Supplier<RecordKeyNormalizer> keyNormalizerSupplier) {
+    return create(taskMemoryManager, blockManager, serializerManager, taskContext,
+      recordComparatorSupplier, prefixComparator, initialSize, pageSizeBytes,
+      numElementsForSpillThreshold, sizeInBytesForSpillThreshold, spillMergeFactor,
+      canUseRadixSort, keyNormalizerSupplier, null);
+  }
+
+  /**
+   * Creates a sorter which writes its spill files, including those of the intermediate merge
+   * rounds, with the given encoding, or with the one configured by
+   * `spark.unsafe.sorter.spill.encoding` if it is null.
+   */
+  public static UnsafeExternalSorter create(
+      TaskMemoryManager taskMemoryManager,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      TaskContext taskContext,
+      Supplier<RecordComparator> recordComparatorSupplier,
+      PrefixComparator prefixComparator,
+      int initialSize,
+      long pageSizeBytes,
+      int numElementsForSpillThreshold,
+      long sizeInBytesForSpillThreshold,
+      int spillMergeFactor,
+      boolean canUseRadixSort,
+      @Nullable Supplier<RecordKeyNormalizer> keyNormalizerSupplier,
+      @Nullable UnsafeSorterSpillEncoding spillEncoding) {
+    UnsafeExternalSorter sorter = new UnsafeExternalSorter(taskMemoryManager, blockManager,
+      serializerManager, taskContext, recordComparatorSupplier, prefixComparator, initialSize,
+      pageSizeBytes, numElementsForSpillThreshold, sizeInBytesForSpillThreshold,
+      spillMergeFactor, null, canUseRadixSort, keyNormalizerSupplier);
+    if (spillEncoding != null) {
+      sorter.spillEncoding = spillEncoding;
+    }
+    return sorter;
   }
 
   private UnsafeExternalSorter(
@@ -168,7 +294,8 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
       long sizeInBytesForSpillThreshold,
       int spillMergeFactor,
       @Nullable UnsafeInMemorySorter existingInMemorySorter,
-      boolean canUseRadixSort) {
+      boolean canUseRadixSort,
+      @Nullable Supplier<RecordKeyNormalizer> keyNormalizerSupplier) {
     super(taskMemoryManager, pageSizeBytes, taskMemoryManager.getTungstenMemoryMode());
     this.taskMemoryManager = taskMemoryManager;
     this.blockManager = blockManager;
@@ -177,6 +304,7 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     this.recordComparatorSupplier = recordComparatorSupplier;
     this.prefixComparator = prefixComparator;
     this.spillMergeFactor = spillMergeFactor;
+    this.pageSizeBytes = pageSizeBytes;
     // Use getSizeAsKb (not bytes) to maintain backwards compatibility for units
     // this.fileBufferSizeBytes = (int) conf.getSizeAsKb("spark.shuffle.file.buffer", "32k") * 1024
     this.fileBufferSizeBytes = 32 * 1024;
@@ -192,13 +320,28 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
         comparator,
         prefixComparator,
         initialSize,
-        canUseRadixSort);
+        canUseRadixSort,
+        keyNormalizerSupplier != null ? keyNormalizerSupplier.get() : null);
     } else {
       this.inMemSorter = existingInMemorySorter;
     }
     this.peakMemoryUsedBytes = getMemoryUsage();
     this.sizeInBytesForSpillThreshold = sizeInBytesForSpillThreshold;
     this.numElementsForSpillThreshold = numElementsForSpillThreshold;
+    if (SparkEnv.get() != null) {
+      int asyncSpillThreads = (int) SparkEnv.get().conf().get(
+        package$.MODULE$.UNSAFE_SORTER_ASYNC_SPILL_THREADS());
+      if (asyncSpillThreads > 0) {
+        this.asyncSpillExecutor = getAsyncSpillPool(asyncSpillThreads);
+      }
+      this.spillEncoding = UnsafeSorterSpillEncoding.fromString(
+        SparkEnv.get().conf().get(package$.MODULE$.UNSAFE_SORTER_SPILL_ENCODING()));
+      int spillMergeThreads = (int) SparkEnv.get().conf().get(
+        package$.MODULE$.UNSAFE_SORTER_SPILL_MERGE_THREADS());
+      if (spillMergeThreads > 0) {
+        this.spillMergeExecutor = getSpillMergePool(spillMergeThreads);
+      }
+    }
 
     // Register a cleanup task with TaskContext to ensure that memory is guaranteed to be freed at
     // the end of the task. This is necessary to avoid memory leaks in when the downstream operator
@@ -219,6 +362,16 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     }
   }
 
+  /**
+   * Once its sorted output is being read, the sorter is about to finish and release all its
+   * memory, and spilling it would write records which are about to be consumed anyway. Such a
+   * sorter is spilled after the other consumers of the task.
+   */
+  @Override
+  public int getSpillPriority() {
+    return readingIterator != null ? -1 : 0;
+  }
+
   /**
    * Sort and spill the current records in response to memory pressure.
    */
@@ -231,12 +384,27 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
       return 0L; // this should throw exception
     }
 
+    // A spill still being written in the background holds memory which is freed once it is
+    // complete. Only spill the in-memory records as well if that is not enough.
+    final long releasedByPendingSpill = collectPendingSpill();
+    if (releasedByPendingSpill >= size) {
+      return releasedByPendingSpill;
+    }
+
     if (inMemSorter == null || inMemSorter.numRecords() <= 0) {
       // There could still be some memory allocated when there are no records in the in-memory
       // sorter. We will not spill it however, to ensure that we can always process at least one
       // record before spilling. See the comments in `allocateMemoryForRecordIfNecessary` for why
       // this is necessary.
-      return 0L;
+      return releasedByPendingSpill;
+    }
+
+    if (asyncSpillExecutor != null && size != Long.MAX_VALUE) {
+      // The task ran out of memory, so spill in the background before the records reach half of
+      // the memory they use now. Memory is acquired page by page, so there is nothing to overlap
+      // if half of it does not hold a couple of pages.
+      long halfMemoryUsage = getMemoryUsage() / 2;
+      asyncSpillThresholdBytes = halfMemoryUsage >= 2 * pageSizeBytes ? halfMemoryUsage : 0L;
     }
 
     logger.info("Thread {} spilling sort data of {} to disk ({} {} so far)",
@@ -249,9 +417,10 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
 
     final UnsafeSorterSpillWriter spillWriter =
       new UnsafeSorterSpillWriter(blockManager, fileBufferSizeBytes, writeMetrics,
-        inMemSorter.numRecords());
+        inMemSorter.numRecords(), spillEncoding);
     spillWriters.add(spillWriter);
     spillIterator(inMemSorter.getSortedIterator(), spillWriter);
+    spillEncodingBytesSaved += spillWriter.getEncodingBytesSaved();
 
     final long spillSize = freeMemory();
     // Note that this is more-or-less going to be a multiple of the page size, so wasted space in
@@ -265,14 +434,213 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     taskContext.taskMetrics().incMemoryBytesSpilled(spillSize);
     taskContext.taskMetrics().incDiskBytesSpilled(writeMetrics.bytesWritten());
     totalSpillBytes += spillSize;
-    return spillSize;
+    return spillSize + releasedByPendingSpill;
+  }
+
+  /**
+   * Hands the in-memory records over to an {@link AsyncSpill}, after waiting for the previous one
+   * to complete, so that they are sorted and written while the task keeps inserting records.
+   */
+  private void spillInBackground() throws IOException {
+    assert(asyncSpillExecutor != null);
+    collectPendingSpill();
+    if (inMemSorter == null || inMemSorter.numRecords() <= 0) {
+      return;
+    }
+
+    logger.info("Thread {} spilling sort data of {} to disk in the background ({} {} so far)",
+      MDC.of(LogKeys.THREAD_ID, Thread.currentThread().getId()),
+      MDC.of(LogKeys.MEMORY_SIZE, Utils.bytesToString(getMemoryUsage())),
+      MDC.of(LogKeys.NUM_SPILL_WRITERS, spillWriters.size()),
+      MDC.of(LogKeys.SPILL_TIMES, spillWriters.size() > 1 ? "times" : "time"));
+
+    ShuffleWriteMetrics writeMetrics = new ShuffleWriteMetrics();
+    final UnsafeSorterSpillWriter spillWriter =
+      new UnsafeSorterSpillWriter(blockManager, fileBufferSizeBytes, writeMetrics,
+        inMemSorter.numRecords(), spillEncoding);
+    // Add the writer right away so that spill files stay in insertion order for getIterator().
+    spillWriters.add(spillWriter);
+    List<MemoryBlock> pages = clearAndGetAllocatedPagesToFree();
+    long pageMemory = 0L;
+    for (MemoryBlock page : pages) {
+      pageMemory += page.size();
+    }
+    totalPageMemoryUsageBytes -= pageMemory;
+    AsyncSpill spill = new AsyncSpill(
+      inMemSorter.detachRecords(), pages, pageMemory, spillWriter, writeMetrics);
+    spill.start(asyncSpillExecutor);
+    pendingSpill = spill;
+  }
+
+  /**
+   * Waits for the spill being written in the background, if any, and frees its memory.
+   *
+   * @return the number of bytes of data pages freed.
+   */
+  private long collectPendingSpill() throws IOException {
+    if (asyncSpillFailure != null) {
+      throw new IOException("Spill written in the background failed", asyncSpillFailure);
+    }
+    final AsyncSpill spill = pendingSpill;
+    if (spill == null) {
+      return 0L;
+    }
+    pendingSpill = null;
+    long waitStart = System.nanoTime();
+    try {
+      spill.await();
+    } catch (IOException | RuntimeException | Error e) {
+      // The spill file was deleted by the background thread, so it must not be read.
+      spillWriters.remove(spill.writer);
+      asyncSpillFailure = e;
+      throw e;
+    } finally {
+      long waitNanos = System.nanoTime() - waitStart;
+      spillWaitTimeNanos += waitNanos;
+      spillOverlapTimeNanos += Math.max(0L, spill.getRunTimeNanos() - waitNanos);
+      asyncSpillSortTimeNanos += spill.sorter.getSortTimeNanos();
+      freeAsyncSpillMemory(spill);
+    }
+    taskContext.taskMetrics().incMemoryBytesSpilled(spill.pageMemory);
+    taskContext.taskMetrics().incDiskBytesSpilled(spill.writeMetrics.bytesWritten());
+    totalSpillBytes += spill.pageMemory;
+    spillEncodingBytesSaved += spill.writer.getEncodingBytesSaved();
+    return spill.pageMemory;
+  }
+
+  /**
+   * Rethrows the failure of the spill being written in the background as soon as it is known,
+   * rather than at the next spill.
+   */
+  private void checkAsyncSpill() throws IOException {
+    final AsyncSpill spill = pendingSpill;
+    if (spill != null && spill.isFailed()) {
+      collectPendingSpill();
+    }
+  }
+
+  private void freeAsyncSpillMemory(AsyncSpill spill) {
+    for (MemoryBlock page : spill.pages) {
+      freePage(page);
+    }
+    spill.sorter.freeMemory();
+  }
+
+  /**
+   * Records whose spill is sorted and written by a background thread while the task keeps
+   * inserting records into an empty in-memory sorter.
+   *
+   * The background thread never allocates or frees memory: the data pages and the pointer array
+   * of the records stay allocated, and accounted to the sorter, until the task thread collects
+   * the spill.
+   */
+  private static final class AsyncSpill {
+    final UnsafeInMemorySorter sorter;
+    final List<MemoryBlock> pages;
+    final long pageMemory;
+    final UnsafeSorterSpillWriter writer;
+    final ShuffleWriteMetrics writeMetrics;
+    private volatile boolean cancelled = false;
+    private volatile boolean failed = false;
+    private volatile long runTimeNanos = 0L;
+    private Future<?> future;
+
+    AsyncSpill(
+        UnsafeInMemorySorter sorter,
+        List<MemoryBlock> pages,
+        long pageMemory,
+        UnsafeSorterSpillWriter writer,
+        ShuffleWriteMetrics writeMetrics) {
+      this.sorter = sorter;
+      this.pages = pages;
+      this.pageMemory = pageMemory;
+      this.writer = writer;
+      this.writeMetrics = writeMetrics;
+    }
+
+    void start(ExecutorService executor) {
+      future = executor.submit(() -> {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+          UnsafeSorterIterator iter = sorter.getSortedIterator();
+          while (iter.hasNext() && !cancelled) {
+            iter.loadNext();
+            writer.write(iter.getBaseObject(), iter.getBaseOffset(), iter.getRecordLength(),
+              iter.getKeyPrefix());
+          }
+          writer.close();
+          success = true;
+        } finally {
+          if (!success) {
+            failed = true;
+            // Release the file and delete the partial spill, the task thread rethrows the failure.
+            try {
+              writer.closeAndDelete();
+            } catch (RuntimeException e) {
+              logger.warn("Failed to delete the spill file {}", e,
+                MDC.of(LogKeys.PATH, writer.getFile().getAbsolutePath()));
+            }
+          }
+          runTimeNanos = System.nanoTime() - start;
+        }
+        return null;
+      });
+    }
+
+    /** Whether the background thread failed to write the spill. */
+    boolean isFailed() {
+      return failed;
+    }
+
+    /** Stops writing records, for when the spill file is going to be deleted anyway. */
+    void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * Waits until the background thread is done with the records, even if the task is
+     * interrupted, as their memory cannot be freed before.
+     */
+    void await() throws IOException {
+      try {
+        Uninterruptibles.getUninterruptibly(future);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException ioe) {
+          throw ioe;
+        } else if (cause instanceof RuntimeException re) {
+          throw re;
+        } else if (cause instanceof Error error) {
+          throw error;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+    long getRunTimeNanos() {
+      return runTimeNanos;
+    }
+
+    long getMemoryUsage() {
+      return pageMemory + sorter.getMemoryUsage();
+    }
   }
 
   /**
    * Return the total memory usage of this sorter, including the data pages and the sorter's pointer
-   * array.
+   * array, and the memory of a spill still being written in the background.
    */
   private long getMemoryUsage() {
+    AsyncSpill spill = pendingSpill;
+    return getInMemoryRecordsMemoryUsage() + (spill == null ? 0L : spill.getMemoryUsage());
+  }
+
+  /**
+   * Return the memory usage of the records which have not been spilled yet: their data pages and
+   * the sorter's pointer array.
+   */
+  private long getInMemoryRecordsMemoryUsage() {
     return ((inMemSorter == null) ? 0 : inMemSorter.getMemoryUsage()) + totalPageMemoryUsageBytes;
   }
 
@@ -297,9 +665,24 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
   public long getSortTimeNanos() {
     UnsafeInMemorySorter sorter = inMemSorter;
     if (sorter != null) {
-      return sorter.getSortTimeNanos();
+      return sorter.getSortTimeNanos() + asyncSpillSortTimeNanos;
     }
-    return totalSortTimeNanos;
+    return totalSortTimeNanos + asyncSpillSortTimeNanos;
+  }
+
+  /**
+   * @return the total amount of time spills were sorted and written in the background while the
+   *         task kept running, i.e. the spill time which did not delay the task.
+   */
+  public long getSpillOverlapTimeNanos() {
+    return spillOverlapTimeNanos;
+  }
+
+  /**
+   * @return the total amount of time the task waited for spills written in the background.
+   */
+  public long getSpillWaitTimeNanos() {
+    return spillWaitTimeNanos;
   }
 
   /**
@@ -309,6 +692,13 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     return totalSpillBytes;
   }
 
+  /**
+   * Return the number of bytes the spill encoding saved so far, before compression.
+   */
+  public long getSpillEncodingBytesSaved() {
+    return spillEncodingBytesSaved;
+  }
+
   @VisibleForTesting
   public int getNumberOfAllocatedPages() {
     return allocatedPages.size();
@@ -372,6 +762,23 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     // lock and perform the actual free() calls outside it.
     UnsafeInMemorySorter inMemSorterToFree = null;
     List<MemoryBlock> pagesToFree = null;
+    // A spill being written in the background reads from its pages until it is complete, so stop
+    // it and wait for it before freeing them and deleting its file.
+    AsyncSpill spillToCancel;
+    synchronized (this) {
+      spillToCancel = pendingSpill;
+      pendingSpill = null;
+    }
+    if (spillToCancel != null) {
+      spillToCancel.cancel();
+      try {
+        spillToCancel.await();
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Spill written in the background failed", e);
+      } finally {
+        freeAsyncSpillMemory(spillToCancel);
+      }
+    }
     try {
       synchronized (this) {
         deleteSpillFiles();
@@ -501,24 +908,27 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
       Object recordBase, long recordOffset, int length, long prefix, boolean prefixIsNull)
     throws IOException {
 
+    checkAsyncSpill();
     assert(inMemSorter != null);
     if (inMemSorter.numRecords() >= numElementsForSpillThreshold) {
       logger.info("Spilling data because number of spilledRecords ({}) crossed the threshold {}",
         MDC.of(LogKeys.NUM_ELEMENTS_SPILL_RECORDS, inMemSorter.numRecords()),
         MDC.of(LogKeys.NUM_ELEMENTS_SPILL_THRESHOLD, numElementsForSpillThreshold));
-      spill();
+      spillForThreshold();
     }
 
     // TODO: Ideally we only need to check the spill threshold when new memory needs to be
     //       allocated (both this sorter and the underlying UnsafeInMemorySorter may allocate
     //       new memory), but it's simpler to check the total memory usage of these two sorters
     //       before inserting each record.
-    final long usedMemory = getMemoryUsage();
+    final long usedMemory = getInMemoryRecordsMemoryUsage();
     if (usedMemory >= sizeInBytesForSpillThreshold) {
       logger.info("Spilling data because memory usage ({}) crossed the threshold {}",
         MDC.of(LogKeys.SPILL_RECORDS_SIZE, usedMemory),
         MDC.of(LogKeys.SPILL_RECORDS_SIZE_THRESHOLD, sizeInBytesForSpillThreshold));
-      spill();
+      spillForThreshold();
+    } else if (asyncSpillThresholdBytes > 0 && usedMemory >= asyncSpillThresholdBytes) {
+      spillInBackground();
     }
 
     final int uaoSize = UnsafeAlignedOffset.getUaoSize();
@@ -535,6 +945,18 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     inMemSorter.insertRecord(recordAddress, prefix, prefixIsNull);
   }
 
+  /**
+   * Spills the in-memory records because a spill threshold was crossed, which does not require
+   * their memory to be released right away.
+   */
+  private void spillForThreshold() throws IOException {
+    if (asyncSpillExecutor != null) {
+      spillInBackground();
+    } else {
+      spill();
+    }
+  }
+
   /**
    * Write a key-value record to the sorter. The key and value will be put together in-memory,
    * using the following format:
@@ -547,6 +969,7 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
       Object valueBase, long valueOffset, int valueLen, long prefix, boolean prefixIsNull)
     throws IOException {
 
+    checkAsyncSpill();
     final int uaoSize = UnsafeAlignedOffset.getUaoSize();
     final int required = keyLen + valueLen + (2 * uaoSize);
     allocateMemoryForRecordIfNecessary(required);
@@ -572,6 +995,7 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
   public void merge(UnsafeExternalSorter other) throws IOException {
     other.spill();
     totalSpillBytes += other.totalSpillBytes;
+    spillEncodingBytesSaved += other.spillEncodingBytesSaved;
     spillWriters.addAll(other.spillWriters);
     // remove them from `spillWriters`, or the files will be deleted in `cleanupResources`.
     other.spillWriters.clear();
@@ -584,6 +1008,7 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
    */
   public UnsafeSorterIterator getSortedIterator() throws IOException {
     assert(recordComparatorSupplier != null);
+    collectPendingSpill();
     if (spillWriters.isEmpty()) {
       // No spills — return in-memory sorted iterator
       assert(inMemSorter != null);
@@ -595,7 +1020,9 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
           MDC.of(LogKeys.NUM_SPILL_WRITERS, spillWriters.size()),
           MDC.of(LogKeys.MERGE_FACTOR, spillMergeFactor));
       BoundedMergerContext ctx = prepareBoundedMerge();
-      return ctx.merger.merge(ctx.snapshot, ctx.inMemIter);
+      UnsafeSorterIterator sorted = ctx.merger.merge(ctx.snapshot, ctx.inMemIter);
+      spillEncodingBytesSaved += ctx.merger.getEncodingBytesSaved();
+      return sorted;
     } else {
       // Original single-round merge: open all spill readers at once
       logger.info("Merging {} spill files in single round",
@@ -652,11 +1079,13 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     // blocks.
     final UnsafeSorterBoundedSpillMerger merger = new UnsafeSorterBoundedSpillMerger(
         spillMergeFactor,
-        recordComparatorSupplier.get(),
+        recordComparatorSupplier,
         prefixComparator,
         blockManager,
         serializerManager,
-        fileBufferSizeBytes);
+        fileBufferSizeBytes,
+        spillEncoding,
+        spillMergeExecutor);
     boundedMerger = merger;
 
     SpillableIterator inMemIter = null;
@@ -671,11 +1100,31 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
     return inMemSorter.hasSpaceForAnotherRecord();
   }
 
+  /**
+   * Spills in the background in the given executor, once the in-memory records use at least
+   * `thresholdBytes` bytes or cross one of the spill thresholds.
+   */
+  @VisibleForTesting
+  void enableAsyncSpill(ExecutorService executor, long thresholdBytes) {
+    this.asyncSpillExecutor = executor;
+    this.asyncSpillThresholdBytes = thresholdBytes;
+  }
+
   @VisibleForTesting
   void setSpillMergeFactor(int mergeFactor) {
     this.spillMergeFactor = mergeFactor;
   }
 
+  @VisibleForTesting
+  void setSpillEncoding(UnsafeSorterSpillEncoding encoding) {
+    this.spillEncoding = encoding;
+  }
+
+  @VisibleForTesting
+  void setSpillMergeExecutor(ExecutorService executor) {
+    this.spillMergeExecutor = executor;
+  }
+
   @VisibleForTesting
   int getSpillMergeRounds() {
     return boundedMerger == null ? 0 : boundedMerger.getIntermediateRoundsCompleted();
@@ -737,8 +1186,9 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
           if (numRecords > 0) {
             // Iterate over the records that have not been returned and spill them.
             final UnsafeSorterSpillWriter spillWriter = new UnsafeSorterSpillWriter(
-                    blockManager, fileBufferSizeBytes, writeMetrics, numRecords);
+                    blockManager, fileBufferSizeBytes, writeMetrics, numRecords, spillEncoding);
             spillIterator(upstream, spillWriter);
+            spillEncodingBytesSaved += spillWriter.getEncodingBytesSaved();
             spillWriters.add(spillWriter);
             upstream = spillWriter.getReader(serializerManager);
           } else {
@@ -868,6 +1318,7 @@ public final class UnsafeExternalSorter extends MemoryConsumer {
    * TODO: support forced spilling
    */
   public UnsafeSorterIterator getIterator(int startIndex) throws IOException {
+    collectPendingSpill();
     if (spillWriters.isEmpty()) {
       assert(inMemSorter != null);
       UnsafeSorterIterator iter = inMemSorter.getSortedIterator();
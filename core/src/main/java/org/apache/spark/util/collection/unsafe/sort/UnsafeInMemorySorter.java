@@ -20,10 +20,15 @@ package org.apache.spark.util.collection.unsafe.sort;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.spark.SparkEnv;
 import org.apache.spark.TaskContext;
+import org.apache.spark.internal.config.package$;
 import org.apache.spark.memory.MemoryConsumer;
 import org.apache.spark.memory.SparkOutOfMemoryError;
 import org.apache.spark.memory.TaskMemoryManager;
@@ -31,6 +36,7 @@ import org.apache.spark.unsafe.Platform;
 import org.apache.spark.unsafe.UnsafeAlignedOffset;
 import org.apache.spark.unsafe.array.LongArray;
 import org.apache.spark.unsafe.memory.MemoryBlock;
+import org.apache.spark.util.ThreadUtils;
 import org.apache.spark.util.collection.Sorter;
 
 /**
@@ -76,6 +82,69 @@ public final class UnsafeInMemorySorter {
     }
   }
 
+  /**
+   * Compares records by the sort comparator, given the indices of their pointers in an array.
+   * This is used while a run of records is sorted on their normalized keys, when the pointer slots
+   * of the run hold the indices of the records instead of their pointers.
+   */
+  private static final class RecordIndexComparator
+      implements Comparator<RecordPointerAndKeyPrefix> {
+
+    private final Comparator<RecordPointerAndKeyPrefix> sortComparator;
+    private final long[] recordPointers;
+    private final RecordPointerAndKeyPrefix left = new RecordPointerAndKeyPrefix();
+    private final RecordPointerAndKeyPrefix right = new RecordPointerAndKeyPrefix();
+
+    RecordIndexComparator(
+        Comparator<RecordPointerAndKeyPrefix> sortComparator,
+        long[] recordPointers) {
+      this.sortComparator = sortComparator;
+      this.recordPointers = recordPointers;
+    }
+
+    int compareIndices(int index1, int index2) {
+      // The records of a run share their key prefix, so only the records are compared.
+      left.recordPointer = recordPointers[index1];
+      right.recordPointer = recordPointers[index2];
+      return sortComparator.compare(left, right);
+    }
+
+    @Override
+    public int compare(RecordPointerAndKeyPrefix r1, RecordPointerAndKeyPrefix r2) {
+      return compareIndices((int) r1.recordPointer, (int) r2.recordPointer);
+    }
+  }
+
+  /**
+   * Runs of records with equal normalized key words which are at most this large are sorted by
+   * insertion sort instead of radix sort, which takes 8 passes over the run for every key word.
+   */
+  private static final int NORMALIZED_KEY_INSERTION_SORT_THRESHOLD = 16;
+
+  /**
+   * Runs of records with equal key prefixes which are larger than this are sorted with the
+   * record comparator instead of by their normalized keys. Refining a run keeps the normalized
+   * key of every record of the run on the heap, and that memory is not accounted for by the
+   * memory manager, so it must stay small even if all the records share a prefix.
+   */
+  static final int MAX_REFINED_RUN_LENGTH = 1 << 16;
+
+  private int maxRefinedRunLength = MAX_REFINED_RUN_LENGTH;
+
+  /**
+   * Executor-wide pool used to radix sort in parallel, shared by all the sorters so that the
+   * number of sorting threads stays bounded no matter how many tasks sort concurrently.
+   */
+  @Nullable
+  private static ForkJoinPool parallelSortPool = null;
+
+  private static synchronized ForkJoinPool getParallelSortPool(int numThreads) {
+    if (parallelSortPool == null) {
+      parallelSortPool = ThreadUtils.newForkJoinPool("unsafe-sorter-parallel-sort", numThreads);
+    }
+    return parallelSortPool;
+  }
+
   private final MemoryConsumer consumer;
   private final TaskMemoryManager memoryManager;
   @Nullable
@@ -87,6 +156,13 @@ public final class UnsafeInMemorySorter {
   @Nullable
   private final PrefixComparators.RadixSortSupport radixSortSupport;
 
+  /**
+   * If non-null, records whose prefixes are equal after the radix sort are further radix sorted
+   * on the normalized keys computed by this normalizer.
+   */
+  @Nullable
+  private final RecordKeyNormalizer keyNormalizer;
+
   /**
    * Within this buffer, position {@code 2 * i} holds a pointer to the record at
    * index {@code i}, while position {@code 2 * i + 1} in the array holds an 8-byte key prefix.
@@ -118,6 +194,15 @@ public final class UnsafeInMemorySorter {
 
   private long totalSortTimeNanos = 0L;
 
+  /**
+   * If non-null, radix sorts of at least `parallelSortMinRecords` records are run in parallel in
+   * this pool, split into `parallelSortParallelism` chunks.
+   */
+  @Nullable
+  private ForkJoinPool sortPool = null;
+  private int parallelSortParallelism = 1;
+  private long parallelSortMinRecords = Long.MAX_VALUE;
+
   public UnsafeInMemorySorter(
     final MemoryConsumer consumer,
     final TaskMemoryManager memoryManager,
@@ -126,7 +211,19 @@ public final class UnsafeInMemorySorter {
     int initialSize,
     boolean canUseRadixSort) {
     this(consumer, memoryManager, recordComparator, prefixComparator,
-      consumer.allocateArray(initialSize * 2L), canUseRadixSort);
+      consumer.allocateArray(initialSize * 2L), canUseRadixSort, null);
+  }
+
+  public UnsafeInMemorySorter(
+    final MemoryConsumer consumer,
+    final TaskMemoryManager memoryManager,
+    final RecordComparator recordComparator,
+    final PrefixComparator prefixComparator,
+    int initialSize,
+    boolean canUseRadixSort,
+    @Nullable RecordKeyNormalizer keyNormalizer) {
+    this(consumer, memoryManager, recordComparator, prefixComparator,
+      consumer.allocateArray(initialSize * 2L), canUseRadixSort, keyNormalizer);
   }
 
   public UnsafeInMemorySorter(
@@ -136,6 +233,23 @@ public final class UnsafeInMemorySorter {
       final PrefixComparator prefixComparator,
       LongArray array,
       boolean canUseRadixSort) {
+    this(consumer, memoryManager, recordComparator, prefixComparator, array, canUseRadixSort,
+      null);
+  }
+
+  /**
+   * @param keyNormalizer if non-null and radix sort is used, records with equal key prefixes are
+   *                      radix sorted on their normalized keys afterwards, so the prefix does not
+   *                      need to determine the order of the records on its own.
+   */
+  public UnsafeInMemorySorter(
+      final MemoryConsumer consumer,
+      final TaskMemoryManager memoryManager,
+      final RecordComparator recordComparator,
+      final PrefixComparator prefixComparator,
+      LongArray array,
+      boolean canUseRadixSort,
+      @Nullable RecordKeyNormalizer keyNormalizer) {
     this.consumer = consumer;
     this.memoryManager = memoryManager;
     this.initialSize = array.size();
@@ -151,8 +265,65 @@ public final class UnsafeInMemorySorter {
       this.sortComparator = null;
       this.radixSortSupport = null;
     }
+    this.keyNormalizer = this.radixSortSupport != null ? keyNormalizer : null;
     this.array = array;
     this.usableCapacity = getUsableCapacity();
+    if (this.radixSortSupport != null && SparkEnv.get() != null) {
+      int numThreads = (int) SparkEnv.get().conf().get(
+        package$.MODULE$.UNSAFE_SORTER_PARALLEL_SORT_THREADS());
+      if (numThreads > 0) {
+        enableParallelSort(getParallelSortPool(numThreads), numThreads,
+          (int) SparkEnv.get().conf().get(
+            package$.MODULE$.UNSAFE_SORTER_PARALLEL_SORT_MIN_RECORDS()));
+      }
+    }
+  }
+
+  /**
+   * Radix sorts at least `minRecords` records in parallel in the given pool. This has no effect
+   * if the sorter does not use radix sort.
+   */
+  @VisibleForTesting
+  void enableParallelSort(ForkJoinPool pool, int parallelism, long minRecords) {
+    this.sortPool = pool;
+    this.parallelSortParallelism = parallelism;
+    this.parallelSortMinRecords = minRecords;
+  }
+
+  /**
+   * Creates a sorter which takes over the records and the pointer array of `other`.
+   */
+  private UnsafeInMemorySorter(UnsafeInMemorySorter other) {
+    this.consumer = other.consumer;
+    this.memoryManager = other.memoryManager;
+    this.sortComparator = other.sortComparator;
+    this.radixSortSupport = other.radixSortSupport;
+    this.keyNormalizer = other.keyNormalizer;
+    this.array = other.array;
+    this.pos = other.pos;
+    this.nullBoundaryPos = other.nullBoundaryPos;
+    this.usableCapacity = other.usableCapacity;
+    this.initialSize = other.initialSize;
+    this.sortPool = other.sortPool;
+    this.parallelSortParallelism = other.parallelSortParallelism;
+    this.parallelSortMinRecords = other.parallelSortMinRecords;
+    this.maxRefinedRunLength = other.maxRefinedRunLength;
+  }
+
+  /**
+   * Moves the records and the pointer array of this sorter into a new sorter, which can sort and
+   * free them independently, and leaves this sorter empty and without a pointer array, as
+   * {@link #freeMemory()} does. The pointer array stays accounted to the same consumer.
+   *
+   * Both sorters share the same comparators, so they must not sort at the same time.
+   */
+  UnsafeInMemorySorter detachRecords() {
+    UnsafeInMemorySorter detached = new UnsafeInMemorySorter(this);
+    array = null;
+    usableCapacity = 0;
+    pos = 0;
+    nullBoundaryPos = 0;
+    return detached;
   }
 
   private int getUsableCapacity() {
@@ -341,6 +512,186 @@ public final class UnsafeInMemorySorter {
     public long getKeyPrefix() { return keyPrefix; }
   }
 
+  /**
+   * Radix sorts every run of records with equal key prefixes on their normalized keys.
+   *
+   * @param start index of the first record in the array.
+   * @param bufferStart index of a free area of the array which is as large as the records.
+   * @param numRecords number of records.
+   * @param sortedByPrefix whether the records are sorted by prefix, or all have the same prefix.
+   */
+  private void refineEqualPrefixes(
+      int start, int bufferStart, int numRecords, boolean sortedByPrefix) {
+    int runStart = 0;
+    while (runStart < numRecords) {
+      long prefix = array.get(start + runStart * 2 + 1);
+      int runEnd = runStart + 1;
+      if (sortedByPrefix) {
+        while (runEnd < numRecords && array.get(start + runEnd * 2 + 1) == prefix) {
+          runEnd++;
+        }
+      } else {
+        for (int i = runStart + 1; i < numRecords; i++) {
+          if (array.get(start + i * 2 + 1) != prefix) {
+            // The records do not share a prefix, which only happens if the caller chose different
+            // prefixes for null keys, so the prefix slots cannot be reused: compare them instead.
+            sortRange(start, bufferStart, numRecords, sortComparator);
+            return;
+          }
+        }
+        runEnd = numRecords;
+      }
+      int runLength = runEnd - runStart;
+      if (runLength > maxRefinedRunLength) {
+        sortRange(start + runStart * 2, bufferStart + runStart * 2, runLength, sortComparator);
+      } else if (runLength > 1) {
+        int runIndex = start + runStart * 2;
+        refineRun(runIndex, bufferStart + runStart * 2, runLength);
+        // The prefix slots were used to hold the key words, restore them.
+        for (int i = 0; i < runLength; i++) {
+          array.set(runIndex + i * 2 + 1, prefix);
+        }
+      }
+      runStart = runEnd;
+    }
+  }
+
+  /**
+   * Sorts a run of records with equal key prefixes by their normalized keys. The key of every
+   * record is computed once for the whole run: while the run is sorted, the pointer slots of the
+   * run hold the indices of the records in the key cache, and the prefix slots are overwritten.
+   */
+  private void refineRun(int runIndex, int bufferIndex, int numRecords) {
+    assert keyNormalizer != null && sortComparator != null;
+    int uaoSize = UnsafeAlignedOffset.getUaoSize();
+    long[] recordPointers = new long[numRecords];
+    long[][] keys = new long[numRecords][];
+    for (int i = 0; i < numRecords; i++) {
+      long recordPointer = array.get(runIndex + i * 2);
+      Object baseObject = memoryManager.getPage(recordPointer);
+      long baseOffset = memoryManager.getOffsetInPage(recordPointer) + uaoSize;
+      int baseLength = UnsafeAlignedOffset.getSize(baseObject, baseOffset - uaoSize);
+      recordPointers[i] = recordPointer;
+      keys[i] = keyNormalizer.normalizeKey(baseObject, baseOffset, baseLength);
+      array.set(runIndex + i * 2, i);
+    }
+    sortByNormalizedKeys(runIndex, bufferIndex, numRecords, 0, keys,
+      new RecordIndexComparator(sortComparator, recordPointers));
+    for (int i = 0; i < numRecords; i++) {
+      array.set(runIndex + i * 2, recordPointers[(int) array.get(runIndex + i * 2)]);
+    }
+  }
+
+  /**
+   * Sorts records with equal normalized key words before `wordIndex` by the rest of their
+   * normalized keys, most significant word first. Records which are still equal once their keys
+   * are exhausted are ordered with the record comparator.
+   */
+  private void sortByNormalizedKeys(
+      int runIndex,
+      int bufferIndex,
+      int numRecords,
+      int wordIndex,
+      long[][] keys,
+      RecordIndexComparator comparator) {
+    while (numRecords > NORMALIZED_KEY_INSERTION_SORT_THRESHOLD) {
+      boolean exhausted = true;
+      for (int i = 0; i < numRecords; i++) {
+        long[] key = keys[(int) array.get(runIndex + i * 2)];
+        if (wordIndex < key.length) {
+          exhausted = false;
+          array.set(runIndex + i * 2 + 1, key[wordIndex]);
+        } else {
+          array.set(runIndex + i * 2 + 1, 0L);
+        }
+      }
+      if (exhausted) {
+        sortRange(runIndex, bufferIndex, numRecords, comparator);
+        return;
+      }
+      long sortedIndex = RadixSort.sortKeyPrefixArrayRange(
+        array, runIndex, bufferIndex, numRecords, 0, 7, false, false);
+      if (sortedIndex != runIndex) {
+        Platform.copyMemory(
+          array.getBaseObject(), array.getBaseOffset() + sortedIndex * 8L,
+          array.getBaseObject(), array.getBaseOffset() + runIndex * 8L,
+          numRecords * 16L);
+      }
+      if (array.get(runIndex + 1) == array.get(runIndex + (numRecords - 1) * 2 + 1)) {
+        // All the records share this word, move on to the next one without recursing so that
+        // long common key prefixes do not grow the stack.
+        wordIndex++;
+        continue;
+      }
+      int subRunStart = 0;
+      while (subRunStart < numRecords) {
+        long word = array.get(runIndex + subRunStart * 2 + 1);
+        int subRunEnd = subRunStart + 1;
+        while (subRunEnd < numRecords && array.get(runIndex + subRunEnd * 2 + 1) == word) {
+          subRunEnd++;
+        }
+        if (subRunEnd - subRunStart > 1) {
+          sortByNormalizedKeys(runIndex + subRunStart * 2, bufferIndex + subRunStart * 2,
+            subRunEnd - subRunStart, wordIndex + 1, keys, comparator);
+        }
+        subRunStart = subRunEnd;
+      }
+      return;
+    }
+    // Insertion sort the small run, comparing the keys from `wordIndex` on.
+    for (int i = 1; i < numRecords; i++) {
+      int index = (int) array.get(runIndex + i * 2);
+      int j = i - 1;
+      while (j >= 0 && compareNormalizedKeys(
+          (int) array.get(runIndex + j * 2), index, wordIndex, keys, comparator) > 0) {
+        array.set(runIndex + (j + 1) * 2, array.get(runIndex + j * 2));
+        j--;
+      }
+      array.set(runIndex + (j + 1) * 2, index);
+    }
+  }
+
+  /**
+   * Sorts the records from `index` on with the given comparator, using the free area of the array
+   * at `bufferIndex` as the sort buffer.
+   */
+  private void sortRange(
+      int index,
+      int bufferIndex,
+      int numRecords,
+      Comparator<RecordPointerAndKeyPrefix> comparator) {
+    MemoryBlock unused = new MemoryBlock(
+      array.getBaseObject(),
+      array.getBaseOffset() + bufferIndex * 8L,
+      numRecords * 16L);
+    Sorter<RecordPointerAndKeyPrefix, LongArray> sorter =
+      new Sorter<>(new UnsafeSortDataFormat(new LongArray(unused)));
+    sorter.sort(array, index / 2, index / 2 + numRecords, comparator);
+  }
+
+  @VisibleForTesting
+  void setMaxRefinedRunLength(int maxRefinedRunLength) {
+    this.maxRefinedRunLength = maxRefinedRunLength;
+  }
+
+  private static int compareNormalizedKeys(
+      int index1,
+      int index2,
+      int wordIndex,
+      long[][] keys,
+      RecordIndexComparator comparator) {
+    long[] key1 = keys[index1];
+    long[] key2 = keys[index2];
+    for (int i = wordIndex; i < Math.max(key1.length, key2.length); i++) {
+      int cmp = Long.compareUnsigned(
+        i < key1.length ? key1[i] : 0L, i < key2.length ? key2[i] : 0L);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return comparator.compareIndices(index1, index2);
+  }
+
   /**
    * Return an iterator over record pointers in sorted order. For efficiency, all calls to
    * {@code next()} will return the same mutable object.
@@ -355,9 +706,17 @@ public final class UnsafeInMemorySorter {
     long start = System.nanoTime();
     if (sortComparator != null) {
       if (this.radixSortSupport != null) {
-        offset = RadixSort.sortKeyPrefixArray(
-          array, nullBoundaryPos, (pos - nullBoundaryPos) / 2L, 0, 7,
-          radixSortSupport.sortDescending(), radixSortSupport.sortSigned());
+        long numNonNullRecords = (pos - nullBoundaryPos) / 2L;
+        if (sortPool != null && numNonNullRecords >= parallelSortMinRecords) {
+          offset = RadixSort.parallelSortKeyPrefixArray(
+            array, nullBoundaryPos, numNonNullRecords, 0, 7,
+            radixSortSupport.sortDescending(), radixSortSupport.sortSigned(),
+            sortPool, parallelSortParallelism);
+        } else {
+          offset = RadixSort.sortKeyPrefixArray(
+            array, nullBoundaryPos, numNonNullRecords, 0, 7,
+            radixSortSupport.sortDescending(), radixSortSupport.sortSigned());
+        }
       } else {
         MemoryBlock unused = new MemoryBlock(
           array.getBaseObject(),
@@ -369,6 +728,17 @@ public final class UnsafeInMemorySorter {
         sorter.sort(array, 0, pos / 2, sortComparator);
       }
     }
+    if (keyNormalizer != null) {
+      // After the radix sort, the non-null records are either at `nullBoundaryPos` followed by an
+      // equally large free area, or right after that area. The null records are refined using
+      // the area after both of them as a buffer.
+      int numNonNullLongs = pos - nullBoundaryPos;
+      int otherArea = offset == nullBoundaryPos ? pos : nullBoundaryPos;
+      refineEqualPrefixes(offset, otherArea, numNonNullLongs / 2, true);
+      if (nullBoundaryPos > 0) {
+        refineEqualPrefixes(0, pos + numNonNullLongs, nullBoundaryPos / 2, false);
+      }
+    }
     totalSortTimeNanos += System.nanoTime() - start;
     if (nullBoundaryPos > 0) {
       assert radixSortSupport != null : "Nulls are only stored separately with radix sort";
@@ -24,7 +24,16 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.apache.spark.TaskContext;
 import org.apache.spark.executor.ShuffleWriteMetrics;
 import org.apache.spark.internal.LogKeys;
 import org.apache.spark.internal.MDC;
@@ -52,6 +61,10 @@ import org.apache.spark.storage.BlockManager;
  * Consumed files (both original spills and prior-round intermediates) are deleted eagerly
  * after each group merge, keeping peak disk overhead to roughly one group's worth of data
  * above the original spill total.</p>
+ *
+ * <p>If a merge executor is given, the groups of an intermediate round are merged concurrently
+ * in it, each with its own record comparator. The output files are still created and tracked on
+ * the calling thread, which waits for the whole round before starting the next one.</p>
  */
 final class UnsafeSorterBoundedSpillMerger {
 
@@ -59,29 +72,36 @@ final class UnsafeSorterBoundedSpillMerger {
       SparkLoggerFactory.getLogger(UnsafeSorterBoundedSpillMerger.class);
 
   private final int mergeFactor;
-  private final RecordComparator recordComparator;
+  private final Supplier<RecordComparator> recordComparatorSupplier;
   private final PrefixComparator prefixComparator;
   private final BlockManager blockManager;
   private final SerializerManager serializerManager;
   private final int fileBufferSizeBytes;
+  private final UnsafeSorterSpillEncoding spillEncoding;
+  @Nullable private final ExecutorService mergeExecutor;
   private int intermediateRoundsCompleted;
+  private long encodingBytesSaved;
   // Tracks files created by intermediate merge rounds for safety-net cleanup
   // in cleanupIntermediateFiles() if merge() fails partway through.
   private final Set<File> intermediateFiles = new HashSet<>();
 
   UnsafeSorterBoundedSpillMerger(
       int mergeFactor,
-      RecordComparator recordComparator,
+      Supplier<RecordComparator> recordComparatorSupplier,
       PrefixComparator prefixComparator,
       BlockManager blockManager,
       SerializerManager serializerManager,
-      int fileBufferSizeBytes) {
+      int fileBufferSizeBytes,
+      UnsafeSorterSpillEncoding spillEncoding,
+      @Nullable ExecutorService mergeExecutor) {
     this.mergeFactor = mergeFactor;
-    this.recordComparator = recordComparator;
+    this.recordComparatorSupplier = recordComparatorSupplier;
     this.prefixComparator = prefixComparator;
     this.blockManager = blockManager;
     this.serializerManager = serializerManager;
     this.fileBufferSizeBytes = fileBufferSizeBytes;
+    this.spillEncoding = spillEncoding;
+    this.mergeExecutor = mergeExecutor;
   }
 
   /**
@@ -108,8 +128,7 @@ final class UnsafeSorterBoundedSpillMerger {
 
     while (spillsToMerge.size() > mergeFactor) {
       round++;
-      List<UnsafeSorterSpillWriter> nextRoundSpills = new ArrayList<>();
-      long roundBytesWritten = 0;
+      List<UnsafeSorterSpillWriter> nextRoundSpills;
 
       logger.info("Bounded merge round {}: merging {} spill files with merge factor {}",
           MDC.of(LogKeys.MERGE_ROUND, round),
@@ -119,21 +138,37 @@ final class UnsafeSorterBoundedSpillMerger {
       // Partition writers into groups bounded by both merge factor (for memory) and
       // Integer.MAX_VALUE total records (to prevent int overflow in spill file headers).
       List<List<UnsafeSorterSpillWriter>> groups = partitionWriters(spillsToMerge);
-      for (List<UnsafeSorterSpillWriter> group : groups) {
-        if (group.size() == 1) {
-          // Single file in this group, no merge needed — carry forward
-          nextRoundSpills.add(group.get(0));
-        } else {
-          ShuffleWriteMetrics groupMetrics = new ShuffleWriteMetrics();
-          UnsafeSorterSpillWriter merged = mergeGroupToSpill(group, groupMetrics);
-          nextRoundSpills.add(merged);
-          roundBytesWritten += groupMetrics.bytesWritten();
+      ShuffleWriteMetrics roundMetrics = new ShuffleWriteMetrics();
+      if (mergeExecutor != null && countGroupsToMerge(groups) > 1) {
+        nextRoundSpills = mergeGroupsInParallel(groups, roundMetrics);
+      } else {
+        nextRoundSpills = new ArrayList<>();
+        List<UnsafeSorterSpillWriter> roundOutputs = new ArrayList<>();
+        try {
+          for (List<UnsafeSorterSpillWriter> group : groups) {
+            if (group.size() == 1) {
+              // Single file in this group, no merge needed — carry forward
+              nextRoundSpills.add(group.get(0));
+            } else {
+              ShuffleWriteMetrics groupMetrics = new ShuffleWriteMetrics();
+              UnsafeSorterSpillWriter merged = createGroupWriter(group, groupMetrics);
+              roundOutputs.add(merged);
+              writeMergedGroup(group, merged, recordComparatorSupplier.get(), null);
+              nextRoundSpills.add(merged);
+              roundMetrics.incBytesWritten(groupMetrics.bytesWritten());
+              encodingBytesSaved += merged.getEncodingBytesSaved();
 
-          // Eagerly delete all consumed files (original + intermediate) to
-          // reduce peak disk usage.
-          deleteConsumedFiles(group);
+              // Eagerly delete all consumed files (original + intermediate) to
+              // reduce peak disk usage.
+              deleteConsumedFiles(group);
+            }
+          }
+        } catch (Throwable t) {
+          discardOutputs(roundOutputs);
+          throw t;
         }
       }
+      long roundBytesWritten = roundMetrics.bytesWritten();
 
       logger.info("Bounded merge round {} complete: wrote {} bytes to {} intermediate files",
           MDC.of(LogKeys.MERGE_ROUND, round),
@@ -159,7 +194,7 @@ final class UnsafeSorterBoundedSpillMerger {
         MDC.of(LogKeys.NUM_SPILL_WRITERS, spillsToMerge.size()));
 
     final UnsafeSorterSpillMerger finalMerger = new UnsafeSorterSpillMerger(
-        recordComparator, prefixComparator,
+        recordComparatorSupplier.get(), prefixComparator,
         spillsToMerge.size() + (inMemIterator != null && inMemIterator.hasNext() ? 1 : 0));
     for (UnsafeSorterSpillWriter writer : spillsToMerge) {
       finalMerger.addSpillIfNotEmpty(writer.getReader(serializerManager));
@@ -198,20 +233,109 @@ final class UnsafeSorterBoundedSpillMerger {
     return groups;
   }
 
+  private static int countGroupsToMerge(List<List<UnsafeSorterSpillWriter>> groups) {
+    int count = 0;
+    for (List<UnsafeSorterSpillWriter> group : groups) {
+      if (group.size() > 1) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   /**
-   * Merges a group of spill writers into a single new spill file.
+   * Merges the groups of one intermediate round concurrently in the merge executor, and returns
+   * the spill writers of the next round in the same order as the groups.
    */
-  private UnsafeSorterSpillWriter mergeGroupToSpill(
+  private List<UnsafeSorterSpillWriter> mergeGroupsInParallel(
+      List<List<UnsafeSorterSpillWriter>> groups,
+      ShuffleWriteMetrics roundMetrics) throws IOException {
+    final TaskContext taskContext = TaskContext.get();
+    final AtomicBoolean aborted = new AtomicBoolean(false);
+    final List<UnsafeSorterSpillWriter> nextRoundSpills = new ArrayList<>(groups.size());
+    final List<UnsafeSorterSpillWriter> roundOutputs = new ArrayList<>();
+    final List<ShuffleWriteMetrics> groupMetrics = new ArrayList<>();
+    final List<Future<?>> futures = new ArrayList<>();
+    Throwable error = null;
+    try {
+      for (List<UnsafeSorterSpillWriter> group : groups) {
+        if (group.size() == 1) {
+          nextRoundSpills.add(group.get(0));
+        } else {
+          // The output files are created here, so that they are tracked for cleanup even if
+          // their merge never gets to run.
+          ShuffleWriteMetrics metrics = new ShuffleWriteMetrics();
+          UnsafeSorterSpillWriter merged = createGroupWriter(group, metrics);
+          roundOutputs.add(merged);
+          RecordComparator comparator = recordComparatorSupplier.get();
+          futures.add(mergeExecutor.submit(() -> {
+            if (!aborted.get()) {
+              writeMergedGroup(group, merged, comparator, () ->
+                aborted.get() || (taskContext != null && taskContext.isInterrupted()));
+            }
+            return null;
+          }));
+          nextRoundSpills.add(merged);
+          groupMetrics.add(metrics);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      error = e;
+      aborted.set(true);
+    }
+    // Wait for every merge, including after a failure, so that no file of this round is still
+    // being written to when the caller cleans up.
+    for (Future<?> future : futures) {
+      try {
+        Uninterruptibles.getUninterruptibly(future);
+      } catch (ExecutionException e) {
+        aborted.set(true);
+        if (error == null) {
+          error = e.getCause();
+        }
+      }
+    }
+    if (error != null || (taskContext != null && taskContext.isInterrupted())) {
+      // Every merge of this round is done, so the outputs of the groups which completed, were
+      // abandoned or never ran can be discarded.
+      discardOutputs(roundOutputs);
+    }
+    if (taskContext != null) {
+      taskContext.killTaskIfInterrupted();
+    }
+    if (error != null) {
+      if (error instanceof IOException ioe) {
+        throw ioe;
+      } else if (error instanceof RuntimeException re) {
+        throw re;
+      } else if (error instanceof Error err) {
+        throw err;
+      }
+      throw new IOException("Failed to merge spill files", error);
+    }
+    for (ShuffleWriteMetrics metrics : groupMetrics) {
+      roundMetrics.incBytesWritten(metrics.bytesWritten());
+    }
+    for (UnsafeSorterSpillWriter output : roundOutputs) {
+      encodingBytesSaved += output.getEncodingBytesSaved();
+    }
+    for (List<UnsafeSorterSpillWriter> group : groups) {
+      if (group.size() > 1) {
+        deleteConsumedFiles(group);
+      }
+    }
+    return nextRoundSpills;
+  }
+
+  /**
+   * Creates the spill writer into which a group of spill writers is merged.
+   */
+  private UnsafeSorterSpillWriter createGroupWriter(
       List<UnsafeSorterSpillWriter> group,
       ShuffleWriteMetrics writeMetrics) throws IOException {
     long totalRecords = 0;
-    UnsafeSorterSpillMerger merger = new UnsafeSorterSpillMerger(
-        recordComparator, prefixComparator, group.size());
-
     for (UnsafeSorterSpillWriter sw : group) {
-      UnsafeSorterSpillReader reader = sw.getReader(serializerManager);
-      totalRecords += reader.getNumRecords();
-      merger.addSpillIfNotEmpty(reader);
+      totalRecords += sw.recordsSpilled();
     }
 
     // Defensive check: partitionWriters() already bounds each group's total records
@@ -223,21 +347,72 @@ final class UnsafeSorterBoundedSpillMerger {
           "Group record count exceeds Integer.MAX_VALUE: " + totalRecords);
     }
     UnsafeSorterSpillWriter outputWriter = new UnsafeSorterSpillWriter(
-        blockManager, fileBufferSizeBytes, writeMetrics, (int) totalRecords);
+        blockManager, fileBufferSizeBytes, writeMetrics, (int) totalRecords, spillEncoding);
 
     // Track the intermediate file immediately so cleanupIntermediateFiles() can
-    // clean it up if an exception occurs during the merge write loop below.
+    // clean it up if an exception occurs while the group is merged into it.
     intermediateFiles.add(outputWriter.getFile());
+    return outputWriter;
+  }
 
-    UnsafeSorterIterator sorted = merger.getSortedIterator();
-    while (sorted.hasNext()) {
-      sorted.loadNext();
-      outputWriter.write(
-          sorted.getBaseObject(), sorted.getBaseOffset(),
-          sorted.getRecordLength(), sorted.getKeyPrefix());
+  /**
+   * Merges a group of spill writers into the given output writer. If `shouldStop` is given, the
+   * merge gives up once it returns true, leaving the output incomplete.
+   */
+  private void writeMergedGroup(
+      List<UnsafeSorterSpillWriter> group,
+      UnsafeSorterSpillWriter outputWriter,
+      RecordComparator recordComparator,
+      @Nullable BooleanSupplier shouldStop) throws IOException {
+    List<UnsafeSorterSpillReader> readers = new ArrayList<>(group.size());
+    boolean completed = false;
+    try {
+      UnsafeSorterSpillMerger merger = new UnsafeSorterSpillMerger(
+          recordComparator, prefixComparator, group.size());
+      for (UnsafeSorterSpillWriter sw : group) {
+        UnsafeSorterSpillReader reader = sw.getReader(serializerManager);
+        readers.add(reader);
+        merger.addSpillIfNotEmpty(reader);
+      }
+
+      UnsafeSorterIterator sorted = merger.getSortedIterator();
+      while (sorted.hasNext()) {
+        if (shouldStop != null && shouldStop.getAsBoolean()) {
+          return;
+        }
+        sorted.loadNext();
+        outputWriter.write(
+            sorted.getBaseObject(), sorted.getBaseOffset(),
+            sorted.getRecordLength(), sorted.getKeyPrefix());
+      }
+      outputWriter.close();
+      completed = true;
+    } finally {
+      // Readers close themselves once exhausted, or at the end of the task. Close them here
+      // too, since they are not tied to the task when they are opened in the merge executor.
+      for (UnsafeSorterSpillReader reader : readers) {
+        reader.close();
+      }
+      if (!completed) {
+        outputWriter.closeAndDelete();
+      }
+    }
+  }
+
+  /**
+   * Closes and deletes the outputs of an intermediate round which failed, including those of the
+   * groups whose merge completed: the whole merge fails, so none of them is read.
+   */
+  private void discardOutputs(List<UnsafeSorterSpillWriter> outputs) {
+    for (UnsafeSorterSpillWriter output : outputs) {
+      output.closeAndDelete();
+      File file = output.getFile();
+      if (file != null && file.exists() && !file.delete()) {
+        logger.warn("Failed to delete intermediate spill file {}",
+            MDC.of(LogKeys.PATH, file.getAbsolutePath()));
+      }
+      intermediateFiles.remove(file);
     }
-    outputWriter.close();
-    return outputWriter;
   }
 
   private void deleteConsumedFiles(List<UnsafeSorterSpillWriter> writers) {
@@ -259,6 +434,14 @@ final class UnsafeSorterBoundedSpillMerger {
     return intermediateRoundsCompleted;
   }
 
+  /**
+   * Returns the number of bytes the spill encoding saved in the files written by the intermediate
+   * rounds, before compression.
+   */
+  long getEncodingBytesSaved() {
+    return encodingBytesSaved;
+  }
+
   /**
    * Cleans up any intermediate files created during multi-round merge.
    * Called during resource cleanup as a safety net for files not yet consumed.
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort;
+
+import java.util.Locale;
+
+/**
+ * The encoding of the records in a spill file written by {@link UnsafeSorterSpillWriter}. The
+ * encoding only applies to the records themselves: the spill file is still compressed and
+ * encrypted by the {@link org.apache.spark.serializer.SerializerManager} as a whole.
+ */
+public enum UnsafeSorterSpillEncoding {
+
+  /**
+   * Every record is written as its length, its key prefix and its bytes:
+   *
+   *   [len (int)][prefix (long)][data (bytes)]
+   */
+  RAW,
+
+  /**
+   * Every record is written relative to the record before it, which is the previous record in
+   * sort order:
+   *
+   *   [shared (varint)][suffix len (varint)][prefix delta (zigzag varlong)][suffix (bytes)]
+   *
+   * where `shared` is the number of leading bytes the record has in common with the previous
+   * record, and only the remaining bytes are written. Sorted records tend to share their null
+   * bitset and leading key fields, and the key prefixes of consecutive records are close to each
+   * other, so this writes far fewer bytes than {@link #RAW} for sorts on repetitive keys.
+   */
+  DELTA;
+
+  /**
+   * Returns the encoding with the given (case-insensitive) name.
+   */
+  public static UnsafeSorterSpillEncoding fromString(String name) {
+    return valueOf(name.toUpperCase(Locale.ROOT));
+  }
+}
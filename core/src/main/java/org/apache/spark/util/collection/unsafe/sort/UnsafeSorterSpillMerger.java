@@ -18,30 +18,31 @@
 package org.apache.spark.util.collection.unsafe.sort;
 
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Merges sorted {@link UnsafeSorterIterator}s with a loser tree (tournament tree).
+ *
+ * Every internal node of the tree holds the input which lost the comparison at that node, and
+ * the overall winner is kept above the root. After the winner's next record is loaded, it only
+ * needs to be replayed against the losers on the path from its leaf to the root: one comparison
+ * per level, about half the comparisons of re-heapifying a binary heap.
+ */
 final class UnsafeSorterSpillMerger {
 
   private int numRecords = 0;
-  private final PriorityQueue<UnsafeSorterIterator> priorityQueue;
+  private final RecordComparator recordComparator;
+  private final PrefixComparator prefixComparator;
+  private final List<UnsafeSorterIterator> inputs;
 
   UnsafeSorterSpillMerger(
       RecordComparator recordComparator,
       PrefixComparator prefixComparator,
       int numSpills) {
-    Comparator<UnsafeSorterIterator> comparator = (left, right) -> {
-      int prefixComparisonResult =
-        prefixComparator.compare(left.getKeyPrefix(), right.getKeyPrefix());
-      if (prefixComparisonResult == 0) {
-        return recordComparator.compare(
-          left.getBaseObject(), left.getBaseOffset(), left.getRecordLength(),
-          right.getBaseObject(), right.getBaseOffset(), right.getRecordLength());
-      } else {
-        return prefixComparisonResult;
-      }
-    };
-    priorityQueue = new PriorityQueue<>(numSpills, comparator);
+    this.recordComparator = recordComparator;
+    this.prefixComparator = prefixComparator;
+    this.inputs = new ArrayList<>(numSpills);
   }
 
   /**
@@ -49,13 +50,11 @@ final class UnsafeSorterSpillMerger {
    */
   public void addSpillIfNotEmpty(UnsafeSorterIterator spillReader) throws IOException {
     if (spillReader.hasNext()) {
-      // We only add the spillReader to the priorityQueue if it is not empty. We do this to
-      // make sure the hasNext method of UnsafeSorterIterator returned by getSortedIterator
-      // does not return wrong result because hasNext will return true
-      // at least priorityQueue.size() times. If we allow n spillReaders in the
-      // priorityQueue, we will have n extra empty records in the result of UnsafeSorterIterator.
+      // We only add the spillReader to the tree if it is not empty. We do this to make sure
+      // the hasNext method of UnsafeSorterIterator returned by getSortedIterator does not return
+      // wrong result because every input is expected to have a current record.
       spillReader.loadNext();
-      priorityQueue.add(spillReader);
+      inputs.add(spillReader);
       numRecords += spillReader.getNumRecords();
     }
   }
@@ -63,7 +62,15 @@ final class UnsafeSorterSpillMerger {
   public UnsafeSorterIterator getSortedIterator() throws IOException {
     return new UnsafeSorterIterator() {
 
+      private final UnsafeSorterIterator[] leaves = inputs.toArray(new UnsafeSorterIterator[0]);
+      private final int numLeaves = leaves.length;
+      // tree[0] is the index of the winner, tree[1 .. numLeaves) the indices of the losers at the
+      // internal nodes. The leaf of input i is the (virtual) node numLeaves + i.
+      private final int[] tree = new int[Math.max(1, numLeaves)];
+      private final boolean[] exhausted = new boolean[numLeaves];
+      private int numActive = numLeaves;
       private UnsafeSorterIterator spillReader;
+      private int current = -1;
 
       @Override
       public int getNumRecords() {
@@ -77,18 +84,83 @@ final class UnsafeSorterSpillMerger {
 
       @Override
       public boolean hasNext() {
-        return !priorityQueue.isEmpty() || (spillReader != null && spillReader.hasNext());
+        if (current < 0) {
+          return numActive > 0;
+        }
+        return numActive > 1 || spillReader.hasNext();
       }
 
       @Override
       public void loadNext() throws IOException {
-        if (spillReader != null) {
+        if (current < 0) {
+          build();
+        } else {
           if (spillReader.hasNext()) {
             spillReader.loadNext();
-            priorityQueue.add(spillReader);
+          } else {
+            exhausted[current] = true;
+            numActive--;
+          }
+          replay(current);
+        }
+        current = tree[0];
+        spillReader = leaves[current];
+      }
+
+      /** Returns whether the current record of input `a` sorts before the one of input `b`. */
+      private boolean beats(int a, int b) {
+        if (exhausted[a]) {
+          return false;
+        }
+        if (exhausted[b]) {
+          return true;
+        }
+        UnsafeSorterIterator left = leaves[a];
+        UnsafeSorterIterator right = leaves[b];
+        int cmp = prefixComparator.compare(left.getKeyPrefix(), right.getKeyPrefix());
+        if (cmp == 0) {
+          cmp = recordComparator.compare(
+            left.getBaseObject(), left.getBaseOffset(), left.getRecordLength(),
+            right.getBaseObject(), right.getBaseOffset(), right.getRecordLength());
+        }
+        return cmp < 0 || (cmp == 0 && a < b);
+      }
+
+      /** Plays the initial tournament, bottom-up, storing the loser at every internal node. */
+      private void build() {
+        if (numLeaves == 1) {
+          tree[0] = 0;
+          return;
+        }
+        int[] winners = new int[2 * numLeaves];
+        for (int i = 0; i < numLeaves; i++) {
+          winners[numLeaves + i] = i;
+        }
+        for (int node = numLeaves - 1; node >= 1; node--) {
+          int left = winners[2 * node];
+          int right = winners[2 * node + 1];
+          if (beats(right, left)) {
+            winners[node] = right;
+            tree[node] = left;
+          } else {
+            winners[node] = left;
+            tree[node] = right;
+          }
+        }
+        tree[0] = winners[1];
+      }
+
+      /** Replays the matches on the path from the leaf of input `leaf` to the root. */
+      private void replay(int leaf) {
+        int winner = leaf;
+        for (int node = (numLeaves + leaf) / 2; node >= 1; node /= 2) {
+          if (beats(tree[node], winner)) {
+            int loser = winner;
+            winner = tree[node];
+            tree[node] = loser;
           }
         }
-        spillReader = priorityQueue.remove();
+        tree[0] = winner;
       }
 
       @Override
@@ -32,6 +32,7 @@ import org.apache.spark.storage.BlockId;
 import org.apache.spark.unsafe.Platform;
 
 import java.io.*;
+import java.util.Arrays;
 
 /**
  * Reads spill files written by {@link UnsafeSorterSpillWriter} (see that class for a description
@@ -54,12 +55,22 @@ public final class UnsafeSorterSpillReader extends UnsafeSorterIterator implemen
   private byte[] arr = new byte[1024 * 1024];
   private Object baseObject = arr;
   private final TaskContext taskContext = TaskContext.get();
+  private final UnsafeSorterSpillEncoding encoding;
 
   public UnsafeSorterSpillReader(
       SerializerManager serializerManager,
       File file,
       BlockId blockId) throws IOException {
+    this(serializerManager, file, blockId, UnsafeSorterSpillEncoding.RAW);
+  }
+
+  public UnsafeSorterSpillReader(
+      SerializerManager serializerManager,
+      File file,
+      BlockId blockId,
+      UnsafeSorterSpillEncoding encoding) throws IOException {
     assert (file.length() > 0);
+    this.encoding = encoding;
     final ConfigEntry<Object> bufferSizeConfigEntry =
         package$.MODULE$.UNSAFE_SORTER_SPILL_READER_BUFFER_SIZE();
     // This value must be less than or equal to MAX_BUFFER_SIZE_BYTES. Cast to int is always safe.
@@ -122,19 +133,46 @@ public final class UnsafeSorterSpillReader extends UnsafeSorterIterator implemen
     if (taskContext != null) {
       taskContext.killTaskIfInterrupted();
     }
-    recordLength = din.readInt();
-    keyPrefix = din.readLong();
-    if (recordLength > arr.length) {
-      arr = new byte[recordLength];
-      baseObject = arr;
+    if (encoding == UnsafeSorterSpillEncoding.DELTA) {
+      // The first `shared` bytes of the record are still in `arr` from the previous record.
+      final int shared = (int) readVarLong();
+      final int suffixLength = (int) readVarLong();
+      final long zigzagDelta = readVarLong();
+      keyPrefix += (zigzagDelta >>> 1) ^ -(zigzagDelta & 1);
+      recordLength = shared + suffixLength;
+      if (recordLength > arr.length) {
+        arr = Arrays.copyOf(arr, recordLength);
+        baseObject = arr;
+      }
+      JavaUtils.readFully(in, arr, shared, suffixLength);
+    } else {
+      recordLength = din.readInt();
+      keyPrefix = din.readLong();
+      if (recordLength > arr.length) {
+        arr = new byte[recordLength];
+        baseObject = arr;
+      }
+      JavaUtils.readFully(in, arr, 0, recordLength);
     }
-    JavaUtils.readFully(in, arr, 0, recordLength);
     numRecordsRemaining--;
     if (numRecordsRemaining == 0) {
       close();
     }
   }
 
+  // Reads an unsigned variable-length integer written by UnsafeSorterSpillWriter.
+  private long readVarLong() throws IOException {
+    long value = 0L;
+    int shift = 0;
+    byte b;
+    do {
+      b = din.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
   @Override
   public Object getBaseObject() {
     return baseObject;
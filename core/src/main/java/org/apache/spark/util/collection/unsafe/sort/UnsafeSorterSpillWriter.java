@@ -19,6 +19,7 @@ package org.apache.spark.util.collection.unsafe.sort;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import scala.Tuple2;
 
@@ -36,7 +37,9 @@ import org.apache.spark.internal.config.package$;
 /**
  * Spills a list of sorted records to disk. Spill files have the following format:
  *
- *   [# of records (int)] [[len (int)][prefix (long)][data (bytes)]...]
+ *   [# of records (int)] [record...]
+ *
+ * where the format of every record depends on the {@link UnsafeSorterSpillEncoding}.
  */
 public final class UnsafeSorterSpillWriter {
 
@@ -57,19 +60,43 @@ public final class UnsafeSorterSpillWriter {
   private final File file;
   private final BlockId blockId;
   private final int numRecordsToWrite;
+  private final UnsafeSorterSpillEncoding encoding;
   private DiskBlockObjectWriter writer;
   private int numRecordsSpilled = 0;
 
+  // The DELTA encoding writes every record relative to the previous one, which is kept here.
+  private byte[] previousRecord;
+  private int previousRecordLength = 0;
+  private long previousKeyPrefix = 0L;
+  // Header of a DELTA record: at most 5 + 5 + 10 bytes of variable-length integers.
+  private byte[] deltaHeader;
+  private long encodingBytesSaved = 0L;
+
   public UnsafeSorterSpillWriter(
       BlockManager blockManager,
       int fileBufferSize,
       ShuffleWriteMetrics writeMetrics,
       int numRecordsToWrite) throws IOException {
+    this(blockManager, fileBufferSize, writeMetrics, numRecordsToWrite,
+      UnsafeSorterSpillEncoding.RAW);
+  }
+
+  public UnsafeSorterSpillWriter(
+      BlockManager blockManager,
+      int fileBufferSize,
+      ShuffleWriteMetrics writeMetrics,
+      int numRecordsToWrite,
+      UnsafeSorterSpillEncoding encoding) throws IOException {
     final Tuple2<TempLocalBlockId, File> spilledFileInfo =
       blockManager.diskBlockManager().createTempLocalBlock();
     this.file = spilledFileInfo._2();
     this.blockId = spilledFileInfo._1();
     this.numRecordsToWrite = numRecordsToWrite;
+    this.encoding = encoding;
+    if (encoding == UnsafeSorterSpillEncoding.DELTA) {
+      this.previousRecord = new byte[64];
+      this.deltaHeader = new byte[20];
+    }
     // Unfortunately, we need a serializer instance in order to construct a DiskBlockObjectWriter.
     // Our write path doesn't actually use this serializer (since we end up calling the `write()`
     // OutputStream methods), but DiskBlockObjectWriter still calls some methods on it. To work
@@ -120,10 +147,86 @@ public final class UnsafeSorterSpillWriter {
     } else {
       numRecordsSpilled++;
     }
-    writeIntToBuffer(recordLength, 0);
-    writeLongToBuffer(keyPrefix, 4);
-    int dataRemaining = recordLength;
-    int freeSpaceInWriteBuffer = diskWriteBufferSize - 4 - 8; // space used by prefix + len
+    if (encoding == UnsafeSorterSpillEncoding.DELTA) {
+      writeDelta(baseObject, baseOffset, recordLength, keyPrefix);
+    } else {
+      writeIntToBuffer(recordLength, 0);
+      writeLongToBuffer(keyPrefix, 4);
+      // space used by prefix + len
+      writeRecordBytes(baseObject, baseOffset, recordLength, 4 + 8);
+    }
+    writer.recordWritten();
+  }
+
+  private void writeDelta(
+      Object baseObject,
+      long baseOffset,
+      int recordLength,
+      long keyPrefix) throws IOException {
+    final int shared = sharedPrefixLength(baseObject, baseOffset, recordLength);
+    final long prefixDelta = keyPrefix - previousKeyPrefix;
+    int headerLength = writeVarLong(shared, deltaHeader, 0);
+    headerLength = writeVarLong(recordLength - shared, deltaHeader, headerLength);
+    // Zigzag encoding, so that small negative deltas stay short too.
+    final long zigzagDelta = (prefixDelta << 1) ^ (prefixDelta >> 63);
+    headerLength = writeVarLong(zigzagDelta, deltaHeader, headerLength);
+    int bufferedBytes = 0;
+    if (headerLength < diskWriteBufferSize) {
+      System.arraycopy(deltaHeader, 0, writeBuffer, 0, headerLength);
+      bufferedBytes = headerLength;
+    } else {
+      writer.write(deltaHeader, 0, headerLength);
+    }
+    writeRecordBytes(baseObject, baseOffset + shared, recordLength - shared, bufferedBytes);
+    encodingBytesSaved += 4 + 8 + shared - headerLength;
+
+    if (previousRecord.length < recordLength) {
+      previousRecord =
+        Arrays.copyOf(previousRecord, Math.max(recordLength, previousRecord.length * 2));
+    }
+    Platform.copyMemory(baseObject, baseOffset + shared, previousRecord,
+      Platform.BYTE_ARRAY_OFFSET + shared, recordLength - shared);
+    previousRecordLength = recordLength;
+    previousKeyPrefix = keyPrefix;
+  }
+
+  /**
+   * Returns the number of leading bytes the given record has in common with the previous one.
+   */
+  private int sharedPrefixLength(Object baseObject, long baseOffset, int recordLength) {
+    final int maxShared = Math.min(recordLength, previousRecordLength);
+    int i = 0;
+    while (i + 8 <= maxShared && Platform.getLong(baseObject, baseOffset + i) ==
+        Platform.getLong(previousRecord, Platform.BYTE_ARRAY_OFFSET + i)) {
+      i += 8;
+    }
+    while (i < maxShared && Platform.getByte(baseObject, baseOffset + i) ==
+        Platform.getByte(previousRecord, Platform.BYTE_ARRAY_OFFSET + i)) {
+      i++;
+    }
+    return i;
+  }
+
+  // Writes `v` as an unsigned variable-length integer of 7 bits per byte, low bits first.
+  private static int writeVarLong(long v, byte[] buffer, int offset) {
+    while ((v & ~0x7FL) != 0) {
+      buffer[offset++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    buffer[offset++] = (byte) v;
+    return offset;
+  }
+
+  /**
+   * Writes the bytes of a record after the `bufferedBytes` bytes already in the write buffer.
+   */
+  private void writeRecordBytes(
+      Object baseObject,
+      long baseOffset,
+      int length,
+      int bufferedBytes) throws IOException {
+    int dataRemaining = length;
+    int freeSpaceInWriteBuffer = diskWriteBufferSize - bufferedBytes;
     long recordReadPosition = baseOffset;
     while (dataRemaining > 0) {
       final int toTransfer = Math.min(freeSpaceInWriteBuffer, dataRemaining);
@@ -141,7 +244,6 @@ public final class UnsafeSorterSpillWriter {
     if (freeSpaceInWriteBuffer < diskWriteBufferSize) {
       writer.write(writeBuffer, 0, (diskWriteBufferSize - freeSpaceInWriteBuffer));
     }
-    writer.recordWritten();
   }
 
   public void close() throws IOException {
@@ -149,6 +251,20 @@ public final class UnsafeSorterSpillWriter {
     writer.close();
     writer = null;
     writeBuffer = null;
+    previousRecord = null;
+  }
+
+  /**
+   * Closes this writer after a failure and deletes the spill file. This has no effect if the
+   * writer was already closed.
+   */
+  public void closeAndDelete() {
+    if (writer != null) {
+      writer.closeAndDelete();
+      writer = null;
+      writeBuffer = null;
+      previousRecord = null;
+    }
   }
 
   public File getFile() {
@@ -156,7 +272,19 @@ public final class UnsafeSorterSpillWriter {
   }
 
   public UnsafeSorterSpillReader getReader(SerializerManager serializerManager) throws IOException {
-    return new UnsafeSorterSpillReader(serializerManager, file, blockId);
+    return new UnsafeSorterSpillReader(serializerManager, file, blockId, encoding);
+  }
+
+  public UnsafeSorterSpillEncoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Returns the number of bytes that the records written so far would have taken up more with the
+   * {@link UnsafeSorterSpillEncoding#RAW} encoding, before compression.
+   */
+  public long getEncodingBytesSaved() {
+    return encodingBytesSaved;
   }
 
   public int recordsSpilled() {
@@ -121,6 +121,11 @@ class ExternalShuffleService(sparkConf: SparkConf, securityManager: SecurityMana
     blockHandler.getAllMetrics.getMetrics.put("numRegisteredConnections",
         server.getRegisteredConnections)
     shuffleServiceSource.registerMetricSet(blockHandler.getAllMetrics)
+    // The metrics of a local directory are added on its first read, so the registry is mirrored
+    // rather than copied.
+    Option(transportContext.getDiskReadScheduler).foreach { scheduler =>
+      shuffleServiceSource.metricRegistry.register("diskReads", scheduler.getMetrics)
+    }
     masterMetricsSystem.registerSource(shuffleServiceSource)
     masterMetricsSystem.start()
   }
@@ -314,7 +314,8 @@ private[spark] class Executor(
   }
   private val schemes = conf.get(EXECUTOR_METRICS_FILESYSTEM_SCHEMES)
     .toLowerCase(Locale.ROOT).split(",").map(_.trim).filter(_.nonEmpty)
-  private val executorSource = new ExecutorSource(threadPool, executorId, schemes)
+  private val executorSource =
+    new ExecutorSource(threadPool, executorId, schemes, env.memoryManager.pagePool)
   // Pool used for threads that supervise task killing / cancellation
   private val taskReaperPool = ThreadUtils.newDaemonCachedThreadPool("Task reaper")
   // For tasks which are in the process of being killed, this map holds the most recently created
@@ -339,6 +340,9 @@ private[spark] class Executor(
     env.metricsSystem.registerSource(new JVMCPUSource())
     executorMetricsSource.foreach(_.register(env.metricsSystem))
     env.metricsSystem.registerSource(env.blockManager.shuffleMetricsSource)
+    if (conf.get(SHUFFLE_COMPRESS_ADAPTIVE_ENABLED)) {
+      env.metricsSystem.registerSource(env.serializerManager.adaptiveCompressionSource)
+    }
   } else {
     // This enable the registration of the executor source in local mode.
     // The actual registration happens in SparkContext,
@@ -820,6 +824,7 @@ private[spark] class Executor(
       Thread.currentThread.setName(threadName)
       val threadMXBean = ManagementFactory.getThreadMXBean
       val taskMemoryManager = new TaskMemoryManager(env.memoryManager, taskId)
+      taskMemoryManager.addMemoryPressureListener(executorSource.memoryPressureListener)
       val deserializeStartTimeNs = System.nanoTime()
       val deserializeStartCpuTime = if (threadMXBean.isCurrentThreadCpuTimeSupported) {
         threadMXBean.getCurrentThreadCpuTime
@@ -1525,6 +1530,10 @@ private[spark] class Executor(
       metricsPoller.poll()
     }
 
+    // Return pages that no task has picked up for a while to the native allocator, even if no
+    // page has been freed recently.
+    env.memoryManager.pagePool.foreach(_.evictIdle())
+
     val executorUpdates = metricsPoller.getExecutorUpdates()
 
     for (taskRunner <- runningTasks.values().asScala) {
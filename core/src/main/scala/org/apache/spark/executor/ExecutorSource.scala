@@ -24,13 +24,16 @@ import scala.jdk.CollectionConverters._
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import org.apache.hadoop.fs.FileSystem
 
+import org.apache.spark.memory.{MemoryConsumer, MemoryPressureListener}
 import org.apache.spark.metrics.source.Source
+import org.apache.spark.unsafe.memory.PooledMemoryAllocator
 
 private[spark]
 class ExecutorSource(
     threadPool: ThreadPoolExecutor,
     executorId: String,
-    fileSystemSchemes: Array[String]) extends Source {
+    fileSystemSchemes: Array[String],
+    pagePool: Option[PooledMemoryAllocator] = None) extends Source {
 
   private def fileStats(scheme: String) : Option[FileSystem.Statistics] =
     FileSystem.getAllStatistics.asScala.find(s => s.getScheme.equals(scheme))
@@ -81,6 +84,21 @@ class ExecutorSource(
     registerFileSystemStat(scheme, "write_ops", _.getWriteOps(), 0)
   }
 
+  pagePool.foreach { pool =>
+    metricRegistry.register(MetricRegistry.name("pagePool", "hits"), new Gauge[Long] {
+      override def getValue: Long = pool.getHits
+    })
+    metricRegistry.register(MetricRegistry.name("pagePool", "misses"), new Gauge[Long] {
+      override def getValue: Long = pool.getMisses
+    })
+    metricRegistry.register(MetricRegistry.name("pagePool", "retainedBytes"), new Gauge[Long] {
+      override def getValue: Long = pool.getRetainedBytes
+    })
+    metricRegistry.register(MetricRegistry.name("pagePool", "evictedBytes"), new Gauge[Long] {
+      override def getValue: Long = pool.getEvictedBytes
+    })
+  }
+
   // Expose executor task metrics using the Dropwizard metrics system.
   // The list of available Task metrics can be found in TaskMetrics.scala
   val SUCCEEDED_TASKS = metricRegistry.counter(MetricRegistry.name("succeededTasks"))
@@ -149,4 +167,28 @@ class ExecutorSource(
     metricRegistry.counter(MetricRegistry.name("diskBytesSpilled"))
   val METRIC_MEMORY_BYTES_SPILLED =
     metricRegistry.counter(MetricRegistry.name("memoryBytesSpilled"))
+
+  // Counters of the spills the task memory managers ask their consumers for, registered on every
+  // task's TaskMemoryManager through `memoryPressureListener`.
+  val METRIC_MEMORY_PRESSURE_SPILLS =
+    metricRegistry.counter(MetricRegistry.name("memoryPressure", "spills"))
+  val METRIC_MEMORY_PRESSURE_PROACTIVE_SPILLS =
+    metricRegistry.counter(MetricRegistry.name("memoryPressure", "proactiveSpills"))
+  val METRIC_MEMORY_PRESSURE_RELEASED_BYTES =
+    metricRegistry.counter(MetricRegistry.name("memoryPressure", "releasedBytes"))
+
+  val memoryPressureListener: MemoryPressureListener = new MemoryPressureListener {
+    override def onSpill(
+        consumer: MemoryConsumer,
+        trigger: MemoryConsumer,
+        requested: Long,
+        released: Long,
+        proactive: Boolean): Unit = {
+      METRIC_MEMORY_PRESSURE_SPILLS.inc()
+      if (proactive) {
+        METRIC_MEMORY_PRESSURE_PROACTIVE_SPILLS.inc()
+      }
+      METRIC_MEMORY_PRESSURE_RELEASED_BYTES.inc(released)
+    }
+  }
 }
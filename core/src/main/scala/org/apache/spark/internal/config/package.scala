@@ -482,6 +482,35 @@ package object config {
     .checkValue(_ >= 0, "The off-heap memory size must not be negative")
     .createWithDefault(0)
 
+  private[spark] val MEMORY_OFFHEAP_PAGE_POOL_ENABLED =
+    ConfigBuilder("spark.memory.offHeap.pagePool.enabled")
+      .doc("If true, off-heap Tungsten pages freed by a task are kept in an executor-wide pool " +
+        "and reused by later page allocations of a similar size, instead of being returned to " +
+        "the native allocator right away. Memory retained by the pool is not counted as " +
+        "execution memory, so it is used in addition to spark.memory.offHeap.size. Only takes " +
+        "effect when spark.memory.offHeap.enabled is true.")
+      .version("5.0.0")
+      .booleanConf
+      .createWithDefault(false)
+
+  private[spark] val MEMORY_OFFHEAP_PAGE_POOL_MAX_RETAINED_SIZE =
+    ConfigBuilder("spark.memory.offHeap.pagePool.maxRetainedSize")
+      .doc("The maximum number of bytes of freed off-heap pages the page pool keeps for reuse. " +
+        "Pages freed while the pool is full are returned to the native allocator.")
+      .version("5.0.0")
+      .bytesConf(ByteUnit.BYTE)
+      .checkValue(_ >= 0, "The page pool size must not be negative")
+      .createWithDefaultString("256m")
+
+  private[spark] val MEMORY_OFFHEAP_PAGE_POOL_IDLE_TIMEOUT =
+    ConfigBuilder("spark.memory.offHeap.pagePool.idleTimeout")
+      .doc("Pages which stayed in the off-heap page pool without being reused for longer than " +
+        "this are returned to the native allocator.")
+      .version("5.0.0")
+      .timeConf(TimeUnit.MILLISECONDS)
+      .checkValue(_ > 0, "The page pool idle timeout must be positive")
+      .createWithDefaultString("60s")
+
   private[spark] val MEMORY_STORAGE_FRACTION = ConfigBuilder("spark.memory.storageFraction")
     .doc("Amount of storage memory immune to eviction, expressed as a fraction of the " +
       "size of the region set aside by spark.memory.fraction. The higher this is, the " +
@@ -502,6 +531,18 @@ package object config {
     .doubleConf
     .createWithDefault(0.6)
 
+  private[spark] val MEMORY_TASK_SPILL_HIGH_WATER_MARK =
+    ConfigBuilder("spark.memory.task.spillHighWaterMark")
+      .doc("Amount of execution memory a task may hold before its memory manager proactively " +
+        "asks the task's other memory consumers to spill the excess, highest spill priority " +
+        "first, each time a consumer acquires more memory. This spills the cheapest data " +
+        "before a memory request fails instead of after. 0 disables proactive spills.")
+      .internal()
+      .version("5.0.0")
+      .bytesConf(ByteUnit.BYTE)
+      .checkValue(v => v >= 0, "The high-water mark must not be negative.")
+      .createWithDefault(0L)
+
   private[spark] val UNMANAGED_MEMORY_POLLING_INTERVAL =
     ConfigBuilder("spark.memory.unmanagedMemoryPollingInterval")
       .doc("Interval for polling unmanaged memory users to track their memory usage. " +
@@ -1704,6 +1745,48 @@ package object config {
       .booleanConf
       .createWithDefault(true)
 
+  private[spark] val SHUFFLE_COMPRESS_ADAPTIVE_ENABLED =
+    ConfigBuilder("spark.shuffle.compress.adaptive.enabled")
+      .internal()
+      .doc("When true, shuffle output is compressed block by block, and blocks which are tiny " +
+        "or do not compress well are written uncompressed. Once a block of a partition does " +
+        "not compress well, the rest of the partition is written uncompressed. Only applies to " +
+        "the built-in compression codecs.")
+      .version("5.0.0")
+      .booleanConf
+      .createWithDefault(false)
+
+  private[spark] val SHUFFLE_COMPRESS_ADAPTIVE_BLOCK_SIZE =
+    ConfigBuilder("spark.shuffle.compress.adaptive.blockSize")
+      .internal()
+      .doc("The size of the blocks which adaptive shuffle compression decides to compress or " +
+        "not, and which are compressed independently of each other.")
+      .version("5.0.0")
+      .bytesConf(ByteUnit.BYTE)
+      .checkValue(v => v > 0 && v <= ByteArrayMethods.MAX_ROUNDED_ARRAY_LENGTH,
+        s"The value must be in allowed range [1, ${ByteArrayMethods.MAX_ROUNDED_ARRAY_LENGTH}].")
+      .createWithDefaultString("32k")
+
+  private[spark] val SHUFFLE_COMPRESS_ADAPTIVE_MIN_SIZE =
+    ConfigBuilder("spark.shuffle.compress.adaptive.minSize")
+      .internal()
+      .doc("Blocks smaller than this, e.g. the whole output of a tiny partition, are written " +
+        "uncompressed by adaptive shuffle compression.")
+      .version("5.0.0")
+      .bytesConf(ByteUnit.BYTE)
+      .checkValue(v => v >= 0 && v <= Int.MaxValue, "The value must be in [0, Int.MaxValue].")
+      .createWithDefaultString("512")
+
+  private[spark] val SHUFFLE_COMPRESS_ADAPTIVE_MAX_RATIO =
+    ConfigBuilder("spark.shuffle.compress.adaptive.maxRatio")
+      .internal()
+      .doc("A block is only written compressed by adaptive shuffle compression if it compresses " +
+        "to at most this fraction of its size.")
+      .version("5.0.0")
+      .doubleConf
+      .checkValue(v => v > 0 && v <= 1, "The value must be in (0, 1].")
+      .createWithDefault(0.9)
+
   private[spark] val SHUFFLE_SPILL_COMPRESS =
     ConfigBuilder("spark.shuffle.spill.compress")
       .doc("Whether to compress data spilled during shuffles. Compression will use " +
@@ -1755,12 +1838,95 @@ package object config {
       .intConf
       .createWithDefault(200)
 
+  private[spark] val SHUFFLE_BYPASS_MERGE_WRITER_THREADS =
+    ConfigBuilder("spark.shuffle.sort.bypassMergeSort.writerThreads")
+      .doc("Number of threads of the pool shared by the bypass-merge-sort shuffle writers of " +
+        "an executor (see spark.shuffle.sort.bypassMergeThreshold). The writers serialize " +
+        "records into batches, which are accounted as execution memory, and the pool writes the " +
+        "batches into the partition files and concatenates the partition files in parallel. " +
+        "Only used with serializers that support relocation of serialized objects. 0 writes " +
+        "everything on the task thread.")
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v >= 0, "The number of threads must not be negative.")
+      .createWithDefault(0)
+
+  private[spark] val SHUFFLE_BYPASS_MERGE_WRITER_BATCH_SIZE =
+    ConfigBuilder("spark.shuffle.sort.bypassMergeSort.writerBatchSize")
+      .doc("Number of records the bypass-merge-sort shuffle writer hands over to a thread at " +
+        s"once when ${SHUFFLE_BYPASS_MERGE_WRITER_THREADS.key} is set. Besides the batch being " +
+        "filled, at most two batches per thread are buffered by every map task, and a batch is " +
+        "handed over early when the map task cannot get more memory for it.")
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v > 0, "The batch size must be positive.")
+      .createWithDefault(1024)
+
   private[spark] val SHUFFLE_MANAGER =
     ConfigBuilder("spark.shuffle.manager")
       .version("1.1.0")
       .stringConf
       .createWithDefault("sort")
 
+  private[spark] val STREAMING_SHUFFLE_READER_CREDITS =
+    ConfigBuilder("spark.shuffle.streaming.reader.credits")
+      .doc("The number of data messages a reader of the streaming shuffle lets every writer " +
+        "send ahead of what it has consumed. The reader grants the credits again in batches of " +
+        "half of this number as it consumes the messages.")
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v > 0, "The number of credits must be positive.")
+      .createWithDefault(32)
+
+  private[spark] val STREAMING_SHUFFLE_WRITER_MESSAGE_SIZE =
+    ConfigBuilder("spark.shuffle.streaming.writer.messageSize")
+      .doc("The size of the records a writer of the streaming shuffle buffers for a reader " +
+        "before it sends them in one data message.")
+      .internal()
+      .version("5.0.0")
+      .bytesConf(ByteUnit.BYTE)
+      .checkValue(v => v > 0 && v <= Int.MaxValue / 2,
+        "The message size must be positive and less than 1 GiB.")
+      .createWithDefaultString("32k")
+
+  private[spark] val STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY =
+    ConfigBuilder("spark.shuffle.streaming.writer.maxBatchDelay")
+      .doc("The longest time a writer of the streaming shuffle holds the first buffered record " +
+        "of a reader before it sends the records in a data message, even if they are fewer than " +
+        s"${STREAMING_SHUFFLE_WRITER_MESSAGE_SIZE.key}. The delay is checked when records are " +
+        "written.")
+      .internal()
+      .version("5.0.0")
+      .timeConf(TimeUnit.MILLISECONDS)
+      .checkValue(v => v >= 0, "The delay must not be negative.")
+      .createWithDefaultString("10ms")
+
+  private[spark] val STREAMING_SHUFFLE_TIMEOUT =
+    ConfigBuilder("spark.shuffle.streaming.timeout")
+      .doc("How long a writer of the streaming shuffle waits for a reader to connect, to grant " +
+        "it credits or to acknowledge the end of the stream, and how long a reader waits for " +
+        "all the writers to register, before failing its task. The map and reduce tasks of a " +
+        "streaming shuffle wait for each other, so this bounds how long they wait when the " +
+        "other side is not running.")
+      .internal()
+      .version("5.0.0")
+      .timeConf(TimeUnit.MILLISECONDS)
+      .checkValue(v => v > 0, "The timeout must be positive.")
+      .createWithDefaultString("120s")
+
+  private[spark] val STREAMING_SHUFFLE_LOCATION_POLL_INTERVAL =
+    ConfigBuilder("spark.shuffle.streaming.reader.locationPollInterval")
+      .doc("How often a reader of the streaming shuffle asks the driver for the locations of " +
+        "the writers it is not connected to yet.")
+      .internal()
+      .version("5.0.0")
+      .timeConf(TimeUnit.MILLISECONDS)
+      .checkValue(v => v > 0, "The interval must be positive.")
+      .createWithDefaultString("100ms")
+
   private[spark] val SHUFFLE_REDUCE_LOCALITY_ENABLE =
     ConfigBuilder("spark.shuffle.reduceLocality.enabled")
       .doc("Whether to compute locality preferences for reduce tasks")
@@ -1812,6 +1978,20 @@ package object config {
       .booleanConf
       .createWithDefault(true)
 
+  private[spark] val SHUFFLE_UNSAFE_PARALLEL_MERGE_THREADS =
+    ConfigBuilder("spark.shuffle.unsafe.parallelMerge.threads")
+      .doc("Number of threads of the executor-wide pool used to merge the spills of a " +
+        "serialized shuffle write by copying every spill's partitions straight into their " +
+        "final offsets in a preallocated output file, concurrently. Only applies when the " +
+        s"spills can be merged by concatenation (see ${SHUFFLE_UNSAFE_FAST_MERGE_ENABLE.key}), " +
+        "spark.file.transferTo is enabled and I/O encryption is disabled. 0 merges the spills " +
+        "one partition after another.")
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v >= 0, "The number of threads must not be negative.")
+      .createWithDefault(0)
+
   private[spark] val SHUFFLE_SORT_USE_RADIXSORT =
     ConfigBuilder("spark.shuffle.sort.useRadixSort")
       .doc("Whether to use radix sort for sorting in-memory partition ids. Radix sort is much " +
@@ -1820,6 +2000,16 @@ package object config {
       .booleanConf
       .createWithDefault(true)
 
+  private[spark] val SHUFFLE_SORT_WIDE_POINTERS_ENABLED =
+    ConfigBuilder("spark.shuffle.sort.widePointers.enabled")
+      .internal()
+      .doc("When true, the serialized shuffle sorts the records of shuffles with more than " +
+        "16777216 partitions, or of tasks with pages larger than 128 MB, with two-word record " +
+        "pointers, instead of falling back to the deserialized shuffle or to smaller pages.")
+      .version("5.0.0")
+      .booleanConf
+      .createWithDefault(true)
+
   private[spark] val SHUFFLE_MIN_NUM_PARTS_TO_HIGHLY_COMPRESS =
     ConfigBuilder("spark.shuffle.minNumPartitionsToHighlyCompress")
       .internal()
@@ -1838,6 +2028,16 @@ package object config {
       .booleanConf
       .createWithDefault(false)
 
+  private[spark] val SHUFFLE_FETCH_COALESCE_BLOCKS_ENABLED =
+    ConfigBuilder("spark.shuffle.fetch.coalesceBlocks.enabled")
+      .doc("Whether to ask the external shuffle service to serve the shuffle blocks which are " +
+        "close to each other in the same data file in one chunk, so that many small blocks are " +
+        "fetched in a few round trips rather than one round trip per block. External shuffle " +
+        "services which do not support it serve every block in its own chunk.")
+      .version("5.0.0")
+      .booleanConf
+      .createWithDefault(false)
+
   private[spark] val SHUFFLE_HOST_LOCAL_DISK_READING_ENABLED =
     ConfigBuilder("spark.shuffle.readHostLocalDisk")
       .doc(s"If enabled (and `${SHUFFLE_USE_OLD_FETCH_PROTOCOL.key}` is disabled, shuffle " +
@@ -1896,7 +2096,8 @@ package object config {
         "little while and try to perform the check again. If the check fails more than a " +
         "configured max failure times for a job then fail current job submission. Note this " +
         "config only applies to jobs that contain one or more barrier stages, we won't perform " +
-        "the check on non-barrier jobs.")
+        "the check on non-barrier jobs. It also applies to stages reading a streaming shuffle, " +
+        "which must run at the same time as the stages writing it.")
       .version("2.4.0")
       .timeConf(TimeUnit.SECONDS)
       .createWithDefaultString("15s")
@@ -1910,7 +2111,8 @@ package object config {
         "while and try to perform the check again. If the check fails more than a configured " +
         "max failure times for a job then fail current job submission. Note this config only " +
         "applies to jobs that contain one or more barrier stages, we won't perform the check on " +
-        "non-barrier jobs.")
+        "non-barrier jobs. It also applies to stages reading a streaming shuffle, which are " +
+        "aborted once the check has failed that many times.")
       .version("2.4.0")
       .intConf
       .checkValue(v => v > 0, "The max failures should be a positive value.")
@@ -1965,6 +2167,65 @@ package object config {
         "The merge factor must be -1 (disabled) or at least 2.")
       .createWithDefault(-1)
 
+  private[spark] val UNSAFE_SORTER_SPILL_ENCODING =
+    ConfigBuilder("spark.unsafe.sorter.spill.encoding")
+      .doc("The encoding of the records in the spill files of UnsafeExternalSorter, applied " +
+        "before the spill compression codec. 'RAW' writes every record as is. 'DELTA' writes " +
+        "every record as the bytes and the key prefix it does not share with the previous " +
+        "record in sort order, which writes far fewer bytes for sorts on repetitive keys.")
+      .internal()
+      .version("5.0.0")
+      .stringConf
+      .transform(_.toUpperCase(Locale.ROOT))
+      .checkValues(Set("RAW", "DELTA"))
+      .createWithDefault("RAW")
+
+  private[spark] val UNSAFE_SORTER_SPILL_MERGE_THREADS =
+    ConfigBuilder("spark.unsafe.sorter.spill.merge.threads")
+      .doc("Number of threads of the executor-wide pool used to merge the groups of an " +
+        "intermediate round of a bounded spill merge (see " +
+        s"${UNSAFE_SORTER_SPILL_MERGE_FACTOR.key}) in parallel. Every group being merged keeps " +
+        "up to merge factor readers open, so this also multiplies the number of concurrently " +
+        "open spill readers. 0 merges the groups one after another on the task thread.")
+      .withBindingPolicy(ConfigBindingPolicy.NOT_APPLICABLE)
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v >= 0, "The number of threads must not be negative.")
+      .createWithDefault(0)
+
+  private[spark] val UNSAFE_SORTER_PARALLEL_SORT_THREADS =
+    ConfigBuilder("spark.unsafe.sorter.parallelSort.threads")
+      .doc("Number of threads of the executor-wide pool used to radix sort the in-memory " +
+        "records of a single UnsafeExternalSorter in parallel. 0 disables parallel sorting.")
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v >= 0, "The number of threads must not be negative.")
+      .createWithDefault(0)
+
+  private[spark] val UNSAFE_SORTER_PARALLEL_SORT_MIN_RECORDS =
+    ConfigBuilder("spark.unsafe.sorter.parallelSort.minRecords")
+      .doc("Minimum number of in-memory records for which UnsafeExternalSorter sorts in " +
+        "parallel, when spark.unsafe.sorter.parallelSort.threads is positive.")
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v > 0, "The minimum number of records must be positive.")
+      .createWithDefault(1000000)
+
+  private[spark] val UNSAFE_SORTER_ASYNC_SPILL_THREADS =
+    ConfigBuilder("spark.unsafe.sorter.asyncSpill.threads")
+      .doc("Number of threads of the executor-wide pool used by UnsafeExternalSorter to sort " +
+        "and write spills in the background, while the task keeps inserting records into a " +
+        "new in-memory buffer. At most one spill per sorter is in flight, and its memory stays " +
+        "accounted to the task until it is written. 0 disables asynchronous spills.")
+      .internal()
+      .version("5.0.0")
+      .intConf
+      .checkValue(v => v >= 0, "The number of threads must not be negative.")
+      .createWithDefault(0)
+
   private[spark] val DEFAULT_PLUGINS_LIST = "spark.plugins.defaultList"
 
   private[spark] val PLUGINS =
@@ -0,0 +1,441 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.io
+
+import java.io._
+
+import com.codahale.metrics.{Counter, MetricRegistry}
+import com.github.luben.zstd.{Zstd, ZstdCompressCtx, ZstdDecompressCtx}
+import com.ning.compress.lzf.{ChunkDecoder, ChunkEncoder, LZFEncoder}
+import com.ning.compress.lzf.util.{ChunkDecoderFactory, ChunkEncoderFactory}
+import net.jpountz.lz4.LZ4Factory
+import org.xerial.snappy.Snappy
+
+import org.apache.spark.SparkConf
+import org.apache.spark.internal.Logging
+import org.apache.spark.internal.LogKeys.CLASS_NAME
+import org.apache.spark.internal.config._
+import org.apache.spark.metrics.source.Source
+import org.apache.spark.util.Utils
+
+/**
+ * A [[CompressionCodec]] for shuffle data which decides for every block of a stream whether
+ * to compress it with the given codec, so that tiny partitions do not pay for the framing of
+ * the codec and incompressible partitions do not burn CPU time.
+ *
+ * The stream is cut into blocks of `spark.shuffle.compress.adaptive.blockSize` bytes, and every
+ * block is written as a frame:
+ * {{{
+ *   [codec id (byte)][uncompressed length (int)][payload length (int)][payload (bytes)]
+ * }}}
+ * where the payload is either the block itself, or the block compressed on its own in the block
+ * format of the library behind the codec with that id. A stream compresses all its blocks with
+ * one compressor, so the setup of a codec stream is not paid for every block. Blocks smaller
+ * than `spark.shuffle.compress.adaptive.minSize` are never compressed. Every other block is a
+ * sample of how well the stream compresses: once a block does not compress to at most
+ * `spark.shuffle.compress.adaptive.maxRatio` of its size, the rest of the stream is written
+ * uncompressed. The frames carry the codec which wrote them, so
+ * concatenated streams can be read back as one, as the fast spill merge and batch fetches
+ * require.
+ *
+ * @param codec the codec to compress blocks with, which must be a built-in codec.
+ * @param source the metrics of the SparkEnv which the codec compresses shuffle data for.
+ */
+private[spark] class AdaptiveCompressionCodec(
+    conf: SparkConf,
+    private[io] val codec: CompressionCodec,
+    source: AdaptiveCompressionSource) extends CompressionCodec {
+
+  import AdaptiveCompressionCodec._
+
+  private[this] val codecId = idOf(codec)
+  private[this] val blockSize = conf.get(SHUFFLE_COMPRESS_ADAPTIVE_BLOCK_SIZE).toInt
+  private[this] val minSize = conf.get(SHUFFLE_COMPRESS_ADAPTIVE_MIN_SIZE).toInt
+  private[this] val maxRatio = conf.get(SHUFFLE_COMPRESS_ADAPTIVE_MAX_RATIO)
+
+  private def blockCodecForId(id: Byte): BlockCodec = id match {
+    case LZ4_ID => new LZ4BlockCodec
+    case LZF_ID => new LZFBlockCodec(blockSize)
+    case SNAPPY_ID => new SnappyBlockCodec
+    case ZSTD_ID => new ZStdBlockCodec(conf.get(IO_COMPRESSION_ZSTD_LEVEL))
+    case _ => throw new IOException(s"Unknown codec id $id in adaptively compressed stream")
+  }
+
+  override def compressedOutputStream(s: OutputStream): OutputStream = {
+    new AdaptiveCompressionOutputStream(s)
+  }
+
+  override def compressedInputStream(s: InputStream): InputStream = {
+    new AdaptiveCompressionInputStream(s)
+  }
+
+  private class AdaptiveCompressionOutputStream(out: OutputStream) extends OutputStream {
+
+    private[this] val dataOut = new DataOutputStream(out)
+    private[this] val buffer = new Array[Byte](blockSize)
+    private[this] var count = 0
+    private[this] var compressed: Array[Byte] = _
+    private[this] var compressor: BlockCodec = _
+    /** Whether blocks are still compressed, i.e. no block has been incompressible yet. */
+    private[this] var compressing = true
+    private[this] var closed = false
+
+    override def write(b: Int): Unit = {
+      buffer(count) = b.toByte
+      count += 1
+      if (count == buffer.length) {
+        writeFrame()
+      }
+    }
+
+    override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+      var pos = off
+      var remaining = len
+      while (remaining > 0) {
+        val n = math.min(remaining, buffer.length - count)
+        System.arraycopy(b, pos, buffer, count, n)
+        count += n
+        pos += n
+        remaining -= n
+        if (count == buffer.length) {
+          writeFrame()
+        }
+      }
+    }
+
+    // Like the LZ4 codec, frames are only cut when a block is full or when the stream is closed,
+    // so flushes do not shrink the blocks.
+    override def flush(): Unit = dataOut.flush()
+
+    override def close(): Unit = {
+      if (!closed) {
+        closed = true
+        Utils.tryWithSafeFinally {
+          writeFrame()
+        } {
+          Utils.tryWithSafeFinally {
+            dataOut.close()
+          } {
+            if (compressor != null) {
+              compressor.close()
+            }
+          }
+        }
+      }
+    }
+
+    private def writeFrame(): Unit = {
+      if (count == 0) {
+        return
+      }
+      if (compressing && count >= minSize) {
+        if (compressor == null) {
+          compressor = blockCodecForId(codecId)
+          compressed = new Array[Byte](compressor.maxCompressedLength(blockSize))
+        }
+        val startTime = System.nanoTime()
+        val compressedLength = compressor.compress(buffer, count, compressed)
+        source.timeNanos(codecId).inc(System.nanoTime() - startTime)
+        if (compressedLength <= count * maxRatio) {
+          source.bytesIn(codecId).inc(count)
+          source.bytesOut(codecId).inc(compressedLength)
+          writeHeader(codecId, compressedLength)
+          dataOut.write(compressed, 0, compressedLength)
+          count = 0
+          return
+        }
+        compressing = false
+      }
+      source.bytesIn(UNCOMPRESSED).inc(count)
+      source.bytesOut(UNCOMPRESSED).inc(count)
+      writeHeader(UNCOMPRESSED, count)
+      dataOut.write(buffer, 0, count)
+      count = 0
+    }
+
+    private def writeHeader(id: Byte, payloadLength: Int): Unit = {
+      dataOut.writeByte(id)
+      dataOut.writeInt(count)
+      dataOut.writeInt(payloadLength)
+    }
+  }
+
+  private class AdaptiveCompressionInputStream(in: InputStream) extends InputStream {
+
+    private[this] val dataIn = new DataInputStream(in)
+    private[this] var frame = new Array[Byte](blockSize)
+    private[this] var payload: Array[Byte] = _
+    /** The decompressors of the codecs the frames of this stream were written by. */
+    private[this] val decompressors = new Array[BlockCodec](ID_NAMES.size)
+    private[this] var pos = 0
+    private[this] var limit = 0
+
+    /** Reads the next frame if the current one is consumed, returning false at the end. */
+    private def ensureFrame(): Boolean = {
+      while (pos == limit) {
+        val id = dataIn.read()
+        if (id < 0) {
+          return false
+        }
+        val length = dataIn.readInt()
+        val payloadLength = dataIn.readInt()
+        if (frame.length < length) {
+          frame = new Array[Byte](length)
+        }
+        if (id == UNCOMPRESSED) {
+          dataIn.readFully(frame, 0, length)
+        } else {
+          if (payload == null || payload.length < payloadLength) {
+            payload = new Array[Byte](math.max(payloadLength, blockSize))
+          }
+          dataIn.readFully(payload, 0, payloadLength)
+          decompressor(id.toByte).decompress(payload, payloadLength, frame, length)
+        }
+        pos = 0
+        limit = length
+      }
+      true
+    }
+
+    override def read(): Int = {
+      if (!ensureFrame()) {
+        -1
+      } else {
+        val b = frame(pos) & 0xFF
+        pos += 1
+        b
+      }
+    }
+
+    override def read(b: Array[Byte], off: Int, len: Int): Int = {
+      if (len == 0) {
+        0
+      } else if (!ensureFrame()) {
+        -1
+      } else {
+        val n = math.min(len, limit - pos)
+        System.arraycopy(frame, pos, b, off, n)
+        pos += n
+        n
+      }
+    }
+
+    override def available(): Int = limit - pos
+
+    override def close(): Unit = {
+      Utils.tryWithSafeFinally {
+        dataIn.close()
+      } {
+        for (i <- decompressors.indices if decompressors(i) != null) {
+          decompressors(i).close()
+          decompressors(i) = null
+        }
+      }
+    }
+
+    private def decompressor(id: Byte): BlockCodec = {
+      if (id < 0 || id >= decompressors.length) {
+        throw new IOException(s"Unknown codec id $id in adaptively compressed stream")
+      }
+      if (decompressors(id) == null) {
+        decompressors(id) = blockCodecForId(id)
+      }
+      decompressors(id)
+    }
+  }
+}
+
+private[spark] object AdaptiveCompressionCodec extends Logging {
+
+  /** The id of frames which are written uncompressed. */
+  private[io] val UNCOMPRESSED: Byte = 0
+
+  private final val LZ4_ID: Byte = 1
+  private final val LZF_ID: Byte = 2
+  private final val SNAPPY_ID: Byte = 3
+  private final val ZSTD_ID: Byte = 4
+
+  private val CODEC_NAME_TO_ID: Map[String, Byte] = Map(
+    CompressionCodec.LZ4 -> LZ4_ID,
+    CompressionCodec.LZF -> LZF_ID,
+    CompressionCodec.SNAPPY -> SNAPPY_ID,
+    CompressionCodec.ZSTD -> ZSTD_ID)
+
+  private val ID_TO_CODEC_NAME: Map[Byte, String] = CODEC_NAME_TO_ID.map(_.swap)
+
+  /** The names of the ids which frames can be written with, for the metrics. */
+  private[io] val ID_NAMES: Map[Byte, String] = ID_TO_CODEC_NAME + (UNCOMPRESSED -> "none")
+
+  private def idOf(codec: CompressionCodec): Byte = {
+    CODEC_NAME_TO_ID(CompressionCodec.getShortName(codec.getClass.getName))
+  }
+
+  /**
+   * Wraps the given codec to compress shuffle data adaptively if it is a built-in codec, or
+   * returns it as is otherwise, as its frames could not be told apart from the others.
+   */
+  def apply(
+      conf: SparkConf,
+      codec: CompressionCodec,
+      source: AdaptiveCompressionSource): CompressionCodec = {
+    val isBuiltIn = CompressionCodec.shortCompressionCodecNames.values.exists(
+      _ == codec.getClass.getName)
+    if (isBuiltIn) {
+      new AdaptiveCompressionCodec(conf, codec, source)
+    } else {
+      logWarning(log"Adaptive shuffle compression is not supported for codec " +
+        log"${MDC(CLASS_NAME, codec.getClass.getName)}, compressing every block with it")
+      codec
+    }
+  }
+
+  /**
+   * Compresses and decompresses single blocks in the block format of the library behind a
+   * codec. An instance is used by one stream at a time, and keeps the state of the library,
+   * e.g. its hash tables or native context, from one block to the next.
+   */
+  private trait BlockCodec extends Closeable {
+
+    def maxCompressedLength(length: Int): Int
+
+    /** Compresses `src(0 until length)` into `dst`, returning the compressed length. */
+    def compress(src: Array[Byte], length: Int, dst: Array[Byte]): Int
+
+    /** Decompresses `src(0 until length)` into `dst`, which must yield `dstLength` bytes. */
+    def decompress(src: Array[Byte], length: Int, dst: Array[Byte], dstLength: Int): Unit
+
+    override def close(): Unit = {}
+
+    protected def checkLength(actual: Int, expected: Int): Unit = {
+      if (actual != expected) {
+        throw new IOException(s"Adaptively compressed frame decompressed to $actual bytes " +
+          s"instead of $expected")
+      }
+    }
+  }
+
+  private class LZ4BlockCodec extends BlockCodec {
+    private[this] val factory = LZ4Factory.fastestInstance()
+    private[this] val compressor = factory.fastCompressor()
+    private[this] val decompressor = factory.safeDecompressor()
+
+    override def maxCompressedLength(length: Int): Int = compressor.maxCompressedLength(length)
+
+    override def compress(src: Array[Byte], length: Int, dst: Array[Byte]): Int = {
+      compressor.compress(src, 0, length, dst, 0, dst.length)
+    }
+
+    override def decompress(
+        src: Array[Byte], length: Int, dst: Array[Byte], dstLength: Int): Unit = {
+      checkLength(decompressor.decompress(src, 0, length, dst, 0, dstLength), dstLength)
+    }
+  }
+
+  private class LZFBlockCodec(blockSize: Int) extends BlockCodec {
+    private[this] var encoder: ChunkEncoder = _
+    private[this] lazy val decoder: ChunkDecoder = ChunkDecoderFactory.optimalInstance()
+
+    override def maxCompressedLength(length: Int): Int = {
+      LZFEncoder.estimateMaxWorkspaceSize(length)
+    }
+
+    override def compress(src: Array[Byte], length: Int, dst: Array[Byte]): Int = {
+      if (encoder == null) {
+        encoder = ChunkEncoderFactory.optimalInstance(blockSize)
+      }
+      LZFEncoder.appendEncoded(encoder, src, 0, length, dst, 0)
+    }
+
+    override def decompress(
+        src: Array[Byte], length: Int, dst: Array[Byte], dstLength: Int): Unit = {
+      checkLength(decoder.decode(src, 0, length, dst), dstLength)
+    }
+
+    override def close(): Unit = {
+      if (encoder != null) {
+        encoder.close()
+      }
+    }
+  }
+
+  private class SnappyBlockCodec extends BlockCodec {
+    override def maxCompressedLength(length: Int): Int = Snappy.maxCompressedLength(length)
+
+    override def compress(src: Array[Byte], length: Int, dst: Array[Byte]): Int = {
+      Snappy.compress(src, 0, length, dst, 0)
+    }
+
+    override def decompress(
+        src: Array[Byte], length: Int, dst: Array[Byte], dstLength: Int): Unit = {
+      checkLength(Snappy.uncompress(src, 0, length, dst, 0), dstLength)
+    }
+  }
+
+  private class ZStdBlockCodec(level: Int) extends BlockCodec {
+    private[this] var compressCtx: ZstdCompressCtx = _
+    private[this] var decompressCtx: ZstdDecompressCtx = _
+
+    override def maxCompressedLength(length: Int): Int = Zstd.compressBound(length).toInt
+
+    override def compress(src: Array[Byte], length: Int, dst: Array[Byte]): Int = {
+      if (compressCtx == null) {
+        compressCtx = new ZstdCompressCtx().setLevel(level)
+      }
+      compressCtx.compressByteArray(dst, 0, dst.length, src, 0, length)
+    }
+
+    override def decompress(
+        src: Array[Byte], length: Int, dst: Array[Byte], dstLength: Int): Unit = {
+      if (decompressCtx == null) {
+        decompressCtx = new ZstdDecompressCtx()
+      }
+      checkLength(decompressCtx.decompressByteArray(dst, 0, dstLength, src, 0, length), dstLength)
+    }
+
+    override def close(): Unit = {
+      if (compressCtx != null) {
+        compressCtx.close()
+      }
+      if (decompressCtx != null) {
+        decompressCtx.close()
+      }
+    }
+  }
+}
+
+/**
+ * The number of bytes that the adaptively compressed shuffle streams of a SparkEnv wrote with
+ * each codec, before (`bytesIn`) and after (`bytesOut`) compression, and the time spent
+ * compressing with it, including the blocks which were then written uncompressed.
+ */
+private[spark] class AdaptiveCompressionSource extends Source {
+
+  override val sourceName: String = "AdaptiveShuffleCompression"
+  override val metricRegistry: MetricRegistry = new MetricRegistry()
+
+  // The counters are created up front, as the metrics system copies them on registration.
+  private def counters(metric: String): Map[Byte, Counter] = {
+    AdaptiveCompressionCodec.ID_NAMES.map { case (id, name) =>
+      id -> metricRegistry.counter(MetricRegistry.name(name, metric))
+    }
+  }
+
+  private[io] val bytesIn: Map[Byte, Counter] = counters("bytesIn")
+  private[io] val bytesOut: Map[Byte, Counter] = counters("bytesOut")
+  private[io] val timeNanos: Map[Byte, Counter] = counters("compressTimeNanos")
+}
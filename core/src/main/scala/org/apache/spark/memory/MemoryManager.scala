@@ -17,6 +17,7 @@
 
 package org.apache.spark.memory
 
+import java.util.concurrent.TimeUnit
 import javax.annotation.concurrent.GuardedBy
 
 import org.apache.spark.SparkConf
@@ -26,7 +27,7 @@ import org.apache.spark.storage.BlockId
 import org.apache.spark.storage.memory.MemoryStore
 import org.apache.spark.unsafe.Platform
 import org.apache.spark.unsafe.array.ByteArrayMethods
-import org.apache.spark.unsafe.memory.MemoryAllocator
+import org.apache.spark.unsafe.memory.{MemoryAllocator, PooledMemoryAllocator}
 import org.apache.spark.util.Utils
 
 /**
@@ -276,7 +277,40 @@ private[spark] abstract class MemoryManager(
   private[memory] final val tungstenMemoryAllocator: MemoryAllocator = {
     tungstenMemoryMode match {
       case MemoryMode.ON_HEAP => MemoryAllocator.HEAP
+      case MemoryMode.OFF_HEAP if conf.get(MEMORY_OFFHEAP_PAGE_POOL_ENABLED) =>
+        new PooledMemoryAllocator(
+          MemoryAllocator.UNSAFE,
+          conf.get(MEMORY_OFFHEAP_PAGE_POOL_MAX_RETAINED_SIZE),
+          TimeUnit.MILLISECONDS.toNanos(conf.get(MEMORY_OFFHEAP_PAGE_POOL_IDLE_TIMEOUT)),
+          if (numCores > 0) numCores else Runtime.getRuntime.availableProcessors())
       case MemoryMode.OFF_HEAP => MemoryAllocator.UNSAFE
     }
   }
+
+  /**
+   * The number of bytes the Tungsten allocator reserves for a page of `size` bytes. The page pool
+   * rounds pages up to a size class, and that rounded size is what has to be acquired from the
+   * execution memory pool.
+   */
+  private[memory] def tungstenPageCapacity(size: Long): Long = pagePool match {
+    case Some(pool) => pool.capacityFor(size)
+    case None => size
+  }
+
+  /**
+   * The size of the largest page which can be allocated with `acquired` bytes of execution
+   * memory, taking the size-class rounding of the page pool into account.
+   */
+  private[memory] def tungstenPageSizeWithin(acquired: Long): Long = pagePool match {
+    case Some(pool) => pool.largestCapacityWithin(acquired)
+    case None => acquired
+  }
+
+  /**
+   * The executor-wide pool that off-heap Tungsten pages are recycled through, if enabled.
+   */
+  private[spark] def pagePool: Option[PooledMemoryAllocator] = tungstenMemoryAllocator match {
+    case pool: PooledMemoryAllocator => Some(pool)
+    case _ => None
+  }
 }
@@ -50,6 +50,7 @@ import org.apache.spark.resource.{ResourceProfile, TaskResourceProfile}
 import org.apache.spark.resource.ResourceProfile.{DEFAULT_RESOURCE_PROFILE_ID, EXECUTOR_CORES_LOCAL_PROPERTY, PYSPARK_MEMORY_LOCAL_PROPERTY}
 import org.apache.spark.rpc.RpcTimeout
 import org.apache.spark.rpc.RpcTimeoutException
+import org.apache.spark.shuffle.streaming.StreamingShuffleHandle
 import org.apache.spark.storage._
 import org.apache.spark.storage.BlockManagerMessages.BlockManagerHeartbeat
 import org.apache.spark.util._
@@ -322,6 +323,11 @@ private[spark] class DAGScheduler(
   private val maxFailureNumTasksCheck = sc.conf
     .get(config.BARRIER_MAX_CONCURRENT_TASKS_CHECK_MAX_FAILURES)
 
+  /**
+   * Number of max concurrent tasks check failures for each stage reading a streaming shuffle.
+   */
+  private[scheduler] val coScheduledStageIdToNumTasksCheckFailures = new HashMap[Int, Int]
+
   private val messageScheduler =
     ThreadUtils.newDaemonSingleThreadScheduledExecutor("dag-scheduler-message")
 
@@ -853,7 +859,10 @@ private[spark] class DAGScheduler(
               // Mark mapStage as available with shuffle outputs only after shuffle merge is
               // finalized with push based shuffle. If not, subsequent ShuffleMapStage won't
               // read from merged output as the MergeStatuses are not available.
-              if (!mapStage.isAvailable || !mapStage.shuffleDep.shuffleMergeFinalized) {
+              // The records of a streaming shuffle are not stored, so its map stage is missing
+              // even once it finished.
+              if (!mapStage.isAvailable || !mapStage.shuffleDep.shuffleMergeFinalized ||
+                  isStreamingShuffleMapStage(mapStage)) {
                 missing += mapStage
               } else {
                 // Forward the nextAttemptId if skipped and visited for the first time.
@@ -945,6 +954,7 @@ private[spark] class DAGScheduler(
               }
               // data structures based on StageId
               stageIdToStage -= stageId
+              coScheduledStageIdToNumTasksCheckFailures -= stageId
               logDebug("After removal of stage %d, remaining stages = %d"
                 .format(stageId, stageIdToStage.size))
             }
@@ -1255,6 +1265,17 @@ private[spark] class DAGScheduler(
     }
   }
 
+  /**
+   * Checks again whether a waiting stage which reads a streaming shuffle fits in the slots of the
+   * cluster, unless it has been submitted or removed in the meantime.
+   */
+  private[scheduler] def resubmitCoScheduledStage(stageId: Int): Unit = {
+    stageIdToStage.get(stageId).filter(waitingStages.contains).foreach { stage =>
+      waitingStages -= stage
+      submitStage(stage)
+    }
+  }
+
   /**
    * Check for waiting stages which are now eligible for resubmission.
    * Submits stages that depend on the given parent stage. Called when the parent stage completes
@@ -1272,6 +1293,77 @@ private[spark] class DAGScheduler(
     }
   }
 
+  /**
+   * Whether the stage is the map stage of a streaming shuffle. Its tasks push their records
+   * straight to the tasks reading the shuffle instead of storing them, so they only finish once
+   * the readers run: the stages reading a streaming shuffle are submitted together with its map
+   * stage instead of after it, and its records can only be read once.
+   */
+  private def isStreamingShuffleMapStage(stage: Stage): Boolean = stage match {
+    case s: ShuffleMapStage =>
+      s.shuffleDep.shuffleHandle.isInstanceOf[StreamingShuffleHandle[_, _, _]]
+    case _ => false
+  }
+
+  /** The stage and the running streaming shuffle map stages it is co-scheduled with. */
+  private def coScheduledStages(stage: Stage): Set[Stage] = {
+    stage.parents.filter(p => isStreamingShuffleMapStage(p) && runningStages(p))
+      .flatMap(coScheduledStages).toSet + stage
+  }
+
+  /**
+   * Submits the waiting stages which read the given streaming shuffle map stage, once it runs,
+   * so that its tasks do not wait for readers which are only submitted after they finish.
+   */
+  private def submitCoScheduledChildStages(stage: Stage): Unit = {
+    if (isStreamingShuffleMapStage(stage) && runningStages(stage)) {
+      submitWaitingChildStages(stage)
+    }
+  }
+
+  /**
+   * Submits a stage whose missing parents are all running streaming shuffle map stages. If all
+   * the tasks which must run together do not fit in the slots of the cluster, as they would wait
+   * for each other forever, the stage waits and is checked again like a barrier job, until the
+   * check has failed more than the configured max failure times and the stage is aborted.
+   */
+  private def submitCoScheduledStage(stage: Stage, jobId: Int): Unit = {
+    val stages = coScheduledStages(stage)
+    val numTasks = stages.toSeq.map(_.numTasks).sum
+    val rp = sc.resourceProfileManager.resourceProfileFromId(stage.resourceProfileId)
+    val maxNumConcurrentTasks = sc.maxNumConcurrentTasks(rp)
+    if (numTasks > maxNumConcurrentTasks) {
+      val numCheckFailures = coScheduledStageIdToNumTasksCheckFailures.getOrElse(stage.id, 0) + 1
+      if (numCheckFailures <= maxFailureNumTasksCheck) {
+        logWarning(log"${MDC(STAGE, stage)} reads a streaming shuffle and " +
+          log"requires ${MDC(NUM_SLOTS, numTasks)} slots together with the stages it reads, " +
+          log"but only ${MDC(MAX_SLOTS, maxNumConcurrentTasks)} are available. Will retry " +
+          log"up to ${MDC(NUM_RETRIES, maxFailureNumTasksCheck - numCheckFailures + 1)} more times")
+        coScheduledStageIdToNumTasksCheckFailures(stage.id) = numCheckFailures
+        waitingStages += stage
+        messageScheduler.schedule(
+          new Runnable {
+            override def run(): Unit = eventProcessLoop.post(ResubmitCoScheduledStage(stage.id))
+          },
+          timeIntervalNumTasksCheck,
+          TimeUnit.SECONDS
+        )
+      } else {
+        coScheduledStageIdToNumTasksCheckFailures -= stage.id
+        abortStage(stage, s"$stage (name=${stage.name}) reads a streaming shuffle, so it must " +
+          s"run at the same time as " +
+          s"${stages.filter(_ != stage).toSeq.sortBy(_.id).mkString(", ")}, which requires " +
+          s"$numTasks slots, but only $maxNumConcurrentTasks are available", None)
+      }
+    } else {
+      coScheduledStageIdToNumTasksCheckFailures -= stage.id
+      logInfo(log"Submitting ${MDC(STAGE, stage)} (${MDC(RDD_ID, stage.rdd)}) together with " +
+        log"the streaming shuffle map stages it reads")
+      submitMissingTasks(stage, jobId)
+      submitCoScheduledChildStages(stage)
+    }
+  }
+
   /** Finds the earliest-created active job that needs the stage */
   // TODO: Probably should actually find among the active jobs that need this
   // stage the one with the highest priority (highest-priority pool, earliest created).
@@ -1549,18 +1641,40 @@ private[spark] class DAGScheduler(
             s"config `${config.STAGE_MAX_ATTEMPTS.key}` and " +
             s"`${config.STAGE_MAX_CONSECUTIVE_ATTEMPTS.key}`."
           abortStage(stage, reason, None)
+        } else if (stage.getNextAttemptId > 0 && (isStreamingShuffleMapStage(stage) ||
+            stage.parents.exists(isStreamingShuffleMapStage))) {
+          // The records of a streaming shuffle are consumed as they are written, so another
+          // attempt of its map stage or of a stage reading it would wait for records which
+          // are never sent again.
+          abortStage(stage, s"$stage (name=${stage.name}) writes or reads a streaming shuffle, " +
+            "whose records an earlier attempt may have already consumed, so it cannot be retried",
+            None)
         } else {
           val missing = getMissingParentStages(stage).sortBy(_.id)
           logInfo(log"Missing parents found for ${MDC(STAGE, stage)}: ${MDC(MISSING_PARENT_STAGES, missing)}")
-          if (missing.isEmpty) {
+          // A finished streaming shuffle map stage cannot be read again, nor be run again without
+          // its readers.
+          val consumed = missing.find {
+            case p: ShuffleMapStage => isStreamingShuffleMapStage(p) && p.isAvailable
+            case _ => false
+          }
+          if (consumed.isDefined) {
+            abortStage(stage, s"$stage (name=${stage.name}) reads the streaming shuffle of " +
+              s"${consumed.get}, whose records have already been read", None)
+          } else if (missing.isEmpty) {
             logInfo(log"Submitting ${MDC(STAGE, stage)} (${MDC(RDD_ID, stage.rdd)}), " +
                     log"which has no missing parents")
             submitMissingTasks(stage, jobId.get)
+            submitCoScheduledChildStages(stage)
           } else {
             for (parent <- missing) {
               submitStage(parent)
             }
-            waitingStages += stage
+            if (missing.forall(p => isStreamingShuffleMapStage(p) && runningStages(p))) {
+              submitCoScheduledStage(stage, jobId.get)
+            } else {
+              waitingStages += stage
+            }
           }
         }
       }
@@ -3591,6 +3705,9 @@ private[scheduler] class DAGSchedulerEventProcessLoop(dagScheduler: DAGScheduler
     case ResubmitFailedStages =>
       dagScheduler.resubmitFailedStages()
 
+    case ResubmitCoScheduledStage(stageId) =>
+      dagScheduler.resubmitCoScheduledStage(stageId)
+
     case RegisterMergeStatuses(stage, mergeStatuses) =>
       dagScheduler.handleRegisterMergeStatuses(stage, mergeStatuses)
 
@@ -113,6 +113,8 @@ case class TaskSetFailed(taskSet: TaskSet, reason: String, exception: Option[Thr
 
 private[scheduler] case object ResubmitFailedStages extends DAGSchedulerEvent
 
+private[scheduler] case class ResubmitCoScheduledStage(stageId: Int) extends DAGSchedulerEvent
+
 private[scheduler]
 case class SpeculativeTaskSubmitted(task: Task[_], taskIndex: Int = -1) extends DAGSchedulerEvent
 
@@ -24,7 +24,7 @@ import scala.reflect.ClassTag
 
 import org.apache.spark.SparkConf
 import org.apache.spark.internal.config
-import org.apache.spark.io.CompressionCodec
+import org.apache.spark.io.{AdaptiveCompressionCodec, AdaptiveCompressionSource, CompressionCodec}
 import org.apache.spark.security.CryptoStreamUtils
 import org.apache.spark.storage._
 import org.apache.spark.util.io.{ChunkedByteBuffer, ChunkedByteBufferOutputStream}
@@ -79,6 +79,21 @@ private[spark] class SerializerManager(
    * loaded yet. */
   private lazy val compressionCodec: CompressionCodec = CompressionCodec.createCodec(conf)
 
+  /** The metrics of the adaptive shuffle compression, which the executor registers. */
+  private[spark] lazy val adaptiveCompressionSource = new AdaptiveCompressionSource()
+
+  /**
+   * The compression codec for shuffle output, which decides block by block whether to compress
+   * with `compressionCodec` if adaptive shuffle compression is enabled.
+   */
+  private[spark] lazy val shuffleCompressionCodec: CompressionCodec = {
+    if (conf.get(config.SHUFFLE_COMPRESS_ADAPTIVE_ENABLED)) {
+      AdaptiveCompressionCodec(conf, compressionCodec, adaptiveCompressionSource)
+    } else {
+      compressionCodec
+    }
+  }
+
   def encryptionEnabled: Boolean = encryptionKey.isDefined
 
   def canUseKryo(ct: ClassTag[_]): Boolean = {
@@ -120,6 +135,14 @@ private[spark] class SerializerManager(
     }
   }
 
+  private def compressionCodecFor(blockId: BlockId): CompressionCodec = {
+    blockId match {
+      case _: ShuffleBlockId | _: ShuffleBlockChunkId | _: TempShuffleBlockId |
+           _: ShuffleBlockBatchId => shuffleCompressionCodec
+      case _ => compressionCodec
+    }
+  }
+
   /**
    * Wrap an input stream for encryption and compression
    */
@@ -156,14 +179,14 @@ private[spark] class SerializerManager(
    * Wrap an output stream for compression if block compression is enabled for its block type
    */
   def wrapForCompression(blockId: BlockId, s: OutputStream): OutputStream = {
-    if (shouldCompress(blockId)) compressionCodec.compressedOutputStream(s) else s
+    if (shouldCompress(blockId)) compressionCodecFor(blockId).compressedOutputStream(s) else s
   }
 
   /**
    * Wrap an input stream for compression if block compression is enabled for its block type
    */
   def wrapForCompression(blockId: BlockId, s: InputStream): InputStream = {
-    if (shouldCompress(blockId)) compressionCodec.compressedInputStream(s) else s
+    if (shouldCompress(blockId)) compressionCodecFor(blockId).compressedInputStream(s) else s
   }
 
   /** Serializes into a stream. */
@@ -17,18 +17,22 @@
 
 package org.apache.spark.shuffle
 
+import java.io.InputStream
+
 import scala.collection
 
 import org.apache.spark._
 import org.apache.spark.internal.{config, Logging}
 import org.apache.spark.io.CompressionCodec
 import org.apache.spark.serializer.SerializerManager
+import org.apache.spark.shuffle.api.ShuffleReadSupport
 import org.apache.spark.storage.{BlockId, BlockManager, BlockManagerId, ShuffleBlockFetcherIterator}
 import org.apache.spark.util.CompletionIterator
 import org.apache.spark.util.collection.ExternalSorter
 
 /**
- * Fetches and reads the blocks from a shuffle by requesting them from other nodes' block stores.
+ * Fetches and reads the blocks from a shuffle by requesting them from other nodes' block stores,
+ * or through the shuffle IO plugin's [[ShuffleReadSupport]] if one is given.
  */
 private[spark] class BlockStoreShuffleReader[K, C](
     handle: BaseShuffleHandle[K, _, C],
@@ -38,7 +42,8 @@ private[spark] class BlockStoreShuffleReader[K, C](
     serializerManager: SerializerManager = SparkEnv.get.serializerManager,
     blockManager: BlockManager = SparkEnv.get.blockManager,
     mapOutputTracker: MapOutputTracker = SparkEnv.get.mapOutputTracker,
-    shouldBatchFetch: Boolean = false)
+    shouldBatchFetch: Boolean = false,
+    readSupport: Option[ShuffleReadSupport] = None)
   extends ShuffleReader[K, C] with Logging {
 
   private val dep = handle.dependency
@@ -68,9 +73,8 @@ private[spark] class BlockStoreShuffleReader[K, C](
     doBatchFetch
   }
 
-  /** Read the combined key-values for this reduce task */
-  override def read(): Iterator[Product2[K, C]] = {
-    val wrappedStreams = new ShuffleBlockFetcherIterator(
+  private def fetchFromBlockStores(): Iterator[(BlockId, InputStream)] = {
+    new ShuffleBlockFetcherIterator(
       context,
       blockManager.blockStoreClient,
       blockManager,
@@ -89,6 +93,26 @@ private[spark] class BlockStoreShuffleReader[K, C](
       SparkEnv.get.conf.get(config.SHUFFLE_CHECKSUM_ALGORITHM),
       readMetrics,
       fetchContinuousBlocksInBatch).toCompletionIterator
+  }
+
+  private def readThroughPlugin(support: ShuffleReadSupport): Iterator[(BlockId, InputStream)] = {
+    new ShuffleReadSupportIterator(
+      context,
+      support,
+      blockManager.blockManagerId,
+      blocksByAddress,
+      serializerManager.wrapStream,
+      SparkEnv.get.conf.get(config.REDUCER_MAX_SIZE_IN_FLIGHT) * 1024 * 1024,
+      fetchContinuousBlocksInBatch,
+      readMetrics)
+  }
+
+  /** Read the combined key-values for this reduce task */
+  override def read(): Iterator[Product2[K, C]] = {
+    val wrappedStreams = readSupport match {
+      case Some(support) => readThroughPlugin(support)
+      case None => fetchFromBlockStores()
+    }
 
     val serializerInstance = dep.serializer.newInstance()
 
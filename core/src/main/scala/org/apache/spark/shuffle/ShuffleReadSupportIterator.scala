@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle
+
+import java.io.{IOException, InputStream}
+import java.util.concurrent.{CompletableFuture, ExecutionException, TimeUnit}
+
+import scala.collection
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+
+import org.apache.spark.TaskContext
+import org.apache.spark.internal.Logging
+import org.apache.spark.shuffle.api.{ShuffleBlockReadRequest, ShuffleReadSupport}
+import org.apache.spark.storage.{BlockId, BlockManagerId, ShuffleBlockBatchId, ShuffleBlockId}
+import org.apache.spark.util.Utils
+
+/**
+ * An iterator over the blocks of a shuffle which are read through a [[ShuffleReadSupport]]
+ * plugin instead of being fetched from block managers.
+ *
+ * Requests are handed to the plugin in batches, keeping at most `maxBytesInFlight` bytes of
+ * requested blocks outstanding (but always at least one block), and the streams are returned in
+ * the order the blocks were requested. If `batchContinuousBlocks`, the consecutive partitions of
+ * each map output are requested as one range. Reads are consumed one at a time: the stream of a
+ * read is closed once the next one is returned. Reads which fail, whether the plugin throws or
+ * completes them exceptionally, are reported as fetch failures of the map output they read.
+ *
+ * @param context the task the blocks are read for
+ * @param readSupport the plugin which serves the reads
+ * @param localBlockManagerId the block manager of this executor, to tell local reads apart
+ * @param blocksByAddress the blocks to read, grouped by the block manager which wrote them
+ * @param streamWrapper wraps every stream for decompression and decryption
+ * @param maxBytesInFlight the maximum number of bytes of requested but unread blocks
+ * @param batchContinuousBlocks whether to request consecutive partitions as one range
+ * @param readMetrics the metrics to update
+ */
+private[spark] class ShuffleReadSupportIterator(
+    context: TaskContext,
+    readSupport: ShuffleReadSupport,
+    localBlockManagerId: BlockManagerId,
+    blocksByAddress: Iterator[(BlockManagerId, collection.Seq[(BlockId, Long, Int)])],
+    streamWrapper: (BlockId, InputStream) => InputStream,
+    maxBytesInFlight: Long,
+    batchContinuousBlocks: Boolean,
+    readMetrics: ShuffleReadMetricsReporter)
+  extends Iterator[(BlockId, InputStream)] with Logging {
+
+  import ShuffleReadSupportIterator._
+
+  private val requests: Iterator[PendingRead] = blocksByAddress.flatMap {
+    case (address, blocks) => toReads(address, blocks)
+  }
+
+  private val inFlight = new mutable.Queue[(PendingRead, CompletableFuture[InputStream])]
+
+  private var bytesInFlight = 0L
+
+  /** The stream returned by the last call to `next()`, which is being read. */
+  private var currentStream: InputStream = null
+
+  @volatile private var isCleanedUp = false
+
+  context.addTaskCompletionListener[Unit](_ => cleanup())
+
+  private def toReads(
+      address: BlockManagerId,
+      blocks: collection.Seq[(BlockId, Long, Int)]): Seq[PendingRead] = {
+    val reads = new mutable.ArrayBuffer[PendingRead]()
+    blocks.foreach {
+      case (ShuffleBlockId(shuffleId, mapId, reduceId), size, mapIndex) =>
+        val last = reads.lastOption
+        if (batchContinuousBlocks && last.exists { r =>
+            r.request.getMapId == mapId && r.request.getEndPartition == reduceId }) {
+          val request = last.get.request
+          reads(reads.length - 1) = PendingRead(address, new ShuffleBlockReadRequest(
+            shuffleId, mapId, mapIndex, request.getStartPartition, reduceId + 1,
+            request.getLength + size, address.host, address.executorId))
+        } else {
+          reads += PendingRead(address, new ShuffleBlockReadRequest(
+            shuffleId, mapId, mapIndex, reduceId, reduceId + 1, size, address.host,
+            address.executorId))
+        }
+      case (blockId, _, _) =>
+        throw new IllegalArgumentException(
+          s"Block $blockId cannot be read through ${readSupport.getClass.getName}")
+    }
+    reads.toSeq
+  }
+
+  /** Hands the plugin the next batch of requests which fits within `maxBytesInFlight`. */
+  private def sendRequests(): Unit = {
+    val batch = new mutable.ArrayBuffer[PendingRead]()
+    while (requests.hasNext &&
+        ((inFlight.isEmpty && batch.isEmpty) || bytesInFlight < maxBytesInFlight)) {
+      val read = requests.next()
+      bytesInFlight += read.request.getLength
+      batch += read
+    }
+    if (batch.nonEmpty) {
+      val futures = try {
+        readSupport.readPartitions(batch.map(_.request).asJava).asScala
+      } catch {
+        case e: IOException => throw fetchFailed(batch.head, e)
+      }
+      require(futures.length == batch.length, s"${readSupport.getClass.getName} returned " +
+        s"${futures.length} results for ${batch.length} requests")
+      batch.zip(futures).foreach(inFlight.enqueue(_))
+    }
+  }
+
+  override def hasNext: Boolean = {
+    if (inFlight.isEmpty) {
+      sendRequests()
+    }
+    inFlight.nonEmpty
+  }
+
+  override def next(): (BlockId, InputStream) = {
+    if (!hasNext) {
+      throw new NoSuchElementException()
+    }
+    closeCurrentStream()
+    val (read, future) = inFlight.dequeue()
+    bytesInFlight -= read.request.getLength
+    // Keep the plugin busy with the next requests while this one is consumed.
+    sendRequests()
+
+    val request = read.request
+    val startWait = System.nanoTime()
+    val in = try {
+      future.get()
+    } catch {
+      case e: ExecutionException => throw fetchFailed(read, e.getCause)
+    }
+    readMetrics.incFetchWaitTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startWait))
+    val numBlocks = request.getEndPartition - request.getStartPartition
+    if (read.address.executorId == localBlockManagerId.executorId) {
+      readMetrics.incLocalBlocksFetched(numBlocks)
+      readMetrics.incLocalBytesRead(request.getLength)
+    } else {
+      readMetrics.incRemoteBlocksFetched(numBlocks)
+      readMetrics.incRemoteBytesRead(request.getLength)
+    }
+
+    val blockId = if (numBlocks > 1) {
+      ShuffleBlockBatchId(
+        request.getShuffleId, request.getMapId, request.getStartPartition,
+        request.getEndPartition)
+    } else {
+      ShuffleBlockId(request.getShuffleId, request.getMapId, request.getStartPartition)
+    }
+    currentStream = in
+    (blockId, streamWrapper(blockId, in))
+  }
+
+  private def fetchFailed(read: PendingRead, cause: Throwable): FetchFailedException = {
+    val request = read.request
+    new FetchFailedException(read.address, request.getShuffleId, request.getMapId,
+      request.getMapIndex, request.getStartPartition,
+      s"Failed to read $request through ${readSupport.getClass.getName}", cause)
+  }
+
+  private def closeCurrentStream(): Unit = {
+    if (currentStream != null) {
+      Utils.closeQuietly(currentStream)
+      currentStream = null
+    }
+  }
+
+  /**
+   * Closes the stream being read, cancels the reads which have not been consumed, and closes the
+   * streams of those which already completed.
+   */
+  private[shuffle] def cleanup(): Unit = {
+    if (!isCleanedUp) {
+      isCleanedUp = true
+      closeCurrentStream()
+      while (inFlight.nonEmpty) {
+        val (_, future) = inFlight.dequeue()
+        if (!future.cancel(true) && !future.isCompletedExceptionally) {
+          Utils.closeQuietly(future.get())
+        }
+      }
+    }
+  }
+}
+
+private object ShuffleReadSupportIterator {
+
+  /** A request and the block manager which wrote the blocks it reads. */
+  private case class PendingRead(address: BlockManagerId, request: ShuffleBlockReadRequest)
+}
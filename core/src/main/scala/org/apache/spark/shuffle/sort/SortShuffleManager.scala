@@ -17,14 +17,16 @@
 
 package org.apache.spark.shuffle.sort
 
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.{ConcurrentHashMap, ExecutorService}
 
 import scala.jdk.CollectionConverters._
+import scala.jdk.OptionConverters._
 
 import org.apache.spark._
-import org.apache.spark.internal.Logging
+import org.apache.spark.internal.{config, Logging}
 import org.apache.spark.shuffle._
 import org.apache.spark.shuffle.api.ShuffleExecutorComponents
+import org.apache.spark.util.ThreadUtils
 import org.apache.spark.util.collection.OpenHashSet
 
 /**
@@ -81,6 +83,15 @@ private[spark] class SortShuffleManager(conf: SparkConf) extends ShuffleManager
 
   private lazy val shuffleExecutorComponents = loadShuffleExecutorComponents(conf)
 
+  /**
+   * The pool shared by the bypass merge sort writers of this executor, if they write in parallel.
+   * Its threads are only started once a writer uses them.
+   */
+  private val bypassMergeWriterPool: Option[ExecutorService] =
+    Some(conf.get(config.SHUFFLE_BYPASS_MERGE_WRITER_THREADS)).filter(_ > 0).map { numThreads =>
+      ThreadUtils.newDaemonFixedThreadPool(numThreads, "shuffle-bypass-merge-writer")
+    }
+
   override val shuffleBlockResolver =
     new IndexShuffleBlockResolver(conf, taskIdMapsForShuffle = taskIdMapsForShuffle)
 
@@ -98,7 +109,8 @@ private[spark] class SortShuffleManager(conf: SparkConf) extends ShuffleManager
       // having multiple files open at a time and thus more memory allocated to buffers.
       new BypassMergeSortShuffleHandle[K, V](
         shuffleId, dependency.asInstanceOf[ShuffleDependency[K, V, V]])
-    } else if (SortShuffleManager.canUseSerializedShuffle(dependency)) {
+    } else if (SortShuffleManager.canUseSerializedShuffle(
+        dependency, conf.get(config.SHUFFLE_SORT_WIDE_POINTERS_ENABLED))) {
       // Otherwise, try to buffer map outputs in a serialized form, since this is more efficient:
       new SerializedShuffleHandle[K, V](
         shuffleId, dependency.asInstanceOf[ShuffleDependency[K, V, V]])
@@ -135,10 +147,17 @@ private[spark] class SortShuffleManager(conf: SparkConf) extends ShuffleManager
           handle.shuffleId, startMapIndex, endMapIndex, startPartition, endPartition)
         (address, true)
       }
+    // Merged blocks of push-based shuffle only exist in the external shuffle service.
+    val readSupport = if (baseShuffleHandle.dependency.isShuffleMergeFinalizedMarked) {
+      None
+    } else {
+      shuffleExecutorComponents.readSupport().toScala.filter(_.canReadShuffle(handle.shuffleId))
+    }
     new BlockStoreShuffleReader(
       handle.asInstanceOf[BaseShuffleHandle[K, _, C]], blocksByAddress, context, metrics,
       shouldBatchFetch =
-        canEnableBatchFetch && canUseBatchFetch(startPartition, endPartition, context))
+        canEnableBatchFetch && canUseBatchFetch(startPartition, endPartition, context),
+      readSupport = readSupport)
   }
 
   /** Get a writer for a given partition. Called on executors by map tasks. */
@@ -169,7 +188,8 @@ private[spark] class SortShuffleManager(conf: SparkConf) extends ShuffleManager
           mapId,
           env.conf,
           metrics,
-          shuffleExecutorComponents)
+          shuffleExecutorComponents,
+          bypassMergeWriterPool.orNull)
       case other: BaseShuffleHandle[K @unchecked, V @unchecked, _] =>
         new SortShuffleWriter(other, mapId, context, metrics, shuffleExecutorComponents)
     }
@@ -189,6 +209,7 @@ private[spark] class SortShuffleManager(conf: SparkConf) extends ShuffleManager
 
   /** Shut down this ShuffleManager. */
   override def stop(): Unit = {
+    bypassMergeWriterPool.foreach(_.shutdownNow())
     shuffleBlockResolver.stop()
   }
 }
@@ -198,8 +219,9 @@ private[spark] object SortShuffleManager extends Logging {
 
   /**
    * The maximum number of shuffle output partitions that SortShuffleManager supports when
-   * buffering map outputs in a serialized form. This is an extreme defensive programming measure,
-   * since it's extremely unlikely that a single shuffle produces over 16 million output partitions.
+   * buffering map outputs in a serialized form with packed record pointers. This is an extreme
+   * defensive programming measure, since it's extremely unlikely that a single shuffle produces
+   * over 16 million output partitions. Wider shuffles are only serialized with wide pointers.
    */
   val MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE =
     PackedRecordPointer.MAXIMUM_PARTITION_ID + 1
@@ -223,8 +245,14 @@ private[spark] object SortShuffleManager extends Logging {
   /**
    * Helper method for determining whether a shuffle should use an optimized serialized shuffle
    * path or whether it should fall back to the original path that operates on deserialized objects.
+   *
+   * @param widePointersEnabled whether shuffles with more than
+   *                            [[MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE]] partitions
+   *                            can be sorted with wide record pointers
    */
-  def canUseSerializedShuffle(dependency: ShuffleDependency[_, _, _]): Boolean = {
+  def canUseSerializedShuffle(
+      dependency: ShuffleDependency[_, _, _],
+      widePointersEnabled: Boolean = false): Boolean = {
     val shufId = dependency.shuffleId
     val numPartitions = dependency.partitioner.numPartitions
     if (!dependency.serializer.supportsRelocationOfSerializedObjects) {
@@ -235,7 +263,8 @@ private[spark] object SortShuffleManager extends Logging {
       log.debug(s"Can't use serialized shuffle for shuffle $shufId because we need to do " +
         s"map-side aggregation")
       false
-    } else if (numPartitions > MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE) {
+    } else if (!widePointersEnabled &&
+        numPartitions > MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE) {
       log.debug(s"Can't use serialized shuffle for shuffle $shufId because it has more than " +
         s"$MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE partitions")
       false
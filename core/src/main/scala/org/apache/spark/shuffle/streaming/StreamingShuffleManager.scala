@@ -17,7 +17,7 @@
 
 package org.apache.spark.shuffle.streaming
 
-import org.apache.spark.{ShuffleDependency, SparkException, SparkRuntimeException, TaskContext}
+import org.apache.spark.{ShuffleDependency, SparkEnv, SparkException, SparkRuntimeException, StreamingShuffleOutputTracker, StreamingShuffleOutputTrackerMaster, TaskContext}
 import org.apache.spark.internal.Logging
 import org.apache.spark.network.shuffle.streaming.{DataMessage, StreamingShuffleMessage, StreamingShuffleMessageType, TerminationControlMessage}
 import org.apache.spark.shuffle._
@@ -80,9 +80,27 @@ private[spark] class StreamingShuffleManager extends ShuffleManager with Logging
 
   logInfo(log"Using StreamingShuffleManager")
 
+  // Created with the first writer or reader of the executor.
+  private var transport: StreamingShuffleTransport = _
+
   override def registerShuffle[K, V, C](
       shuffleId: Int,
       dependency: ShuffleDependency[K, V, C]): ShuffleHandle = {
+    // The records are pushed to the readers as they are written, so they can be neither
+    // combined nor sorted across the writers.
+    if (dependency.aggregator.isDefined || dependency.keyOrdering.isDefined) {
+      throw new UnsupportedOperationException(
+        "Streaming shuffle does not support aggregation or key ordering")
+    }
+    // The shuffle dependency registers itself on the driver, where the tracker is the master.
+    driverTracker.foreach { tracker =>
+      tracker.registerShuffle(
+        shuffleId,
+        dependency.rdd.partitions.length,
+        dependency.partitioner.numPartitions,
+        // The dependency is registered when it is created, before any job runs it.
+        jobId = -1)
+    }
     new StreamingShuffleHandle(shuffleId, dependency)
   }
 
@@ -91,14 +109,22 @@ private[spark] class StreamingShuffleManager extends ShuffleManager with Logging
       mapId: Long,
       context: TaskContext,
       metrics: ShuffleWriteMetricsReporter): ShuffleWriter[K, V] = {
-    // Implementation is added in a follow-up commit that introduces StreamingShuffleWriter.
-    throw new UnsupportedOperationException(
-      "StreamingShuffleManager.getWriter is not yet implemented")
+    val env = SparkEnv.get
+    new StreamingShuffleWriter[K, V](
+      handle.asInstanceOf[StreamingShuffleHandle[K, V, _]],
+      mapId,
+      context,
+      metrics,
+      getTransport(env),
+      tracker(env),
+      env.blockManager.blockManagerId,
+      env.conf)
   }
 
   /**
    * For the streaming shuffle, the startMapIndex, endMapIndex, startPartition, and endPartition
-   * arguments are not relevant.
+   * arguments are not relevant: a reader reads all the records of the partition of its task from
+   * all the writers.
    */
   override def getReader[K, C](
       handle: ShuffleHandle,
@@ -108,23 +134,52 @@ private[spark] class StreamingShuffleManager extends ShuffleManager with Logging
       endPartition: Int,
       context: TaskContext,
       metrics: ShuffleReadMetricsReporter): ShuffleReader[K, C] = {
-    // Implementation is added in a follow-up commit that introduces StreamingShuffleReader.
-    throw new UnsupportedOperationException(
-      "StreamingShuffleManager.getReader is not yet implemented")
+    val env = SparkEnv.get
+    new StreamingShuffleReader[K, C](
+      handle.asInstanceOf[StreamingShuffleHandle[K, _, C]],
+      context,
+      metrics,
+      getTransport(env),
+      tracker(env),
+      env.conf)
   }
 
   override def unregisterShuffle(shuffleId: Int): Boolean = {
-    // No manager-side state to release here: the driver's StreamingShuffleOutputTracker is
-    // unregistered in BlockManagerStorageEndpoint's RemoveShuffle handler, and per-task writer
-    // and reader resources are released via task completion listeners.
+    // The shuffle is removed from the driver's StreamingShuffleOutputTracker here, when the
+    // driver's BlockManagerStorageEndpoint handles RemoveShuffle. The writer and reader
+    // resources are released via task completion listeners.
+    driverTracker.foreach(_.unregisterShuffle(shuffleId))
     true
   }
 
+  private def driverTracker: Option[StreamingShuffleOutputTrackerMaster] = {
+    Option(SparkEnv.get).flatMap(_.streamingShuffleOutputTracker).collect {
+      case master: StreamingShuffleOutputTrackerMaster => master
+    }
+  }
+
+  private def tracker(env: SparkEnv): StreamingShuffleOutputTracker = {
+    env.streamingShuffleOutputTracker.getOrElse(throw SparkException.internalError(
+      "Streaming shuffle requires the StreamingShuffleOutputTracker to be initialized"))
+  }
+
+  private def getTransport(env: SparkEnv): StreamingShuffleTransport = synchronized {
+    if (transport == null) {
+      transport = new StreamingShuffleTransport(env.conf)
+    }
+    transport
+  }
+
   override def shuffleBlockResolver: ShuffleBlockResolver = {
     // don't need to support this for the streaming shuffle implementation
     // since block manager is not used
     throw new UnsupportedOperationException()
   }
 
-  override def stop(): Unit = {}
+  override def stop(): Unit = synchronized {
+    if (transport != null) {
+      transport.close()
+      transport = null
+    }
+  }
 }
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.streaming
+
+import java.io.IOException
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+
+import scala.collection.mutable
+
+import io.netty.buffer.ByteBufInputStream
+import io.netty.channel.{Channel, ChannelHandlerContext, SimpleChannelInboundHandler}
+
+import org.apache.spark.{InterruptibleIterator, SparkConf, SparkEnv, SparkException, StreamingShuffleOutputTracker, StreamingShuffleTaskLocation, TaskContext}
+import org.apache.spark.internal.LogKeys
+import org.apache.spark.internal.config.{STREAMING_SHUFFLE_LOCATION_POLL_INTERVAL, STREAMING_SHUFFLE_READER_CREDITS, STREAMING_SHUFFLE_TIMEOUT}
+import org.apache.spark.network.shuffle.streaming.{CreditControlMessage, DataMessage, ShuffleChecksum, StreamingShuffleMessage, TerminationAckMessage, TerminationControlMessage}
+import org.apache.spark.serializer.SerializerManager
+import org.apache.spark.shuffle.{ShuffleReader, ShuffleReadMetricsReporter}
+import org.apache.spark.storage.ShuffleBlockId
+import org.apache.spark.util.CompletionIterator
+
+/**
+ * Reads the records of a reduce task of a streaming shuffle as the map tasks, which run at the
+ * same time, produce them.
+ *
+ * The reader polls the [[StreamingShuffleOutputTracker]] for the locations of the writers and
+ * connects to every writer as soon as it is registered, so that the records of the first writers
+ * are read while the others are still starting. Every writer is granted the configured number of
+ * credits when the reader connects, which is the number of [[DataMessage]]s it may send ahead of
+ * what the reader has consumed. The credits are granted again in batches of half of that number
+ * as the messages are consumed, so a slow reader holds back its writers instead of buffering
+ * their records. The messages of every writer must arrive with consecutive sequence numbers; the
+ * reader answers the [[TerminationControlMessage]] of a writer with a [[TerminationAckMessage]]
+ * carrying the last sequence number it received, and the records end once every writer has
+ * terminated.
+ *
+ * All the writers must register within `spark.shuffle.streaming.timeout` of the start of the
+ * reader, which the DAGScheduler submits together with them. The records are consumed as they
+ * arrive, so a reader cannot be retried: a new attempt would connect to writers which already
+ * sent records to the failed attempt, or which already finished, and the writers reject a
+ * second connection of the same reader. The reader fails instead, and so does the connection of
+ * a failed writer, whose records the reader may already have passed on.
+ */
+private[spark] class StreamingShuffleReader[K, C](
+    handle: StreamingShuffleHandle[K, _, C],
+    override val context: TaskContext,
+    readMetrics: ShuffleReadMetricsReporter,
+    transport: StreamingShuffleTransport,
+    tracker: StreamingShuffleOutputTracker,
+    conf: SparkConf,
+    serializerManager: SerializerManager = SparkEnv.get.serializerManager)
+  extends ShuffleReader[K, C] with TaskContextAwareLogging {
+
+  private val dep = handle.dependency
+  private val shuffleId = dep.shuffleId
+  private val readerId = context.partitionId()
+  private val serializer = dep.serializer.newInstance()
+  private val credits = conf.get(STREAMING_SHUFFLE_READER_CREDITS)
+  private val creditBatch = math.max(1, credits / 2)
+  private val pollIntervalMs = conf.get(STREAMING_SHUFFLE_LOCATION_POLL_INTERVAL)
+  private val timeoutMs = conf.get(STREAMING_SHUFFLE_TIMEOUT)
+  private val checksum = new ShuffleChecksum
+
+  // The messages received by the event loops, or the errors of the connections, in the order
+  // they happened.
+  private val received = new LinkedBlockingQueue[Event]
+  // Guarded by the queue of the received messages.
+  private var closed = false
+
+  // Only used by the task thread.
+  private val writers = new mutable.HashMap[Int, WriterState]
+  private var numWriters = -1
+  private var numTerminated = 0
+  private var nextLocationPollNanos = 0L
+  private var registrationDeadlineNanos = 0L
+  private var currentMessage: DataMessage = _
+
+  setShuffleIdForLogging(shuffleId)
+
+  override def read(): Iterator[Product2[K, C]] = {
+    if (context.attemptNumber() > 0) {
+      throw new SparkException(s"Reader $readerId of streaming shuffle $shuffleId cannot be " +
+        s"retried (attempt ${context.attemptNumber()}), as an earlier attempt may have already " +
+        "consumed records of its writers")
+    }
+    registrationDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+    context.addTaskCompletionListener[Unit](_ => close())
+    val batches = new Iterator[Iterator[(Any, Any)]] {
+      private var nextBatch: Iterator[(Any, Any)] = _
+      private var finished = false
+
+      override def hasNext: Boolean = {
+        if (nextBatch == null && !finished) {
+          nextBatch = readBatch().orNull
+          finished = nextBatch == null
+        }
+        nextBatch != null
+      }
+
+      override def next(): Iterator[(Any, Any)] = {
+        if (!hasNext) {
+          throw new NoSuchElementException
+        }
+        val batch = nextBatch
+        nextBatch = null
+        batch
+      }
+    }
+    val recordIter = batches.flatten.map { record =>
+      readMetrics.incRecordsRead(1)
+      record
+    }
+    val metricIter = CompletionIterator[(Any, Any), Iterator[(Any, Any)]](
+      recordIter, context.taskMetrics().mergeShuffleReadMetrics())
+    // An interruptible iterator must be used here in order to support task cancellation
+    new InterruptibleIterator[(Any, Any)](context, metricIter)
+      .asInstanceOf[Iterator[Product2[K, C]]]
+  }
+
+  /**
+   * Returns the records of the next data message, which is released and credited back to its
+   * writer once its records are read, or None once all the writers have terminated.
+   */
+  private def readBatch(): Option[Iterator[(Any, Any)]] = {
+    while (numWriters < 0 || numTerminated < numWriters) {
+      pollMessage() match {
+        case Some(Received(writer, message)) =>
+          val expectedSeqNum = writer.lastSeqNum + 1
+          if (message.getSeqNum != expectedSeqNum) {
+            message.release()
+            throw StreamingShuffleManager.streamingShuffleIncorrectSequenceNumber(
+              message.messageType(), writer.writerId, readerId, expectedSeqNum, message.getSeqNum)
+          }
+          writer.lastSeqNum = message.getSeqNum
+          message match {
+            case data: DataMessage if data.shuffleWriterId == writer.writerId =>
+              currentMessage = data
+              return Some(readRecords(writer, data))
+            case termination: TerminationControlMessage
+                if termination.shuffleWriterId == writer.writerId =>
+              termination.release()
+              writer.terminated = true
+              numTerminated += 1
+              val ack = new TerminationAckMessage(writer.writerId, readerId)
+              ack.setSeqNum(writer.lastSeqNum)
+              writer.channel.writeAndFlush(ack)
+            case other =>
+              other.release()
+              throw StreamingShuffleManager.streamingShuffleUnexpectedMessageType(
+                other.messageType())
+          }
+        case None =>
+      }
+    }
+    logInfo(log"Read the streams of all the ${MDC(LogKeys.NUM_MAPPERS, numWriters)} writers")
+    None
+  }
+
+  private def readRecords(writer: WriterState, data: DataMessage): Iterator[(Any, Any)] = {
+    val recordData = data.getRecordData
+    checksum.reset()
+    checksum.updateChecksum(recordData, recordData.readerIndex(), data.dataSize)
+    if (checksum.getValue != data.checksum) {
+      throw new IOException(s"Data message ${data.getSeqNum} of writer ${writer.writerId} " +
+        s"is corrupted: expected checksum ${data.checksum}, got ${checksum.getValue}")
+    }
+    readMetrics.incRemoteBlocksFetched(1)
+    readMetrics.incRemoteBytesRead(data.dataSize)
+    val in = serializerManager.wrapStream(
+      ShuffleBlockId(shuffleId, writer.writerId, readerId), new ByteBufInputStream(recordData))
+    // The key/value iterator closes the stream once all the records are read.
+    CompletionIterator[(Any, Any), Iterator[(Any, Any)]](
+      serializer.deserializeStream(in).asKeyValueIterator, {
+        currentMessage = null
+        data.release()
+        writer.consumed += 1
+        if (writer.consumed >= creditBatch) {
+          writer.channel.writeAndFlush(
+            new CreditControlMessage(writer.writerId, readerId, writer.consumed))
+          writer.consumed = 0
+        }
+      })
+  }
+
+  /**
+   * Waits for the next message for up to the location poll interval, after connecting to the
+   * writers which have registered since the last poll.
+   */
+  private def pollMessage(): Option[Received] = {
+    if (numWriters < 0 || writers.size < numWriters) {
+      val now = System.nanoTime()
+      if (now >= nextLocationPollNanos) {
+        connectToNewWriters()
+        nextLocationPollNanos = now + TimeUnit.MILLISECONDS.toNanos(pollIntervalMs)
+      }
+      if ((numWriters < 0 || writers.size < numWriters) && now >= registrationDeadlineNanos) {
+        throw new IOException(s"Reader $readerId of streaming shuffle $shuffleId timed out " +
+          s"after $timeoutMs ms waiting for its writers to register: ${writers.size} of " +
+          s"${if (numWriters < 0) "?" else numWriters} are registered; the map tasks of a " +
+          "streaming shuffle must run at the same time as its reduce tasks")
+      }
+    }
+    val startTime = System.nanoTime()
+    val event = received.poll(pollIntervalMs, TimeUnit.MILLISECONDS)
+    readMetrics.incFetchWaitTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime))
+    context.killTaskIfInterrupted()
+    event match {
+      case r: Received => Some(r)
+      case Failed(writer, cause) =>
+        throw new IOException(s"Failed to read the stream of writer ${writer.writerId}", cause)
+      case null => None
+    }
+  }
+
+  private def connectToNewWriters(): Unit = {
+    tracker.getAvailableShuffleWriterTaskLocations(shuffleId).foreach { response =>
+      numWriters = response.numShuffleWriterTasks
+      response.shuffleTaskLocations.foreach { case (mapId, location) =>
+        if (!writers.contains(mapId.toInt)) {
+          connect(mapId.toInt, location)
+        }
+      }
+    }
+  }
+
+  private def connect(writerId: Int, location: StreamingShuffleTaskLocation): Unit = {
+    val writer = new WriterState(writerId)
+    writer.channel = transport.connect(
+      location.host, location.port, new WriterConnectionHandler(writer)).sync().channel()
+    writers(writerId) = writer
+    writer.channel.writeAndFlush(new CreditControlMessage(writerId, readerId, credits))
+    logDebug(s"Connected to writer $writerId at ${location.host}:${location.port}")
+  }
+
+  private def close(): Unit = {
+    received.synchronized {
+      closed = true
+    }
+    writers.values.foreach(_.channel.close())
+    if (currentMessage != null) {
+      currentMessage.release()
+      currentMessage = null
+    }
+    var event = received.poll()
+    while (event != null) {
+      event match {
+        case Received(_, message) => message.release()
+        case _ =>
+      }
+      event = received.poll()
+    }
+  }
+
+  /** The state of the stream from one writer. */
+  private final class WriterState(val writerId: Int) {
+    var channel: Channel = _
+    // Only used by the task thread.
+    var lastSeqNum = -1L
+    var consumed = 0
+    // Set by the task thread before it acknowledges the termination, so that the event loop
+    // ignores the closing of the connection by the writer afterwards.
+    @volatile var terminated = false
+  }
+
+  /** Queues the messages of a writer for the task thread. */
+  private class WriterConnectionHandler(writer: WriterState)
+    extends SimpleChannelInboundHandler[StreamingShuffleMessage] {
+
+    override def channelRead0(ctx: ChannelHandlerContext, msg: StreamingShuffleMessage): Unit = {
+      received.synchronized {
+        if (closed) {
+          msg.release()
+        } else {
+          received.add(Received(writer, msg))
+        }
+      }
+    }
+
+    override def channelInactive(ctx: ChannelHandlerContext): Unit = {
+      if (!writer.terminated) {
+        received.add(Failed(writer, new IOException("Connection closed by the writer")))
+      }
+      super.channelInactive(ctx)
+    }
+
+    override def exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable): Unit = {
+      received.add(Failed(writer, cause))
+      ctx.close()
+    }
+  }
+
+  private sealed trait Event
+  private case class Received(writer: WriterState, message: StreamingShuffleMessage) extends Event
+  private case class Failed(writer: WriterState, cause: Throwable) extends Event
+}
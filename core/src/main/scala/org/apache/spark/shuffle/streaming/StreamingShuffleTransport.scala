@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.streaming
+
+import java.io.Closeable
+import java.util.{List => JList}
+
+import io.netty.bootstrap.{Bootstrap, ServerBootstrap}
+import io.netty.buffer.{ByteBuf, ByteBufAllocator}
+import io.netty.channel.{Channel, ChannelFuture, ChannelHandler, ChannelHandlerContext, ChannelInitializer, ChannelOption, EventLoopGroup}
+import io.netty.handler.codec.{LengthFieldBasedFrameDecoder, MessageToMessageEncoder}
+
+import org.apache.spark.SparkConf
+import org.apache.spark.network.netty.SparkTransportConf
+import org.apache.spark.network.shuffle.streaming.{DataMessage, StreamingShuffleMessage}
+import org.apache.spark.network.util.{IOMode, NettyUtils}
+
+/**
+ * The Netty event loops shared by the streaming shuffle writers and readers of an executor. Every
+ * writer listens on a port of its own for the connections of its readers, and every reader
+ * connects to all the writers of its shuffle. A [[StreamingShuffleMessage]] is sent as one frame,
+ * prefixed by its length.
+ */
+private[spark] class StreamingShuffleTransport(conf: SparkConf) extends Closeable {
+  import StreamingShuffleTransport._
+
+  private val transportConf = SparkTransportConf.fromSparkConf(conf, "shuffle")
+  private val ioMode = IOMode.valueOf(transportConf.ioMode())
+  // Buffers are allocated by the event loops and released by the task threads, so the thread
+  // local caches are disabled, like for the clients of the block transfer service.
+  private val allocator: ByteBufAllocator = NettyUtils.createPooledByteBufAllocator(
+    transportConf.preferDirectBufs(), false /* allowCache */, transportConf.serverThreads())
+
+  private var serverGroup: EventLoopGroup = _
+  private var clientGroup: EventLoopGroup = _
+
+  def alloc: ByteBufAllocator = allocator
+
+  /**
+   * Listens on an ephemeral port of the given host. Every accepted connection gets a handler
+   * of its own, created by the given function.
+   */
+  def listen(host: String, newHandler: () => ChannelHandler): Channel = {
+    val bootstrap = new ServerBootstrap()
+      .group(serverEventLoop())
+      .channel(NettyUtils.getServerChannelClass(ioMode))
+      .option[ByteBufAllocator](ChannelOption.ALLOCATOR, allocator)
+      .childOption[ByteBufAllocator](ChannelOption.ALLOCATOR, allocator)
+      .childOption[java.lang.Boolean](ChannelOption.TCP_NODELAY, true)
+      .childHandler(new ChannelInitializer[Channel] {
+        override def initChannel(ch: Channel): Unit = initPipeline(ch, newHandler())
+      })
+    bootstrap.bind(host, 0).sync().channel()
+  }
+
+  /** Connects to the writer listening on the given address. */
+  def connect(host: String, port: Int, handler: ChannelHandler): ChannelFuture = {
+    new Bootstrap()
+      .group(clientEventLoop())
+      .channel(NettyUtils.getClientChannelClass(ioMode))
+      .option[ByteBufAllocator](ChannelOption.ALLOCATOR, allocator)
+      .option[java.lang.Boolean](ChannelOption.TCP_NODELAY, true)
+      .option[Integer](ChannelOption.CONNECT_TIMEOUT_MILLIS, transportConf.connectionTimeoutMs())
+      .handler(new ChannelInitializer[Channel] {
+        override def initChannel(ch: Channel): Unit = initPipeline(ch, handler)
+      })
+      .connect(host, port)
+  }
+
+  private def initPipeline(ch: Channel, handler: ChannelHandler): Unit = {
+    ch.pipeline()
+      .addLast("encoder", FrameEncoder)
+      .addLast("frameDecoder", new FrameDecoder)
+      .addLast("handler", handler)
+  }
+
+  private def serverEventLoop(): EventLoopGroup = synchronized {
+    if (serverGroup == null) {
+      serverGroup = NettyUtils.createEventLoop(
+        ioMode, transportConf.serverThreads(), "streaming-shuffle-server")
+    }
+    serverGroup
+  }
+
+  private def clientEventLoop(): EventLoopGroup = synchronized {
+    if (clientGroup == null) {
+      clientGroup = NettyUtils.createEventLoop(
+        ioMode, transportConf.clientThreads(), "streaming-shuffle-client")
+    }
+    clientGroup
+  }
+
+  override def close(): Unit = synchronized {
+    if (serverGroup != null) {
+      serverGroup.shutdownGracefully()
+      serverGroup = null
+    }
+    if (clientGroup != null) {
+      clientGroup.shutdownGracefully()
+      clientGroup = null
+    }
+  }
+}
+
+private[spark] object StreamingShuffleTransport {
+
+  /**
+   * Encodes a message into a frame, prefixed by the length of the rest of the frame. The data of
+   * a [[DataMessage]] is added to the frame without copying it. The message is released once it
+   * is encoded, so senders hand the ownership of the messages they write over to the channel.
+   */
+  @ChannelHandler.Sharable
+  object FrameEncoder
+    extends MessageToMessageEncoder[StreamingShuffleMessage](classOf[StreamingShuffleMessage]) {
+
+    override def encode(
+        ctx: ChannelHandlerContext,
+        msg: StreamingShuffleMessage,
+        out: JList[AnyRef]): Unit = {
+      try {
+        val dataSize = msg match {
+          case data: DataMessage => data.dataSize
+          case _ => 0
+        }
+        val frame = ctx.alloc().compositeBuffer()
+        frame.capacity(4 + msg.headerLength())
+        frame.writeInt(msg.headerLength() + dataSize)
+        msg.encode(frame)
+        out.add(frame)
+      } finally {
+        msg.release()
+      }
+    }
+  }
+
+  /** Decodes the frames written by [[FrameEncoder]] into messages. */
+  class FrameDecoder extends LengthFieldBasedFrameDecoder(Int.MaxValue, 0, 4, 0, 4) {
+
+    override def decode(ctx: ChannelHandlerContext, in: ByteBuf): AnyRef = {
+      val frame = super.decode(ctx, in).asInstanceOf[ByteBuf]
+      if (frame == null) {
+        null
+      } else {
+        // A decoded DataMessage retains the frame for its data.
+        try {
+          StreamingShuffleMessage.decode(frame)
+        } finally {
+          frame.release()
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,432 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.streaming
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+
+import io.netty.buffer.{ByteBuf, ByteBufOutputStream}
+import io.netty.channel.{Channel, ChannelFuture, ChannelFutureListener, ChannelHandlerContext, SimpleChannelInboundHandler}
+
+import org.apache.spark.{SparkConf, SparkEnv, SparkException, StreamingShuffleOutputTracker, StreamingShuffleTaskLocation, TaskContext}
+import org.apache.spark.internal.LogKeys
+import org.apache.spark.internal.config.{STREAMING_SHUFFLE_TIMEOUT, STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY, STREAMING_SHUFFLE_WRITER_MESSAGE_SIZE}
+import org.apache.spark.memory.{MemoryConsumer, MemoryMode, TaskMemoryManager}
+import org.apache.spark.network.shuffle.streaming.{CreditControlMessage, DataMessage, ShuffleChecksum, StreamingShuffleMessage, StreamingShuffleMessageType, TerminationAckMessage, TerminationControlMessage}
+import org.apache.spark.scheduler.MapStatus
+import org.apache.spark.serializer.{SerializationStream, SerializerManager}
+import org.apache.spark.shuffle.{ShuffleWriteMetricsReporter, ShuffleWriter}
+import org.apache.spark.storage.{BlockManagerId, ShuffleBlockId}
+
+/**
+ * Writes the records of a map task of a streaming shuffle straight to the reduce tasks, which run
+ * at the same time, instead of writing them to disk.
+ *
+ * The writer listens on a port of its own and registers its location with the
+ * [[StreamingShuffleOutputTracker]], under the index of its partition, which is also its writer
+ * id. Every reader connects to it and grants it credits with [[CreditControlMessage]]s. The
+ * records of a reader are serialized into a buffer, which is sent as one [[DataMessage]] once it
+ * reaches the configured message size or once its first record has waited for the configured
+ * delay. Every data message takes one credit of its reader; the writer waits for the reader to
+ * grant more credits when it has none left. Once all the records are written, the writer sends a
+ * [[TerminationControlMessage]] to every reader and waits for the [[TerminationAckMessage]]s,
+ * which carry the last sequence number every reader received.
+ *
+ * Every buffer is accounted with the task's memory manager for the message size until it is
+ * handed over to the connection of its reader, as on-heap execution memory even if netty
+ * allocates it off heap. When a new buffer cannot get memory, the writer sends the buffered
+ * records of all the other readers early, so at most one buffer is not accounted.
+ *
+ * The writer waits for its readers, which the DAGScheduler submits together with it, for up to
+ * `spark.shuffle.streaming.timeout` at a time: to connect, to grant credits and to acknowledge
+ * the termination. The records are not stored, so they cannot be sent again: a reader which
+ * consumed some records of a failed writer cannot tell which of them a new attempt would send
+ * again, and the connection of every reader to the failed writer fails with it. A task retry or
+ * speculative copy of a writer would register the same writer id again, so it fails instead of
+ * replacing the location of the writer its readers may already have read from.
+ */
+private[spark] class StreamingShuffleWriter[K, V](
+    handle: StreamingShuffleHandle[K, V, _],
+    mapId: Long,
+    override val context: TaskContext,
+    writeMetrics: ShuffleWriteMetricsReporter,
+    transport: StreamingShuffleTransport,
+    tracker: StreamingShuffleOutputTracker,
+    blockManagerId: BlockManagerId,
+    conf: SparkConf,
+    serializerManager: SerializerManager = SparkEnv.get.serializerManager)
+  extends ShuffleWriter[K, V] with TaskContextAwareLogging {
+  import StreamingShuffleWriter._
+
+  private val dep = handle.dependency
+  private val shuffleId = dep.shuffleId
+  private val writerId = context.partitionId()
+  private val partitioner = dep.partitioner
+  private val serializer = dep.serializer.newInstance()
+  private val messageSize = conf.get(STREAMING_SHUFFLE_WRITER_MESSAGE_SIZE).toInt
+  private val maxBatchDelayNanos =
+    TimeUnit.MILLISECONDS.toNanos(conf.get(STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY))
+  private val timeoutMs = conf.get(STREAMING_SHUFFLE_TIMEOUT)
+  private val checksum = new ShuffleChecksum
+  private val batchMemory = Option(context.taskMemoryManager()).map(new BatchMemoryConsumer(_))
+
+  private val readers = Array.tabulate(partitioner.numPartitions)(new ReaderState(_))
+  // The readers with buffered records, in the order their first buffered record was written.
+  private val pendingBatches = new ArrayDeque[ReaderState]
+
+  private var serverChannel: Channel = _
+  // Guarded by this writer, like the credits and the channels of the readers.
+  private var failure: Throwable = _
+  private var stopping = false
+
+  setShuffleIdForLogging(shuffleId)
+
+  override def write(records: Iterator[Product2[K, V]]): Unit = {
+    require(!dep.mapSideCombine, "Streaming shuffle does not support map-side combine")
+    start()
+    while (records.hasNext) {
+      val record = records.next()
+      val reader = readers(partitioner.getPartition(record._1))
+      if (reader.stream == null) {
+        reader.newBatch()
+        if (!reader.batchAccounted) {
+          while (!pendingBatches.isEmpty) {
+            sendBatch(pendingBatches.poll())
+          }
+        }
+        pendingBatches.add(reader)
+      }
+      reader.stream.writeKey(record._1.asInstanceOf[Any])
+      reader.stream.writeValue(record._2.asInstanceOf[Any])
+      writeMetrics.incRecordsWritten(1)
+      if (reader.buffer.readableBytes() >= messageSize) {
+        pendingBatches.remove(reader)
+        sendBatch(reader)
+      }
+      sendExpiredBatches()
+    }
+    while (!pendingBatches.isEmpty) {
+      sendBatch(pendingBatches.poll())
+    }
+    readers.foreach(terminate)
+    awaitTerminationAcks()
+  }
+
+  override def stop(success: Boolean): Option[MapStatus] = {
+    close()
+    if (success) {
+      Some(MapStatus(blockManagerId, getPartitionLengths(), mapId))
+    } else {
+      None
+    }
+  }
+
+  /** The number of bytes sent to every reader. */
+  override def getPartitionLengths(): Array[Long] = readers.map(_.bytesSent)
+
+  private def start(): Unit = {
+    if (context.attemptNumber() > 0) {
+      throw new SparkException(s"Writer $writerId of streaming shuffle $shuffleId cannot be " +
+        s"retried (attempt ${context.attemptNumber()}), as its readers may have already " +
+        "consumed records of an earlier attempt")
+    }
+    context.addTaskCompletionListener[Unit](_ => close())
+    serverChannel = transport.listen(blockManagerId.host, () => new ReaderConnectionHandler)
+    val port = serverChannel.localAddress().asInstanceOf[InetSocketAddress].getPort
+    val location =
+      StreamingShuffleTaskLocation(blockManagerId.executorId, blockManagerId.host, port)
+    if (!tracker.registerShuffleWriterTask(shuffleId, writerId, location)) {
+      throw SparkException.internalError(
+        s"Failed to register writer $writerId of streaming shuffle $shuffleId")
+    }
+    logInfo(log"Registered writer ${MDC(LogKeys.MAP_ID, writerId)} listening on " +
+      log"${MDC(LogKeys.HOST_PORT, s"${blockManagerId.host}:$port")}")
+  }
+
+  private def sendExpiredBatches(): Unit = {
+    if (!pendingBatches.isEmpty) {
+      val now = System.nanoTime()
+      while (!pendingBatches.isEmpty &&
+          now - pendingBatches.peek().batchStartNanos >= maxBatchDelayNanos) {
+        sendBatch(pendingBatches.poll())
+      }
+    }
+  }
+
+  private def sendBatch(reader: ReaderState): Unit = {
+    reader.stream.close()
+    val data = reader.buffer
+    reader.stream = null
+    reader.buffer = null
+    reader.freeBatchMemory()
+    val dataSize = data.readableBytes()
+    checksum.reset()
+    checksum.updateChecksum(data, data.readerIndex(), dataSize)
+    val message = try {
+      new DataMessage(writerId, reader.readerId, dataSize, data, checksum.getValue)
+    } finally {
+      // The message holds a reference of its own.
+      data.release()
+    }
+    val channel = try {
+      awaitCredit(reader)
+    } catch {
+      case e: Throwable =>
+        message.release()
+        throw e
+    }
+    send(reader, channel, message)
+    reader.bytesSent += dataSize
+    writeMetrics.incBytesWritten(dataSize)
+  }
+
+  private def terminate(reader: ReaderState): Unit = {
+    val channel = synchronized {
+      awaitUntil(reader.channel != null, s"reader ${reader.readerId} to connect")
+      reader.channel
+    }
+    send(reader, channel, new TerminationControlMessage(writerId, reader.readerId))
+  }
+
+  private def awaitTerminationAcks(): Unit = {
+    val unacked = synchronized {
+      awaitUntil(readers.forall(_.ackSeqNum.isDefined),
+        "the readers to acknowledge the end of the stream")
+      readers.find(r => r.ackSeqNum.get != r.nextSeqNum - 1)
+    }
+    unacked.foreach { reader =>
+      throw StreamingShuffleManager.streamingShuffleIncorrectSequenceNumber(
+        StreamingShuffleMessageType.TERMINATION_ACK_MESSAGE, writerId, reader.readerId,
+        reader.nextSeqNum - 1, reader.ackSeqNum.get)
+    }
+  }
+
+  /** Waits for a credit of the reader and takes it. */
+  private def awaitCredit(reader: ReaderState): Channel = {
+    val startTime = System.nanoTime()
+    synchronized {
+      awaitUntil(reader.credits > 0, s"reader ${reader.readerId} to grant a credit")
+      reader.credits -= 1
+      writeMetrics.incWriteTime(System.nanoTime() - startTime)
+      reader.channel
+    }
+  }
+
+  /**
+   * Waits for the condition while holding the lock of this writer, failing fast on errors and
+   * once the condition has not held for the timeout.
+   */
+  private def awaitUntil(condition: => Boolean, waitingFor: => String): Unit = {
+    val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+    while (!condition && failure == null) {
+      val remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+      if (remainingMs <= 0) {
+        throw new IOException(s"Writer $writerId of streaming shuffle $shuffleId timed out " +
+          s"after $timeoutMs ms waiting for $waitingFor; the reduce tasks of a streaming " +
+          "shuffle must run at the same time as its map tasks")
+      }
+      wait(math.min(WAIT_INTERVAL_MS, remainingMs))
+      context.killTaskIfInterrupted()
+    }
+    if (failure != null) {
+      throw failure
+    }
+  }
+
+  private def send(
+      reader: ReaderState,
+      channel: Channel,
+      message: StreamingShuffleMessage): Unit = {
+    message.setSeqNum(reader.nextSeqNum)
+    reader.nextSeqNum += 1
+    channel.writeAndFlush(message).addListener(new ChannelFutureListener {
+      override def operationComplete(future: ChannelFuture): Unit = {
+        if (!future.isSuccess) {
+          // The message is released by the encoder, unless the write failed before that.
+          message.release()
+          fail(new IOException(
+            s"Failed to send ${message.messageType()} to reader ${reader.readerId}",
+            future.cause()))
+        }
+      }
+    })
+  }
+
+  private def fail(cause: Throwable): Unit = synchronized {
+    if (failure == null && !stopping) {
+      failure = cause
+    }
+    notifyAll()
+  }
+
+  private def close(): Unit = {
+    val channels = synchronized {
+      if (stopping) {
+        Seq.empty
+      } else {
+        stopping = true
+        notifyAll()
+        readers.map(_.channel).filter(_ != null).distinct.toSeq ++ Option(serverChannel)
+      }
+    }
+    channels.foreach(_.close())
+    readers.foreach(_.releaseBatch())
+    pendingBatches.clear()
+    batchMemory.foreach(m => m.freeMemory(m.getUsed))
+  }
+
+  /** The state of the stream to one reader. */
+  private final class ReaderState(val readerId: Int) {
+    private val blockId = ShuffleBlockId(shuffleId, writerId, readerId)
+
+    // Guarded by the writer.
+    var channel: Channel = _
+    var credits = 0L
+    var ackSeqNum: Option[Long] = None
+
+    // Only used by the task thread.
+    var nextSeqNum = 0L
+    var bytesSent = 0L
+    var buffer: ByteBuf = _
+    var stream: SerializationStream = _
+    var batchStartNanos = 0L
+    var batchAccounted = false
+
+    def newBatch(): Unit = {
+      batchAccounted = batchMemory.forall(_.acquire(messageSize))
+      buffer = transport.alloc.buffer(messageSize)
+      stream = serializer.serializeStream(
+        serializerManager.wrapStream(blockId, new ByteBufOutputStream(buffer)))
+      batchStartNanos = System.nanoTime()
+    }
+
+    def freeBatchMemory(): Unit = {
+      if (batchAccounted) {
+        batchMemory.foreach(_.freeMemory(messageSize))
+        batchAccounted = false
+      }
+    }
+
+    def releaseBatch(): Unit = {
+      if (buffer != null) {
+        buffer.release()
+        buffer = null
+        stream = null
+      }
+      batchAccounted = false
+    }
+  }
+
+  /**
+   * Accounts the buffers of the writer with the task's memory manager. The buffered records are
+   * sent by the task thread once a reader grants credits, so they are never spilled on request.
+   */
+  private final class BatchMemoryConsumer(taskMemoryManager: TaskMemoryManager)
+    extends MemoryConsumer(taskMemoryManager, MemoryMode.ON_HEAP) {
+
+    override def spill(size: Long, trigger: MemoryConsumer): Long = 0L
+
+    /** Acquires the given number of bytes, and returns whether all of them were granted. */
+    def acquire(size: Long): Boolean = {
+      val granted = acquireMemory(size)
+      if (granted < size) {
+        freeMemory(granted)
+      }
+      granted == size
+    }
+  }
+
+  /** Receives the credits and the acknowledgements of a reader. */
+  private class ReaderConnectionHandler
+    extends SimpleChannelInboundHandler[StreamingShuffleMessage] {
+
+    override def channelRead0(ctx: ChannelHandlerContext, msg: StreamingShuffleMessage): Unit = {
+      try {
+        msg match {
+          case credit: CreditControlMessage =>
+            onCredit(ctx.channel(), credit)
+          case ack: TerminationAckMessage =>
+            onTerminationAck(ack)
+          case other =>
+            fail(StreamingShuffleManager.streamingShuffleUnexpectedMessageType(
+              other.messageType()))
+        }
+      } finally {
+        msg.release()
+      }
+    }
+
+    private def reader(writer: Int, readerId: Int): Option[ReaderState] = {
+      if (writer == writerId && readerId >= 0 && readerId < readers.length) {
+        Some(readers(readerId))
+      } else {
+        fail(SparkException.internalError(
+          s"Writer $writerId of streaming shuffle $shuffleId received a message for writer " +
+            s"$writer and reader $readerId"))
+        None
+      }
+    }
+
+    private def onCredit(channel: Channel, credit: CreditControlMessage): Unit = {
+      reader(credit.shuffleWriterId, credit.shuffleReaderId).foreach { reader =>
+        StreamingShuffleWriter.this.synchronized {
+          if (reader.channel == null) {
+            reader.channel = channel
+          } else if (reader.channel != channel) {
+            fail(SparkException.internalError(
+              s"Reader ${reader.readerId} of streaming shuffle $shuffleId connected twice"))
+          }
+          reader.credits += credit.numMessages
+          StreamingShuffleWriter.this.notifyAll()
+        }
+      }
+    }
+
+    private def onTerminationAck(ack: TerminationAckMessage): Unit = {
+      reader(ack.shuffleWriterId, ack.shuffleReaderId).foreach { reader =>
+        StreamingShuffleWriter.this.synchronized {
+          reader.ackSeqNum = Some(ack.getSeqNum)
+          StreamingShuffleWriter.this.notifyAll()
+        }
+      }
+    }
+
+    override def channelInactive(ctx: ChannelHandlerContext): Unit = {
+      StreamingShuffleWriter.this.synchronized {
+        val lost = readers.filter(r => r.channel == ctx.channel() && r.ackSeqNum.isEmpty)
+        if (lost.nonEmpty) {
+          fail(new IOException(s"Connection to reader ${lost.head.readerId} was closed " +
+            "before the end of the stream"))
+        }
+      }
+      super.channelInactive(ctx)
+    }
+
+    override def exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable): Unit = {
+      fail(cause)
+      ctx.close()
+    }
+  }
+}
+
+private object StreamingShuffleWriter {
+  // How often a waiting writer checks whether its task was killed.
+  private val WAIT_INTERVAL_MS = 100L
+}
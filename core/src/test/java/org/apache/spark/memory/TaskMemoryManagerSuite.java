@@ -17,10 +17,18 @@
 
 package org.apache.spark.memory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import scala.Option;
+
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.executor.ExecutorSource;
 import org.apache.spark.unsafe.memory.MemoryAllocator;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.internal.config.package$;
@@ -59,6 +67,33 @@ public class TaskMemoryManagerSuite {
     manager.freePage(dataPage, c);
   }
 
+  @Test
+  public void pooledOffHeapPagesAcquireTheirSizeClass() {
+    final SparkConf conf = new SparkConf()
+      .set(package$.MODULE$.MEMORY_OFFHEAP_ENABLED(), true)
+      .set(package$.MODULE$.MEMORY_OFFHEAP_SIZE(), 1L << 30)
+      .set(package$.MODULE$.MEMORY_OFFHEAP_PAGE_POOL_ENABLED(), true);
+    final TestMemoryManager memoryManager = new TestMemoryManager(conf);
+    final TaskMemoryManager manager = new TaskMemoryManager(memoryManager, 0);
+    final MemoryConsumer c = new TestMemoryConsumer(manager, MemoryMode.OFF_HEAP);
+    // 1MB + 1 byte is rounded up to the 1.25MB size class, and all of it is acquired.
+    final MemoryBlock page1 = manager.allocatePage(1024 * 1024 + 1, c);
+    Assertions.assertEquals(1280 * 1024, page1.size());
+    Assertions.assertEquals(1280 * 1024, manager.getMemoryConsumptionForThisTask());
+    manager.freePage(page1, c);
+    Assertions.assertEquals(0, manager.getMemoryConsumptionForThisTask());
+
+    // If less than the size class is granted, the page shrinks to a size class which fits into
+    // the granted memory and the rest is released.
+    memoryManager.limit(100000);
+    final MemoryBlock page2 = manager.allocatePage(1024 * 1024, c);
+    Assertions.assertEquals(96 * 1024, page2.size());
+    Assertions.assertEquals(96 * 1024, manager.getMemoryConsumptionForThisTask());
+    manager.freePage(page2, c);
+    Assertions.assertEquals(0, manager.cleanUpAllAllocatedMemory());
+    memoryManager.pagePool().get().releaseAll();
+  }
+
   @Test
   public void encodePageNumberAndOffsetOnHeap() {
     final TaskMemoryManager manager = new TaskMemoryManager(
@@ -259,6 +294,97 @@ public class TaskMemoryManagerSuite {
     Assertions.assertEquals(0, c4.getUsed());
   }
 
+  @Test
+  public void spillsHigherPriorityConsumersFirst() {
+    final TestMemoryManager memoryManager = new TestMemoryManager(new SparkConf());
+    memoryManager.limit(100);
+    final TaskMemoryManager manager = new TaskMemoryManager(memoryManager, 0);
+
+    TestMemoryConsumer c1 = new TestMemoryConsumer(manager);
+    TestMemoryConsumer c2 = new TestMemoryConsumer(manager) {
+      @Override
+      public int getSpillPriority() {
+        return 1;
+      }
+    };
+    TestMemoryConsumer c3 = new TestMemoryConsumer(manager);
+
+    // c1 is the best fit, but c2 has a higher priority.
+    c1.use(30);
+    c2.use(50);
+    c3.use(40);
+    Assertions.assertEquals(30, c1.getUsed());
+    Assertions.assertEquals(0, c2.getUsed());
+    Assertions.assertEquals(40, c3.getUsed());
+
+    // Without any consumer of a higher priority left, the size heuristic applies again.
+    c2.use(60);
+    Assertions.assertEquals(0, c1.getUsed());
+    Assertions.assertEquals(60, c2.getUsed());
+    Assertions.assertEquals(40, c3.getUsed());
+  }
+
+  @Test
+  public void proactivelySpillsAboveHighWaterMark() {
+    final TestMemoryManager memoryManager = new TestMemoryManager(new SparkConf());
+    memoryManager.limit(1000);
+    final TaskMemoryManager manager = new TaskMemoryManager(memoryManager, 0);
+    manager.setSpillHighWaterMark(100);
+    final List<String> events = new ArrayList<>();
+    manager.addMemoryPressureListener((consumer, trigger, requested, released, proactive) ->
+      events.add(requested + "/" + released + "/" + proactive));
+
+    TestPartialSpillingMemoryConsumer c1 = new TestPartialSpillingMemoryConsumer(manager);
+    TestMemoryConsumer c2 = new TestMemoryConsumer(manager);
+    c1.use(80);
+    c2.use(20);
+    Assertions.assertTrue(events.isEmpty());
+
+    // The request is granted, and then c1 spills the 30 bytes above the high-water mark.
+    c2.use(30);
+    Assertions.assertEquals(50, c1.getUsed());
+    Assertions.assertEquals(50, c2.getUsed());
+    Assertions.assertEquals(List.of("30/30/true"), events);
+
+    // The requesting consumer is never spilled proactively.
+    c1.free(50);
+    c2.use(100);
+    Assertions.assertEquals(150, c2.getUsed());
+    Assertions.assertEquals(1, events.size());
+
+    c2.free(150);
+    Assertions.assertEquals(0, manager.cleanUpAllAllocatedMemory());
+  }
+
+  @Test
+  public void executorSourceCountsSpillsAboveHighWaterMark() {
+    final TestMemoryManager memoryManager = new TestMemoryManager(new SparkConf());
+    memoryManager.limit(1000);
+    final TaskMemoryManager manager = new TaskMemoryManager(memoryManager, 0);
+    manager.setSpillHighWaterMark(100);
+    final ThreadPoolExecutor threadPool =
+      (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+    final ExecutorSource source =
+      new ExecutorSource(threadPool, "1", new String[0], Option.empty());
+    manager.addMemoryPressureListener(source.memoryPressureListener());
+
+    TestPartialSpillingMemoryConsumer c1 = new TestPartialSpillingMemoryConsumer(manager);
+    TestMemoryConsumer c2 = new TestMemoryConsumer(manager);
+    c1.use(80);
+    c2.use(20);
+    Assertions.assertEquals(0, source.METRIC_MEMORY_PRESSURE_SPILLS().getCount());
+
+    c2.use(30);
+    Assertions.assertEquals(1, source.METRIC_MEMORY_PRESSURE_SPILLS().getCount());
+    Assertions.assertEquals(1, source.METRIC_MEMORY_PRESSURE_PROACTIVE_SPILLS().getCount());
+    Assertions.assertEquals(30, source.METRIC_MEMORY_PRESSURE_RELEASED_BYTES().getCount());
+
+    c1.free(50);
+    c2.free(50);
+    threadPool.shutdown();
+    Assertions.assertEquals(0, manager.cleanUpAllAllocatedMemory());
+  }
+
   @Test
   public void shouldNotForceSpillingInDifferentModes() {
     final TestMemoryManager memoryManager = new TestMemoryManager(new SparkConf());
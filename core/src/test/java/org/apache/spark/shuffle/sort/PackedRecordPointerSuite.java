@@ -107,4 +107,17 @@ public class PackedRecordPointerSuite {
     packedPointer.set(PackedRecordPointer.packPointer(address, 0));
     assertEquals(0, packedPointer.getRecordPointer());
   }
+
+  @Test
+  public void wideLayoutAddressesLargePartitionIdsAndOffsets() {
+    PackedRecordPointer packedPointer = new PackedRecordPointer();
+    long address = TaskMemoryManager.encodePageNumberAndOffset(3, MAXIMUM_PAGE_SIZE_BYTES * 4L);
+    packedPointer.setWide(address, Integer.MAX_VALUE);
+    assertEquals(Integer.MAX_VALUE, packedPointer.getPartitionId());
+    assertEquals(address, packedPointer.getRecordPointer());
+    // Setting a packed pointer afterwards switches back to the compact layout.
+    packedPointer.set(PackedRecordPointer.packPointer(0, 360));
+    assertEquals(360, packedPointer.getPartitionId());
+    assertEquals(0, packedPointer.getRecordPointer());
+  }
 }
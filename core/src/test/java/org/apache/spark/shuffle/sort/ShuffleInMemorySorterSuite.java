@@ -152,4 +152,34 @@ public class ShuffleInMemorySorterSuite {
     }
     Assertions.assertArrayEquals(numbersToSort, sorterResult);
   }
+
+  @Test
+  public void testSortingManyNumbersWithWidePointers() {
+    ShuffleInMemorySorter sorter =
+      new ShuffleInMemorySorter(consumer, 4, shouldUseRadixSort(), true);
+    long[] numbersToSort = new long[128000];
+    Random random = new Random(16);
+    for (int i = 0; i < numbersToSort.length; i++) {
+      if (!sorter.hasSpaceForAnotherRecord()) {
+        sorter.expandPointerArray(consumer.allocateArray(sorter.getMemoryUsage() / 8 * 2));
+      }
+      // Partition ids past the maximum of packed pointers, and the record pointer carrying the
+      // partition id along to check that both words of a record are moved together.
+      int partitionId = random.nextInt(Integer.MAX_VALUE);
+      numbersToSort[i] = partitionId;
+      sorter.insertRecord(((long) partitionId) << 1, partitionId);
+    }
+    Arrays.sort(numbersToSort);
+    long[] sorterResult = new long[numbersToSort.length];
+    ShuffleInMemorySorter.ShuffleSorterIterator iter = sorter.getSortedIterator();
+    int j = 0;
+    while (iter.hasNext()) {
+      iter.loadNext();
+      sorterResult[j] = iter.packedRecordPointer.getPartitionId();
+      Assertions.assertEquals(
+        sorterResult[j] << 1, iter.packedRecordPointer.getRecordPointer());
+      j += 1;
+    }
+    Assertions.assertArrayEquals(numbersToSort, sorterResult);
+  }
 }
@@ -492,6 +492,18 @@ public class UnsafeShuffleWriterSuite implements ShuffleChecksumTestHelper {
     testMergingSpills(false, null, false);
   }
 
+  @Test
+  public void mergeSpillsWithPositionalWritesAndLZ4() throws Exception {
+    conf.set(package$.MODULE$.SHUFFLE_UNSAFE_PARALLEL_MERGE_THREADS().key(), "2");
+    testMergingSpills(true, LZ4CompressionCodec.class.getName(), false);
+  }
+
+  @Test
+  public void mergeSpillsWithPositionalWritesAndNoCompression() throws Exception {
+    conf.set(package$.MODULE$.SHUFFLE_UNSAFE_PARALLEL_MERGE_THREADS().key(), "2");
+    testMergingSpills(true, null, false);
+  }
+
   @Test
   public void mergeSpillsWithCompressionAndEncryption() throws Exception {
     // This should actually be translated to a "file stream merge" internally, just have the
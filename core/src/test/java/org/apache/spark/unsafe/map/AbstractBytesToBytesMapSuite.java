@@ -45,6 +45,7 @@ import org.apache.spark.serializer.SerializerManager;
 import org.apache.spark.storage.*;
 import org.apache.spark.unsafe.Platform;
 import org.apache.spark.unsafe.array.ByteArrayMethods;
+import org.apache.spark.unsafe.hash.Murmur3_x86_32;
 import org.apache.spark.util.Utils;
 import org.apache.spark.internal.config.package$;
 
@@ -730,4 +731,212 @@ public abstract class AbstractBytesToBytesMapSuite {
     }
   }
 
+  @Test
+  public void lookupBatch() {
+    final int size = 2048;
+    final int batchSize = 256;
+    BytesToBytesMap map =
+      new BytesToBytesMap(taskMemoryManager, blockManager, serializerManager, 64, 0.5, 1024);
+    try {
+      // Insert the even keys only, so that every batch has both hits and misses.
+      for (long i = 0; i < size; i += 2) {
+        final long[] arr = new long[]{i};
+        final BytesToBytesMap.Location loc = map.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(
+          loc.append(arr, Platform.LONG_ARRAY_OFFSET, 8, arr, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+
+      final Object[] keyBases = new Object[batchSize];
+      final long[] keyOffsets = new long[batchSize];
+      final int[] keyLengths = new int[batchSize];
+      final int[] hashes = new int[batchSize];
+      final BytesToBytesMap.Location[] locs = new BytesToBytesMap.Location[batchSize];
+      for (int i = 0; i < batchSize; i++) {
+        locs[i] = map.newLocation();
+      }
+      for (int start = 0; start < size; start += batchSize) {
+        for (int i = 0; i < batchSize; i++) {
+          keyBases[i] = new long[]{start + i};
+          keyOffsets[i] = Platform.LONG_ARRAY_OFFSET;
+          keyLengths[i] = 8;
+          hashes[i] = Murmur3_x86_32.hashUnsafeWords(keyBases[i], keyOffsets[i], 8, 42);
+        }
+        map.lookupBatch(keyBases, keyOffsets, keyLengths, hashes, batchSize, locs);
+        for (int i = 0; i < batchSize; i++) {
+          final long key = start + i;
+          assertEquals(key % 2 == 0, locs[i].isDefined());
+          if (locs[i].isDefined()) {
+            assertEquals(key, Platform.getLong(locs[i].getValueBase(), locs[i].getValueOffset()));
+          }
+        }
+      }
+
+      // A new key appended through a location of the batch is visible to later lookups.
+      final long[] arr = new long[]{1L};
+      map.lookupBatch(new Object[]{arr}, new long[]{Platform.LONG_ARRAY_OFFSET}, new int[]{8},
+        new int[]{Murmur3_x86_32.hashUnsafeWords(arr, Platform.LONG_ARRAY_OFFSET, 8, 42)}, 1, locs);
+      assertFalse(locs[0].isDefined());
+      assertTrue(locs[0].append(
+        arr, Platform.LONG_ARRAY_OFFSET, 8, arr, Platform.LONG_ARRAY_OFFSET, 8));
+      assertTrue(map.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8).isDefined());
+      assertEquals(size / 2 + 1, map.numKeys());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void partitionedMapSetAndRetrieveKeys() {
+    final int size = 4096;
+    PartitionedBytesToBytesMap map = new PartitionedBytesToBytesMap(
+      taskMemoryManager, blockManager, serializerManager, 3, 64, 0.5, PAGE_SIZE_BYTES);
+    try {
+      assertEquals(8, map.numPartitions());
+      for (long i = 0; i < size; i++) {
+        final long[] arr = new long[]{i};
+        final BytesToBytesMap.Location loc = map.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8);
+        assertFalse(loc.isDefined());
+        assertTrue(
+          loc.append(arr, Platform.LONG_ARRAY_OFFSET, 8, arr, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+      assertEquals(size, map.numKeys());
+      assertEquals(size, map.numValues());
+      int nonEmptyPartitions = 0;
+      for (int p = 0; p < map.numPartitions(); p++) {
+        if (map.getPartition(p).numKeys() > 0) {
+          nonEmptyPartitions++;
+        }
+      }
+      assertEquals(map.numPartitions(), nonEmptyPartitions);
+
+      for (long i = 0; i < size; i++) {
+        final long[] arr = new long[]{i};
+        final BytesToBytesMap.Location loc = map.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(loc.isDefined());
+        assertEquals(i, Platform.getLong(loc.getValueBase(), loc.getValueOffset()));
+      }
+
+      final Set<Long> seen = new HashSet<>();
+      final Iterator<BytesToBytesMap.Location> iter = map.iterator();
+      while (iter.hasNext()) {
+        final BytesToBytesMap.Location loc = iter.next();
+        assertTrue(seen.add(Platform.getLong(loc.getKeyBase(), loc.getKeyOffset())));
+      }
+      assertEquals(size, seen.size());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void partitionedMapPartitionBatch() {
+    PartitionedBytesToBytesMap map = new PartitionedBytesToBytesMap(
+      taskMemoryManager, blockManager, serializerManager, 2, 64, 0.5, PAGE_SIZE_BYTES);
+    try {
+      final int[] hashes = new int[1000];
+      for (int i = 0; i < hashes.length; i++) {
+        hashes[i] = rand.nextInt();
+      }
+      final int[] rowOrder = new int[hashes.length];
+      final int[] partitionStarts = new int[map.numPartitions() + 1];
+      map.partitionBatch(hashes, hashes.length, rowOrder, partitionStarts);
+      assertEquals(0, partitionStarts[0]);
+      assertEquals(hashes.length, partitionStarts[map.numPartitions()]);
+      final boolean[] visited = new boolean[hashes.length];
+      for (int p = 0; p < map.numPartitions(); p++) {
+        int previous = -1;
+        for (int i = partitionStarts[p]; i < partitionStarts[p + 1]; i++) {
+          final int row = rowOrder[i];
+          assertEquals(p, map.partitionOf(hashes[row]));
+          // Rows of the same partition keep their relative order.
+          assertTrue(row > previous);
+          previous = row;
+          visited[row] = true;
+        }
+      }
+      for (boolean v : visited) {
+        assertTrue(v);
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void partitionedMapSizesPagesToPartitionShare() {
+    final long pageSizeBytes = 1L << 22;
+    PartitionedBytesToBytesMap map = new PartitionedBytesToBytesMap(
+      taskMemoryManager, blockManager, serializerManager, 6, 64, 0.5, pageSizeBytes);
+    try {
+      for (long i = 0; i < 4096; i++) {
+        final long[] arr = new long[]{i};
+        final BytesToBytesMap.Location loc = map.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(
+          loc.append(arr, Platform.LONG_ARRAY_OFFSET, 8, arr, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+      // Every partition starts with its 64KB share of a 4MB page.
+      assertEquals(map.numPartitions(), map.getNumDataPages());
+      for (int p = 0; p < map.numPartitions(); p++) {
+        final BytesToBytesMap partition = map.getPartition(p);
+        assertEquals(pageSizeBytes / map.numPartitions(), partition.getTotalMemoryConsumption() -
+          partition.getArray().memoryBlock().size());
+      }
+
+      // The following pages of a partition double in size.
+      final BytesToBytesMap partition = map.getPartition(0);
+      for (long i = 4096; i < 8192; i++) {
+        final long[] arr = new long[]{i};
+        final BytesToBytesMap.Location loc =
+          partition.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8);
+        assertTrue(
+          loc.append(arr, Platform.LONG_ARRAY_OFFSET, 8, arr, Platform.LONG_ARRAY_OFFSET, 8));
+      }
+      assertEquals(3 * pageSizeBytes / map.numPartitions(),
+        partition.getTotalMemoryConsumption() - partition.getArray().memoryBlock().size());
+
+      // After a reset, the partition starts over with a small page.
+      partition.reset();
+      final long[] arr = new long[]{0L};
+      assertTrue(partition.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8)
+        .append(arr, Platform.LONG_ARRAY_OFFSET, 8, arr, Platform.LONG_ARRAY_OFFSET, 8));
+      assertEquals(pageSizeBytes / map.numPartitions(),
+        partition.getTotalMemoryConsumption() - partition.getArray().memoryBlock().size());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void partitionedMapSpillsPerPartition() throws IOException {
+    PartitionedBytesToBytesMap map = new PartitionedBytesToBytesMap(
+      taskMemoryManager, blockManager, serializerManager, 2, 1, 0.75, 1024);
+    try {
+      for (int i = 0; i < 1024; i++) {
+        final long[] arr = new long[]{i};
+        final BytesToBytesMap.Location loc = map.lookup(arr, Platform.LONG_ARRAY_OFFSET, 8);
+        loc.append(arr, Platform.LONG_ARRAY_OFFSET, 8, arr, Platform.LONG_ARRAY_OFFSET, 8);
+      }
+      final Iterator<BytesToBytesMap.Location> iter = map.destructiveIterator();
+      for (int i = 0; i < 10; i++) {
+        iter.next();
+      }
+      // Partitions which have not been consumed yet can be spilled on their own.
+      final TestMemoryConsumer trigger = new TestMemoryConsumer(taskMemoryManager);
+      final BytesToBytesMap last = map.getPartition(map.numPartitions() - 1);
+      assertTrue(last.spill(1024, trigger) >= 1024);
+      int numRecords = 10;
+      while (iter.hasNext()) {
+        iter.next();
+        numRecords++;
+      }
+      assertEquals(1024, numRecords);
+    } finally {
+      map.free();
+      for (File spillFile : spillFilesCreated) {
+        assertFalse(spillFile.exists(),
+          "Spill file " + spillFile.getPath() + " was not cleaned up");
+      }
+    }
+  }
+
 }
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.map;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.memory.TaskMemoryManager;
+import org.apache.spark.memory.TestMemoryManager;
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.internal.config.package$;
+
+public class LongToBytesMapSuite {
+
+  private static final long PAGE_SIZE_BYTES = 1L << 26; // 64 megabytes
+
+  private TestMemoryManager memoryManager;
+  private TaskMemoryManager taskMemoryManager;
+
+  @BeforeEach
+  public void setup() {
+    memoryManager = new TestMemoryManager(
+      new SparkConf().set(package$.MODULE$.MEMORY_OFFHEAP_ENABLED(), false));
+    taskMemoryManager = new TaskMemoryManager(memoryManager, 0);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    Assertions.assertEquals(0L, taskMemoryManager.cleanUpAllAllocatedMemory());
+    Assertions.assertEquals(0L, taskMemoryManager.getMemoryConsumptionForThisTask());
+  }
+
+  private static boolean append(LongToBytesMap.Location loc, long key, long value) {
+    final long[] keyData = new long[] { key };
+    final long[] valueData = new long[] { value };
+    return loc.append(
+      keyData, Platform.LONG_ARRAY_OFFSET, 8, valueData, Platform.LONG_ARRAY_OFFSET, 8);
+  }
+
+  @Test
+  public void emptyMap() {
+    LongToBytesMap map = new LongToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      Assertions.assertEquals(0, map.numKeys());
+      Assertions.assertFalse(map.lookup(42L).isDefined());
+      Assertions.assertFalse(map.lookupNull().isDefined());
+      Assertions.assertFalse(map.iterator().hasNext());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void setAndRetrieveKeys() {
+    LongToBytesMap map = new LongToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      LongToBytesMap.Location loc = map.lookup(0L);
+      Assertions.assertFalse(loc.isDefined());
+      Assertions.assertTrue(append(loc, 0L, 100L));
+      Assertions.assertTrue(loc.isDefined());
+      Assertions.assertEquals(100L, Platform.getLong(loc.getValueBase(), loc.getValueOffset()));
+
+      // The null key and the key 0 are distinct.
+      loc = map.lookupNull();
+      Assertions.assertFalse(loc.isDefined());
+      Assertions.assertTrue(append(loc, 0L, 200L));
+
+      loc = map.lookup(0L);
+      Assertions.assertTrue(loc.isDefined());
+      Assertions.assertEquals(0L, Platform.getLong(loc.getKeyBase(), loc.getKeyOffset()));
+      Assertions.assertEquals(100L, Platform.getLong(loc.getValueBase(), loc.getValueOffset()));
+      loc = map.lookupNull();
+      Assertions.assertTrue(loc.isDefined());
+      Assertions.assertEquals(200L, Platform.getLong(loc.getValueBase(), loc.getValueOffset()));
+      Assertions.assertEquals(2, map.numKeys());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void growAndIterate() {
+    final int size = 10000;
+    LongToBytesMap map = new LongToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      Random rand = new Random(42);
+      Map<Long, Long> expected = new HashMap<>();
+      while (expected.size() < size) {
+        long key = rand.nextLong();
+        LongToBytesMap.Location loc = map.lookup(key);
+        Assertions.assertEquals(expected.containsKey(key), loc.isDefined());
+        if (!loc.isDefined()) {
+          Assertions.assertTrue(append(loc, key, ~key));
+          expected.put(key, ~key);
+        }
+      }
+      Assertions.assertTrue(append(map.lookupNull(), 0L, -1L));
+      Assertions.assertEquals(size + 1, map.numKeys());
+
+      for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+        LongToBytesMap.Location loc = map.lookup(entry.getKey());
+        Assertions.assertTrue(loc.isDefined());
+        Assertions.assertEquals((long) entry.getValue(),
+          Platform.getLong(loc.getValueBase(), loc.getValueOffset()));
+      }
+      Assertions.assertTrue(map.lookupNull().isDefined());
+
+      int numRecords = 0;
+      LongToBytesMap.MapIterator iter = map.destructiveIterator();
+      while (iter.hasNext()) {
+        LongToBytesMap.Location loc = iter.next();
+        long key = Platform.getLong(loc.getKeyBase(), loc.getKeyOffset());
+        long value = Platform.getLong(loc.getValueBase(), loc.getValueOffset());
+        Assertions.assertEquals(~key, value);
+        numRecords++;
+      }
+      Assertions.assertEquals(size + 1, numRecords);
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void multipleValuesForSameKey() {
+    LongToBytesMap map = new LongToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      for (long i = 0; i < 3; i++) {
+        Assertions.assertTrue(append(map.lookup(7L), 7L, i));
+      }
+      Assertions.assertEquals(1, map.numKeys());
+      Assertions.assertEquals(3, map.numValues());
+      LongToBytesMap.Location loc = map.lookup(7L);
+      int numValues = 1;
+      while (loc.nextValue()) {
+        numValues++;
+      }
+      Assertions.assertEquals(3, numValues);
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void failureToGrow() {
+    LongToBytesMap map = new LongToBytesMap(taskMemoryManager, 1, 1024);
+    try {
+      boolean success = true;
+      int i;
+      for (i = 0; i < 127; i++) {
+        if (i > 0) {
+          memoryManager.limit(0);
+        }
+        success = append(map.lookup(i), i, i);
+        if (!success) {
+          break;
+        }
+      }
+      Assertions.assertTrue(i > 0);
+      Assertions.assertFalse(success);
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void resetAfterDestructiveIterator() {
+    LongToBytesMap map = new LongToBytesMap(taskMemoryManager, 64, PAGE_SIZE_BYTES);
+    try {
+      Assertions.assertTrue(append(map.lookup(1L), 1L, 1L));
+      LongToBytesMap.MapIterator iter = map.destructiveIterator();
+      Assertions.assertTrue(iter.hasNext());
+      iter.next();
+      map.reset();
+      Assertions.assertEquals(0, map.numKeys());
+      Assertions.assertFalse(map.lookup(1L).isDefined());
+    } finally {
+      map.free();
+    }
+  }
+}
@@ -23,6 +23,9 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import scala.Tuple2$;
 
@@ -275,6 +278,138 @@ public class UnsafeExternalSorterSuite {
     assertSpillFilesWereCleanedUp();
   }
 
+  private UnsafeExternalSorter newAsyncSpillingSorter(
+      ExecutorService executor,
+      int numElementsForSpillThreshold) throws IOException {
+    UnsafeExternalSorter sorter = UnsafeExternalSorter.create(
+      taskMemoryManager,
+      blockManager,
+      serializerManager,
+      taskContext,
+      () -> recordComparator,
+      prefixComparator,
+      /* initialSize */ 1024,
+      pageSizeBytes,
+      numElementsForSpillThreshold,
+      spillSizeThreshold,
+      /* spillMergeFactor */ -1,
+      shouldUseRadixSort());
+    sorter.enableAsyncSpill(executor, 0L);
+    return sorter;
+  }
+
+  @Test
+  public void asyncSpillingOccursOnThreshold() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final UnsafeExternalSorter sorter = newAsyncSpillingSorter(executor, 1000);
+      final int numRecords = 10000;
+      for (int i = 0; i < numRecords; i++) {
+        insertNumber(sorter, numRecords - 1 - i);
+      }
+      // Every 1000 records but the last ones were handed over to a background spill.
+      assertEquals(9, tempDir.listFiles().length);
+      UnsafeSorterIterator iter = sorter.getSortedIterator();
+      int i = 0;
+      while (iter.hasNext()) {
+        iter.loadNext();
+        assertEquals(i, iter.getKeyPrefix());
+        assertEquals(i, Platform.getInt(iter.getBaseObject(), iter.getBaseOffset()));
+        i++;
+      }
+      assertEquals(numRecords, i);
+      assertTrue(sorter.getSpillOverlapTimeNanos() >= 0);
+      assertTrue(taskContext.taskMetrics().diskBytesSpilled() > 0);
+      sorter.cleanupResources();
+      assertSpillFilesWereCleanedUp();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void cleanupWhileAsyncSpillIsPending() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch latch = new CountDownLatch(1);
+    try {
+      final UnsafeExternalSorter sorter = newAsyncSpillingSorter(executor, 100);
+      // Keep the spilling thread busy so that the spill is still pending during the cleanup.
+      executor.submit(() -> {
+        latch.await();
+        return null;
+      });
+      for (int i = 0; i < 101; i++) {
+        insertNumber(sorter, i);
+      }
+      assertEquals(1, tempDir.listFiles().length);
+      new Thread(() -> {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // Release the spilling thread anyway.
+        }
+        latch.countDown();
+      }).start();
+      // The data pages of the pending spill must only be freed once it stopped reading them,
+      // which the memory leak check of tearDown() verifies.
+      sorter.cleanupResources();
+      assertSpillFilesWereCleanedUp();
+    } finally {
+      latch.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void asyncSpillFailureIsRethrown() throws Exception {
+    final Thread taskThread = Thread.currentThread();
+    when(blockManager.getDiskWriter(
+      any(BlockId.class),
+      any(File.class),
+      any(SerializerInstance.class),
+      anyInt(),
+      any(ShuffleWriteMetrics.class))).thenAnswer(invocationOnMock -> {
+        Object[] args = invocationOnMock.getArguments();
+        return new DiskBlockObjectWriter(
+          (File) args[1],
+          serializerManager,
+          (SerializerInstance) args[2],
+          (Integer) args[3],
+          false,
+          (ShuffleWriteMetrics) args[4],
+          (BlockId) args[0]
+        ) {
+          @Override
+          public void write(byte[] kvBytes, int offs, int len) {
+            // Fail the writes of the background spill only.
+            if (Thread.currentThread() != taskThread) {
+              throw new IllegalStateException("Disk full");
+            }
+            super.write(kvBytes, offs, len);
+          }
+        };
+      });
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final UnsafeExternalSorter sorter = newAsyncSpillingSorter(executor, 100);
+      for (int i = 0; i < 101; i++) {
+        insertNumber(sorter, i);
+      }
+      // Wait for the spill to fail.
+      executor.submit(() -> null).get();
+      // The partial spill file was closed and deleted by the spilling thread.
+      assertSpillFilesWereCleanedUp();
+      IllegalStateException e =
+        assertThrows(IllegalStateException.class, () -> insertNumber(sorter, 101));
+      assertEquals("Disk full", e.getMessage());
+      IOException e2 = assertThrows(IOException.class, sorter::getSortedIterator);
+      assertSame(e, e2.getCause());
+      sorter.cleanupResources();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testFillingPage() throws Exception {
     final UnsafeExternalSorter sorter = newSorter();
@@ -723,6 +858,133 @@ public class UnsafeExternalSorterSuite {
     assertSpillFilesWereCleanedUp();
   }
 
+  @Test
+  public void testDeltaSpillEncoding() throws Exception {
+    final UnsafeExternalSorter sorter = UnsafeExternalSorter.create(
+      taskMemoryManager,
+      blockManager,
+      serializerManager,
+      taskContext,
+      () -> recordComparator,
+      prefixComparator,
+      /* initialSize */ 1024,
+      pageSizeBytes,
+      spillElementsThreshold,
+      spillSizeThreshold,
+      /* spillMergeFactor */ 2,
+      shouldUseRadixSort(),
+      /* keyNormalizerSupplier */ null,
+      UnsafeSorterSpillEncoding.DELTA);
+
+    // Records of varying length whose keys and tails repeat, so that consecutive sorted records
+    // share a prefix of different lengths.
+    final int numRecords = 1000;
+    for (int i = 0; i < numRecords; i++) {
+      int[] record = new int[2 + i % 7];
+      record[0] = (i * 31) % 100;
+      record[1] = record.length;
+      Arrays.fill(record, 2, record.length, i % 3);
+      insertRecord(sorter, record, record[0]);
+      if (i % 250 == 249) {
+        sorter.spill();
+      }
+    }
+    insertRecord(sorter, new int[]{ 100, 2 }, 100);
+    long savedBySpills = sorter.getSpillEncodingBytesSaved();
+    assertTrue(savedBySpills > 0);
+
+    UnsafeSorterIterator iter = sorter.getSortedIterator();
+    assertEquals(1, sorter.getSpillMergeRounds());
+    // The files of the intermediate merge round are encoded as well.
+    assertTrue(sorter.getSpillEncodingBytesSaved() > savedBySpills);
+    long lastPrefix = Long.MIN_VALUE;
+    for (int i = 0; i <= numRecords; i++) {
+      assertTrue(iter.hasNext());
+      iter.loadNext();
+      Object base = iter.getBaseObject();
+      long offset = iter.getBaseOffset();
+      assertTrue(iter.getKeyPrefix() >= lastPrefix);
+      lastPrefix = iter.getKeyPrefix();
+      assertEquals(lastPrefix, Platform.getInt(base, offset));
+      int length = Platform.getInt(base, offset + 4);
+      assertEquals(length * 4, iter.getRecordLength());
+      for (int j = 3; j < length; j++) {
+        assertEquals(Platform.getInt(base, offset + 8), Platform.getInt(base, offset + j * 4));
+      }
+    }
+    assertFalse(iter.hasNext());
+
+    sorter.cleanupResources();
+    assertSpillFilesWereCleanedUp();
+  }
+
+  @Test
+  public void testBoundedMergeInParallel() throws Exception {
+    final UnsafeExternalSorter sorter = newSorter();
+    sorter.setSpillMergeFactor(3);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    sorter.setSpillMergeExecutor(executor);
+
+    // Interleave the records of the spills, so that every merge has to alternate between all of
+    // its inputs.
+    int numSpills = 10;
+    int recordsPerSpill = 50;
+    for (int spill = 0; spill < numSpills; spill++) {
+      for (int i = 0; i < recordsPerSpill; i++) {
+        insertNumber(sorter, i * numSpills + spill);
+      }
+      sorter.spill();
+    }
+    insertNumber(sorter, numSpills * recordsPerSpill);
+
+    try {
+      // 10 spills, factor 3: round 1 [3,3,3,1]→4, round 2 [3,1]→2, then final
+      UnsafeSorterIterator iter = sorter.getSortedIterator();
+      assertEquals(2, sorter.getSpillMergeRounds());
+      verifyIntIterator(iter, 0, numSpills * recordsPerSpill + 1);
+      assertFalse(iter.hasNext());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    sorter.cleanupResources();
+    assertSpillFilesWereCleanedUp();
+  }
+
+  @Test
+  public void testFailedParallelBoundedMergeDeletesItsOutputs() throws Exception {
+    final UnsafeExternalSorter sorter = newSorter();
+    sorter.setSpillMergeFactor(3);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    sorter.setSpillMergeExecutor(executor);
+
+    int numSpills = 10;
+    for (int spill = 0; spill < numSpills; spill++) {
+      for (int i = 0; i < 20; i++) {
+        insertNumber(sorter, i * numSpills + spill);
+      }
+      sorter.spill();
+    }
+    // The third group of the first round fails to read its last input, while the other groups
+    // complete their merge.
+    assertTrue(spillFilesCreated.get(8).delete());
+
+    try {
+      assertThrows(IOException.class, sorter::getSortedIterator);
+    } finally {
+      executor.shutdownNow();
+    }
+    // The outputs of the round are deleted by the merge itself, not only when the sorter is
+    // cleaned up.
+    assertEquals(numSpills + 3, spillFilesCreated.size());
+    for (File file : spillFilesCreated.subList(numSpills, spillFilesCreated.size())) {
+      assertFalse(file.exists(), "Merge output " + file.getPath() + " was not deleted");
+    }
+
+    sorter.cleanupResources();
+    assertSpillFilesWereCleanedUp();
+  }
+
   @Test
   public void testBoundedMergeOddSpillCountWithCarryForward() throws Exception {
     // 7 spills with factor 2: exercises carry-forward of original file across rounds.
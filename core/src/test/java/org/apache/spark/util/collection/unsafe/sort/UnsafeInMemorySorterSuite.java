@@ -19,6 +19,8 @@ package org.apache.spark.util.collection.unsafe.sort;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.spark.unsafe.array.LongArray;
 import org.junit.jupiter.api.Assertions;
@@ -143,6 +145,142 @@ public class UnsafeInMemorySorterSuite {
     assertEquals(dataToSort.length, iterLength);
   }
 
+  @Test
+  public void testParallelSort() throws Exception {
+    final int numRecords = 10000;
+    final TaskMemoryManager memoryManager = new TaskMemoryManager(
+      new TestMemoryManager(
+        new SparkConf().set(package$.MODULE$.MEMORY_OFFHEAP_ENABLED(), false)), 0);
+    final TestMemoryConsumer consumer = new TestMemoryConsumer(memoryManager);
+    final MemoryBlock dataPage = memoryManager.allocatePage(2048, consumer);
+    // All the records point to the same empty record, only their prefixes are sorted on.
+    Platform.putInt(dataPage.getBaseObject(), dataPage.getBaseOffset(), 0);
+    final long address =
+      memoryManager.encodePageNumberAndOffset(dataPage, dataPage.getBaseOffset());
+    final UnsafeInMemorySorter sorter = new UnsafeInMemorySorter(consumer, memoryManager,
+      mock(RecordComparator.class), PrefixComparators.LONG, numRecords, shouldUseRadixSort());
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      sorter.enableParallelSort(pool, 4, 1);
+      final Random rand = new Random(42);
+      for (int i = 0; i < numRecords; i++) {
+        if (!sorter.hasSpaceForAnotherRecord()) {
+          sorter.expandPointerArray(
+            consumer.allocateArray(sorter.getMemoryUsage() / 8 * 2));
+        }
+        sorter.insertRecord(address, rand.nextInt(1000) - 500, false);
+      }
+      final UnsafeSorterIterator iter = sorter.getSortedIterator();
+      int iterLength = 0;
+      long prevPrefix = Long.MIN_VALUE;
+      while (iter.hasNext()) {
+        iter.loadNext();
+        assertTrue(iter.getKeyPrefix() >= prevPrefix);
+        prevPrefix = iter.getKeyPrefix();
+        iterLength++;
+      }
+      assertEquals(numRecords, iterLength);
+    } finally {
+      pool.shutdown();
+      sorter.freeMemory();
+      memoryManager.freePage(dataPage, consumer);
+    }
+  }
+
+  @Test
+  public void testSortingWithKeyNormalizer() throws Exception {
+    assertEquals(2000, sortWithKeyNormalizer(UnsafeInMemorySorter.MAX_REFINED_RUN_LENGTH));
+  }
+
+  @Test
+  public void testSortingRunsLargerThanMaxRefinedRunLengthWithComparator() throws Exception {
+    // The single run of equal prefixes is too large to be refined, so no key is normalized.
+    assertEquals(0, sortWithKeyNormalizer(100));
+  }
+
+  /**
+   * Sorts records sharing a long prefix with a key normalizer, and returns the number of keys
+   * which were normalized.
+   */
+  private int sortWithKeyNormalizer(int maxRefinedRunLength) throws Exception {
+    final int numRecords = 2000;
+    final TaskMemoryManager memoryManager = new TaskMemoryManager(
+      new TestMemoryManager(
+        new SparkConf().set(package$.MODULE$.MEMORY_OFFHEAP_ENABLED(), false)), 0);
+    final TestMemoryConsumer consumer = new TestMemoryConsumer(memoryManager);
+    final MemoryBlock dataPage = memoryManager.allocatePage(128 * 1024, consumer);
+    final Object baseObject = dataPage.getBaseObject();
+    // The records share a prefix which is longer than the 8-byte key prefix, so their order is
+    // only decided by the normalized keys: the raw bytes of the records.
+    final Random rand = new Random(42);
+    final String[] dataToSort = new String[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      StringBuilder sb = new StringBuilder("shared key prefix ");
+      int suffixLength = rand.nextInt(20);
+      for (int j = 0; j < suffixLength; j++) {
+        sb.append((char) ('a' + rand.nextInt(3)));
+      }
+      dataToSort[i] = sb.toString();
+    }
+    final RecordComparator recordComparator = new RecordComparator() {
+      @Override
+      public int compare(
+        Object leftBaseObject,
+        long leftBaseOffset,
+        int leftBaseLength,
+        Object rightBaseObject,
+        long rightBaseOffset,
+        int rightBaseLength) {
+        return getStringFromDataPage(leftBaseObject, leftBaseOffset, leftBaseLength).compareTo(
+          getStringFromDataPage(rightBaseObject, rightBaseOffset, rightBaseLength));
+      }
+    };
+    final int[] numNormalizedKeys = new int[1];
+    final RecordKeyNormalizer keyNormalizer = new RecordKeyNormalizer() {
+      @Override
+      public long[] normalizeKey(Object baseObject, long baseOffset, int baseLength) {
+        numNormalizedKeys[0]++;
+        long[] words = new long[(baseLength + 7) / 8];
+        for (int i = 0; i < baseLength; i++) {
+          long b = Platform.getByte(baseObject, baseOffset + i) & 0xff;
+          words[i / 8] |= b << (56 - (i % 8) * 8);
+        }
+        return words;
+      }
+    };
+    final UnsafeInMemorySorter sorter = new UnsafeInMemorySorter(consumer, memoryManager,
+      recordComparator, PrefixComparators.BINARY, numRecords * 2, true, keyNormalizer);
+    sorter.setMaxRefinedRunLength(maxRefinedRunLength);
+    try {
+      long position = dataPage.getBaseOffset();
+      for (String str : dataToSort) {
+        final byte[] strBytes = str.getBytes(StandardCharsets.UTF_8);
+        Platform.putInt(baseObject, position, strBytes.length);
+        Platform.copyMemory(
+          strBytes, Platform.BYTE_ARRAY_OFFSET, baseObject, position + 4, strBytes.length);
+        final long address = memoryManager.encodePageNumberAndOffset(dataPage, position);
+        sorter.insertRecord(
+          address, PrefixComparators.BinaryPrefixComparator.computePrefix(strBytes), false);
+        position += 4 + strBytes.length;
+      }
+      final UnsafeSorterIterator iter = sorter.getSortedIterator();
+      final String[] expected = dataToSort.clone();
+      Arrays.sort(expected);
+      int iterLength = 0;
+      while (iter.hasNext()) {
+        iter.loadNext();
+        assertEquals(expected[iterLength], getStringFromDataPage(
+          iter.getBaseObject(), iter.getBaseOffset(), iter.getRecordLength()));
+        iterLength++;
+      }
+      assertEquals(numRecords, iterLength);
+      return numNormalizedKeys[0];
+    } finally {
+      sorter.freeMemory();
+      memoryManager.freePage(dataPage, consumer);
+    }
+  }
+
   @Test
   public void testNoOOMDuringReset() {
     final SparkConf sparkConf = new SparkConf();
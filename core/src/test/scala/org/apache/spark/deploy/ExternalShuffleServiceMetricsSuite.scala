@@ -66,6 +66,10 @@ class ExternalShuffleServiceMetricsSuite extends SparkFunSuite {
         "registerExecutorRequestLatencyMillis",
         "shuffle-server.usedDirectMemory",
         "shuffle-server.usedHeapMemory",
+        "shuffleIndexCacheHitCount",
+        "shuffleIndexCacheHitRate",
+        "shuffleIndexCacheMissCount",
+        "shuffleIndexCacheSizeBytes",
         "finalizeShuffleMergeLatencyMillis",
         "fetchMergedBlocksMetaLatencyMillis").sorted
     )
@@ -18,10 +18,10 @@
 package org.apache.spark.io
 
 import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
-import java.util.Locale
+import java.util.{Locale, Random}
 
 import org.apache.spark.{SparkConf, SparkFunSuite, SparkIllegalArgumentException}
-import org.apache.spark.internal.config.{IO_COMPRESSION_CODEC, IO_COMPRESSION_ZSTD_BUFFERPOOL_ENABLED}
+import org.apache.spark.internal.config._
 import org.apache.spark.util.Utils
 
 class CompressionCodecSuite extends SparkFunSuite {
@@ -176,4 +176,65 @@ class CompressionCodecSuite extends SparkFunSuite {
         parameters = Map("codecName" -> codecClass.toUpperCase(Locale.ROOT)))
     }
   }
+
+  test("adaptive compression codec") {
+    CompressionCodec.shortCompressionCodecNames.keys.foreach { name =>
+      val codec = AdaptiveCompressionCodec(
+        conf, CompressionCodec.createCodec(conf, name), new AdaptiveCompressionSource())
+      assert(codec.getClass === classOf[AdaptiveCompressionCodec])
+      assert(CompressionCodec.supportsConcatenationOfSerializedStreams(codec))
+      testCodec(codec)
+      testConcatenationOfSerializedStreams(codec)
+    }
+  }
+
+  test("adaptive compression codec skips tiny and incompressible blocks") {
+    val conf = new SparkConf(false)
+      .set(SHUFFLE_COMPRESS_ADAPTIVE_BLOCK_SIZE.key, "1k")
+      .set(SHUFFLE_COMPRESS_ADAPTIVE_MIN_SIZE.key, "100")
+    val source = new AdaptiveCompressionSource()
+    val codec = AdaptiveCompressionCodec(conf, CompressionCodec.createCodec(conf, "lz4"), source)
+    val frameHeaderSize = 9
+
+    def roundTrip(data: Array[Byte]): Int = {
+      val baos = new ByteArrayOutputStream()
+      val out = codec.compressedOutputStream(baos)
+      out.write(data)
+      out.close()
+      val in = codec.compressedInputStream(new ByteArrayInputStream(baos.toByteArray))
+      val decompressed = new Array[Byte](data.length)
+      Utils.readFully(in, decompressed, 0, decompressed.length)
+      assert(in.read() === -1)
+      assert(decompressed.toSeq === data.toSeq)
+      baos.size()
+    }
+
+    val tiny = Array.fill[Byte](99)(1)
+    assert(roundTrip(tiny) === tiny.length + frameHeaderSize)
+    val repetitive = Array.tabulate[Byte](4096)(i => (i % 4).toByte)
+    assert(roundTrip(repetitive) < repetitive.length / 4)
+    val incompressible = new Array[Byte](4096)
+    new Random(42).nextBytes(incompressible)
+    assert(roundTrip(incompressible) === incompressible.length + 4 * frameHeaderSize)
+
+    val uncompressed = AdaptiveCompressionCodec.UNCOMPRESSED
+    assert(source.bytesIn(uncompressed).getCount === tiny.length + incompressible.length)
+    assert(source.bytesIn(1.toByte).getCount === repetitive.length)
+    assert(source.bytesOut(1.toByte).getCount < source.bytesIn(1.toByte).getCount)
+  }
+
+  test("adaptive compression codec reads frames of other codecs") {
+    val data = Array.tabulate[Byte](100000)(i => (i % 7).toByte)
+    val baos = new ByteArrayOutputStream()
+    val source = new AdaptiveCompressionSource()
+    val out = AdaptiveCompressionCodec(conf, CompressionCodec.createCodec(conf, "lz4"), source)
+      .compressedOutputStream(baos)
+    out.write(data)
+    out.close()
+    val in = AdaptiveCompressionCodec(conf, CompressionCodec.createCodec(conf, "zstd"), source)
+      .compressedInputStream(new ByteArrayInputStream(baos.toByteArray))
+    val decompressed = new Array[Byte](data.length)
+    Utils.readFully(in, decompressed, 0, decompressed.length)
+    assert(decompressed.toSeq === data.toSeq)
+  }
 }
@@ -48,6 +48,7 @@ import org.apache.spark.rpc.RpcTimeoutException
 import org.apache.spark.scheduler.SchedulingMode.SchedulingMode
 import org.apache.spark.scheduler.local.LocalSchedulerBackend
 import org.apache.spark.shuffle.{FetchFailedException, MetadataFetchFailedException}
+import org.apache.spark.shuffle.streaming.{MultiShuffleManager, StreamingShuffleHandle}
 import org.apache.spark.storage.{BlockId, BlockManager, BlockManagerId, BlockManagerMaster}
 import org.apache.spark.util.{AccumulatorContext, AccumulatorV2, CallSite, Clock, LongAccumulator, SystemClock, ThreadUtils, Utils}
 import org.apache.spark.util.ArrayImplicits._
@@ -3141,6 +3142,114 @@ class DAGSchedulerSuite extends SparkFunSuite with TempLocalSparkContext with Ti
     assert(countSubmittedMapStageAttempts() === 2)
   }
 
+  /**
+   * Creates the shuffle dependency of the given RDD as a streaming shuffle, whose map stage
+   * pushes its records to the stages reading it while they run.
+   */
+  private def streamingShuffleDep(
+      rdd: RDD[(Int, Int)],
+      numPartitions: Int): ShuffleDependency[Int, Int, Int] = {
+    sc.setLocalProperty(MultiShuffleManager.STREAMING_SHUFFLE_ENABLED_PROPERTY, "true")
+    try {
+      val shuffleDep = new ShuffleDependency[Int, Int, Int](rdd, new HashPartitioner(numPartitions))
+      assert(shuffleDep.shuffleHandle.isInstanceOf[StreamingShuffleHandle[_, _, _]])
+      shuffleDep
+    } finally {
+      sc.setLocalProperty(MultiShuffleManager.STREAMING_SHUFFLE_ENABLED_PROPERTY, null)
+    }
+  }
+
+  test("Stages reading a streaming shuffle are submitted together with its map stage") {
+    // The 4 tasks of the map and result stages fit in the slots.
+    conf.setMaster("local[4]")
+      .set(config.SHUFFLE_MANAGER, classOf[MultiShuffleManager].getName)
+    val shuffleDep = streamingShuffleDep(new MyRDD(sc, 2, Nil), 2)
+    val reduceRdd = new MyRDD(sc, 2, List(shuffleDep), tracker = mapOutputTracker)
+    submit(reduceRdd, Array(0, 1))
+
+    // The result stage does not wait for the map stage, whose tasks only finish once the
+    // result tasks read their records.
+    assert(taskSets.map(_.stageId) === Seq(0, 1))
+    assert(scheduler.runningStages.map(_.id) === Set(0, 1))
+    assert(scheduler.waitingStages.isEmpty)
+
+    completeShuffleMapStageSuccessfully(0, 0, 2)
+    completeNextResultStageWithSuccess(1, 0)
+    assert(results === Map(0 -> 42, 1 -> 42))
+    assertDataStructuresEmpty()
+  }
+
+  test("Stages reading a streaming shuffle wait for enough slots and are aborted without them") {
+    conf.setMaster("local[3]")
+      .set(config.SHUFFLE_MANAGER, classOf[MultiShuffleManager].getName)
+      .set(config.BARRIER_MAX_CONCURRENT_TASKS_CHECK_MAX_FAILURES, 2)
+    val shuffleDep = streamingShuffleDep(new MyRDD(sc, 2, Nil), 2)
+    val reduceRdd = new MyRDD(sc, 2, List(shuffleDep), tracker = mapOutputTracker)
+    submit(reduceRdd, Array(0, 1))
+
+    // The 4 tasks of the map and result stages must run together, but there are only 3 slots.
+    assert(taskSets.map(_.stageId) === Seq(0))
+    assert(scheduler.waitingStages.map(_.id) === Set(1))
+    assert(scheduler.coScheduledStageIdToNumTasksCheckFailures(1) === 1)
+
+    runEvent(ResubmitCoScheduledStage(1))
+    assert(taskSets.map(_.stageId) === Seq(0))
+    assert(scheduler.waitingStages.map(_.id) === Set(1))
+    assert(scheduler.coScheduledStageIdToNumTasksCheckFailures(1) === 2)
+    assert(failure === null)
+
+    runEvent(ResubmitCoScheduledStage(1))
+    assert(taskSets.map(_.stageId) === Seq(0))
+    assert(failure.getMessage.contains("which requires 4 slots, but only 3 are available"))
+    assert(cancelledStages.toSet === Set(0))
+    assert(scheduler.coScheduledStageIdToNumTasksCheckFailures.isEmpty)
+    assertDataStructuresEmpty()
+  }
+
+  test("Stages reading a streaming shuffle whose records were already read are aborted") {
+    // The 4 tasks of the map and result stages fit in the slots.
+    conf.setMaster("local[4]")
+      .set(config.SHUFFLE_MANAGER, classOf[MultiShuffleManager].getName)
+    val shuffleDep = streamingShuffleDep(new MyRDD(sc, 2, Nil), 2)
+    val reduceRdd = new MyRDD(sc, 2, List(shuffleDep), tracker = mapOutputTracker)
+    submit(reduceRdd, Array(0, 1))
+    completeShuffleMapStageSuccessfully(0, 0, 2)
+    completeNextResultStageWithSuccess(1, 0)
+    assert(results === Map(0 -> 42, 1 -> 42))
+    assertDataStructuresEmpty()
+
+    // A second job reading the shuffle would wait for records which are never sent again.
+    val otherReduceRdd = new MyRDD(sc, 2, List(shuffleDep), tracker = mapOutputTracker)
+    submit(otherReduceRdd, Array(0, 1))
+    assert(taskSets.size === 2)
+    assert(failure.getMessage.contains("whose records have already been read"))
+    assertDataStructuresEmpty()
+  }
+
+  test("A retried map stage of a streaming shuffle fails the job") {
+    // The 4 tasks of the map and result stages fit in the slots.
+    conf.setMaster("local[4]")
+      .set(config.SHUFFLE_MANAGER, classOf[MultiShuffleManager].getName)
+    val shuffleDep = streamingShuffleDep(new MyRDD(sc, 2, Nil), 2)
+    val reduceRdd = new MyRDD(sc, 2, List(shuffleDep), tracker = mapOutputTracker)
+    submit(reduceRdd, Array(0, 1))
+    completeShuffleMapStageSuccessfully(0, 0, 2)
+
+    // The first result task fails to read the output of the first map task, which makes the
+    // map stage run again.
+    runEvent(makeCompletionEvent(
+      taskSets(1).tasks(0),
+      FetchFailed(makeBlockManagerId("hostA"), shuffleDep.shuffleId, 0L, 0, 0, "ignored"),
+      null))
+    assert(scheduler.failedStages.map(_.id) === Set(0, 1))
+
+    // Another attempt of the map stage would wait for the readers of its first attempt.
+    runEvent(ResubmitFailedStages)
+    assert(taskSets.size === 2)
+    assert(failure.getMessage.contains("cannot be retried"))
+    assertDataStructuresEmpty()
+  }
+
   /**
    * This function creates the following dependency graph:
    *
@@ -17,17 +17,23 @@
 
 package org.apache.spark.shuffle
 
-import java.io.{ByteArrayOutputStream, InputStream}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, InputStream, IOException}
 import java.nio.ByteBuffer
+import java.util.{List => JList}
+import java.util.concurrent.CompletableFuture
 
-import org.mockito.ArgumentMatchers.{eq => meq}
-import org.mockito.Mockito.{mock, when}
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+
+import org.mockito.ArgumentMatchers.{any, eq => meq}
+import org.mockito.Mockito.{mock, never, verify, when}
 
 import org.apache.spark._
 import org.apache.spark.internal.config
 import org.apache.spark.network.buffer.{ManagedBuffer, NioManagedBuffer}
 import org.apache.spark.serializer.{JavaSerializer, SerializerManager}
-import org.apache.spark.storage.{BlockManager, BlockManagerId, ShuffleBlockId}
+import org.apache.spark.shuffle.api.{ShuffleBlockReadRequest, ShuffleReadSupport}
+import org.apache.spark.storage.{BlockId, BlockManager, BlockManagerId, ShuffleBlockId}
 
 /**
  * Wrapper for a managed buffer that keeps track of how many times retain and release are called.
@@ -151,4 +157,150 @@ class BlockStoreShuffleReaderSuite extends SparkFunSuite with LocalSparkContext
       assert(buffer.callsToRelease === 1)
     }
   }
+
+  test("read() serves blocks through a ShuffleReadSupport plugin") {
+    val testConf = new SparkConf(false)
+    sc = new SparkContext("local", "test", testConf)
+
+    val shuffleId = 7
+    val numMaps = 4
+    val serializer = new JavaSerializer(testConf)
+    // Every block holds one record: (map index, reduce partition).
+    def blockBytes(mapIndex: Int, reduceId: Int): Array[Byte] = {
+      val out = new ByteArrayOutputStream()
+      val stream = serializer.newInstance().serializeStream(out)
+      stream.writeKey(mapIndex)
+      stream.writeValue(reduceId)
+      stream.close()
+      out.toByteArray
+    }
+
+    val requests = new mutable.ArrayBuffer[ShuffleBlockReadRequest]()
+    val readSupport = new ShuffleReadSupport {
+      override def readPartitions(
+          batch: JList[ShuffleBlockReadRequest]): JList[CompletableFuture[InputStream]] = {
+        batch.asScala.map { request =>
+          requests += request
+          if (request.getMapIndex == numMaps - 1 && request.getStartPartition == 1) {
+            CompletableFuture.failedFuture[InputStream](new RuntimeException("lost"))
+          } else {
+            CompletableFuture.completedFuture[InputStream](
+              new ByteArrayInputStream(blockBytes(request.getMapIndex, request.getStartPartition)))
+          }
+        }.asJava
+      }
+    }
+
+    val blockManager = mock(classOf[BlockManager])
+    val localBlockManagerId = BlockManagerId("test-client", "test-client", 1)
+    when(blockManager.blockManagerId).thenReturn(localBlockManagerId)
+    val remoteBlockManagerId = BlockManagerId("remote-client", "remote-client", 2)
+
+    val shuffleHandle = {
+      val dependency = mock(classOf[ShuffleDependency[Int, Int, Int]])
+      when(dependency.serializer).thenReturn(serializer)
+      when(dependency.aggregator).thenReturn(None)
+      when(dependency.keyOrdering).thenReturn(None)
+      new BaseShuffleHandle(shuffleId, dependency)
+    }
+    val serializerManager = new SerializerManager(
+      serializer,
+      new SparkConf()
+        .set(config.SHUFFLE_COMPRESS, false)
+        .set(config.SHUFFLE_SPILL_COMPRESS, false))
+
+    def read(numReduces: Int): Seq[Product2[Int, Int]] = {
+      val blocksByAddress = (0 until numMaps).map { mapIndex =>
+        val address = if (mapIndex % 2 == 0) localBlockManagerId else remoteBlockManagerId
+        val blocks = (0 until numReduces).map { reduceId =>
+          (ShuffleBlockId(shuffleId, mapIndex, reduceId).asInstanceOf[BlockId], 10L, mapIndex)
+        }
+        (address, blocks)
+      }.iterator
+      val taskContext = TaskContext.empty()
+      val metrics = taskContext.taskMetrics.createTempShuffleReadMetrics()
+      val shuffleReader = new BlockStoreShuffleReader(
+        shuffleHandle,
+        blocksByAddress,
+        taskContext,
+        metrics,
+        serializerManager,
+        blockManager,
+        readSupport = Some(readSupport))
+      shuffleReader.read().toSeq
+    }
+
+    val records = read(numReduces = 1)
+    assert(records.map(r => (r._1, r._2)).toSet === (0 until numMaps).map(i => (i, 0)).toSet)
+    assert(requests.map(r => (r.getMapIndex, r.getStartPartition, r.getEndPartition)).toSet ===
+      (0 until numMaps).map(i => (i, 0, 1)).toSet)
+    assert(requests.filter(_.getMapIndex % 2 == 1).forall(_.getExecutorId == "remote-client"))
+    verify(blockManager, never()).getLocalBlockData(any())
+
+    // A failed read is reported as a fetch failure of its map output.
+    val e = intercept[FetchFailedException] {
+      read(numReduces = 2)
+    }
+    assert(e.toTaskFailedReason.asInstanceOf[FetchFailed].mapIndex === numMaps - 1)
+  }
+
+  private def readSupportIterator(
+      readSupport: ShuffleReadSupport,
+      numMaps: Int): ShuffleReadSupportIterator = {
+    val address = BlockManagerId("remote-client", "remote-client", 2)
+    val blocks = (0 until numMaps).map { mapIndex =>
+      (ShuffleBlockId(0, mapIndex, 0).asInstanceOf[BlockId], 10L, mapIndex)
+    }
+    val context = TaskContext.empty()
+    new ShuffleReadSupportIterator(
+      context,
+      readSupport,
+      BlockManagerId("test-client", "test-client", 1),
+      Iterator((address, blocks)),
+      (_, in) => in,
+      maxBytesInFlight = 10L,
+      batchContinuousBlocks = false,
+      context.taskMetrics.createTempShuffleReadMetrics())
+  }
+
+  test("ShuffleReadSupport reads which fail synchronously are fetch failures") {
+    val readSupport = new ShuffleReadSupport {
+      override def readPartitions(
+          batch: JList[ShuffleBlockReadRequest]): JList[CompletableFuture[InputStream]] = {
+        throw new IOException("lost")
+      }
+    }
+    val e = intercept[FetchFailedException] {
+      readSupportIterator(readSupport, numMaps = 2).hasNext
+    }
+    assert(e.toTaskFailedReason.asInstanceOf[FetchFailed].mapIndex === 0)
+    assert(e.getCause.getMessage === "lost")
+  }
+
+  test("ShuffleReadSupportIterator closes the streams it returned") {
+    class ClosingInputStream extends ByteArrayInputStream(Array[Byte](1)) {
+      var isClosed = false
+      override def close(): Unit = isClosed = true
+    }
+    val streams = new mutable.ArrayBuffer[ClosingInputStream]()
+    val readSupport = new ShuffleReadSupport {
+      override def readPartitions(
+          batch: JList[ShuffleBlockReadRequest]): JList[CompletableFuture[InputStream]] = {
+        batch.asScala.map { _ =>
+          val stream = new ClosingInputStream
+          streams += stream
+          CompletableFuture.completedFuture[InputStream](stream)
+        }.asJava
+      }
+    }
+    val iter = readSupportIterator(readSupport, numMaps = 3)
+    iter.next()
+    // The next read is requested while the first stream is being read.
+    assert(streams.map(_.isClosed) === Seq(false, false))
+    iter.next()
+    assert(streams.map(_.isClosed) === Seq(true, false, false))
+    // The stream being read and the completed read which was not consumed are both closed.
+    iter.cleanup()
+    assert(streams.forall(_.isClosed))
+  }
 }
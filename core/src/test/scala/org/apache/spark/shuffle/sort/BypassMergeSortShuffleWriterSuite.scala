@@ -18,7 +18,9 @@
 package org.apache.spark.shuffle.sort
 
 import java.io.File
+import java.nio.file.Files
 import java.util.UUID
+import java.util.concurrent.ExecutorService
 
 import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
@@ -34,12 +36,12 @@ import org.apache.spark.executor.{ShuffleWriteMetrics, TaskMetrics}
 import org.apache.spark.internal.config
 import org.apache.spark.memory.{TaskMemoryManager, TestMemoryManager}
 import org.apache.spark.network.shuffle.checksum.ShuffleChecksumHelper
-import org.apache.spark.serializer.{JavaSerializer, SerializerInstance, SerializerManager}
+import org.apache.spark.serializer.{JavaSerializer, KryoSerializer, SerializerInstance, SerializerManager}
 import org.apache.spark.shuffle.{IndexShuffleBlockResolver, ShuffleChecksumTestHelper}
 import org.apache.spark.shuffle.api.ShuffleExecutorComponents
 import org.apache.spark.shuffle.sort.io.LocalDiskShuffleExecutorComponents
 import org.apache.spark.storage._
-import org.apache.spark.util.Utils
+import org.apache.spark.util.{ThreadUtils, Utils}
 
 class BypassMergeSortShuffleWriterSuite
   extends SparkFunSuite
@@ -206,6 +208,57 @@ class BypassMergeSortShuffleWriterSuite
     }
   }
 
+  test("write with a pool of writer threads") {
+    def records: Iterator[(Int, Int)] = (0 until 10000).iterator.map(i => (i % 5, i))
+    def write(
+        writerConf: SparkConf,
+        writerPool: ExecutorService): (Array[Long], Array[Byte], ShuffleWriteMetrics) = {
+      val writeMetrics = new ShuffleWriteMetrics
+      val writer = new BypassMergeSortShuffleWriter[Int, Int](
+        blockManager,
+        shuffleHandle,
+        0L, // MapId
+        writerConf,
+        writeMetrics,
+        shuffleExecutorComponents,
+        writerPool)
+      writer.write(records)
+      writer.stop( /* success = */ true)
+      (writer.getPartitionLengths, Files.readAllBytes(outputFile.toPath), writeMetrics)
+    }
+
+    // The records are serialized before they are buffered, which needs a serializer that
+    // supports relocation of serialized objects.
+    when(dependency.serializer).thenReturn(new KryoSerializer(conf))
+    val (expectedLengths, expectedBytes, _) = write(conf, null)
+    val taskMemoryManager = taskContext.taskMemoryManager()
+    val parallelConf = conf.clone
+      .set(config.SHUFFLE_BYPASS_MERGE_WRITER_THREADS, 3)
+      .set(config.SHUFFLE_BYPASS_MERGE_WRITER_BATCH_SIZE, 64)
+    val writerPool = ThreadUtils.newDaemonFixedThreadPool(3, "shuffle-bypass-merge-writer")
+    TaskContext.setTaskContext(taskContext)
+    try {
+      val (lengths, bytes, writeMetrics) = write(parallelConf, writerPool)
+      assert(lengths === expectedLengths)
+      assert(lengths.count(_ == 0L) === 2)
+      assert(bytes === expectedBytes)
+      assert(temporaryFilesCreated.count(_.exists()) === 0)
+      assert(writeMetrics.bytesWritten === outputFile.length())
+      assert(writeMetrics.recordsWritten === records.length)
+      // The batches are accounted while they are buffered.
+      assert(taskMemoryManager.getPeakOnHeapExecutionMemory > 0)
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask === 0)
+      // The pool is shared by the writers of the executor, so it outlives every writer.
+      assert(!writerPool.isShutdown)
+      val (nextLengths, nextBytes, _) = write(parallelConf, writerPool)
+      assert(nextLengths === expectedLengths)
+      assert(nextBytes === expectedBytes)
+    } finally {
+      TaskContext.unset()
+      writerPool.shutdownNow()
+    }
+  }
+
   test("only generate temp shuffle file for non-empty partition") {
     // Using exception to test whether only non-empty partition creates temp shuffle file,
     // because temp shuffle file will only be cleaned after calling stop(false) in the failure
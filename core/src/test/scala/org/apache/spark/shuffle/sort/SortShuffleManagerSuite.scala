@@ -131,4 +131,16 @@ class SortShuffleManagerSuite extends SparkFunSuite with Matchers {
     )))
   }
 
+  test("shuffles with more than 16 million partitions are serialized with wide pointers") {
+    val dep = shuffleDep(
+      partitioner = new HashPartitioner(
+        SortShuffleManager.MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE + 1),
+      serializer = new KryoSerializer(new SparkConf()),
+      keyOrdering = None,
+      aggregator = None,
+      mapSideCombine = false)
+    assert(!canUseSerializedShuffle(dep, widePointersEnabled = false))
+    assert(canUseSerializedShuffle(dep, widePointersEnabled = true))
+  }
+
 }
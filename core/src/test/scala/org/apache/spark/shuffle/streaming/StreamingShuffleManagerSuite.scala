@@ -95,6 +95,32 @@ class StreamingShuffleManagerSuite
     }
   }
 
+  test("registerShuffle registers the shuffle with the driver's tracker") {
+    val conf = new SparkConf().set(SHUFFLE_MANAGER, classOf[StreamingShuffleManager].getName)
+    withSpark(new SparkContext("local", "StreamingShuffleManagerSuite", conf)) { sc =>
+      val rdd = sc.parallelize(1 to 4, 3).map(x => (x, x))
+      val dep = new ShuffleDependency[Int, Int, Int](rdd, new HashPartitioner(2))
+      val tracker = SparkEnv.get.streamingShuffleOutputTracker.get
+        .asInstanceOf[StreamingShuffleOutputTrackerMaster]
+      assert(tracker.getShuffleInfo(dep.shuffleId) ===
+        Some(StreamingShuffleInfo(numMaps = 3, numReduces = 2, jobId = -1)))
+
+      sc.env.shuffleManager.unregisterShuffle(dep.shuffleId)
+      assert(tracker.getShuffleInfo(dep.shuffleId).isEmpty)
+    }
+  }
+
+  test("registerShuffle rejects aggregation") {
+    withSpark(new SparkContext("local", "StreamingShuffleManagerSuite", new SparkConf())) { sc =>
+      val rdd = sc.parallelize(1 to 4).map(x => (x, x))
+      val dep = new ShuffleDependency[Int, Int, Int](rdd, new HashPartitioner(2),
+        aggregator = Some(new Aggregator[Int, Int, Int](identity, _ + _, _ + _)))
+      intercept[UnsupportedOperationException] {
+        new StreamingShuffleManager().registerShuffle(0, dep)
+      }
+    }
+  }
+
   // ---- SparkEnv tracker initialization gating ----
 
   private def assertTrackerInitialized(shuffleManager: Option[String], expectPresent: Boolean):
@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle.streaming
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.util.Properties
+import java.util.concurrent.{CountDownLatch, LinkedBlockingQueue, TimeUnit}
+
+import scala.concurrent.{ExecutionContext, ExecutionContextExecutorService, Future}
+import scala.concurrent.duration._
+
+import io.netty.buffer.Unpooled
+import io.netty.channel.{Channel, ChannelHandlerContext, SimpleChannelInboundHandler}
+import org.scalatest.concurrent.Eventually.{eventually, interval, timeout}
+
+import org.apache.spark._
+import org.apache.spark.executor.TaskMetrics
+import org.apache.spark.internal.config.{BARRIER_MAX_CONCURRENT_TASKS_CHECK_INTERVAL, BARRIER_MAX_CONCURRENT_TASKS_CHECK_MAX_FAILURES, SHUFFLE_MANAGER, STREAMING_SHUFFLE_READER_CREDITS, STREAMING_SHUFFLE_TIMEOUT, STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY, STREAMING_SHUFFLE_WRITER_MESSAGE_SIZE}
+import org.apache.spark.memory.{TaskMemoryManager, TestMemoryManager}
+import org.apache.spark.network.shuffle.streaming.{CreditControlMessage, DataMessage, StreamingShuffleMessage, TerminationAckMessage, TerminationControlMessage}
+import org.apache.spark.scheduler.MapStatus
+import org.apache.spark.storage.BlockManagerId
+import org.apache.spark.util.ThreadUtils
+
+class StreamingShuffleSuite extends SparkFunSuite with LocalSparkContext {
+
+  private var transport: StreamingShuffleTransport = _
+  private var tracker: StreamingShuffleOutputTrackerMaster = _
+  private var executor: ExecutionContextExecutorService = _
+
+  override def afterEach(): Unit = {
+    try {
+      Option(transport).foreach(_.close())
+      Option(tracker).foreach(_.stop())
+      Option(executor).foreach(_.shutdownNow())
+      transport = null
+      tracker = null
+      executor = null
+    } finally {
+      super.afterEach()
+    }
+  }
+
+  private def setUp(
+      numMaps: Int,
+      numReduces: Int,
+      confs: (String, String)*): StreamingShuffleHandle[Int, Int, Int] = {
+    val conf = new SparkConf().setAll(confs)
+    sc = new SparkContext("local", "StreamingShuffleSuite", conf)
+    transport = new StreamingShuffleTransport(conf)
+    tracker = new StreamingShuffleOutputTrackerMaster(conf)
+    executor = ExecutionContext.fromExecutorService(
+      ThreadUtils.newDaemonCachedThreadPool("streaming-shuffle-suite"))
+    val rdd = sc.parallelize(1 to numMaps, numMaps).map(x => (x, x))
+    val dep = new ShuffleDependency[Int, Int, Int](rdd, new HashPartitioner(numReduces))
+    tracker.registerShuffle(dep.shuffleId, numMaps, numReduces, jobId = 0)
+    new StreamingShuffleHandle(dep.shuffleId, dep)
+  }
+
+  private def taskContext(
+      partitionId: Int,
+      attemptNumber: Int = 0,
+      taskMemoryManager: TaskMemoryManager = null): TaskContextImpl = {
+    new TaskContextImpl(0, 0, partitionId, partitionId, attemptNumber, 1, taskMemoryManager,
+      new Properties, null, TaskMetrics.empty, 1)
+  }
+
+  private def runWriter(
+      handle: StreamingShuffleHandle[Int, Int, Int],
+      mapIndex: Int,
+      records: => Iterator[(Int, Int)],
+      taskMemoryManager: TaskMemoryManager = null): Future[Option[MapStatus]] = Future {
+    val context = taskContext(mapIndex, taskMemoryManager = taskMemoryManager)
+    val writer = new StreamingShuffleWriter[Int, Int](handle, mapIndex, context,
+      context.taskMetrics.shuffleWriteMetrics, transport, tracker,
+      BlockManagerId(s"exec-$mapIndex", "localhost", 1), sc.conf)
+    try {
+      writer.write(records)
+      writer.stop(success = true)
+    } finally {
+      context.markTaskCompleted(None)
+    }
+  }(executor)
+
+  private def runReader(
+      handle: StreamingShuffleHandle[Int, Int, Int],
+      reduceId: Int,
+      onRecord: ((Int, Int)) => Unit = _ => ()): Future[Seq[(Int, Int)]] = Future {
+    val context = taskContext(reduceId)
+    val reader = new StreamingShuffleReader[Int, Int](handle, context,
+      context.taskMetrics.createTempShuffleReadMetrics(), transport, tracker, sc.conf)
+    try {
+      reader.read().map { record =>
+        val kv = (record._1, record._2)
+        onRecord(kv)
+        kv
+      }.toList
+    } finally {
+      context.markTaskCompleted(None)
+    }
+  }(executor)
+
+  private def await[T](future: Future[T]): T = ThreadUtils.awaitResult(future, 60.seconds)
+
+  test("readers receive the records of all the writers in the order they are written") {
+    val handle = setUp(numMaps = 3, numReduces = 2,
+      STREAMING_SHUFFLE_WRITER_MESSAGE_SIZE.key -> "64b",
+      STREAMING_SHUFFLE_READER_CREDITS.key -> "2")
+    val readers = (0 until 2).map(runReader(handle, _))
+    val writers = (0 until 3).map { m => runWriter(handle, m, (1 to 200).iterator.map((_, m))) }
+
+    val statuses = writers.map(await(_).get)
+    val results = readers.map(await(_))
+    (0 until 2).foreach { r =>
+      val expected = for (m <- 0 until 3; k <- 1 to 200 if k % 2 == r) yield (k, m)
+      assert(results(r).sorted === expected.sorted)
+      (0 until 3).foreach { m =>
+        val keys = results(r).filter(_._2 == m).map(_._1)
+        assert(keys === keys.sorted)
+      }
+    }
+    statuses.foreach { status =>
+      assert((0 until 2).forall(status.getSizeForBlock(_) > 0))
+    }
+  }
+
+  test("readers receive records while the writers are still running") {
+    val handle = setUp(numMaps = 1, numReduces = 1,
+      STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY.key -> "0ms")
+    val firstRecordRead = new CountDownLatch(1)
+    val reader = runReader(handle, 0, _ => firstRecordRead.countDown())
+    val writer = runWriter(handle, 0, Iterator((1, 1)) ++ Iterator.tabulate(1) { _ =>
+      // The writer only produces its second record once the first one has been read.
+      assert(firstRecordRead.await(30, TimeUnit.SECONDS))
+      (2, 2)
+    })
+    await(writer)
+    assert(await(reader) === Seq((1, 1), (2, 2)))
+  }
+
+  test("writers account their buffers and send them early without memory") {
+    val handle = setUp(numMaps = 1, numReduces = 3,
+      STREAMING_SHUFFLE_WRITER_MESSAGE_SIZE.key -> "1k",
+      STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY.key -> "1h")
+    val memoryManager = new TestMemoryManager(sc.conf)
+    // Enough memory for the buffers of two readers, but not three.
+    memoryManager.limit(2048)
+    val taskMemoryManager = new TaskMemoryManager(memoryManager, 0)
+    val readers = (0 until 3).map(runReader(handle, _))
+    await(runWriter(handle, 0, (1 to 300).iterator.map((_, 0)), taskMemoryManager))
+    val results = readers.map(await(_))
+    (0 until 3).foreach { r =>
+      assert(results(r).map(_._1) === (1 to 300).filter(_ % 3 == r))
+    }
+    assert(taskMemoryManager.getPeakOnHeapExecutionMemory === 2048)
+    assert(taskMemoryManager.getMemoryConsumptionForThisTask === 0)
+  }
+
+  /** A reader which grants credits by hand and collects the messages it receives. */
+  private class ManualReader(handle: StreamingShuffleHandle[Int, Int, Int]) {
+    val messages = new LinkedBlockingQueue[StreamingShuffleMessage]
+    val channel: Channel = {
+      val location = eventually(timeout(30.seconds), interval(10.millis)) {
+        tracker.getAllShuffleWriterTaskLocations(handle.shuffleId).get(0L)
+      }
+      transport.connect(location.host, location.port,
+        new SimpleChannelInboundHandler[StreamingShuffleMessage] {
+          override def channelRead0(
+              ctx: ChannelHandlerContext,
+              msg: StreamingShuffleMessage): Unit = {
+            messages.add(msg)
+          }
+        }).sync().channel()
+    }
+
+    def grant(numMessages: Int): Unit = {
+      channel.writeAndFlush(new CreditControlMessage(0, 0, numMessages)).sync()
+    }
+
+    def acknowledge(seqNum: Long): Unit = {
+      val ack = new TerminationAckMessage(0, 0)
+      ack.setSeqNum(seqNum)
+      channel.writeAndFlush(ack).sync()
+    }
+
+    def take(): StreamingShuffleMessage = {
+      val message = messages.poll(30, TimeUnit.SECONDS)
+      assert(message != null)
+      message.release()
+      message
+    }
+  }
+
+  test("writers wait for the credits of their readers") {
+    val handle = setUp(numMaps = 1, numReduces = 1,
+      STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY.key -> "0ms")
+    val writer = runWriter(handle, 0, (1 to 5).iterator.map(i => (i, i)))
+    val reader = new ManualReader(handle)
+
+    reader.grant(2)
+    assert(reader.take().getSeqNum === 0)
+    assert(reader.take().getSeqNum === 1)
+    assert(reader.messages.poll(500, TimeUnit.MILLISECONDS) === null)
+
+    reader.grant(1)
+    val third = reader.take()
+    assert(third.isInstanceOf[DataMessage] && third.getSeqNum === 2)
+    assert(reader.messages.poll(500, TimeUnit.MILLISECONDS) === null)
+
+    reader.grant(10)
+    assert(reader.take().getSeqNum === 3)
+    assert(reader.take().getSeqNum === 4)
+    // Control messages do not need credits.
+    val termination = reader.take()
+    assert(termination.isInstanceOf[TerminationControlMessage])
+    assert(termination.getSeqNum === 5)
+    assert(!writer.isCompleted)
+
+    reader.acknowledge(5)
+    assert(await(writer).isDefined)
+  }
+
+  test("writers fail when the termination is acknowledged with a wrong sequence number") {
+    val handle = setUp(numMaps = 1, numReduces = 1,
+      STREAMING_SHUFFLE_WRITER_MAX_BATCH_DELAY.key -> "0ms")
+    val writer = runWriter(handle, 0, (1 to 2).iterator.map(i => (i, i)))
+    val reader = new ManualReader(handle)
+    reader.grant(10)
+    (0 until 3).foreach(_ => reader.take())
+    reader.acknowledge(1)
+
+    val e = intercept[SparkException](await(writer))
+    checkError(
+      e.getCause.asInstanceOf[SparkRuntimeException],
+      condition = "STREAMING_SHUFFLE_INCORRECT_SEQUENCE_NUMBER",
+      parameters = Map(
+        "messageType" -> "TERMINATION_ACK_MESSAGE",
+        "writerId" -> "0",
+        "readerId" -> "0",
+        "expSeqNum" -> "2",
+        "actSeqNum" -> "1"))
+  }
+
+  test("readers fail on a gap in the sequence numbers of a writer") {
+    val handle = setUp(numMaps = 1, numReduces = 1)
+    // A writer which skips the first sequence number.
+    val server = transport.listen("localhost", () =>
+      new SimpleChannelInboundHandler[StreamingShuffleMessage] {
+        override def channelRead0(
+            ctx: ChannelHandlerContext,
+            msg: StreamingShuffleMessage): Unit = {
+          val data = Unpooled.wrappedBuffer(new Array[Byte](4))
+          val message = new DataMessage(0, 0, 4, data, 0L)
+          data.release()
+          message.setSeqNum(1)
+          ctx.writeAndFlush(message)
+        }
+      })
+    try {
+      val port = server.localAddress().asInstanceOf[InetSocketAddress].getPort
+      tracker.registerShuffleWriterTask(handle.shuffleId, 0,
+        StreamingShuffleTaskLocation("exec-0", "localhost", port))
+
+      val e = intercept[SparkException](await(runReader(handle, 0)))
+      checkError(
+        e.getCause.asInstanceOf[SparkRuntimeException],
+        condition = "STREAMING_SHUFFLE_INCORRECT_SEQUENCE_NUMBER",
+        parameters = Map(
+          "messageType" -> "DATA_MESSAGE_UNSAFE_ROW",
+          "writerId" -> "0",
+          "readerId" -> "0",
+          "expSeqNum" -> "0",
+          "actSeqNum" -> "1"))
+    } finally {
+      server.close()
+    }
+  }
+
+  test("writers time out waiting for their readers") {
+    val handle = setUp(numMaps = 1, numReduces = 1, STREAMING_SHUFFLE_TIMEOUT.key -> "200ms")
+    val e = intercept[SparkException](await(runWriter(handle, 0, Iterator((1, 1)))))
+    assert(e.getCause.isInstanceOf[IOException])
+    assert(e.getCause.getMessage.contains("timed out after 200 ms waiting for reader 0"))
+  }
+
+  test("readers time out waiting for their writers to register") {
+    val handle = setUp(numMaps = 2, numReduces = 1, STREAMING_SHUFFLE_TIMEOUT.key -> "200ms")
+    val e = intercept[SparkException](await(runReader(handle, 0)))
+    assert(e.getCause.isInstanceOf[IOException])
+    assert(e.getCause.getMessage.contains("waiting for its writers to register"))
+  }
+
+  test("writers and readers are not retried") {
+    val handle = setUp(numMaps = 1, numReduces = 1)
+    val context = taskContext(0, attemptNumber = 1)
+    val writer = new StreamingShuffleWriter[Int, Int](handle, 0, context,
+      context.taskMetrics.shuffleWriteMetrics, transport, tracker,
+      BlockManagerId("exec-0", "localhost", 1), sc.conf)
+    val writerError = intercept[SparkException](writer.write(Iterator((1, 1))))
+    assert(writerError.getMessage.contains("cannot be retried"))
+    // The writer id of the first attempt is not replaced.
+    assert(tracker.getAvailableShuffleWriterTaskLocations(handle.shuffleId).get
+      .shuffleTaskLocations.isEmpty)
+
+    val reader = new StreamingShuffleReader[Int, Int](handle, context,
+      context.taskMetrics.createTempShuffleReadMetrics(), transport, tracker, sc.conf)
+    val readerError = intercept[SparkException](reader.read())
+    assert(readerError.getMessage.contains("cannot be retried"))
+  }
+
+  test("end-to-end shuffle runs the map and reduce stages together") {
+    val conf = new SparkConf()
+      .set(SHUFFLE_MANAGER, classOf[StreamingShuffleManager].getName)
+      .set(STREAMING_SHUFFLE_TIMEOUT.key, "30s")
+    sc = new SparkContext("local[8]", "StreamingShuffleSuite", conf)
+    val result = sc.parallelize(1 to 1000, 4)
+      .map(x => (x, x))
+      .partitionBy(new HashPartitioner(3))
+      .collect()
+    assert(result.sorted === (1 to 1000).map(x => (x, x)))
+  }
+
+  test("end-to-end shuffle fails without enough slots for the map and reduce stages") {
+    val conf = new SparkConf()
+      .set(SHUFFLE_MANAGER, classOf[StreamingShuffleManager].getName)
+      .set(BARRIER_MAX_CONCURRENT_TASKS_CHECK_INTERVAL.key, "1s")
+      .set(BARRIER_MAX_CONCURRENT_TASKS_CHECK_MAX_FAILURES, 2)
+    sc = new SparkContext("local[4]", "StreamingShuffleSuite", conf)
+    val e = intercept[SparkException] {
+      sc.parallelize(1 to 1000, 4)
+        .map(x => (x, x))
+        .partitionBy(new HashPartitioner(3))
+        .collect()
+    }
+    assert(e.getMessage.contains("which requires 7 slots, but only 4 are available"))
+  }
+}
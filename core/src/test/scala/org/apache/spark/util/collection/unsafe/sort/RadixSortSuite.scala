@@ -26,6 +26,7 @@ import org.apache.spark.SparkFunSuite
 import org.apache.spark.network.util.JavaUtils.checkedCast
 import org.apache.spark.unsafe.array.LongArray
 import org.apache.spark.unsafe.memory.MemoryBlock
+import org.apache.spark.util.ThreadUtils
 import org.apache.spark.util.collection.Sorter
 import org.apache.spark.util.collection.Utils.createArray
 import org.apache.spark.util.random.XORShiftRandom
@@ -195,5 +196,23 @@ class RadixSortSuite extends SparkFunSuite {
       val res2 = collectToArray(buf2, outOffset, N * 2)
       assert(res1 ===res2)
     }
+
+    fuzzTest(s"fuzz test parallel key prefix ${sortType.name} with random bitmasks") { seed =>
+      val rand = new XORShiftRandom(seed)
+      val mask = randomBitMask(rand)
+      val (buf1, buf2) = generateKeyPrefixTestData(N, rand.nextLong & mask)
+      referenceKeyPrefixSort(buf1, 0, N, sortType.referenceComparator)
+      val pool = ThreadUtils.newForkJoinPool("radix-sort-suite", 4)
+      try {
+        val outOffset = RadixSort.parallelSortKeyPrefixArray(
+          buf2, 0, N, sortType.startByteIdx, sortType.endByteIdx,
+          sortType.descending, sortType.signed, pool, 1 + rand.nextInt(8))
+        val res1 = collectToArray(buf1, 0, N * 2)
+        val res2 = collectToArray(buf2, outOffset, N * 2)
+        assert(res1 === res2)
+      } finally {
+        pool.shutdown()
+      }
+    }
   }
 }
@@ -1090,6 +1090,10 @@ abstract class YarnShuffleServiceSuite extends SparkFunSuite with Matchers {
       "registerExecutorRequestLatencyMillis",
       "finalizeShuffleMergeLatencyMillis",
       "shuffle-server.usedDirectMemory",
+      "shuffleIndexCacheHitCount",
+      "shuffleIndexCacheHitRate",
+      "shuffleIndexCacheMissCount",
+      "shuffleIndexCacheSizeBytes",
       "shuffle-server.usedHeapMemory",
       "fetchMergedBlocksMetaLatencyMillis"
     ).sorted)
@@ -940,6 +940,29 @@ object SQLConf {
     .booleanConf
     .createWithDefault(true)
 
+  val NORMALIZED_KEY_RADIX_SORT_ENABLED =
+    buildConf("spark.sql.sort.normalizedKeyRadixSort.enabled")
+      .internal()
+      .doc("When true and radix sort is enabled, sorts whose key does not fit in the 8-byte " +
+        "prefix (strings, or more than one sort column) are radix sorted on a normalized " +
+        "binary encoding of the sort key, one 8-byte word at a time, among the records with " +
+        "equal prefixes. Records are only compared one pair at a time when their keys cannot " +
+        "be fully encoded.")
+      .version("5.0.0")
+      .booleanConf
+      .createWithDefault(false)
+
+  val SORT_SPILL_ENCODING =
+    buildConf("spark.sql.sort.spillEncoding")
+      .internal()
+      .doc("The encoding of the records in the spill files of sort operators, 'RAW' or " +
+        "'DELTA'. When unset, the encoding of spark.unsafe.sorter.spill.encoding is used.")
+      .version("5.0.0")
+      .stringConf
+      .transform(_.toUpperCase(Locale.ROOT))
+      .checkValues(Set("RAW", "DELTA"))
+      .createOptional
+
   val AUTO_BROADCASTJOIN_THRESHOLD = buildConf("spark.sql.autoBroadcastJoinThreshold")
     .doc("Configures the maximum size in bytes for a table that will be broadcast to all worker " +
       "nodes when performing a join. By setting this value to -1 broadcasting can be disabled.")
@@ -1046,6 +1069,28 @@ object SQLConf {
       .booleanConf
       .createWithDefault(false)
 
+  val COLUMNAR_SHUFFLE_ENABLED =
+    buildConf("spark.sql.shuffle.columnarFormat.enabled")
+      .internal()
+      .doc("When true, shuffle exchanges whose columns are all of atomic types (numeric, " +
+        "boolean, date, timestamp, interval, string and binary; decimals of up to 18 digits) " +
+        "write their map outputs as a sequence of column batches instead of serialized rows, " +
+        "and reducers read them back one batch at a time and hand the batches to columnar " +
+        "operators.")
+      .version("5.0.0")
+      .booleanConf
+      .createWithDefault(false)
+
+  val COLUMNAR_SHUFFLE_BATCH_SIZE =
+    buildConf("spark.sql.shuffle.columnarFormat.batchSize")
+      .internal()
+      .doc("The maximum number of rows in a column batch of a shuffle written in columnar " +
+        s"format. See ${COLUMNAR_SHUFFLE_ENABLED.key}.")
+      .version("5.0.0")
+      .intConf
+      .checkValue(_ > 0, "The value of spark.sql.shuffle.columnarFormat.batchSize must be positive")
+      .createWithDefault(4096)
+
   val SHUFFLE_TARGET_POSTSHUFFLE_INPUT_SIZE =
     buildConf("spark.sql.adaptive.shuffle.targetPostShuffleInputSize")
       .internal()
@@ -3607,6 +3652,47 @@ object SQLConf {
       .booleanConf
       .createWithDefault(true)
 
+  val AGGREGATE_LONG_KEY_HASH_MAP_ENABLED =
+    buildConf("spark.sql.execution.aggregate.longKeyHashMap.enabled")
+      .internal()
+      .doc("When true, hash aggregates grouping by a single integral, date or timestamp column " +
+        "store the aggregation buffers in a hash map keyed by the column value, which avoids " +
+        "comparing serialized keys when probing the map.")
+      .version("5.0.0")
+      .booleanConf
+      .createWithDefault(false)
+
+  val AGGREGATE_HASH_MAP_PARTITION_BITS =
+    buildConf("spark.sql.execution.aggregate.hashMapPartitionBits")
+      .internal()
+      .doc("When positive, hash aggregates store the aggregation buffers in 2^n hash maps " +
+        "chosen by the top n bits of the grouping key hash, so that each map stays small " +
+        "enough to be probed within the CPU caches. Whole-stage code generated aggregates probe " +
+        "the maps one row at a time. The other hash aggregates group the keys of a batch of " +
+        "input rows by map before they probe them, if " +
+        "'spark.sql.execution.aggregate.hashMapLookupBatchSize' is positive. Grouping keys " +
+        s"which can use the map of '${AGGREGATE_LONG_KEY_HASH_MAP_ENABLED.key}' use that one " +
+        "when it is enabled.")
+      .version("5.0.0")
+      .intConf
+      .checkValue(bits => bits >= 0 && bits <= 8,
+        "The number of hash map partition bits must be between 0 and 8.")
+      .createWithDefault(0)
+
+  val AGGREGATE_HASH_MAP_LOOKUP_BATCH_SIZE =
+    buildConf("spark.sql.execution.aggregate.hashMapLookupBatchSize")
+      .internal()
+      .doc("When positive, hash aggregates buffer this many input rows and probe the hash map " +
+        "for all their grouping keys at once, so that the cache misses of different keys " +
+        "overlap. Only used by hash aggregates which are not whole-stage code generated, e.g. " +
+        "when whole-stage code generation is disabled; it does not disable code generation. " +
+        s"With '${AGGREGATE_HASH_MAP_PARTITION_BITS.key}', the keys of a batch are grouped by " +
+        "map before they are probed.")
+      .version("5.0.0")
+      .intConf
+      .checkValue(size => size >= 0, "The hash map lookup batch size must not be negative.")
+      .createWithDefault(0)
+
   val ENABLE_VECTORIZED_HASH_MAP =
     buildConf("spark.sql.codegen.aggregate.map.vectorized.enable")
       .internal()
@@ -7861,6 +7947,10 @@ class SQLConf extends Serializable with Logging with SqlApiConf {
   def shuffleChecksumMismatchQueryLevelRollbackEnabled: Boolean =
     getConf(SHUFFLE_CHECKSUM_MISMATCH_QUERY_LEVEL_ROLLBACK_ENABLED)
 
+  def columnarShuffleEnabled: Boolean = getConf(COLUMNAR_SHUFFLE_ENABLED)
+
+  def columnarShuffleBatchSize: Int = getConf(COLUMNAR_SHUFFLE_BATCH_SIZE)
+
   def allowCollationsInMapKeys: Boolean = getConf(ALLOW_COLLATIONS_IN_MAP_KEYS)
 
   def objectLevelCollationsEnabled: Boolean = getConf(OBJECT_LEVEL_COLLATIONS_ENABLED)
@@ -8121,6 +8211,10 @@ class SQLConf extends Serializable with Logging with SqlApiConf {
 
   def enableRadixSort: Boolean = getConf(RADIX_SORT_ENABLED)
 
+  def normalizedKeyRadixSortEnabled: Boolean = getConf(NORMALIZED_KEY_RADIX_SORT_ENABLED)
+
+  def sortSpillEncoding: Option[String] = getConf(SORT_SPILL_ENCODING)
+
   def isParquetSchemaMergingEnabled: Boolean = getConf(PARQUET_SCHEMA_MERGING_ENABLED)
 
   def isParquetSchemaRespectSummaries: Boolean = getConf(PARQUET_SCHEMA_RESPECT_SUMMARIES)
@@ -34,8 +34,10 @@ import org.apache.spark.sql.types.StructType;
 import org.apache.spark.unsafe.Platform;
 import org.apache.spark.util.collection.unsafe.sort.PrefixComparator;
 import org.apache.spark.util.collection.unsafe.sort.RecordComparator;
+import org.apache.spark.util.collection.unsafe.sort.RecordKeyNormalizer;
 import org.apache.spark.util.collection.unsafe.sort.UnsafeExternalSorter;
 import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterIterator;
+import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillEncoding;
 
 public final class UnsafeExternalRowSorter {
 
@@ -82,7 +84,7 @@ public final class UnsafeExternalRowSorter {
       long pageSizeBytes,
       boolean canUseRadixSort) throws IOException {
     return new UnsafeExternalRowSorter(schema, recordComparatorSupplier, prefixComparator,
-      prefixComputer, pageSizeBytes, canUseRadixSort);
+      prefixComputer, pageSizeBytes, canUseRadixSort, null, null);
   }
 
   public static UnsafeExternalRowSorter create(
@@ -92,10 +94,43 @@ public final class UnsafeExternalRowSorter {
       UnsafeExternalRowSorter.PrefixComputer prefixComputer,
       long pageSizeBytes,
       boolean canUseRadixSort) throws IOException {
+    return create(schema, ordering, prefixComparator, prefixComputer, pageSizeBytes,
+      canUseRadixSort, null);
+  }
+
+  /**
+   * Creates a row sorter which, when radix sort is used, also radix sorts the rows with equal
+   * key prefixes on the normalized keys computed by the supplied {@link RecordKeyNormalizer}.
+   */
+  public static UnsafeExternalRowSorter create(
+      StructType schema,
+      Ordering<InternalRow> ordering,
+      PrefixComparator prefixComparator,
+      UnsafeExternalRowSorter.PrefixComputer prefixComputer,
+      long pageSizeBytes,
+      boolean canUseRadixSort,
+      Supplier<RecordKeyNormalizer> keyNormalizerSupplier) throws IOException {
+    return create(schema, ordering, prefixComparator, prefixComputer, pageSizeBytes,
+      canUseRadixSort, keyNormalizerSupplier, null);
+  }
+
+  /**
+   * Creates a row sorter which writes its spill files with the given encoding, or with the one
+   * configured by `spark.unsafe.sorter.spill.encoding` if it is null.
+   */
+  public static UnsafeExternalRowSorter create(
+      StructType schema,
+      Ordering<InternalRow> ordering,
+      PrefixComparator prefixComparator,
+      UnsafeExternalRowSorter.PrefixComputer prefixComputer,
+      long pageSizeBytes,
+      boolean canUseRadixSort,
+      Supplier<RecordKeyNormalizer> keyNormalizerSupplier,
+      UnsafeSorterSpillEncoding spillEncoding) throws IOException {
     Supplier<RecordComparator> recordComparatorSupplier =
       () -> new RowComparator(ordering, schema.length());
     return new UnsafeExternalRowSorter(schema, recordComparatorSupplier, prefixComparator,
-      prefixComputer, pageSizeBytes, canUseRadixSort);
+      prefixComputer, pageSizeBytes, canUseRadixSort, keyNormalizerSupplier, spillEncoding);
   }
 
   private UnsafeExternalRowSorter(
@@ -104,7 +139,9 @@ public final class UnsafeExternalRowSorter {
       PrefixComparator prefixComparator,
       UnsafeExternalRowSorter.PrefixComputer prefixComputer,
       long pageSizeBytes,
-      boolean canUseRadixSort) {
+      boolean canUseRadixSort,
+      Supplier<RecordKeyNormalizer> keyNormalizerSupplier,
+      UnsafeSorterSpillEncoding spillEncoding) {
     this.schema = schema;
     this.prefixComputer = prefixComputer;
     final SparkEnv sparkEnv = SparkEnv.get();
@@ -123,7 +160,9 @@ public final class UnsafeExternalRowSorter {
       (long) SparkEnv.get().conf().get(
         package$.MODULE$.SHUFFLE_SPILL_MAX_SIZE_FORCE_SPILL_THRESHOLD()),
       (int) sparkEnv.conf().get(package$.MODULE$.UNSAFE_SORTER_SPILL_MERGE_FACTOR()),
-      canUseRadixSort
+      canUseRadixSort,
+      keyNormalizerSupplier,
+      spillEncoding
     );
   }
 
@@ -165,6 +204,21 @@ public final class UnsafeExternalRowSorter {
     return sorter.getSortTimeNanos();
   }
 
+  /**
+   * @return the total amount of time spills were written in the background while rows kept being
+   *         inserted.
+   */
+  public long getSpillOverlapTimeNanos() {
+    return sorter.getSpillOverlapTimeNanos();
+  }
+
+  /**
+   * @return the number of bytes the spill encoding saved, before compression.
+   */
+  public long getSpillEncodingBytesSaved() {
+    return sorter.getSpillEncodingBytesSaved();
+  }
+
   public void cleanupResources() {
     isReleased = true;
     sorter.cleanupResources();
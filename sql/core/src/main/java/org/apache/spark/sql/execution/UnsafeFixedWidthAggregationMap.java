@@ -18,6 +18,8 @@
 package org.apache.spark.sql.execution;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 
 import org.apache.spark.SparkEnv;
 import org.apache.spark.TaskContext;
@@ -26,10 +28,15 @@ import org.apache.spark.sql.catalyst.InternalRow;
 import org.apache.spark.sql.catalyst.expressions.UnsafeProjection;
 import org.apache.spark.sql.catalyst.expressions.UnsafeRow;
 import org.apache.spark.sql.catalyst.plans.logical.Aggregate$;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.unsafe.KVIterator;
 import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.map.AbstractBytesMap;
 import org.apache.spark.unsafe.map.BytesToBytesMap;
+import org.apache.spark.unsafe.map.LongToBytesMap;
+import org.apache.spark.unsafe.map.PartitionedBytesToBytesMap;
 
 /**
  * Unsafe-based HashMap for performing aggregations where the aggregated values are fixed-width.
@@ -54,15 +61,80 @@ public final class UnsafeFixedWidthAggregationMap {
   private final UnsafeProjection groupingKeyProjection;
 
   /**
-   * A hashmap which maps from opaque bytearray keys to bytearray values.
+   * A hashmap which maps from opaque bytearray keys to bytearray values. This is null if
+   * `longKeyMap` or `partitionedMap` is used instead.
    */
   private final BytesToBytesMap map;
 
+  /**
+   * A hashmap keyed by the value of a single integral grouping key column, used instead of `map`
+   * when enabled and the grouping key allows it. Otherwise, this is null.
+   */
+  private final LongToBytesMap longKeyMap;
+
+  /**
+   * A hashmap radix-partitioned by the grouping key hash, used instead of `map` when enabled and
+   * `longKeyMap` is not used. Otherwise, this is null.
+   */
+  private final PartitionedBytesToBytesMap partitionedMap;
+
+  /**
+   * Whichever of `map` and `longKeyMap` is used, or null if `partitionedMap` is used.
+   */
+  private final AbstractBytesMap underlyingMap;
+
+  /**
+   * The type of the single grouping key column if `longKeyMap` is used.
+   */
+  private final DataType longKeyType;
+
   /**
    * Re-used pointer to the current aggregation buffer
    */
   private final UnsafeRow currentAggregationBuffer;
 
+  /**
+   * The grouping keys of the batch passed to {@link #lookupBatch(UnsafeRow[], int)}, and their
+   * hash codes.
+   */
+  private UnsafeRow[] batchKeys;
+  private int[] batchHashes;
+
+  /**
+   * Scratch arrays of {@link BytesToBytesMap#lookupBatch}, and the locations it resolved the keys
+   * of the current batch to.
+   */
+  private Object[] batchKeyBases;
+  private long[] batchKeyOffsets;
+  private int[] batchKeyLengths;
+  private BytesToBytesMap.Location[] batchLocations;
+
+  /**
+   * The order in which the rows of the current batch should be processed.
+   */
+  private int[] batchRowOrder;
+
+  /**
+   * If `partitionedMap` is used: the start of the rows of every partition in `batchRowOrder`,
+   * the hash codes of the keys of one partition, and reusable locations of every partition.
+   */
+  private int[] batchPartitionStarts;
+  private int[] batchPartitionHashes;
+  private BytesToBytesMap.Location[][] batchPartitionLocations;
+
+  /**
+   * Whether a key has been appended since the current batch was looked up. The locations of keys
+   * which were not found have to be looked up again then, since the append may have taken their
+   * slot or grown the map.
+   */
+  private boolean appendedSinceBatchLookup;
+
+  /**
+   * Whether the map has been reset since the current batch was looked up, which invalidates all
+   * the locations of the batch.
+   */
+  private boolean resetSinceBatchLookup;
+
   /**
    * @return true if UnsafeFixedWidthAggregationMap supports aggregation buffers with the given
    *         schema, false otherwise.
@@ -71,6 +143,21 @@ public final class UnsafeFixedWidthAggregationMap {
     return Aggregate$.MODULE$.isAggregateBufferMutable(schema);
   }
 
+  /**
+   * @return true if the grouping keys with the given schema can be stored in a
+   *         {@link LongToBytesMap}, i.e. if there is a single integral grouping key column.
+   */
+  public static boolean supportsLongKeyMap(StructType groupingKeySchema) {
+    if (groupingKeySchema.length() != 1) {
+      return false;
+    }
+    DataType dt = groupingKeySchema.apply(0).dataType();
+    return dt == DataTypes.ByteType || dt == DataTypes.ShortType ||
+      dt == DataTypes.IntegerType || dt == DataTypes.DateType ||
+      dt == DataTypes.LongType || dt == DataTypes.TimestampType ||
+      dt == DataTypes.TimestampNTZType;
+  }
+
   /**
    * Create a new UnsafeFixedWidthAggregationMap.
    *
@@ -88,12 +175,58 @@ public final class UnsafeFixedWidthAggregationMap {
       TaskContext taskContext,
       int initialCapacity,
       long pageSizeBytes) {
+    this(emptyAggregationBuffer, aggregationBufferSchema, groupingKeySchema, taskContext,
+      initialCapacity, pageSizeBytes, false, 0);
+  }
+
+  /**
+   * Create a new UnsafeFixedWidthAggregationMap.
+   *
+   * @param emptyAggregationBuffer the default value for new keys (a "zero" of the agg. function)
+   * @param aggregationBufferSchema the schema of the aggregation buffer, used for row conversion.
+   * @param groupingKeySchema the schema of the grouping key, used for row conversion.
+   * @param taskContext the current task context.
+   * @param initialCapacity the initial capacity of the map (a sizing hint to avoid re-hashing).
+   * @param pageSizeBytes the data page size, in bytes; limits the maximum record size.
+   * @param enableLongKeyMap whether to use a {@link LongToBytesMap} if the grouping key is a
+   *                         single integral column.
+   * @param numPartitionBits if positive and no {@link LongToBytesMap} is used, the map is a
+   *                         {@link PartitionedBytesToBytesMap} with 2^numPartitionBits partitions.
+   */
+  public UnsafeFixedWidthAggregationMap(
+      InternalRow emptyAggregationBuffer,
+      StructType aggregationBufferSchema,
+      StructType groupingKeySchema,
+      TaskContext taskContext,
+      int initialCapacity,
+      long pageSizeBytes,
+      boolean enableLongKeyMap,
+      int numPartitionBits) {
     this.aggregationBufferSchema = aggregationBufferSchema;
     this.currentAggregationBuffer = new UnsafeRow(aggregationBufferSchema.length());
     this.groupingKeyProjection = UnsafeProjection.create(groupingKeySchema);
     this.groupingKeySchema = groupingKeySchema;
-    this.map = new BytesToBytesMap(
-      taskContext.taskMemoryManager(), initialCapacity, pageSizeBytes);
+    this.longKeyType = enableLongKeyMap && supportsLongKeyMap(groupingKeySchema) ?
+      groupingKeySchema.apply(0).dataType() : null;
+    if (longKeyType != null) {
+      this.map = null;
+      this.longKeyMap = new LongToBytesMap(
+        taskContext.taskMemoryManager(), initialCapacity, pageSizeBytes);
+      this.partitionedMap = null;
+      this.underlyingMap = longKeyMap;
+    } else if (numPartitionBits > 0) {
+      this.map = null;
+      this.longKeyMap = null;
+      this.partitionedMap = new PartitionedBytesToBytesMap(
+        taskContext.taskMemoryManager(), numPartitionBits, initialCapacity, pageSizeBytes);
+      this.underlyingMap = null;
+    } else {
+      this.map = new BytesToBytesMap(
+        taskContext.taskMemoryManager(), initialCapacity, pageSizeBytes);
+      this.longKeyMap = null;
+      this.partitionedMap = null;
+      this.underlyingMap = map;
+    }
 
     // Initialize the buffer for aggregation value
     final UnsafeProjection valueProjection = UnsafeProjection.create(aggregationBufferSchema);
@@ -123,12 +256,24 @@ public final class UnsafeFixedWidthAggregationMap {
   }
 
   public UnsafeRow getAggregationBufferFromUnsafeRow(UnsafeRow key, int hash) {
+    if (longKeyMap != null) {
+      return getAggregationBufferFromLongKeyMap(key);
+    }
     // Probe our map using the serialized key
-    final BytesToBytesMap.Location loc = map.lookup(
-      key.getBaseObject(),
-      key.getBaseOffset(),
-      key.getSizeInBytes(),
-      hash);
+    final BytesToBytesMap.Location loc;
+    if (partitionedMap != null) {
+      loc = partitionedMap.lookup(
+        key.getBaseObject(),
+        key.getBaseOffset(),
+        key.getSizeInBytes(),
+        hash);
+    } else {
+      loc = map.lookup(
+        key.getBaseObject(),
+        key.getBaseOffset(),
+        key.getSizeInBytes(),
+        hash);
+    }
     if (!loc.isDefined()) {
       // This is the first time that we've seen this grouping key, so we'll insert a copy of the
       // empty aggregation buffer into the map:
@@ -154,25 +299,207 @@ public final class UnsafeFixedWidthAggregationMap {
     return currentAggregationBuffer;
   }
 
+  /**
+   * Looks up the aggregation buffers of a batch of grouping keys, which are then returned by
+   * {@link #getAggregationBufferFromBatch(int)}. The keys are probed together (see
+   * {@link BytesToBytesMap#lookupBatch}) so that the cache misses of different keys overlap. If
+   * the map is partitioned, the keys are first grouped by partition (see
+   * {@link PartitionedBytesToBytesMap#partitionBatch}) and every partition is probed on its own,
+   * and the rows should be processed in that order too.
+   *
+   * The keys must not be modified until the next batch is looked up.
+   *
+   * @return the order in which the rows of the batch should be processed. Rows with the same key
+   *         keep their relative order.
+   */
+  public int[] lookupBatch(UnsafeRow[] keys, int numKeys) {
+    ensureBatchCapacity(numKeys);
+    batchKeys = keys;
+    for (int i = 0; i < numKeys; i++) {
+      batchHashes[i] = keys[i].hashCode();
+      batchRowOrder[i] = i;
+    }
+    appendedSinceBatchLookup = false;
+    resetSinceBatchLookup = false;
+    if (map != null) {
+      for (int i = 0; i < numKeys; i++) {
+        batchKeyBases[i] = keys[i].getBaseObject();
+        batchKeyOffsets[i] = keys[i].getBaseOffset();
+        batchKeyLengths[i] = keys[i].getSizeInBytes();
+      }
+      map.lookupBatch(
+        batchKeyBases, batchKeyOffsets, batchKeyLengths, batchHashes, numKeys, batchLocations);
+      // Do not keep the keys alive longer than the batch.
+      Arrays.fill(batchKeyBases, 0, numKeys, null);
+    } else if (partitionedMap != null) {
+      partitionedMap.partitionBatch(batchHashes, numKeys, batchRowOrder, batchPartitionStarts);
+      for (int p = 0; p < partitionedMap.numPartitions(); p++) {
+        final int start = batchPartitionStarts[p];
+        final int numPartitionKeys = batchPartitionStarts[p + 1] - start;
+        if (numPartitionKeys > 0) {
+          lookupPartitionBatch(p, start, numPartitionKeys);
+        }
+      }
+      Arrays.fill(batchKeyBases, 0, numKeys, null);
+    }
+    return batchRowOrder;
+  }
+
+  private void lookupPartitionBatch(int partitionId, int start, int numPartitionKeys) {
+    final BytesToBytesMap partition = partitionedMap.getPartition(partitionId);
+    BytesToBytesMap.Location[] locs = batchPartitionLocations[partitionId];
+    if (locs == null || locs.length < numPartitionKeys) {
+      final int oldLength = locs == null ? 0 : locs.length;
+      locs = locs == null ?
+        new BytesToBytesMap.Location[numPartitionKeys] : Arrays.copyOf(locs, numPartitionKeys);
+      for (int i = oldLength; i < numPartitionKeys; i++) {
+        locs[i] = partition.newLocation();
+      }
+      batchPartitionLocations[partitionId] = locs;
+    }
+    for (int i = 0; i < numPartitionKeys; i++) {
+      final UnsafeRow key = batchKeys[batchRowOrder[start + i]];
+      batchKeyBases[i] = key.getBaseObject();
+      batchKeyOffsets[i] = key.getBaseOffset();
+      batchKeyLengths[i] = key.getSizeInBytes();
+      batchPartitionHashes[i] = batchHashes[batchRowOrder[start + i]];
+    }
+    partition.lookupBatch(batchKeyBases, batchKeyOffsets, batchKeyLengths, batchPartitionHashes,
+      numPartitionKeys, locs);
+    for (int i = 0; i < numPartitionKeys; i++) {
+      batchLocations[batchRowOrder[start + i]] = locs[i];
+    }
+  }
+
+  private void ensureBatchCapacity(int numKeys) {
+    if (batchHashes != null && batchHashes.length >= numKeys) {
+      return;
+    }
+    batchHashes = new int[numKeys];
+    batchRowOrder = new int[numKeys];
+    if (partitionedMap != null) {
+      batchKeyBases = new Object[numKeys];
+      batchKeyOffsets = new long[numKeys];
+      batchKeyLengths = new int[numKeys];
+      batchLocations = new BytesToBytesMap.Location[numKeys];
+      batchPartitionStarts = new int[partitionedMap.numPartitions() + 1];
+      batchPartitionHashes = new int[numKeys];
+      if (batchPartitionLocations == null) {
+        batchPartitionLocations = new BytesToBytesMap.Location[partitionedMap.numPartitions()][];
+      }
+    } else if (map != null) {
+      batchKeyBases = new Object[numKeys];
+      batchKeyOffsets = new long[numKeys];
+      batchKeyLengths = new int[numKeys];
+      batchLocations = new BytesToBytesMap.Location[numKeys];
+      for (int i = 0; i < numKeys; i++) {
+        batchLocations[i] = map.newLocation();
+      }
+    }
+  }
+
+  /**
+   * Return the aggregation buffer for the `row`-th key of the batch passed to the last call of
+   * {@link #lookupBatch(UnsafeRow[], int)}, inserting it into the map if needed. As
+   * {@link #getAggregationBufferFromUnsafeRow(UnsafeRow)}, this returns the same object for all
+   * calls, and returns null if additional memory could not be allocated.
+   */
+  public UnsafeRow getAggregationBufferFromBatch(int row) {
+    final UnsafeRow key = batchKeys[row];
+    if (longKeyMap != null || resetSinceBatchLookup) {
+      return getAggregationBufferFromUnsafeRow(key, batchHashes[row]);
+    }
+    BytesToBytesMap.Location loc = batchLocations[row];
+    if (!loc.isDefined() && appendedSinceBatchLookup) {
+      // A key found by the batch lookup stays where it is, but a missing one may have been
+      // appended since, or its slot may have been taken.
+      final BytesToBytesMap lookupMap = partitionedMap != null ?
+        partitionedMap.getPartition(partitionedMap.partitionOf(batchHashes[row])) : map;
+      lookupMap.safeLookup(
+        key.getBaseObject(), key.getBaseOffset(), key.getSizeInBytes(), loc, batchHashes[row]);
+    }
+    if (!loc.isDefined()) {
+      boolean putSucceeded = loc.append(
+        key.getBaseObject(),
+        key.getBaseOffset(),
+        key.getSizeInBytes(),
+        emptyAggregationBuffer,
+        Platform.BYTE_ARRAY_OFFSET,
+        emptyAggregationBuffer.length
+      );
+      if (!putSucceeded) {
+        return null;
+      }
+      appendedSinceBatchLookup = true;
+    }
+
+    currentAggregationBuffer.pointTo(
+      loc.getValueBase(),
+      loc.getValueOffset(),
+      loc.getValueLength()
+    );
+    return currentAggregationBuffer;
+  }
+
+  private UnsafeRow getAggregationBufferFromLongKeyMap(UnsafeRow key) {
+    // Probe our map using the value of the key column; the hash of the whole row is not needed
+    final LongToBytesMap.Location loc =
+      key.isNullAt(0) ? longKeyMap.lookupNull() : longKeyMap.lookup(getLongKey(key));
+    if (!loc.isDefined()) {
+      boolean putSucceeded = loc.append(
+        key.getBaseObject(),
+        key.getBaseOffset(),
+        key.getSizeInBytes(),
+        emptyAggregationBuffer,
+        Platform.BYTE_ARRAY_OFFSET,
+        emptyAggregationBuffer.length
+      );
+      if (!putSucceeded) {
+        return null;
+      }
+    }
+
+    currentAggregationBuffer.pointTo(
+      loc.getValueBase(),
+      loc.getValueOffset(),
+      loc.getValueLength()
+    );
+    return currentAggregationBuffer;
+  }
+
+  private long getLongKey(UnsafeRow key) {
+    if (longKeyType == DataTypes.LongType || longKeyType == DataTypes.TimestampType ||
+        longKeyType == DataTypes.TimestampNTZType) {
+      return key.getLong(0);
+    } else if (longKeyType == DataTypes.IntegerType || longKeyType == DataTypes.DateType) {
+      return key.getInt(0);
+    } else if (longKeyType == DataTypes.ShortType) {
+      return key.getShort(0);
+    } else {
+      return key.getByte(0);
+    }
+  }
+
   /**
    * Returns an iterator over the keys and values in this map. This uses destructive iterator of
-   * BytesToBytesMap. So it is illegal to call any other method on this map after `iterator()` has
-   * been called.
+   * the underlying map. So it is illegal to call any other method on this map after `iterator()`
+   * has been called.
    *
    * For efficiency, each call returns the same object.
    */
   public KVIterator<UnsafeRow, UnsafeRow> iterator() {
     return new KVIterator<UnsafeRow, UnsafeRow>() {
 
-      private final BytesToBytesMap.MapIterator mapLocationIterator =
-        map.destructiveIterator();
+      private final Iterator<? extends AbstractBytesMap.AbstractLocation> mapLocationIterator =
+        partitionedMap != null ?
+          partitionedMap.destructiveIterator() : underlyingMap.destructiveIterator();
       private final UnsafeRow key = new UnsafeRow(groupingKeySchema.length());
       private final UnsafeRow value = new UnsafeRow(aggregationBufferSchema.length());
 
       @Override
       public boolean next() {
         if (mapLocationIterator.hasNext()) {
-          final BytesToBytesMap.Location loc = mapLocationIterator.next();
+          final AbstractBytesMap.AbstractLocation loc = mapLocationIterator.next();
           key.pointTo(
             loc.getKeyBase(),
             loc.getKeyOffset(),
@@ -210,21 +537,27 @@ public final class UnsafeFixedWidthAggregationMap {
    * Return the peak memory used so far, in bytes.
    */
   public long getPeakMemoryUsedBytes() {
-    return map.getPeakMemoryUsedBytes();
+    return partitionedMap != null ?
+      partitionedMap.getPeakMemoryUsedBytes() : underlyingMap.getPeakMemoryUsedBytes();
   }
 
   /**
    * Free the memory associated with this map. This is idempotent and can be called multiple times.
    */
   public void free() {
-    map.free();
+    if (partitionedMap != null) {
+      partitionedMap.free();
+    } else {
+      underlyingMap.free();
+    }
   }
 
   /**
-   * Gets the average number of hash probes per key lookup in the underlying `BytesToBytesMap`.
+   * Gets the average number of hash probes per key lookup in the underlying map.
    */
   public double getAvgHashProbesPerKey() {
-    return map.getAvgHashProbesPerKey();
+    return partitionedMap != null ?
+      partitionedMap.getAvgHashProbesPerKey() : underlyingMap.getAvgHashProbesPerKey();
   }
 
   /**
@@ -234,16 +567,27 @@ public final class UnsafeFixedWidthAggregationMap {
    * used to insert records.
    */
   public UnsafeKVExternalSorter destructAndCreateExternalSorter() throws IOException {
+    resetSinceBatchLookup = true;
+    final AbstractBytesMap[] bytesMaps;
+    if (partitionedMap == null) {
+      bytesMaps = new AbstractBytesMap[] { underlyingMap };
+    } else {
+      // Sort the records of all the partitions together, so that they are spilled to one file.
+      bytesMaps = new AbstractBytesMap[partitionedMap.numPartitions()];
+      for (int i = 0; i < bytesMaps.length; i++) {
+        bytesMaps[i] = partitionedMap.getPartition(i);
+      }
+    }
     return new UnsafeKVExternalSorter(
       groupingKeySchema,
       aggregationBufferSchema,
       SparkEnv.get().blockManager(),
       SparkEnv.get().serializerManager(),
-      map.getPageSizeBytes(),
+      bytesMaps[0].getPageSizeBytes(),
       (int) SparkEnv.get().conf().get(
         package$.MODULE$.SHUFFLE_SPILL_NUM_ELEMENTS_FORCE_SPILL_THRESHOLD()),
       (long) SparkEnv.get().conf().get(
         package$.MODULE$.SHUFFLE_SPILL_MAX_SIZE_FORCE_SPILL_THRESHOLD()),
-      map);
+      bytesMaps);
   }
 }
@@ -19,6 +19,7 @@ package org.apache.spark.sql.execution;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.function.Supplier;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -37,15 +38,20 @@ import org.apache.spark.unsafe.KVIterator;
 import org.apache.spark.unsafe.Platform;
 import org.apache.spark.unsafe.UnsafeAlignedOffset;
 import org.apache.spark.unsafe.array.LongArray;
+import org.apache.spark.unsafe.map.AbstractBytesMap;
 import org.apache.spark.unsafe.map.BytesToBytesMap;
+import org.apache.spark.unsafe.map.LongToBytesMap;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.util.collection.unsafe.sort.*;
 
 /**
  * A class for performing external sorting on key-value records. Both key and value are UnsafeRows.
  *
- * Note that this class allows optionally passing in a {@link BytesToBytesMap} directly in order
- * to perform in-place sorting of records in the map.
+ * Note that this class allows optionally passing in a {@link BytesToBytesMap} or a
+ * {@link LongToBytesMap} directly in order to perform in-place sorting of records in the map.
+ * Several maps (e.g. the partitions of a
+ * {@link org.apache.spark.unsafe.map.PartitionedBytesToBytesMap}) can be passed in as well, and
+ * their records are then sorted and spilled together.
  */
 public final class UnsafeKVExternalSorter {
 
@@ -63,7 +69,7 @@ public final class UnsafeKVExternalSorter {
       int numElementsForSpillThreshold,
       long sizeInBytesForSpillThreshold) throws IOException {
     this(keySchema, valueSchema, blockManager, serializerManager, pageSizeBytes,
-      numElementsForSpillThreshold, sizeInBytesForSpillThreshold, null);
+      numElementsForSpillThreshold, sizeInBytesForSpillThreshold, (AbstractBytesMap[]) null);
   }
 
   public UnsafeKVExternalSorter(
@@ -74,7 +80,21 @@ public final class UnsafeKVExternalSorter {
       long pageSizeBytes,
       int numElementsForSpillThreshold,
       long sizeInBytesForSpillThreshold,
-      @Nullable BytesToBytesMap map) throws IOException {
+      @Nullable AbstractBytesMap map) throws IOException {
+    this(keySchema, valueSchema, blockManager, serializerManager, pageSizeBytes,
+      numElementsForSpillThreshold, sizeInBytesForSpillThreshold,
+      map == null ? null : new AbstractBytesMap[] { map });
+  }
+
+  public UnsafeKVExternalSorter(
+      StructType keySchema,
+      StructType valueSchema,
+      BlockManager blockManager,
+      SerializerManager serializerManager,
+      long pageSizeBytes,
+      int numElementsForSpillThreshold,
+      long sizeInBytesForSpillThreshold,
+      @Nullable AbstractBytesMap[] maps) throws IOException {
     this.keySchema = keySchema;
     this.valueSchema = valueSchema;
     final TaskContext taskContext = TaskContext.get();
@@ -89,7 +109,7 @@ public final class UnsafeKVExternalSorter {
 
     TaskMemoryManager taskMemoryManager = taskContext.taskMemoryManager();
 
-    if (map == null) {
+    if (maps == null) {
       sorter = UnsafeExternalSorter.create(
         taskMemoryManager,
         blockManager,
@@ -104,9 +124,21 @@ public final class UnsafeKVExternalSorter {
         (int) SparkEnv.get().conf().get(package$.MODULE$.UNSAFE_SORTER_SPILL_MERGE_FACTOR()),
         canUseRadixSort);
     } else {
+      long numValues = 0L;
+      long existingMemoryConsumption = 0L;
+      // The map whose pointer array is borrowed, or which allocates the pointer array.
+      AbstractBytesMap arrayMap = maps[0];
+      for (AbstractBytesMap map : maps) {
+        numValues += map.numValues();
+        existingMemoryConsumption += map.getTotalMemoryConsumption();
+        if (map.getArray().size() > arrayMap.getArray().size()) {
+          arrayMap = map;
+        }
+      }
       // During spilling, the pointer array in `BytesToBytesMap` will not be used, so we can borrow
       // that and use it as the pointer array for `UnsafeInMemorySorter`.
-      LongArray pointerArray = map.getArray();
+      LongArray pointerArray = arrayMap.getArray();
+      boolean allocatedPointerArray = false;
       // `BytesToBytesMap`'s pointer array is only guaranteed to hold all the distinct keys, but
       // `UnsafeInMemorySorter`'s pointer array need to hold all the entries. Since
       // `BytesToBytesMap` can have duplicated keys, here we need a check to make sure the pointer
@@ -116,10 +148,19 @@ public final class UnsafeKVExternalSorter {
       // pointer, another is key prefix. So the required size of pointer array is `numRecords * 4`.
       // TODO: It's possible to change UnsafeInMemorySorter to have multiple entries with same key,
       // so that we can always reuse the pointer array.
-      if (map.numValues() > pointerArray.size() / 4) {
+      if (numValues > pointerArray.size() / 4) {
+        // The records of several maps are sorted together, so that they are spilled to a single
+        // file. Their own pointer arrays are not needed anymore, so free them first to make room
+        // for one array which holds all the records.
+        if (maps.length > 1) {
+          for (AbstractBytesMap map : maps) {
+            map.freePointerArray();
+          }
+        }
         // Here we ask the map to allocate memory, so that the memory manager won't ask the map
         // to spill, if the memory is not enough.
-        pointerArray = map.allocateArray(map.numValues() * 4L);
+        pointerArray = arrayMap.allocateArray(numValues * 4L);
+        allocatedPointerArray = maps.length > 1;
       }
 
       // Since the pointer array(either reuse the one in the map, or create a new one) is guaranteed
@@ -136,27 +177,10 @@ public final class UnsafeKVExternalSorter {
       // We cannot use the destructive iterator here because we are reusing the existing memory
       // pages in BytesToBytesMap to hold records during sorting.
       // The only new memory we are allocating is the pointer/prefix array.
-      BytesToBytesMap.MapIterator iter = map.iterator();
       final int numKeyFields = keySchema.size();
       UnsafeRow row = new UnsafeRow(numKeyFields);
-      while (iter.hasNext()) {
-        final BytesToBytesMap.Location loc = iter.next();
-        final Object baseObject = loc.getKeyBase();
-        final long baseOffset = loc.getKeyOffset();
-
-        // Get encoded memory address
-        // baseObject + baseOffset point to the beginning of the key data in the map, but that
-        // the KV-pair's length data is stored at 2 * uaoSize bytes immediately before that address
-        MemoryBlock page = loc.getMemoryPage();
-        long address = taskMemoryManager.encodePageNumberAndOffset(page,
-            baseOffset - 2L * UnsafeAlignedOffset.getUaoSize());
-
-        // Compute prefix
-        row.pointTo(baseObject, baseOffset, loc.getKeyLength());
-        final UnsafeExternalRowSorter.PrefixComputer.Prefix prefix =
-          prefixComputer.computePrefix(row);
-
-        inMemSorter.insertRecord(address, prefix.value, prefix.isNull);
+      for (AbstractBytesMap map : maps) {
+        insertRecords(map, inMemSorter, row);
       }
 
       sorter = UnsafeExternalSorter.createWithExistingInMemorySorter(
@@ -172,11 +196,43 @@ public final class UnsafeKVExternalSorter {
         sizeInBytesForSpillThreshold,
         (int) SparkEnv.get().conf().get(package$.MODULE$.UNSAFE_SORTER_SPILL_MERGE_FACTOR()),
         inMemSorter,
-        map.getTotalMemoryConsumption());
+        existingMemoryConsumption);
 
-      // reset the map, so we can re-use it to insert new records. the inMemSorter will not used
+      if (allocatedPointerArray) {
+        arrayMap.freeArray(pointerArray);
+      }
+      // reset the maps, so we can re-use them to insert new records. the inMemSorter will not used
       // anymore, so the underline array could be used by map again.
-      map.reset();
+      for (AbstractBytesMap map : maps) {
+        map.reset();
+      }
+    }
+  }
+
+  private void insertRecords(
+      AbstractBytesMap map,
+      UnsafeInMemorySorter inMemSorter,
+      UnsafeRow row) {
+    final TaskMemoryManager taskMemoryManager = map.getTaskMemoryManager();
+    Iterator<? extends AbstractBytesMap.AbstractLocation> iter = map.iterator();
+    while (iter.hasNext()) {
+      final AbstractBytesMap.AbstractLocation loc = iter.next();
+      final Object baseObject = loc.getKeyBase();
+      final long baseOffset = loc.getKeyOffset();
+
+      // Get encoded memory address
+      // baseObject + baseOffset point to the beginning of the key data in the map, but that
+      // the KV-pair's length data is stored at 2 * uaoSize bytes immediately before that address
+      MemoryBlock page = loc.getMemoryPage();
+      long address = taskMemoryManager.encodePageNumberAndOffset(page,
+          baseOffset - 2L * UnsafeAlignedOffset.getUaoSize());
+
+      // Compute prefix
+      row.pointTo(baseObject, baseOffset, loc.getKeyLength());
+      final UnsafeExternalRowSorter.PrefixComputer.Prefix prefix =
+        prefixComputer.computePrefix(row);
+
+      inMemSorter.insertRecord(address, prefix.value, prefix.isNull);
     }
   }
 
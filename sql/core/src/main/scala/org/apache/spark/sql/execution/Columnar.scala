@@ -452,6 +452,14 @@ private object RowToColumnConverter {
  */
 trait RowToColumnarTransition extends UnaryExecNode
 
+/**
+ * A trait that is used as a tag to indicate a plan which outputs columns built from the rows of
+ * its children, e.g. a shuffle exchange in columnar format. Unlike for a
+ * [[RowToColumnarTransition]], transitions are still inserted below the plan, so that its
+ * children output rows.
+ */
+trait ColumnarOutputFromRows extends SparkPlan
+
 /**
  * Provides a common executor to translate an [[RDD]] of [[InternalRow]] into an [[RDD]] of
  * [[ColumnarBatch]]. This is inserted whenever such a transition is determined to be needed.
@@ -535,6 +543,8 @@ case class ApplyColumnarRulesAndInsertTransitions(
       // The tree feels kind of backwards
       // Columnar Processing will start here, so transition from row to columnar
       RowToColumnarExec(ensureOutputsRowBased(plan))
+    } else if (plan.isInstanceOf[ColumnarOutputFromRows]) {
+      plan.withNewChildren(plan.children.map(ensureOutputsRowBased))
     } else if (!plan.isInstanceOf[RowToColumnarTransition]) {
       plan.withNewChildren(plan.children.map(ensureOutputsColumnar))
     } else {
@@ -558,6 +568,7 @@ case class ApplyColumnarRulesAndInsertTransitions(
         case write: DataWritingCommandExec
             if write.cmd.isInstanceOf[V1WriteCommand] && conf.plannedWriteEnabled =>
           write.child.supportsColumnar
+        case _: ColumnarOutputFromRows => false
         // If it is not required to output columnar (`outputsColumnar` is false), and the plan
         // supports row-based and columnar, we don't need to output row-based data on its children
         // nodes. So we set `outputsColumnar` to true.
@@ -0,0 +1,607 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import java.io._
+import java.nio.{ByteBuffer, ByteOrder}
+
+import scala.reflect.ClassTag
+
+import org.apache.spark.{SparkUnsupportedOperationException, TaskContext}
+import org.apache.spark.memory.{MemoryConsumer, MemoryMode, TaskMemoryManager}
+import org.apache.spark.serializer.{DeserializationStream, SerializationStream, Serializer, SerializerInstance}
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.execution.metric.SQLMetric
+import org.apache.spark.sql.execution.vectorized.{OnHeapColumnVector, WritableColumnVector}
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.vectorized.{ColumnarBatch, ColumnVector}
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.util.Utils
+
+/**
+ * Serializer for shuffling rows in a columnar format. Rows are buffered into column vectors and
+ * every `batchSize` rows (and whenever the stream is flushed) the buffered rows are written as a
+ * column batch, so every shuffle block is a sequence of column batches. Values of the same column
+ * are stored next to each other, which the shuffle compression codec compresses much better than
+ * interleaved rows, and reducers decode whole columns at once.
+ *
+ * Within the stream, every batch consists of its number of rows (a 4-byte integer, written high
+ * byte first) followed by its columns. Every column consists of a byte which tells whether the
+ * column has nulls, the null bitmap of its rows if it has, and its values:
+ *  - fixed-width values are written in little-endian order, with a zero value for null rows,
+ *  - strings and binaries are written as the lengths of all the values (4-byte little-endian
+ *    integers, 0 for null rows), followed by the bytes of all the values.
+ *
+ * A deserialization stream decodes a whole batch at a time. If `readsBatches`, it returns every
+ * batch as a [[ColumnarBatch]], which is how a shuffle exchange in columnar format hands its
+ * batches to columnar operators. Otherwise it returns the rows of the batches one by one as
+ * [[UnsafeRow]]s, like [[UnsafeRowSerializer]] does. The returned batch or row is reused, so it
+ * is only valid until the next one is read.
+ *
+ * The column vectors of a stream are allocated when its first row is written or its first batch
+ * is read, and grow with the rows of the batches. The streams of a serializer instance share
+ * their resources: a closed stream hands its vectors over to the next stream of the instance,
+ * and within a task, the memory of the vectors of all the open streams is accounted by one
+ * consumer of the task's memory manager. A serialization stream which cannot get more memory
+ * writes its batch early and shrinks its vectors back, so that many streams open at once (one
+ * per reduce partition in a bypass merge sort shuffle writer) stay within the execution memory.
+ *
+ * Note that this serializer implements only the [[Serializer]] methods that are used during
+ * shuffle, so certain [[SerializerInstance]] methods will throw SparkUnsupportedOperationException.
+ *
+ * @param schema the schema of the rows being serialized, see [[ColumnarBatchSerializer.supports]].
+ * @param batchSize the maximum number of rows in a batch.
+ * @param readsBatches whether deserialization streams return batches rather than rows.
+ */
+class ColumnarBatchSerializer(
+    val schema: StructType,
+    batchSize: Int,
+    dataSize: SQLMetric = null,
+    val readsBatches: Boolean = false) extends Serializer with Serializable {
+  require(ColumnarBatchSerializer.supports(schema), s"Cannot shuffle $schema in columnar format")
+
+  override def newInstance(): SerializerInstance =
+    new ColumnarBatchSerializerInstance(schema, batchSize, dataSize, readsBatches)
+
+  // The rows of a stream are only written when its batch is full, so they cannot be relocated.
+  override def supportsRelocationOfSerializedObjects: Boolean = false
+}
+
+object ColumnarBatchSerializer {
+
+  /**
+   * Returns whether all the columns of the given schema can be shuffled in columnar format.
+   */
+  def supports(schema: StructType): Boolean = schema.nonEmpty && schema.forall { field =>
+    field.dataType match {
+      case BooleanType | ByteType | ShortType | IntegerType | LongType | FloatType | DoubleType =>
+        true
+      case DateType | TimestampType | TimestampNTZType => true
+      case _: YearMonthIntervalType | _: DayTimeIntervalType => true
+      case dt: DecimalType => dt.precision <= Decimal.MAX_LONG_DIGITS
+      case _: StringType | BinaryType => true
+      case _ => false
+    }
+  }
+
+  /**
+   * Returns the number of bytes of each value of the given type, or -1 if the values are stored
+   * as byte arrays.
+   */
+  private[execution] def valueWidth(dataType: DataType): Int = dataType match {
+    case BooleanType | ByteType => 1
+    case ShortType => 2
+    case IntegerType | DateType | FloatType | _: YearMonthIntervalType => 4
+    case dt: DecimalType if DecimalType.is32BitDecimalType(dt) => 4
+    case _: StringType | BinaryType => -1
+    case _ => 8
+  }
+
+  /** The number of rows the column vectors of a stream are first allocated for. */
+  private[execution] val INITIAL_CAPACITY = 256
+}
+
+/**
+ * Accounts the memory of the column vectors of the streams of a serializer instance with the
+ * task's memory manager. The vectors cannot be released while the streams are in use, so they
+ * are never spilled on request.
+ */
+private class ColumnVectorMemoryConsumer(taskMemoryManager: TaskMemoryManager)
+  extends MemoryConsumer(taskMemoryManager, MemoryMode.ON_HEAP) {
+
+  // The number of bytes the vectors of all the streams take, granted or not.
+  private[this] var needed = 0L
+
+  override def spill(size: Long, trigger: MemoryConsumer): Long = 0L
+
+  /**
+   * Accounts `bytes` more bytes of vectors, at least doubling the acquired memory so that growing
+   * vectors acquire memory a few times only. Returns whether all the vectors are granted.
+   */
+  def grow(bytes: Long): Boolean = {
+    needed += bytes
+    if (needed > getUsed) {
+      acquireMemory(math.max(needed - getUsed, math.max(getUsed, 64 * 1024L)))
+    }
+    needed <= getUsed
+  }
+
+  /** Accounts `bytes` less bytes of vectors, releasing the memory which is no longer needed. */
+  def shrink(bytes: Long): Unit = {
+    needed -= bytes
+    if (needed == 0 || getUsed - needed > needed) {
+      freeMemory(getUsed - math.max(needed, 0L))
+    }
+  }
+
+  /** Releases all the memory, including the memory of streams which were never closed. */
+  def freeAll(): Unit = {
+    needed = 0
+    if (getUsed > 0) {
+      freeMemory(getUsed)
+    }
+  }
+}
+
+private class ColumnarBatchSerializerInstance(
+    schema: StructType,
+    batchSize: Int,
+    dataSize: SQLMetric,
+    readsBatches: Boolean) extends SerializerInstance {
+  import ColumnarBatchSerializer._
+
+  private[this] val dataTypes: Array[DataType] = schema.fields.map(_.dataType)
+
+  private[this] val widths: Array[Int] = dataTypes.map(valueWidth)
+
+  // The bytes of every row in the column vectors, besides the bytes of strings and binaries: a
+  // null flag and either the value or the offset and length of the bytes.
+  private[this] val rowBytes: Long = widths.map(width => 1L + (if (width == -1) 8 else width)).sum
+
+  private[this] val byteArrayColumns: Array[Int] = widths.indices.filter(widths(_) == -1).toArray
+
+  /**
+   * Returns an estimate of the memory of the given vectors holding the given number of rows: the
+   * vectors grow by doubling, so they take up to twice the bytes of the rows.
+   */
+  private def estimateMemory(columns: Array[OnHeapColumnVector], numRows: Int): Long = {
+    var bytes = numRows * rowBytes
+    var i = 0
+    while (i < byteArrayColumns.length) {
+      bytes += columns(byteArrayColumns(i)).arrayData.getElementsAppended
+      i += 1
+    }
+    2 * bytes
+  }
+
+  // Shared by all the streams of this instance, or null outside of a task. A shuffle reader
+  // does not close its deserialization streams when the task stops reading early (e.g. under a
+  // limit), so the memory is released when the task completes.
+  private[this] lazy val memoryConsumer: ColumnVectorMemoryConsumer = {
+    val context = TaskContext.get()
+    if (context != null) {
+      val consumer = new ColumnVectorMemoryConsumer(context.taskMemoryManager())
+      context.addTaskCompletionListener[Unit](_ => consumer.freeAll())
+      consumer
+    } else {
+      null
+    }
+  }
+
+  // The vectors of the last closed stream, handed over to the next stream which needs some.
+  private[this] var idleColumns: Array[OnHeapColumnVector] = null
+
+  private def takeColumns(capacity: Int): Array[OnHeapColumnVector] = {
+    if (idleColumns != null) {
+      val columns = idleColumns
+      idleColumns = null
+      columns
+    } else {
+      OnHeapColumnVector.allocateColumns(capacity, schema)
+    }
+  }
+
+  private def returnColumns(columns: Array[OnHeapColumnVector]): Unit = {
+    if (idleColumns == null) {
+      columns.foreach(_.reset())
+      idleColumns = columns
+    } else {
+      columns.foreach(_.close())
+    }
+  }
+
+  /**
+   * Tracks the memory of the vectors of one stream in the memory consumer of the instance. The
+   * accounted memory only grows until the stream releases it, since the vectors keep their
+   * capacity when they are reset.
+   */
+  private class StreamMemory {
+    private[this] var accounted = 0L
+
+    /** Accounts vectors of `bytes` bytes, and returns whether their memory was granted. */
+    def reserve(bytes: Long): Boolean = {
+      if (memoryConsumer == null || bytes <= accounted) {
+        true
+      } else {
+        val delta = bytes - accounted
+        accounted = bytes
+        memoryConsumer.grow(delta)
+      }
+    }
+
+    def release(): Unit = {
+      if (accounted > 0) {
+        memoryConsumer.shrink(accounted)
+        accounted = 0
+      }
+    }
+  }
+
+  override def serializeStream(out: OutputStream): SerializationStream = new SerializationStream {
+    private[this] val dOut: DataOutputStream =
+      new DataOutputStream(new BufferedOutputStream(out))
+    // Allocated when the first row is written.
+    private[this] var columns: Array[OnHeapColumnVector] = null
+    private[this] val memory = new StreamMemory
+    private[this] var closed = false
+    private[this] var numRows = 0
+    // Holds the values of a fixed-width column, or the lengths of a string column.
+    private[this] var writeBuffer: ByteBuffer = null
+
+    private def allocate(capacity: Int): ByteBuffer =
+      ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN)
+
+    override def writeValue[T: ClassTag](value: T): SerializationStream = {
+      val row = value.asInstanceOf[InternalRow]
+      row match {
+        // Only the rows coming from the map side are counted: the rows a spill is read back as
+        // have been counted when they were first written.
+        case unsafeRow: UnsafeRow if dataSize != null => dataSize.add(unsafeRow.getSizeInBytes)
+        case _ =>
+      }
+      if (columns == null) {
+        columns = takeColumns(math.min(batchSize, INITIAL_CAPACITY))
+      }
+      var i = 0
+      while (i < columns.length) {
+        columns(i).reserve(numRows + 1)
+        appendValue(row, i)
+        i += 1
+      }
+      numRows += 1
+      if (!memory.reserve(estimateMemory(columns, numRows))) {
+        // Free the vectors, which start small again with the next row.
+        writeBatch()
+        columns.foreach(_.close())
+        columns = null
+        memory.release()
+      } else if (numRows == batchSize) {
+        writeBatch()
+      }
+      this
+    }
+
+    private def appendValue(row: InternalRow, ordinal: Int): Unit = {
+      val column = columns(ordinal)
+      if (row.isNullAt(ordinal)) {
+        column.putNull(numRows)
+      } else {
+        dataTypes(ordinal) match {
+          case BooleanType => column.putBoolean(numRows, row.getBoolean(ordinal))
+          case ByteType => column.putByte(numRows, row.getByte(ordinal))
+          case ShortType => column.putShort(numRows, row.getShort(ordinal))
+          case FloatType => column.putFloat(numRows, row.getFloat(ordinal))
+          case DoubleType => column.putDouble(numRows, row.getDouble(ordinal))
+          case dt: DecimalType =>
+            val decimal = row.getDecimal(ordinal, dt.precision, dt.scale)
+            column.putDecimal(numRows, decimal, dt.precision)
+          case _: StringType =>
+            val str = row.getUTF8String(ordinal)
+            str.getBaseObject match {
+              case bytes: Array[Byte] =>
+                column.putByteArray(numRows, bytes,
+                  (str.getBaseOffset - Platform.BYTE_ARRAY_OFFSET).toInt, str.numBytes)
+              case _ => column.putByteArray(numRows, str.getBytes)
+            }
+          case BinaryType => column.putByteArray(numRows, row.getBinary(ordinal))
+          case _ if widths(ordinal) == 4 => column.putInt(numRows, row.getInt(ordinal))
+          case _ => column.putLong(numRows, row.getLong(ordinal))
+        }
+      }
+    }
+
+    private def writeBatch(): Unit = {
+      if (numRows > 0) {
+        dOut.writeInt(numRows)
+        var i = 0
+        while (i < columns.length) {
+          writeColumn(columns(i), widths(i))
+          columns(i).reset()
+          i += 1
+        }
+        numRows = 0
+      }
+    }
+
+    private def writeColumn(column: WritableColumnVector, width: Int): Unit = {
+      val hasNulls = column.hasNull
+      dOut.writeBoolean(hasNulls)
+      if (hasNulls) {
+        val nulls = new Array[Byte]((numRows + 7) / 8)
+        var rowId = 0
+        while (rowId < numRows) {
+          if (column.isNullAt(rowId)) {
+            nulls(rowId >> 3) = (nulls(rowId >> 3) | (1 << (rowId & 7))).toByte
+          }
+          rowId += 1
+        }
+        dOut.write(nulls)
+      }
+
+      val buffer = prepareWriteBuffer(numRows * (if (width == -1) 4 else width))
+      var rowId = 0
+      while (rowId < numRows) {
+        val isNull = hasNulls && column.isNullAt(rowId)
+        width match {
+          case -1 => buffer.putInt(if (isNull) 0 else column.getArrayLength(rowId))
+          case _ if isNull => buffer.position(buffer.position() + width)
+          case 1 if column.dataType == BooleanType =>
+            buffer.put((if (column.getBoolean(rowId)) 1 else 0).toByte)
+          case 1 => buffer.put(column.getByte(rowId))
+          case 2 => buffer.putShort(column.getShort(rowId))
+          case 4 if column.dataType == FloatType => buffer.putFloat(column.getFloat(rowId))
+          case 4 => buffer.putInt(column.getInt(rowId))
+          case _ if column.dataType == DoubleType => buffer.putDouble(column.getDouble(rowId))
+          case _ => buffer.putLong(column.getLong(rowId))
+        }
+        rowId += 1
+      }
+      dOut.write(buffer.array(), 0, buffer.position())
+
+      if (width == -1) {
+        val numBytes = column.arrayData.getElementsAppended
+        dOut.writeInt(numBytes)
+        dOut.write(column.arrayData.getBytes(0, numBytes))
+      }
+    }
+
+    private def prepareWriteBuffer(capacity: Int): ByteBuffer = {
+      if (writeBuffer == null || writeBuffer.capacity < capacity) {
+        writeBuffer = allocate(capacity)
+      }
+      // Null values are skipped rather than written, so the buffer must be zeroed.
+      java.util.Arrays.fill(writeBuffer.array(), 0, capacity, 0.toByte)
+      writeBuffer.clear()
+      writeBuffer
+    }
+
+    override def writeKey[T: ClassTag](key: T): SerializationStream = {
+      // The key is only needed on the map side when computing partition ids. It does not need to
+      // be shuffled.
+      assert(null == key || key.isInstanceOf[Int])
+      this
+    }
+
+    override def writeAll[T: ClassTag](iter: Iterator[T]): SerializationStream = {
+      // This method is never called by shuffle code.
+      throw SparkUnsupportedOperationException()
+    }
+
+    override def writeObject[T: ClassTag](t: T): SerializationStream = {
+      // This method is never called by shuffle code.
+      throw SparkUnsupportedOperationException()
+    }
+
+    override def flush(): Unit = {
+      writeBatch()
+      dOut.flush()
+    }
+
+    override def close(): Unit = {
+      if (!closed) {
+        closed = true
+        if (columns != null) {
+          writeBatch()
+          returnColumns(columns)
+          columns = null
+        }
+        writeBuffer = null
+        memory.release()
+      }
+      dOut.close()
+    }
+  }
+
+  override def deserializeStream(in: InputStream): DeserializationStream = {
+    new DeserializationStream {
+      private[this] val dIn: DataInputStream = new DataInputStream(new BufferedInputStream(in))
+      private[this] lazy val toUnsafe: UnsafeProjection = UnsafeProjection.create(schema)
+      // Allocated when the first batch is read, for the rows of that batch.
+      private[this] var columns: Array[OnHeapColumnVector] = null
+      private[this] var batch: ColumnarBatch = null
+      private[this] val memory = new StreamMemory
+      private[this] var readBuffer: Array[Byte] = new Array[Byte](4096)
+      // The number of rows of `batch`, and the next one to return.
+      private[this] var numRows = 0
+      private[this] var rowId = 0
+      private[this] var eof = false
+
+      /** Reads the next batch, if all the rows of the current one have been returned. */
+      private def hasNextRow: Boolean = {
+        if (rowId == numRows && !eof) {
+          try {
+            readBatch(dIn.readInt())
+          } catch {
+            case _: EOFException =>
+              eof = true
+              close()
+          }
+        }
+        rowId < numRows
+      }
+
+      private def nextRow(): UnsafeRow = {
+        val row = toUnsafe(batch.getRow(rowId))
+        rowId += 1
+        row
+      }
+
+      /** Reads a batch of `numRows` rows, whose number of rows has already been read. */
+      private def readBatch(numRows: Int): Unit = {
+        if (columns == null) {
+          columns = takeColumns(numRows)
+          batch = new ColumnarBatch(columns.asInstanceOf[Array[ColumnVector]])
+        }
+        var i = 0
+        while (i < columns.length) {
+          readColumn(columns(i), widths(i), numRows)
+          i += 1
+        }
+        batch.setNumRows(numRows)
+        // The batch is needed whether or not the memory is granted, so it is only accounted.
+        memory.reserve(estimateMemory(columns, numRows))
+        this.numRows = numRows
+        rowId = 0
+      }
+
+      private def readColumn(column: WritableColumnVector, width: Int, numRows: Int): Unit = {
+        column.reset()
+        column.reserve(numRows)
+        if (dIn.readBoolean()) {
+          val nulls = readBytes((numRows + 7) / 8)
+          var rowId = 0
+          while (rowId < numRows) {
+            if ((nulls(rowId >> 3) & (1 << (rowId & 7))) != 0) {
+              column.putNull(rowId)
+            }
+            rowId += 1
+          }
+        }
+
+        // The lengths of strings and binaries are written as 4-byte integers.
+        val bytes = readBytes(numRows * (if (width == -1) 4 else width))
+        width match {
+          case -1 =>
+            val lengths = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            var offset = 0
+            var rowId = 0
+            while (rowId < numRows) {
+              val length = lengths.getInt(rowId * 4)
+              column.putArray(rowId, offset, length)
+              offset += length
+              rowId += 1
+            }
+            // The bytes of the values are read into the read buffer once the lengths are used.
+            val numBytes = dIn.readInt()
+            val arrayData = column.arrayData
+            arrayData.reserve(numBytes)
+            arrayData.appendBytes(numBytes, readBytes(numBytes), 0)
+          case 1 if column.dataType == BooleanType =>
+            var rowId = 0
+            while (rowId < numRows) {
+              column.putBoolean(rowId, bytes(rowId) != 0)
+              rowId += 1
+            }
+          case 1 => column.putBytes(0, numRows, bytes, 0)
+          case 2 =>
+            val values = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            var rowId = 0
+            while (rowId < numRows) {
+              column.putShort(rowId, values.getShort(rowId * 2))
+              rowId += 1
+            }
+          case 4 if column.dataType == FloatType =>
+            column.putFloatsLittleEndian(0, numRows, bytes, 0)
+          case 4 => column.putIntsLittleEndian(0, numRows, bytes, 0)
+          case _ if column.dataType == DoubleType =>
+            column.putDoublesLittleEndian(0, numRows, bytes, 0)
+          case _ => column.putLongsLittleEndian(0, numRows, bytes, 0)
+        }
+      }
+
+      /** Reads the given number of bytes into the read buffer, and returns the buffer. */
+      private def readBytes(numBytes: Int): Array[Byte] = {
+        if (readBuffer.length < numBytes) {
+          readBuffer = new Array[Byte](numBytes)
+        }
+        Utils.readFully(dIn, readBuffer, 0, numBytes)
+        readBuffer
+      }
+
+      /** Returns the batch whose rows have not been returned, as if they all were. */
+      private def nextBatch(): ColumnarBatch = {
+        rowId = numRows
+        batch
+      }
+
+      override def asKeyValueIterator: Iterator[(Int, Any)] = {
+        new Iterator[(Int, Any)] {
+          override def hasNext: Boolean = hasNextRow
+
+          override def next(): (Int, Any) = {
+            if (!hasNext) {
+              throw new NoSuchElementException()
+            }
+            (0, if (readsBatches) nextBatch() else nextRow())
+          }
+        }
+      }
+
+      override def asIterator: Iterator[Any] = {
+        // This method is never called by shuffle code.
+        throw SparkUnsupportedOperationException()
+      }
+
+      override def readKey[T: ClassTag](): T = {
+        // We skipped serialization of the key in writeKey(), so just return a dummy value since
+        // this is going to be discarded anyways.
+        null.asInstanceOf[T]
+      }
+
+      override def readValue[T: ClassTag](): T = {
+        if (rowId == numRows) {
+          readBatch(dIn.readInt())
+        }
+        (if (readsBatches) nextBatch() else nextRow()).asInstanceOf[T]
+      }
+
+      override def readObject[T: ClassTag](): T = {
+        // This method is never called by shuffle code.
+        throw SparkUnsupportedOperationException()
+      }
+
+      override def close(): Unit = {
+        if (columns != null) {
+          returnColumns(columns)
+          columns = null
+          batch = null
+        }
+        memory.release()
+        dIn.close()
+      }
+    }
+  }
+
+  // These methods are never called by shuffle code.
+  override def serialize[T: ClassTag](t: T): ByteBuffer = throw SparkUnsupportedOperationException()
+  override def deserialize[T: ClassTag](bytes: ByteBuffer): T =
+    throw SparkUnsupportedOperationException()
+  override def deserialize[T: ClassTag](bytes: ByteBuffer, loader: ClassLoader): T =
+    throw SparkUnsupportedOperationException()
+}
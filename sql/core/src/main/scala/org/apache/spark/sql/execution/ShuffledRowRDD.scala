@@ -19,12 +19,16 @@ package org.apache.spark.sql.execution
 
 import java.util.Arrays
 
+import scala.jdk.CollectionConverters._
+
 import org.apache.spark._
 import org.apache.spark.rdd.RDD
 import org.apache.spark.shuffle.sort.SortShuffleManager
 import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.UnsafeProjection
 import org.apache.spark.sql.execution.metric.{SQLMetric, SQLShuffleReadMetricsReporter}
 import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.sql.vectorized.ColumnarBatch
 
 sealed trait ShufflePartitionSpec
 
@@ -123,6 +127,9 @@ class CoalescedPartitioner(val parent: Partitioner, val partitionStartIndices: A
  * The `dependency` has the parent RDD of this RDD, which represents the dataset before shuffle
  * (i.e. map output). Elements of this RDD are (partitionId, Row) pairs.
  * Partition ids should be in the range [0, numPartitions - 1].
+ * If the dependency's serializer is a [[ColumnarBatchSerializer]] which reads batches, the rows
+ * of the batches are converted to [[org.apache.spark.sql.catalyst.expressions.UnsafeRow]]s, and
+ * a [[ShuffledColumnarBatchRDD]] reads the batches themselves.
  * `dependency.partitioner` is the original partitioner used to partition
  * map output, and `dependency.partitioner.numPartitions` is the number of pre-shuffle partitions
  * (i.e. the number of partitions of the map output).
@@ -186,10 +193,43 @@ class ShuffledRowRDD(
   }
 
   override def compute(split: Partition, context: TaskContext): Iterator[InternalRow] = {
+    dependency.serializer match {
+      case serializer: ColumnarBatchSerializer if serializer.readsBatches =>
+        val toUnsafe = UnsafeProjection.create(serializer.schema)
+        readBatches(split, context).flatMap(_.rowIterator().asScala).map(toUnsafe)
+      case _ =>
+        read(split, context, newMetricsReporter(context))
+          .asInstanceOf[Iterator[Product2[Int, InternalRow]]].map(_._2)
+    }
+  }
+
+  /**
+   * Reads the batches of the given partition, if the dependency's serializer is a
+   * [[ColumnarBatchSerializer]] which reads batches.
+   */
+  private[execution] def readBatches(
+      split: Partition,
+      context: TaskContext): Iterator[ColumnarBatch] = {
+    val sqlMetricsReporter = newMetricsReporter(context)
+    // The reader counts every batch as one record.
+    read(split, context, sqlMetricsReporter)
+      .asInstanceOf[Iterator[Product2[Int, ColumnarBatch]]].map { record =>
+        sqlMetricsReporter.incRecordsRead(record._2.numRows - 1)
+        record._2
+      }
+  }
+
+  private def newMetricsReporter(context: TaskContext): SQLShuffleReadMetricsReporter = {
     val tempMetrics = context.taskMetrics().createTempShuffleReadMetrics()
     // `SQLShuffleReadMetricsReporter` will update its own metrics for SQL exchange operator,
     // as well as the `tempMetrics` for basic shuffle metrics.
-    val sqlMetricsReporter = new SQLShuffleReadMetricsReporter(tempMetrics, metrics)
+    new SQLShuffleReadMetricsReporter(tempMetrics, metrics)
+  }
+
+  private def read(
+      split: Partition,
+      context: TaskContext,
+      sqlMetricsReporter: SQLShuffleReadMetricsReporter): Iterator[Product2[Int, Any]] = {
     val reader = split.asInstanceOf[ShuffledRowRDDPartition].spec match {
       case CoalescedPartitionSpec(startReducerIndex, endReducerIndex, _) =>
         SparkEnv.get.shuffleManager.getReader(
@@ -229,7 +269,7 @@ class ShuffledRowRDD(
           context,
           sqlMetricsReporter)
     }
-    reader.read().asInstanceOf[Iterator[Product2[Int, InternalRow]]].map(_._2)
+    reader.read()
   }
 
   override def clearDependencies(): Unit = {
@@ -237,3 +277,22 @@ class ShuffledRowRDD(
     dependency = null
   }
 }
+
+/**
+ * The [[ColumnarBatch]]es of a shuffle in columnar format, i.e. whose serializer is a
+ * [[ColumnarBatchSerializer]] which reads batches. The batches of every partition are read by
+ * the given [[ShuffledRowRDD]], whose own elements are the rows of the batches, see
+ * [[ShuffleExchangeExec]].
+ */
+class ShuffledColumnarBatchRDD(val rowRDD: ShuffledRowRDD) extends RDD[ColumnarBatch](rowRDD) {
+
+  override val partitioner: Option[Partitioner] = rowRDD.partitioner
+
+  override def getPartitions: Array[Partition] = rowRDD.partitions
+
+  override def getPreferredLocations(partition: Partition): Seq[String] =
+    rowRDD.preferredLocations(partition)
+
+  override def compute(split: Partition, context: TaskContext): Iterator[ColumnarBatch] =
+    rowRDD.readBatches(split, context)
+}
@@ -28,6 +28,7 @@ import org.apache.spark.sql.catalyst.expressions.codegen.{CodegenContext, CodeGe
 import org.apache.spark.sql.catalyst.plans.physical._
 import org.apache.spark.sql.catalyst.util.DateTimeConstants.NANOS_PER_MILLIS
 import org.apache.spark.sql.execution.metric.SQLMetrics
+import org.apache.spark.util.collection.unsafe.sort.{PrefixComparators, RecordKeyNormalizer, UnsafeSorterSpillEncoding}
 
 /**
  * Performs (external) sorting.
@@ -57,10 +58,17 @@ case class SortExec(
 
   private val enableRadixSort = conf.enableRadixSort
 
+  private val enableNormalizedKeyRadixSort = conf.normalizedKeyRadixSortEnabled
+
+  private val spillEncoding = conf.sortSpillEncoding.map(UnsafeSorterSpillEncoding.fromString)
+
   override lazy val metrics = Map(
     "sortTime" -> SQLMetrics.createTimingMetric(sparkContext, "sort time"),
     "peakMemory" -> SQLMetrics.createSizeMetric(sparkContext, "peak memory"),
-    "spillSize" -> SQLMetrics.createSizeMetric(sparkContext, "spill size"))
+    "spillSize" -> SQLMetrics.createSizeMetric(sparkContext, "spill size"),
+    "spillOverlapTime" -> SQLMetrics.createTimingMetric(sparkContext, "spill overlap time"),
+    "spillEncodingSaved" ->
+      SQLMetrics.createSizeMetric(sparkContext, "spill bytes saved by encoding"))
 
   // WARNING: This is a shared mutable var on the SortExec instance. Do not access it from
   // multiple threads concurrently - Spark operators do not guarantee thread-safety and one
@@ -80,9 +88,24 @@ case class SortExec(
     val boundSortExpression = BindReferences.bindReference(sortOrder.head, output)
     val prefixComparator = SortPrefixUtils.getPrefixComparator(boundSortExpression)
 
-    val canUseRadixSort = enableRadixSort && sortOrder.length == 1 &&
+    val canSortFullyWithPrefix = sortOrder.length == 1 &&
       SortPrefixUtils.canSortFullyWithPrefix(boundSortExpression)
 
+    // When the prefix alone does not decide the order, the records with equal prefixes can still
+    // be radix sorted on a normalized encoding of the whole sort key.
+    val boundSortOrder = sortOrder.map(BindReferences.bindReference(_, output))
+    val keyNormalizerSupplier: java.util.function.Supplier[RecordKeyNormalizer] =
+      if (enableRadixSort && enableNormalizedKeyRadixSort && !canSortFullyWithPrefix &&
+          prefixComparator.isInstanceOf[PrefixComparators.RadixSortSupport] &&
+          SortKeyNormalizer.canNormalize(boundSortOrder)) {
+        () => new SortKeyNormalizer(boundSortOrder, output.length)
+      } else {
+        null
+      }
+
+    val canUseRadixSort =
+      enableRadixSort && (canSortFullyWithPrefix || keyNormalizerSupplier != null)
+
     // The generator for prefix
     val prefixExpr = SortPrefix(boundSortExpression)
     val prefixProjection = UnsafeProjection.create(Seq(prefixExpr))
@@ -99,7 +122,8 @@ case class SortExec(
 
     val pageSize = SparkEnv.get.memoryManager.pageSizeBytes
     rowSorter = UnsafeExternalRowSorter.create(
-      schema, ordering, prefixComparator, prefixComputer, pageSize, canUseRadixSort)
+      schema, ordering, prefixComparator, prefixComputer, pageSize, canUseRadixSort,
+      keyNormalizerSupplier, spillEncoding.orNull)
 
     if (testSpillFrequency > 0) {
       rowSorter.setTestSpillFrequency(testSpillFrequency)
@@ -111,6 +135,8 @@ case class SortExec(
     val peakMemory = longMetric("peakMemory")
     val spillSize = longMetric("spillSize")
     val sortTime = longMetric("sortTime")
+    val spillOverlapTime = longMetric("spillOverlapTime")
+    val spillEncodingSaved = longMetric("spillEncodingSaved")
 
     child.execute().mapPartitionsInternal { iter =>
       val sorter = createSorter()
@@ -121,6 +147,8 @@ case class SortExec(
       val spillSizeBefore = metrics.memoryBytesSpilled
       val sortedIterator = sorter.sort(iter.asInstanceOf[Iterator[UnsafeRow]])
       sortTime += NANOSECONDS.toMillis(sorter.getSortTimeNanos)
+      spillOverlapTime += NANOSECONDS.toMillis(sorter.getSpillOverlapTimeNanos)
+      spillEncodingSaved += sorter.getSpillEncodingBytesSaved
       peakMemory += sorter.getPeakMemoryUsage
       spillSize += metrics.memoryBytesSpilled - spillSizeBefore
       metrics.incPeakExecutionMemory(sorter.getPeakMemoryUsage)
@@ -169,12 +197,16 @@ case class SortExec(
     val spillSize = metricTerm(ctx, "spillSize")
     val spillSizeBefore = ctx.freshName("spillSizeBefore")
     val sortTime = metricTerm(ctx, "sortTime")
+    val spillOverlapTime = metricTerm(ctx, "spillOverlapTime")
+    val spillEncodingSaved = metricTerm(ctx, "spillEncodingSaved")
     s"""
        | if ($needToSort) {
        |   long $spillSizeBefore = $metrics.memoryBytesSpilled();
        |   $addToSorterFuncName(partitionIndex);
        |   $sortedIterator = $sorterVariable.sort();
        |   $sortTime.add($sorterVariable.getSortTimeNanos() / $NANOS_PER_MILLIS);
+       |   $spillOverlapTime.add($sorterVariable.getSpillOverlapTimeNanos() / $NANOS_PER_MILLIS);
+       |   $spillEncodingSaved.add($sorterVariable.getSpillEncodingBytesSaved());
        |   $peakMemory.add($sorterVariable.getPeakMemoryUsage());
        |   $spillSize.add($metrics.memoryBytesSpilled() - $spillSizeBefore);
        |   $metrics.incPeakExecutionMemory($sorterVariable.getPeakMemoryUsage());
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import java.util.Arrays
+
+import org.apache.spark.sql.catalyst.expressions.{Ascending, BoundReference, NullsFirst, SortOrder, UnsafeRow}
+import org.apache.spark.sql.catalyst.util.CollationFactory
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.util.collection.unsafe.sort.RecordKeyNormalizer
+
+/**
+ * Computes normalized keys of [[UnsafeRow]]s sorted by the given sort orders: byte strings whose
+ * unsigned lexicographic order agrees with the order of the rows.
+ *
+ * The key of a row is the concatenation of the encodings of its sort columns. Every column
+ * starts with a byte which places nulls first or last, followed by the value:
+ *  - fixed-width values in big-endian order with the sign bit flipped (floating point values are
+ *    normalized first so that -0.0 equals 0.0 and NaN is the largest value),
+ *  - strings and binaries with every 0x00 escaped as 0x00 0x01 and terminated by 0x00 0x00, so
+ *    that a shorter value sorts before any value it is a prefix of. Strings with a non-binary
+ *    collation are encoded through their collation sort key.
+ * All the value bytes of descending columns are inverted. The key stops before the first sort
+ * column which cannot be encoded, so rows with equal keys must still be compared by the sorter's
+ * record comparator.
+ *
+ * A single ascending string or binary column is encoded as its raw bytes, which lets every key
+ * word be read straight from the row.
+ */
+class SortKeyNormalizer(sortOrder: Seq[SortOrder], numFields: Int) extends RecordKeyNormalizer {
+  import SortKeyNormalizer._
+
+  private val columns: Array[Column] = encodableColumns(sortOrder).toArray
+
+  private val isRawBytes: Boolean = columns.length == 1 && columns(0).kind == RawBytes
+
+  private val row = new UnsafeRow(numFields)
+
+  // The encoding of the last row which was not read straight from the row.
+  private var buffer = new Array[Byte](64)
+  private var length = 0
+
+  override def normalizeKey(baseObject: AnyRef, baseOffset: Long, baseLength: Int): Array[Long] = {
+    if (isRawBytes) {
+      row.pointTo(baseObject, baseOffset, baseLength)
+      val column = columns(0)
+      if (row.isNullAt(column.ordinal)) {
+        Array.emptyLongArray
+      } else {
+        val offsetAndSize = row.getLong(column.ordinal)
+        toWords(baseObject, baseOffset + (offsetAndSize >>> 32), offsetAndSize.toInt)
+      }
+    } else {
+      encode(baseObject, baseOffset, baseLength)
+      toWords(buffer, Platform.BYTE_ARRAY_OFFSET, length)
+    }
+  }
+
+  /** Packs the given bytes into big-endian words, padding the last one with zeros. */
+  private def toWords(base: AnyRef, offset: Long, size: Int): Array[Long] = {
+    val words = new Array[Long]((size + 7) / 8)
+    var i = 0
+    while (i < size) {
+      words(i / 8) |= (Platform.getByte(base, offset + i) & 0xffL) << (56 - (i % 8) * 8)
+      i += 1
+    }
+    words
+  }
+
+  private def encode(baseObject: AnyRef, baseOffset: Long, baseLength: Int): Unit = {
+    row.pointTo(baseObject, baseOffset, baseLength)
+    length = 0
+    var c = 0
+    while (c < columns.length) {
+      val column = columns(c)
+      val ordinal = column.ordinal
+      if (row.isNullAt(ordinal)) {
+        putByte(if (column.nullsFirst) 0 else 2)
+      } else {
+        putByte(1)
+        val valueStart = length
+        column.kind match {
+          case Bool => putByte(if (row.getBoolean(ordinal)) 1 else 0)
+          case Int8 => putByte(row.getByte(ordinal) ^ 0x80)
+          case Int16 => putBigEndian(row.getShort(ordinal) ^ 0x8000L, 2)
+          case Int32 => putBigEndian(row.getInt(ordinal) ^ 0x80000000L, 4)
+          case Int64 => putBigEndian(row.getLong(ordinal) ^ Long.MinValue, 8)
+          case Float32 =>
+            val v = row.getFloat(ordinal)
+            val bits = java.lang.Float.floatToIntBits(if (v == 0.0f) 0.0f else v)
+            putBigEndian(if (bits < 0) ~bits else bits ^ 0x80000000L, 4)
+          case Float64 =>
+            val v = row.getDouble(ordinal)
+            val bits = java.lang.Double.doubleToLongBits(if (v == 0.0d) 0.0d else v)
+            putBigEndian(if (bits < 0) ~bits else bits ^ Long.MinValue, 8)
+          case RawBytes | EscapedBytes =>
+            val bytes = column.dataType match {
+              case st: StringType if !CollationFactory.fetchCollation(st.collationId)
+                  .supportsBinaryOrdering =>
+                CollationFactory.getCollationKeyBytes(row.getUTF8String(ordinal), st.collationId)
+              case _: StringType => row.getUTF8String(ordinal).getBytes
+              case _ => row.getBinary(ordinal)
+            }
+            putEscaped(bytes)
+        }
+        if (!column.ascending) {
+          var i = valueStart
+          while (i < length) {
+            buffer(i) = (~buffer(i)).toByte
+            i += 1
+          }
+        }
+      }
+      c += 1
+    }
+  }
+
+  private def ensureCapacity(extra: Int): Unit = {
+    if (length + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, math.max(buffer.length * 2, length + extra))
+    }
+  }
+
+  private def putByte(b: Int): Unit = {
+    ensureCapacity(1)
+    buffer(length) = b.toByte
+    length += 1
+  }
+
+  private def putBigEndian(value: Long, numBytes: Int): Unit = {
+    ensureCapacity(numBytes)
+    var i = numBytes - 1
+    while (i >= 0) {
+      buffer(length) = (value >>> (i * 8)).toByte
+      length += 1
+      i -= 1
+    }
+  }
+
+  private def putEscaped(bytes: Array[Byte]): Unit = {
+    ensureCapacity(bytes.length * 2 + 2)
+    var i = 0
+    while (i < bytes.length) {
+      buffer(length) = bytes(i)
+      length += 1
+      if (bytes(i) == 0) {
+        buffer(length) = 1
+        length += 1
+      }
+      i += 1
+    }
+    buffer(length) = 0
+    buffer(length + 1) = 0
+    length += 2
+  }
+}
+
+object SortKeyNormalizer {
+
+  private sealed trait Kind
+  private case object Bool extends Kind
+  private case object Int8 extends Kind
+  private case object Int16 extends Kind
+  private case object Int32 extends Kind
+  private case object Int64 extends Kind
+  private case object Float32 extends Kind
+  private case object Float64 extends Kind
+  private case object RawBytes extends Kind
+  private case object EscapedBytes extends Kind
+
+  private case class Column(
+      ordinal: Int,
+      dataType: DataType,
+      kind: Kind,
+      ascending: Boolean,
+      nullsFirst: Boolean)
+
+  private def kindOf(dataType: DataType): Option[Kind] = dataType match {
+    case BooleanType => Some(Bool)
+    case ByteType => Some(Int8)
+    case ShortType => Some(Int16)
+    case IntegerType | DateType | _: YearMonthIntervalType => Some(Int32)
+    case LongType | TimestampType | TimestampNTZType | _: DayTimeIntervalType => Some(Int64)
+    case dt: DecimalType if dt.precision <= Decimal.MAX_LONG_DIGITS => Some(Int64)
+    case FloatType => Some(Float32)
+    case DoubleType => Some(Float64)
+    case _: StringType | BinaryType => Some(EscapedBytes)
+    case _ => None
+  }
+
+  /**
+   * Returns the longest prefix of the sort orders whose columns can be encoded.
+   */
+  private def encodableColumns(sortOrder: Seq[SortOrder]): Seq[Column] = {
+    val columns = sortOrder.iterator.map { order =>
+      order.child match {
+        case BoundReference(ordinal, dataType, _) =>
+          kindOf(dataType).map { kind =>
+            Column(ordinal, dataType, kind, order.direction == Ascending,
+              order.nullOrdering == NullsFirst)
+          }
+        case _ => None
+      }
+    }.takeWhile(_.isDefined).map(_.get).toSeq
+    columns match {
+      case Seq(c) if c.kind == EscapedBytes && c.ascending && (c.dataType match {
+        case st: StringType =>
+          CollationFactory.fetchCollation(st.collationId).supportsBinaryOrdering
+        case _ => true
+      }) =>
+        // A single ascending column can be compared on its raw bytes: a shorter value padded
+        // with zeros never sorts after a longer one, and the record comparator resolves ties.
+        Seq(c.copy(kind = RawBytes))
+      case _ => columns
+    }
+  }
+
+  /**
+   * Returns whether normalized keys can be computed for at least the first of the given (bound)
+   * sort orders.
+   */
+  def canNormalize(sortOrder: Seq[SortOrder]): Boolean = encodableColumns(sortOrder).nonEmpty
+}
@@ -275,8 +275,10 @@ case class AQEShuffleReadExec private(
     }
   }
 
-  override protected def doExecute(): RDD[InternalRow] = {
-    shuffleRDD.asInstanceOf[RDD[InternalRow]]
+  override protected def doExecute(): RDD[InternalRow] = shuffleRDD match {
+    // A shuffle in columnar format also reads its batches as rows.
+    case batches: ShuffledColumnarBatchRDD => batches.rowRDD
+    case rows => rows.asInstanceOf[RDD[InternalRow]]
   }
 
   override protected def doExecuteColumnar(): RDD[ColumnarBatch] = {
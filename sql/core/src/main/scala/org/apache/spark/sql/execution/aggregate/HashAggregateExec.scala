@@ -121,7 +121,10 @@ case class HashAggregateExec(
             peakMemory,
             spillSize,
             avgHashProbe,
-            numTasksFallBacked)
+            numTasksFallBacked,
+            longKeyHashMapEnabled,
+            hashMapPartitionBits,
+            hashMapLookupBatchSize)
         if (!hasInput && groupingExpressions.isEmpty) {
           numOutputRows += 1
           Iterator.single[UnsafeRow](aggregationIterator.outputForEmptyGroupingKeyWithoutInput())
@@ -140,6 +143,11 @@ case class HashAggregateExec(
     .filter(_.isInstanceOf[DeclarativeAggregate])
     .map(_.asInstanceOf[DeclarativeAggregate])
   private val bufferSchema = DataTypeUtils.fromAttributes(aggregateBufferAttributes)
+  private val longKeyHashMapEnabled = conf.getConf(SQLConf.AGGREGATE_LONG_KEY_HASH_MAP_ENABLED)
+  private val hashMapPartitionBits = conf.getConf(SQLConf.AGGREGATE_HASH_MAP_PARTITION_BITS)
+  // The generated code probes the hash map one row at a time, so batched lookups are only done
+  // by TungstenAggregationIterator, when the aggregate is not whole-stage code generated.
+  private val hashMapLookupBatchSize = conf.getConf(SQLConf.AGGREGATE_HASH_MAP_LOOKUP_BATCH_SIZE)
 
   // The name for Fast HashMap
   private var fastHashMapTerm: String = _
@@ -169,7 +177,9 @@ case class HashAggregateExec(
       groupingKeySchema,
       TaskContext.get(),
       1024 * 16, // initial capacity
-      TaskContext.get().taskMemoryManager().pageSizeBytes
+      TaskContext.get().taskMemoryManager().pageSizeBytes,
+      longKeyHashMapEnabled,
+      hashMapPartitionBits
     )
   }
 
@@ -79,6 +79,14 @@ import org.apache.spark.util.ArrayImplicits._
  *   attributes of representing input rows from `inputIter`.
  * @param inputIter
  *   the iterator containing input [[UnsafeRow]]s.
+ * @param enableLongKeyMap
+ *   whether the hash map may be keyed by the value of a single integral grouping key.
+ * @param numHashMapPartitionBits
+ *   if positive, the hash map is partitioned into 2^numHashMapPartitionBits maps by the top
+ *   bits of the grouping key hash.
+ * @param lookupBatchSize
+ *   if positive, input rows are buffered in batches of this size, and the grouping keys of a
+ *   batch are looked up in the hash map together.
  */
 class TungstenAggregationIterator(
     partIndex: Int,
@@ -95,7 +103,10 @@ class TungstenAggregationIterator(
     peakMemory: SQLMetric,
     spillSize: SQLMetric,
     avgHashProbe: SQLMetric,
-    numTasksFallBacked: SQLMetric)
+    numTasksFallBacked: SQLMetric,
+    enableLongKeyMap: Boolean = false,
+    numHashMapPartitionBits: Int = 0,
+    lookupBatchSize: Int = 0)
   extends AggregationIterator(
     partIndex,
     groupingExpressions,
@@ -171,7 +182,9 @@ class TungstenAggregationIterator(
     DataTypeUtils.fromAttributes(groupingExpressions.map(_.toAttribute)),
     TaskContext.get(),
     1024 * 16, // initial capacity
-    TaskContext.get().taskMemoryManager().pageSizeBytes
+    TaskContext.get().taskMemoryManager().pageSizeBytes,
+    enableLongKeyMap,
+    numHashMapPartitionBits
   )
 
   // The function used to read and process input rows. When processing input rows,
@@ -189,6 +202,8 @@ class TungstenAggregationIterator(
         val newInput = inputIter.next()
         processRow(buffer, newInput)
       }
+    } else if (lookupBatchSize > 0) {
+      processInputBatches(fallbackStartsAt)
     } else {
       var i = 0
       while (inputIter.hasNext) {
@@ -199,12 +214,7 @@ class TungstenAggregationIterator(
           buffer = hashMap.getAggregationBufferFromUnsafeRow(groupingKey)
         }
         if (buffer == null) {
-          val sorter = hashMap.destructAndCreateExternalSorter()
-          if (externalSorter == null) {
-            externalSorter = sorter
-          } else {
-            externalSorter.merge(sorter)
-          }
+          spillHashMap()
           i = 0
           buffer = hashMap.getAggregationBufferFromUnsafeRow(groupingKey)
           if (buffer == null) {
@@ -215,14 +225,74 @@ class TungstenAggregationIterator(
         processRow(buffer, newInput)
         i += 1
       }
+    }
 
-      if (externalSorter != null) {
-        val sorter = hashMap.destructAndCreateExternalSorter()
-        externalSorter.merge(sorter)
-        hashMap.free()
+    if (groupingExpressions.nonEmpty && externalSorter != null) {
+      val sorter = hashMap.destructAndCreateExternalSorter()
+      externalSorter.merge(sorter)
+      hashMap.free()
 
-        switchToSortBasedAggregation()
+      switchToSortBasedAggregation()
+    }
+  }
+
+  // Same as the grouping case of processInputs, but buffers the input rows in batches so that
+  // the grouping keys of a batch can be looked up in the hash map together. The rows are copied,
+  // since the input iterator and the grouping projection may reuse their rows.
+  private def processInputBatches(fallbackStartsAt: (Int, Int)): Unit = {
+    val numInputFields = originalInputAttributes.length
+    val batchKeys = Array.fill(lookupBatchSize)(
+      UnsafeRow.createFromByteArray(0, groupingExpressions.length))
+    val batchUnsafeInputs = Array.fill(lookupBatchSize)(
+      UnsafeRow.createFromByteArray(0, numInputFields))
+    val batchInputs = new Array[InternalRow](lookupBatchSize)
+    var i = 0
+    while (inputIter.hasNext) {
+      var numRows = 0
+      while (numRows < lookupBatchSize && inputIter.hasNext) {
+        val newInput = inputIter.next()
+        batchKeys(numRows).copyFrom(groupingProjection.apply(newInput))
+        batchInputs(numRows) = newInput match {
+          case unsafeInput: UnsafeRow =>
+            batchUnsafeInputs(numRows).copyFrom(unsafeInput)
+            batchUnsafeInputs(numRows)
+          case _ => newInput.copy()
+        }
+        numRows += 1
       }
+
+      val rowOrder = hashMap.lookupBatch(batchKeys, numRows)
+      var j = 0
+      while (j < numRows) {
+        val row = rowOrder(j)
+        var buffer: UnsafeRow = null
+        if (i < fallbackStartsAt._2) {
+          buffer = hashMap.getAggregationBufferFromBatch(row)
+        }
+        if (buffer == null) {
+          spillHashMap()
+          i = 0
+          buffer = hashMap.getAggregationBufferFromBatch(row)
+          if (buffer == null) {
+            // failed to allocate the first page
+            throw QueryExecutionErrors.aggregateOutOfMemoryError()
+          }
+        }
+        processRow(buffer, batchInputs(row))
+        i += 1
+        j += 1
+      }
+    }
+  }
+
+  // Sorts and spills the groups of the hash map, and adds them to `externalSorter`. The hash map
+  // is empty afterwards.
+  private def spillHashMap(): Unit = {
+    val sorter = hashMap.destructAndCreateExternalSorter()
+    if (externalSorter == null) {
+      externalSorter = sorter
+    } else {
+      externalSorter.merge(sorter)
     }
   }
 
@@ -41,6 +41,7 @@ import org.apache.spark.sql.catalyst.types.DataTypeUtils
 import org.apache.spark.sql.execution._
 import org.apache.spark.sql.execution.metric.{SQLMetric, SQLMetrics, SQLShuffleReadMetricsReporter, SQLShuffleWriteMetricsReporter}
 import org.apache.spark.sql.internal.{SQLConf, StaticSQLConf}
+import org.apache.spark.sql.vectorized.ColumnarBatch
 import org.apache.spark.util.{MutablePair, ThreadUtils}
 import org.apache.spark.util.collection.unsafe.sort.{PrefixComparators, RecordComparator}
 import org.apache.spark.util.random.XORShiftRandom
@@ -186,13 +187,17 @@ case object REQUIRED_BY_STATEFUL_OPERATOR extends ShuffleOrigin
 
 /**
  * Performs a shuffle that will result in the desired partitioning.
+ *
+ * If the columnar shuffle format is enabled and supports the output of the child, the rows are
+ * shuffled as column batches, and the exchange outputs the batches it reads to the columnar
+ * operators above it (at least a [[ColumnarToRowExec]]) rather than rows.
  */
 case class ShuffleExchangeExec(
     override val outputPartitioning: Partitioning,
     child: SparkPlan,
     shuffleOrigin: ShuffleOrigin = ENSURE_REQUIREMENTS,
     advisoryPartitionSize: Option[Long] = None)
-  extends ShuffleExchangeLike {
+  extends ShuffleExchangeLike with ColumnarOutputFromRows {
 
   private lazy val writeMetrics =
     SQLShuffleWriteMetricsReporter.createShuffleWriteMetrics(sparkContext)
@@ -205,8 +210,19 @@ case class ShuffleExchangeExec(
 
   override def nodeName: String = "Exchange"
 
-  private lazy val serializer: Serializer =
-    new UnsafeRowSerializer(child.output.size, longMetric("dataSize"))
+  private lazy val columnarFormat: Boolean =
+    conf.columnarShuffleEnabled && ColumnarBatchSerializer.supports(schema)
+
+  private lazy val serializer: Serializer = {
+    if (columnarFormat) {
+      new ColumnarBatchSerializer(schema, conf.columnarShuffleBatchSize, longMetric("dataSize"),
+        readsBatches = true)
+    } else {
+      new UnsafeRowSerializer(child.output.size, longMetric("dataSize"))
+    }
+  }
+
+  override def supportsColumnar: Boolean = columnarFormat
 
   @transient lazy val inputRDD: RDD[InternalRow] = child.execute()
 
@@ -224,8 +240,13 @@ case class ShuffleExchangeExec(
 
   override def numPartitions: Int = shuffleDependency.partitioner.numPartitions
 
-  override def getShuffleRDD(partitionSpecs: Array[ShufflePartitionSpec]): RDD[InternalRow] = {
-    new ShuffledRowRDD(shuffleDependency, readMetrics, partitionSpecs)
+  /**
+   * Returns a [[ShuffledColumnarBatchRDD]] of the batches read by the shuffle instead of its rows
+   * if the exchange is in columnar format, see [[supportsColumnar]].
+   */
+  override def getShuffleRDD(partitionSpecs: Array[ShufflePartitionSpec]): RDD[_] = {
+    val rowRDD = new ShuffledRowRDD(shuffleDependency, readMetrics, partitionSpecs)
+    if (columnarFormat) new ShuffledColumnarBatchRDD(rowRDD) else rowRDD
   }
 
   override def runtimeStatistics: Statistics = {
@@ -263,10 +284,14 @@ case class ShuffleExchangeExec(
 
   protected override def doExecute(): RDD[InternalRow] = {
     // The ShuffleRowRDD will be cached in SparkPlan.executeRDD and reused if this plan is used by
-    // multiple plans.
+    // multiple plans. In columnar format, it converts the batches it reads to rows.
     new ShuffledRowRDD(shuffleDependency, readMetrics)
   }
 
+  protected override def doExecuteColumnar(): RDD[ColumnarBatch] = {
+    new ShuffledColumnarBatchRDD(new ShuffledRowRDD(shuffleDependency, readMetrics))
+  }
+
   override protected def withNewChildInternal(newChild: SparkPlan): ShuffleExchangeExec =
     copy(child = newChild)
 }
@@ -292,9 +317,12 @@ object ShuffleExchangeExec {
    * See SPARK-2967, SPARK-4479, and SPARK-7375 for more discussion of this issue.
    *
    * @param partitioner the partitioner for the shuffle
+   * @param serializer the serializer for the shuffle
    * @return true if rows should be copied before being shuffled, false otherwise
    */
-  private def needToCopyObjectsBeforeShuffle(partitioner: Partitioner): Boolean = {
+  private def needToCopyObjectsBeforeShuffle(
+      partitioner: Partitioner,
+      serializer: Serializer): Boolean = {
     // Note: even though we only use the partitioner's `numPartitions` field, we require it to be
     // passed instead of directly passing the number of partitions in order to guard against
     // corner-cases where a partitioner constructed with `numPartitions` partitions may output
@@ -311,7 +339,12 @@ object ShuffleExchangeExec {
         // doesn't buffer deserialized records.
         // Note that we'll have to remove this case if we fix SPARK-6026 and remove this bypass.
         false
-      } else if (numParts <= SortShuffleManager.MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE) {
+      } else if (!serializer.supportsRelocationOfSerializedObjects) {
+        // The serializer does not allow serialized mode (e.g. the columnar shuffle format), so
+        // `ExternalSorter` buffers the records in memory and we must copy.
+        true
+      } else if (numParts <= SortShuffleManager.MAX_SHUFFLE_OUTPUT_PARTITIONS_FOR_SERIALIZED_MODE ||
+          conf.get(config.SHUFFLE_SORT_WIDE_POINTERS_ENABLED)) {
         // SPARK-4550 and  SPARK-7081 extended sort-based shuffle to serialize individual records
         // prior to sorting them. This optimization is only applied in cases where shuffle
         // dependency does not specify an aggregator or ordering and the record serializer has
@@ -319,8 +352,9 @@ object ShuffleExchangeExec {
         // optimization is enabled, we can safely avoid the copy.
         //
         // Exchange never configures its ShuffledRDDs with aggregators or key orderings, and the
-        // serializer in Spark SQL always satisfy the properties, so we only need to check whether
-        // the number of partitions exceeds the limitation.
+        // row serializer in Spark SQL always satisfy the properties, so we only need to check
+        // whether the number of partitions exceeds the limitation, which does not apply when
+        // wider shuffles are sorted with wide record pointers.
         false
       } else {
         // Spark's SortShuffleManager uses `ExternalSorter` to buffer records in memory, so we must
@@ -508,7 +542,7 @@ object ShuffleExchangeExec {
       // Stateful partition assignment is order-sensitive when it depends on row visitation order.
       val isOrderSensitive =
         (isRoundRobin || isNullAwareHashPartitioning) && !SQLConf.get.sortBeforeRepartition
-      if (needToCopyObjectsBeforeShuffle(part)) {
+      if (needToCopyObjectsBeforeShuffle(part, serializer)) {
         newRdd.mapPartitionsWithIndexInternal((_, iter) => {
           val getPartitionKey = getPartitionKeyExtractor()
           iter.map { row => (part.getPartition(getPartitionKey(row)), row.copy()) }
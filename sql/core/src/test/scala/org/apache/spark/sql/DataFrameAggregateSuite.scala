@@ -5045,6 +5045,39 @@ class DataFrameAggregateSuite extends SharedSparkSession
     assert(outType.precision == 24 && outType.scale == 6,
       s"expected DecimalType(24, 6) from un-rewritten AVG, got $outType")
   }
+
+  test("hash aggregate with batched hash map lookups") {
+    // A new plan for every configuration.
+    def df: DataFrame = spark.range(0, 3000, 1, 2)
+      .selectExpr("cast(id % 1000 as string) as k", "id")
+      .groupBy("k")
+      .agg(count("*").as("cnt"), sum("id").as("total"))
+    val expected = (0 until 1000).map(k => Row(k.toString, 3L, k * 3L + 3000))
+    for {
+      (partitionBits, batchSize) <-
+        Seq(("0", "1"), ("0", "7"), ("0", "1024"), ("2", "0"), ("2", "1024"))
+      codegen <- Seq(true, false)
+      fallbackStartsAt <- Seq(None, Some("2, 5"))
+    } {
+      withSQLConf(
+          Seq(SQLConf.AGGREGATE_HASH_MAP_PARTITION_BITS.key -> partitionBits,
+            SQLConf.AGGREGATE_HASH_MAP_LOOKUP_BATCH_SIZE.key -> batchSize,
+            SQLConf.WHOLESTAGE_CODEGEN_ENABLED.key -> codegen.toString) ++
+            fallbackStartsAt.map("spark.sql.TungstenAggregate.testFallbackStartsAt" -> _): _*) {
+        val aggregated = df
+        checkAnswer(aggregated, expected)
+        val plan = aggregated.queryExecution.executedPlan
+        val hashAggs = collect(plan) { case agg: HashAggregateExec => agg }
+        val generatedHashAggs = collect(plan) {
+          case WholeStageCodegenExec(agg: HashAggregateExec) => agg
+        }
+        // Neither setting turns whole-stage code generation off; the batches are only used
+        // when the aggregates are not code generated.
+        assert(hashAggs.nonEmpty && hashAggs.forall(_.supportCodegen))
+        assert(generatedHashAggs.size === (if (codegen) hashAggs.size else 0))
+      }
+    }
+  }
 }
 
 case class B(c: Option[Double])
@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import java.io.ByteArrayOutputStream
+import java.util.Properties
+
+import org.apache.spark._
+import org.apache.spark.internal.config._
+import org.apache.spark.memory.{TaskMemoryManager, TestMemoryManager}
+import org.apache.spark.sql.{LocalSparkSession, Row, SparkSession}
+import org.apache.spark.sql.catalyst.{CatalystTypeConverters, InternalRow}
+import org.apache.spark.sql.catalyst.expressions.UnsafeProjection
+import org.apache.spark.sql.execution.adaptive.{AdaptiveSparkPlanHelper, AQEShuffleReadExec}
+import org.apache.spark.sql.execution.exchange.ShuffleExchangeExec
+import org.apache.spark.sql.execution.metric.SQLShuffleReadMetricsReporter
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.vectorized.ColumnarBatch
+
+class ColumnarBatchSerializerSuite extends SparkFunSuite with LocalSparkSession
+  with AdaptiveSparkPlanHelper {
+
+  private val schema = new StructType()
+    .add("b", BooleanType)
+    .add("s", ShortType)
+    .add("i", IntegerType)
+    .add("l", LongType)
+    .add("d", DoubleType)
+    .add("dec", DecimalType(10, 2))
+    .add("str", StringType)
+    .add("bin", BinaryType)
+
+  private val rows = (0 until 10).map { i =>
+    if (i % 4 == 3) {
+      Row(null, null, null, null, null, null, null, null)
+    } else {
+      Row(i % 2 == 0, i.toShort, i, i * 100000000000L, i / 3.0,
+        java.math.BigDecimal.valueOf(i * 101L, 2),
+        "row" * i, Array.fill(i)(i.toByte))
+    }
+  }
+
+  private def serialize(batchSize: Int): Array[Byte] = {
+    val toUnsafe = UnsafeProjection.create(schema)
+    val serializer = new ColumnarBatchSerializer(schema, batchSize).newInstance()
+    val out = new ByteArrayOutputStream()
+    val stream = serializer.serializeStream(out)
+    rows.foreach { row =>
+      stream.writeKey(0)
+      stream.writeValue(toUnsafe(CatalystTypeConverters.convertToCatalyst(row)
+        .asInstanceOf[InternalRow]))
+    }
+    stream.close()
+    out.toByteArray
+  }
+
+  private def toRow(row: InternalRow): Row = {
+    CatalystTypeConverters.convertToScala(row.copy(), schema).asInstanceOf[Row]
+  }
+
+  private def assertRowsEqual(actual: Seq[Row]): Unit = {
+    assert(actual.length === rows.length)
+    actual.zip(rows).foreach { case (a, e) =>
+      assert(a.toSeq.init === e.toSeq.init)
+      assert(Option(a.getAs[Array[Byte]](7)).map(_.toSeq) ===
+        Option(e.getAs[Array[Byte]](7)).map(_.toSeq))
+    }
+  }
+
+  test("rows are read back across batches") {
+    val serializer = new ColumnarBatchSerializer(schema, 3).newInstance()
+    val input = new ClosableByteArrayInputStream(serialize(batchSize = 3))
+    val actual = serializer.deserializeStream(input).asKeyValueIterator.map { kv =>
+      toRow(kv._2.asInstanceOf[InternalRow])
+    }.toSeq
+    assertRowsEqual(actual)
+    assert(input.closed)
+  }
+
+  test("rows are read back one by one") {
+    val serializer = new ColumnarBatchSerializer(schema, 4).newInstance()
+    val stream = serializer.deserializeStream(
+      new ClosableByteArrayInputStream(serialize(batchSize = 4)))
+    val actual = rows.indices.map { _ =>
+      stream.readKey[Int]()
+      toRow(stream.readValue[InternalRow]())
+    }
+    stream.close()
+    assertRowsEqual(actual)
+  }
+
+  test("batches are read back as column batches") {
+    val serializer = new ColumnarBatchSerializer(schema, 3, readsBatches = true).newInstance()
+    val input = new ClosableByteArrayInputStream(serialize(batchSize = 3))
+    val batchSizes = new scala.collection.mutable.ArrayBuffer[Int]()
+    val actual = serializer.deserializeStream(input).asKeyValueIterator.flatMap { kv =>
+      val batch = kv._2.asInstanceOf[ColumnarBatch]
+      batchSizes += batch.numRows
+      // The batch is only valid until the next one is read.
+      (0 until batch.numRows).map(rowId => toRow(batch.getRow(rowId)))
+    }.toSeq
+    assertRowsEqual(actual)
+    assert(batchSizes.toSeq === Seq(3, 3, 3, 1))
+    assert(input.closed)
+  }
+
+  test("close empty input stream") {
+    val input = new ClosableByteArrayInputStream(Array.empty)
+    val serializer = new ColumnarBatchSerializer(schema, 3).newInstance()
+    val deserializerIter = serializer.deserializeStream(input).asKeyValueIterator
+    assert(!deserializerIter.hasNext)
+    assert(input.closed)
+  }
+
+  test("column vectors are accounted with the task memory manager") {
+    val conf = new SparkConf()
+    val memoryManager = new TestMemoryManager(conf)
+    val taskMemoryManager = new TaskMemoryManager(memoryManager, 0)
+    TaskContext.setTaskContext(
+      new TaskContextImpl(0, 0, 0, 0, 0, 1, taskMemoryManager, new Properties, null, cpus = 1))
+    try {
+      val toUnsafe = UnsafeProjection.create(schema)
+      val unsafeRows = rows.map { row =>
+        toUnsafe(CatalystTypeConverters.convertToCatalyst(row).asInstanceOf[InternalRow]).copy()
+      }
+      def write(out: ByteArrayOutputStream): Long = {
+        val stream = new ColumnarBatchSerializer(schema, 100).newInstance().serializeStream(out)
+        unsafeRows.foreach(stream.writeValue(_))
+        val used = taskMemoryManager.getMemoryConsumptionForThisTask
+        stream.close()
+        assert(taskMemoryManager.getMemoryConsumptionForThisTask === 0)
+        used
+      }
+
+      val out = new ByteArrayOutputStream()
+      assert(write(out) > 0)
+      // Without memory, every row is written as a batch of its own.
+      memoryManager.limit(0)
+      val outWithoutMemory = new ByteArrayOutputStream()
+      assert(write(outWithoutMemory) === 0)
+      assert(outWithoutMemory.size > out.size)
+
+      memoryManager.limit(Long.MaxValue)
+      val stream = new ColumnarBatchSerializer(schema, 100).newInstance()
+        .deserializeStream(new ClosableByteArrayInputStream(outWithoutMemory.toByteArray))
+      val actual = stream.asKeyValueIterator.map(kv => toRow(kv._2.asInstanceOf[InternalRow]))
+      assertRowsEqual(actual.toSeq)
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask === 0)
+    } finally {
+      TaskContext.unset()
+    }
+  }
+
+  test("streams of an instance share their vectors and memory") {
+    val memoryManager = new TestMemoryManager(new SparkConf())
+    val taskMemoryManager = new TaskMemoryManager(memoryManager, 0)
+    TaskContext.setTaskContext(
+      new TaskContextImpl(0, 0, 0, 0, 0, 1, taskMemoryManager, new Properties, null, cpus = 1))
+    try {
+      val toUnsafe = UnsafeProjection.create(schema)
+      val row =
+        toUnsafe(CatalystTypeConverters.convertToCatalyst(rows(1)).asInstanceOf[InternalRow])
+      val serializer = new ColumnarBatchSerializer(schema, 100).newInstance()
+      // As many streams as partitions written at once by a bypass merge sort shuffle writer.
+      val outs = Seq.fill(200)(new ByteArrayOutputStream())
+      val streams = outs.map(serializer.serializeStream)
+      streams.foreach(_.writeValue(row))
+      // One consumer accounts all the streams, rather than acquiring memory for each of them.
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask > 0)
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask <= 256 * 1024)
+      streams.foreach(_.close())
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask === 0)
+
+      outs.foreach { out =>
+        val actual = serializer.deserializeStream(new ClosableByteArrayInputStream(out.toByteArray))
+          .asKeyValueIterator.map(kv => toRow(kv._2.asInstanceOf[InternalRow])).toSeq
+        assert(actual.map(_.getInt(2)) === Seq(1))
+      }
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask === 0)
+    } finally {
+      TaskContext.unset()
+    }
+  }
+
+  test("memory of streams which are not read to the end is released with the task") {
+    val memoryManager = new TestMemoryManager(new SparkConf())
+    val taskMemoryManager = new TaskMemoryManager(memoryManager, 0)
+    val context =
+      new TaskContextImpl(0, 0, 0, 0, 0, 1, taskMemoryManager, new Properties, null, cpus = 1)
+    TaskContext.setTaskContext(context)
+    try {
+      val serializer = new ColumnarBatchSerializer(schema, 3).newInstance()
+      val iter = serializer.deserializeStream(
+        new ClosableByteArrayInputStream(serialize(batchSize = 3))).asKeyValueIterator
+      // Like a task under a limit, which stops reading after its first row.
+      assert(iter.hasNext)
+      iter.next()
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask > 0)
+      context.markTaskCompleted(None)
+      assert(taskMemoryManager.getMemoryConsumptionForThisTask === 0)
+    } finally {
+      TaskContext.unset()
+    }
+  }
+
+  test("unsupported column types") {
+    assert(ColumnarBatchSerializer.supports(schema))
+    assert(!ColumnarBatchSerializer.supports(new StructType()))
+    assert(!ColumnarBatchSerializer.supports(new StructType().add("dec", DecimalType(20, 2))))
+    assert(!ColumnarBatchSerializer.supports(
+      new StructType().add("a", ArrayType(IntegerType))))
+  }
+
+  Seq(false, true).foreach { adaptive =>
+    test(s"exchange in columnar format with spilling (adaptive=$adaptive)") {
+      val conf = new SparkConf()
+        .set(SHUFFLE_SPILL_INITIAL_MEM_THRESHOLD, 1L)
+        .set(SHUFFLE_SORT_BYPASS_MERGE_THRESHOLD, 0)
+        .set(SQLConf.COLUMNAR_SHUFFLE_ENABLED.key, "true")
+        .set(SQLConf.COLUMNAR_SHUFFLE_BATCH_SIZE.key, "100")
+        .set(SQLConf.ADAPTIVE_EXECUTION_ENABLED.key, adaptive.toString)
+
+      spark = SparkSession.builder().master("local").appName("test").config(conf).getOrCreate()
+      val df = spark.range(0, 10000, 1, 4)
+        .selectExpr("id % 7 AS k", "CAST(id AS STRING) AS s", "IF(id % 5 = 0, NULL, id) AS v")
+        .repartition(5, org.apache.spark.sql.functions.col("k"))
+      val result = df.collect()
+      assert(result.length === 10000)
+      assert(result.map(_.getString(1).toLong).sorted.toSeq === (0L until 10000L))
+      assert(result.forall(r => r.getLong(0) === r.getString(1).toLong % 7))
+      assert(result.count(_.isNullAt(2)) === 2000)
+
+      val plan = df.queryExecution.executedPlan
+      val exchanges = collect(plan) {
+        case e: ShuffleExchangeExec => e
+      }
+      assert(exchanges.size === 1)
+      assert(exchanges.head.shuffleDependency.serializer.isInstanceOf[ColumnarBatchSerializer])
+      assert(exchanges.head.supportsColumnar)
+      // The batches are handed to a columnar operator, which turns them into rows.
+      assert(collect(plan) { case c: ColumnarToRowExec => c }.size === 1)
+      // Records are counted by row, not by batch.
+      assert(exchanges.head.metrics(SQLShuffleReadMetricsReporter.RECORDS_READ).value === 10000)
+    }
+  }
+
+  test("exchange in columnar format is read as batches or as rows") {
+    val conf = new SparkConf()
+      .set(SQLConf.COLUMNAR_SHUFFLE_ENABLED.key, "true")
+      .set(SQLConf.ADAPTIVE_EXECUTION_ENABLED.key, "true")
+
+    spark = SparkSession.builder().master("local").appName("test").config(conf).getOrCreate()
+    val df = spark.range(0, 1000, 1, 4).selectExpr("id % 7 AS k").groupBy("k").count()
+    assert(df.collect().map(r => (r.getLong(0), r.getLong(1))).sorted.toSeq ===
+      (0L until 7L).map(k => (k, if (k < 6) 143L else 142L)))
+
+    // Every map task shuffles the partial counts of all the keys.
+    val expectedKeys = (0L until 7L).flatMap(Seq.fill(4)(_))
+    val plan = df.queryExecution.executedPlan
+    val read = collect(plan) { case r: AQEShuffleReadExec => r }.head
+    assert(read.supportsColumnar)
+    assert(read.executeColumnar().map(_.numRows()).collect().sum === expectedKeys.size)
+    // Operators which take the row path of the exchange read the rows of the batches.
+    assert(read.execute().map(_.getLong(0)).collect().sorted.toSeq === expectedKeys)
+    val exchange = collect(plan) { case e: ShuffleExchangeExec => e }.head
+    assert(exchange.execute().map(_.getLong(0)).collect().sorted.toSeq === expectedKeys)
+  }
+}
@@ -134,6 +134,50 @@ class SortSuite extends SharedSparkSession {
     }
   }
 
+  test("radix sort on normalized keys of multiple columns") {
+    val rand = new Random(42)
+    val inputData = Seq.fill(1000) {
+      Row(
+        if (rand.nextInt(10) == 0) null else "shared prefix " + rand.nextInt(20),
+        if (rand.nextInt(10) == 0) null else rand.nextInt(5) - 2,
+        if (rand.nextInt(10) == 0) null else (rand.nextInt(5) - 2) * 0.5)
+    }
+    val inputDf = spark.createDataFrame(
+      sparkContext.parallelize(inputData),
+      StructType(Seq(
+        StructField("a", StringType),
+        StructField("b", IntegerType),
+        StructField("c", DoubleType))))
+    Seq(
+      $"a".asc :: $"b".asc :: $"c".asc :: Nil,
+      $"a".desc :: $"b".asc_nullsLast :: $"c".desc :: Nil,
+      $"b".desc_nullsFirst :: $"a".asc :: $"c".asc_nullsLast :: Nil,
+      $"c".asc :: $"a".desc_nullsFirst :: $"b".desc :: Nil
+    ).foreach { sortOrder =>
+      withSQLConf(SQLConf.NORMALIZED_KEY_RADIX_SORT_ENABLED.key -> "true") {
+        checkThatPlansAgree(
+          inputDf,
+          p => SortExec(sortOrder, global = true, p: SparkPlan, testSpillFrequency = 23),
+          ReferenceSort(sortOrder, global = true, _: SparkPlan),
+          sortAnswers = false
+        )
+      }
+    }
+  }
+
+  test("sort spills with its spill encoding") {
+    val inputDf = (1 to 1000).map(i => Tuple1("shared prefix " + i % 10)).toDF("a")
+    Seq("RAW" -> false, "DELTA" -> true).foreach { case (encoding, savesBytes) =>
+      withSQLConf(SQLConf.SORT_SPILL_ENCODING.key -> encoding) {
+        val sort = SortExec($"a".asc :: Nil, global = false,
+          inputDf.repartition(1).queryExecution.sparkPlan, testSpillFrequency = 100)
+        assert(sort.executeCollect().map(_.getString(0)).toSeq ===
+          inputDf.collect().map(_.getString(0)).toSeq.sorted)
+        assert((sort.metrics("spillEncodingSaved").value > 0) === savesBytes)
+      }
+    }
+  }
+
   // Test sorting on different data types
   for (
     dataType <- DataTypeTestUtils.atomicTypes ++ Set(NullType);
@@ -31,7 +31,7 @@ import org.apache.spark.{SparkConf, SparkFunSuite, TaskContext, TaskContextImpl}
 import org.apache.spark.internal.config.MEMORY_OFFHEAP_ENABLED
 import org.apache.spark.memory.{TaskMemoryManager, TestMemoryManager}
 import org.apache.spark.sql.catalyst.InternalRow
-import org.apache.spark.sql.catalyst.expressions.UnsafeRow
+import org.apache.spark.sql.catalyst.expressions.{UnsafeProjection, UnsafeRow}
 import org.apache.spark.sql.test.SharedSparkSession
 import org.apache.spark.sql.types._
 import org.apache.spark.unsafe.types.UTF8String
@@ -308,6 +308,139 @@ class UnsafeFixedWidthAggregationMapSuite
     map.free()
   }
 
+  testWithMemoryLeakDetection("single integral grouping key with a long key map") {
+    val longKeySchema = StructType(StructField("id", LongType) :: Nil)
+    assert(supportsLongKeyMap(longKeySchema))
+    assert(supportsLongKeyMap(StructType(StructField("d", DateType) :: Nil)))
+    assert(!supportsLongKeyMap(groupKeySchema))
+    assert(!supportsLongKeyMap(StructType(longKeySchema.fields ++ longKeySchema.fields)))
+
+    val map = new UnsafeFixedWidthAggregationMap(
+      emptyAggregationBuffer,
+      aggBufferSchema,
+      longKeySchema,
+      taskContext,
+      128, // initial capacity
+      PAGE_SIZE_BYTES,
+      true, // enable long key map
+      0 // hash map partition bits
+    )
+    val keys = (0 until 1000).map(i => if (i == 500) None else Some((i * 7919L) % 1000))
+    keys.foreach { key =>
+      val buf = map.getAggregationBuffer(InternalRow(key.getOrElse(null)))
+      buf.setInt(0, buf.getInt(0) + 1)
+    }
+    val sorter = map.destructAndCreateExternalSorter()
+    Seq(1L, 1001L).foreach { key =>
+      map.getAggregationBuffer(InternalRow(key)).setInt(0, 1)
+    }
+    sorter.merge(map.destructAndCreateExternalSorter())
+
+    val out = new mutable.ArrayBuffer[Option[Long]]
+    val iter = sorter.sortedIterator()
+    while (iter.next()) {
+      assert(iter.getValue.getInt(0) === 1)
+      out += (if (iter.getKey.isNullAt(0)) None else Some(iter.getKey.getLong(0)))
+    }
+    assert(out === (keys ++ Seq(Some(1L), Some(1001L))).sorted)
+    map.free()
+  }
+
+  testWithMemoryLeakDetection("hash map partitioned by the grouping key hash") {
+    val map = new UnsafeFixedWidthAggregationMap(
+      emptyAggregationBuffer,
+      aggBufferSchema,
+      groupKeySchema,
+      taskContext,
+      128, // initial capacity
+      PAGE_SIZE_BYTES,
+      false, // enable long key map
+      2 // hash map partition bits
+    )
+    val keys = (0 until 1000).map(i => s"key$i")
+    keys.foreach { key =>
+      val buf = map.getAggregationBuffer(InternalRow(UTF8String.fromString(key)))
+      buf.setInt(0, buf.getInt(0) + 1)
+    }
+    keys.foreach { key =>
+      assert(map.getAggregationBuffer(InternalRow(UTF8String.fromString(key))).getInt(0) === 1)
+    }
+    val sorter = map.destructAndCreateExternalSorter()
+    Seq("key1", "other").foreach { key =>
+      map.getAggregationBuffer(InternalRow(UTF8String.fromString(key))).setInt(0, 1)
+    }
+    sorter.merge(map.destructAndCreateExternalSorter())
+
+    val out = new mutable.ArrayBuffer[String]
+    val iter = sorter.sortedIterator()
+    while (iter.next()) {
+      assert(iter.getValue.getInt(0) === 1)
+      out += iter.getKey.getString(0)
+    }
+    assert(out.sorted === (keys ++ Seq("key1", "other")).sorted)
+    map.free()
+  }
+
+  Seq(0, 2).foreach { numPartitionBits =>
+    testWithMemoryLeakDetection(s"batched lookups ($numPartitionBits hash map partition bits)") {
+      testBatchedLookups(numPartitionBits)
+    }
+  }
+
+  private def testBatchedLookups(numPartitionBits: Int): Unit = {
+    val map = new UnsafeFixedWidthAggregationMap(
+      emptyAggregationBuffer,
+      aggBufferSchema,
+      groupKeySchema,
+      taskContext,
+      128, // initial capacity
+      PAGE_SIZE_BYTES,
+      false, // enable long key map
+      numPartitionBits
+    )
+    val keyProjection = UnsafeProjection.create(groupKeySchema)
+    val sorters = new mutable.ArrayBuffer[UnsafeKVExternalSorter]
+    def toKeys(keys: Seq[String]): Array[UnsafeRow] =
+      keys.map(k => keyProjection(InternalRow(UTF8String.fromString(k))).copy()).toArray
+    def aggregate(keys: Array[UnsafeRow], spillAt: Int = -1): Unit = {
+      val rowOrder = map.lookupBatch(keys, keys.length)
+      assert(rowOrder.take(keys.length).sorted === keys.indices)
+      // Rows are grouped by the partition of their key.
+      val partitions = rowOrder.take(keys.length).map(row => keys(row).hashCode() >>> 30)
+      if (numPartitionBits == 2) {
+        assert(partitions === partitions.sorted)
+      }
+      rowOrder.take(keys.length).zipWithIndex.foreach { case (row, i) =>
+        if (i == spillAt) {
+          sorters += map.destructAndCreateExternalSorter()
+        }
+        val buf = map.getAggregationBufferFromBatch(row)
+        buf.setInt(0, buf.getInt(0) + 1)
+      }
+    }
+
+    // Keys repeat within a batch and across batches, and more keys are added than the initial
+    // capacity, so that the map grows in the middle of a batch.
+    val keys = (0 until 3000).map(i => s"key${i % 1000}")
+    keys.grouped(300).foreach(batch => aggregate(toKeys(batch)))
+    (0 until 1000).foreach { i =>
+      assert(map.getAggregationBuffer(InternalRow(UTF8String.fromString(s"key$i"))).getInt(0) === 3)
+    }
+
+    // Spilling in the middle of a batch resets the map; the rest of the batch starts over.
+    aggregate(toKeys(Seq("a", "b", "a", "c")), spillAt = 2)
+    sorters.head.merge(map.destructAndCreateExternalSorter())
+    val out = new mutable.HashMap[String, Int]
+    val iter = sorters.head.sortedIterator()
+    while (iter.next()) {
+      val key = iter.getKey.getString(0)
+      out(key) = out.getOrElse(key, 0) + iter.getValue.getInt(0)
+    }
+    assert(out.size === 1003)
+    assert(out("a") === 2 && out("b") === 1 && out("c") === 1 && out("key7") === 3)
+    map.free()
+  }
+
   testWithMemoryLeakDetection("convert to external sorter under memory pressure (SPARK-10474)") {
     val pageSize = 4096
     val map = new UnsafeFixedWidthAggregationMap(